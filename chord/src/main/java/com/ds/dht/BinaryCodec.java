@@ -0,0 +1,303 @@
+package com.ds.dht;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Compact binary framing of {@link Message}s used between nodes once both
+ * sides have agreed on it with {@link DHTMain#PROTOCOL_BINARY}.
+ *
+ * A frame is laid out as
+ *
+ * <pre>
+ * varint frame length | opcode byte | varint request id | varint field count |
+ * (varint field length | UTF-8 field bytes)*
+ * </pre>
+ *
+ * Fields are length prefixed, so keys and values may contain ':' and line
+ * breaks.
+ *
+ * Frames longer than {@link DHTMain#MAX_FRAME_BYTES} and frames whose
+ * contents do not add up are rejected with an IOException, after which the
+ * connection has to be closed, as the stream can no longer be followed.
+ */
+public class BinaryCodec {
+
+	public final static byte OPCODE_REPLY = 0;
+
+	// Opcode of a command is its position in this list plus one. Only ever
+	// append to it, the numbers are part of the wire format
+	private final static String[] COMMANDS = { DHTMain.NEW_PREDECESSOR, DHTMain.FIND_VALUE, DHTMain.FIND_NODE,
+			DHTMain.NODE_FOUND, DHTMain.REQUEST_PREDECESSOR, DHTMain.PING_QUERY, DHTMain.PING_RESPONSE,
+			DHTMain.PUT_VALUE, DHTMain.REQUEST_KEY_VALUES, DHTMain.PUT_REPLICA, DHTMain.FIND_VALUE_IN_SUCCESSOR,
+			DHTMain.FIND_LEADER, DHTMain.ELECT_LEADER, DHTMain.LEADER_ELECTED, DHTMain.GET_SUCCESSORS,
+			DHTMain.GET_FINGERS, DHTMain.NEXT_HOP, DHTMain.FIND_VALUE_DIRECT, DHTMain.PUT_VALUE_DIRECT,
+			DHTMain.GET_MEMBERSHIP, DHTMain.GOSSIP_MEMBERS, DHTMain.PUT_REPLICAS, DHTMain.MERKLE_HASHES,
+			DHTMain.MERKLE_KEYS, DHTMain.FIND_VALUE_AT, DHTMain.PUT_VALUE_AT, DHTMain.FIND_VALUE_DIRECT_AT,
+			DHTMain.PUT_VALUE_DIRECT_AT, DHTMain.READ_REPLICA, DHTMain.REPLICATED_UP_TO,
+			DHTMain.PUT_VERSIONED, DHTMain.FIND_VERSIONED };
+
+	public final static String REPLY = "REPLY";
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+	// A varint of a long takes at most 10 bytes
+	private final static int MAX_VARINT_BYTES = 10;
+
+	/**
+	 * Returns the number of bytes the frame for this message takes, including
+	 * the length prefix.
+	 */
+	public static int frameLength(Message message) {
+		int payloadLength = payloadLength(message);
+		return varintLength(payloadLength) + payloadLength;
+	}
+
+	/**
+	 * Writes the frame for a message at the position of the buffer. The buffer
+	 * must have {@link #frameLength(Message)} bytes remaining.
+	 */
+	public static void encode(Message message, ByteBuffer out) {
+		writeVarint(out, payloadLength(message));
+		out.put(opcode(message.getCommand()));
+		writeVarint(out, message.getRequestId());
+		writeVarint(out, message.getFieldCount());
+		for (String field : message.getFields()) {
+			writeVarint(out, utf8Length(field));
+			writeUtf8(out, field);
+		}
+	}
+
+	/**
+	 * Decodes the next frame in the buffer. If the buffer does not hold a
+	 * complete frame yet the position is left untouched and null is returned.
+	 */
+	public static Message decode(ByteBuffer in) throws IOException {
+		int start = in.position();
+		long payloadLength = readVarint(in);
+		if (payloadLength > DHTMain.MAX_FRAME_BYTES) {
+			throw new IOException("frame of " + payloadLength + " bytes is longer than " + DHTMain.MAX_FRAME_BYTES);
+		}
+		if (payloadLength < 0 && in.position() - start >= MAX_VARINT_BYTES) {
+			throw new IOException("corrupt frame length");
+		}
+		if (payloadLength < 0 || in.remaining() < payloadLength) {
+			in.position(start);
+			return null;
+		}
+
+		// Keep a corrupt frame from reading into the next one
+		int end = in.position() + (int) payloadLength;
+		int limit = in.limit();
+		in.limit(end);
+		try {
+			Message message = decodePayload(in);
+			if (in.hasRemaining()) {
+				throw new IOException("corrupt frame, " + in.remaining() + " bytes left over");
+			}
+			return message;
+		} finally {
+			in.limit(limit);
+		}
+	}
+
+	/**
+	 * Decodes a frame payload, the frame without its length prefix. The
+	 * payload has to end at the limit of the buffer.
+	 */
+	public static Message decodePayload(ByteBuffer in) throws IOException {
+		if (!in.hasRemaining()) {
+			throw new IOException("corrupt frame, no opcode");
+		}
+		String command = command(in.get());
+		long requestId = readVarint(in);
+		long fieldCount = readVarint(in);
+		// Every field takes at least its length byte
+		if (requestId < 0 || fieldCount < 0 || fieldCount > in.remaining()) {
+			throw new IOException("corrupt frame of " + command);
+		}
+		String[] fields = new String[(int) fieldCount];
+		for (int i = 0; i < fieldCount; i++) {
+			long fieldLength = readVarint(in);
+			if (fieldLength < 0 || fieldLength > in.remaining()) {
+				throw new IOException("corrupt frame of " + command + ", field " + i + " runs past its end");
+			}
+			int length = (int) fieldLength;
+			if (in.hasArray()) {
+				fields[i] = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+				in.position(in.position() + length);
+			} else {
+				byte[] bytes = new byte[length];
+				in.get(bytes);
+				fields[i] = new String(bytes, UTF8);
+			}
+		}
+		return new Message(command, requestId, fields);
+	}
+
+	/**
+	 * Writes a message to a stream through a reusable buffer. Returns the
+	 * buffer to use next time, which is a bigger one if the message did not
+	 * fit.
+	 */
+	public static ByteBuffer writeFrame(OutputStream out, Message message, ByteBuffer buffer) throws IOException {
+		buffer = ensureCapacity(buffer, frameLength(message));
+		buffer.clear();
+		encode(message, buffer);
+		out.write(buffer.array(), 0, buffer.position());
+		out.flush();
+		return buffer;
+	}
+
+	/**
+	 * Reads the payload of the next frame from a stream into a reusable
+	 * buffer, ready for {@link #decodePayload(ByteBuffer)}. Returns null at the
+	 * end of the stream.
+	 */
+	public static ByteBuffer readFrame(DataInputStream in, ByteBuffer buffer) throws IOException {
+		long payloadLength = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				return null;
+			}
+			payloadLength |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			if (payloadLength > DHTMain.MAX_FRAME_BYTES) {
+				break;
+			}
+		}
+		if (payloadLength > DHTMain.MAX_FRAME_BYTES) {
+			throw new IOException("frame of " + payloadLength + " bytes is longer than " + DHTMain.MAX_FRAME_BYTES);
+		}
+
+		buffer = ensureCapacity(buffer, (int) payloadLength);
+		buffer.clear();
+		in.readFully(buffer.array(), 0, (int) payloadLength);
+		buffer.limit((int) payloadLength);
+		return buffer;
+	}
+
+	public static ByteBuffer ensureCapacity(ByteBuffer buffer, int capacity) {
+		if (buffer == null || buffer.capacity() < capacity) {
+			return ByteBuffer.allocate(Math.max(capacity, buffer == null ? 256 : buffer.capacity() * 2));
+		}
+		return buffer;
+	}
+
+	public static byte opcode(String command) {
+		if (REPLY.equals(command)) {
+			return OPCODE_REPLY;
+		}
+		for (int i = 0; i < COMMANDS.length; i++) {
+			if (COMMANDS[i].equals(command)) {
+				return (byte) (i + 1);
+			}
+		}
+		throw new IllegalArgumentException("no opcode for command " + command);
+	}
+
+	public static String command(byte opcode) throws IOException {
+		if (opcode == OPCODE_REPLY) {
+			return REPLY;
+		}
+		if (opcode < 1 || opcode > COMMANDS.length) {
+			throw new IOException("unknown opcode " + opcode);
+		}
+		return COMMANDS[opcode - 1];
+	}
+
+	private static int payloadLength(Message message) {
+		int length = 1 + varintLength(message.getRequestId()) + varintLength(message.getFieldCount());
+		for (String field : message.getFields()) {
+			int fieldLength = utf8Length(field);
+			length += varintLength(fieldLength) + fieldLength;
+		}
+		return length;
+	}
+
+	private static void writeVarint(ByteBuffer out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	/**
+	 * Reads a varint, or returns -1 if the buffer ends in the middle of it or
+	 * it does not fit in a long.
+	 */
+	private static long readVarint(ByteBuffer in) {
+		long value = 0;
+		for (int i = 0; in.hasRemaining() && i < MAX_VARINT_BYTES; i++) {
+			int shift = 7 * i;
+			byte b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		return -1;
+	}
+
+	private static int varintLength(long value) {
+		int length = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * Number of bytes the string takes in UTF-8.
+	 */
+	public static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	private static void writeUtf8(ByteBuffer out, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				out.put((byte) c);
+			} else if (c < 0x800) {
+				out.put((byte) (0xC0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				out.put((byte) (0xF0 | (codePoint >> 18)));
+				out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+				out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (codePoint & 0x3F)));
+			} else {
+				out.put((byte) (0xE0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+}
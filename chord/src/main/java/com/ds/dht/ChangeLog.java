@@ -0,0 +1,79 @@
+package com.ds.dht;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Sequence numbered log of the keys written to the store of a host. The
+ * stabilizer of each node remembers up to which position each of its
+ * successors confirmed the replicas, and only sends the keys written after
+ * that position instead of all keys every round.
+ *
+ * A key written again moves to the end of the log, so every key is in the
+ * log at most once. Entries that every node of the host has sent on are
+ * trimmed, see {@link NodeHost#trimChangeLog()}.
+ */
+public class ChangeLog {
+
+	private long sequence;
+	private ConcurrentSkipListMap<Long, String> changes = new ConcurrentSkipListMap<>();
+	private ConcurrentHashMap<String, Long> positions = new ConcurrentHashMap<>();
+
+	/**
+	 * Records that the key was written and returns its position. Positions
+	 * are given out and entered under one lock, so that a reader never sees
+	 * a position before all lower ones are in the log.
+	 */
+	public synchronized long record(String key) {
+		long position = ++sequence;
+		Long previous = positions.put(key, position);
+		if (previous != null) {
+			changes.remove(previous);
+		}
+		changes.put(position, key);
+		return position;
+	}
+
+	/**
+	 * The position of the last write.
+	 */
+	public synchronized long position() {
+		return sequence;
+	}
+
+	/**
+	 * The position of the last write of the key, null if it is not in the
+	 * log, because it was trimmed or never written.
+	 */
+	public Long positionOf(String key) {
+		return positions.get(key);
+	}
+
+	/**
+	 * The keys written after the given position, in the order of their last
+	 * write.
+	 */
+	public NavigableMap<Long, String> since(long position) {
+		return changes.tailMap(position, false);
+	}
+
+	/**
+	 * Drops the entries up to and including the given position.
+	 */
+	public void trim(long position) {
+		for (Iterator<Map.Entry<Long, String>> it = changes.headMap(position, true).entrySet().iterator(); it
+				.hasNext();) {
+			Map.Entry<Long, String> change = it.next();
+			positions.remove(change.getValue(), change.getKey());
+			it.remove();
+		}
+	}
+
+	public int size() {
+		return changes.size();
+	}
+
+}
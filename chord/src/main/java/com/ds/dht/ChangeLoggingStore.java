@@ -0,0 +1,63 @@
+package com.ds.dht;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Wraps the {@link KeyValueStore} of a host and records every key whose
+ * value a put changed in the host's {@link ChangeLog}. Everything else is
+ * passed on as it is. Removed keys are not recorded, replicas are only ever
+ * added or overwritten.
+ */
+public class ChangeLoggingStore implements KeyValueStore {
+
+	private KeyValueStore store;
+	private ChangeLog changeLog;
+
+	public ChangeLoggingStore(KeyValueStore store, ChangeLog changeLog) {
+		this.store = store;
+		this.changeLog = changeLog;
+	}
+
+	public String get(String key) {
+		return store.get(key);
+	}
+
+	public String put(String key, String value) {
+		String previous = store.put(key, value);
+		if (!value.equals(previous)) {
+			changeLog.record(key);
+		}
+		return previous;
+	}
+
+	public String remove(String key) {
+		return store.remove(key);
+	}
+
+	public boolean remove(String key, String value) {
+		return store.remove(key, value);
+	}
+
+	public int size() {
+		return store.size();
+	}
+
+	public long getRingId(String key) {
+		return store.getRingId(key);
+	}
+
+	public Iterator<Map.Entry<String, String>> iterator() {
+		return store.iterator();
+	}
+
+	public Iterator<Map.Entry<String, String>> range(long fromExclusive, long toInclusive) {
+		return store.range(fromExclusive, toInclusive);
+	}
+
+	@Override
+	public String toString() {
+		return store.toString();
+	}
+
+}
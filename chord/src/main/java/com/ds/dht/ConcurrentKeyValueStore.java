@@ -0,0 +1,238 @@
+package com.ds.dht;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Default {@link KeyValueStore} on top of a ConcurrentHashMap. Reads never
+ * lock and writes only lock the bin of the key they change, so gets and puts
+ * from many request threads do not wait for each other.
+ *
+ * Next to the map the store keeps every key in a skip list ordered by its
+ * ring id, which is hashed once when the key is first stored. Handing a range
+ * of the ring to another node walks only the keys in that range.
+ */
+public class ConcurrentKeyValueStore implements KeyValueStore {
+
+	private ConcurrentHashMap<String, Stored> entries = new ConcurrentHashMap<>();
+	private ConcurrentSkipListSet<RingKey> ringIndex = new ConcurrentSkipListSet<>();
+
+	public String get(String key) {
+		Stored stored = entries.get(key);
+		return stored == null ? null : stored.value;
+	}
+
+	public String put(String key, String value) {
+		final Stored[] previous = new Stored[1];
+		entries.compute(key, (k, current) -> {
+			previous[0] = current;
+			if (current == null) {
+				long ringId = hash(key);
+				ringIndex.add(new RingKey(ringId, key));
+				return new Stored(value, ringId);
+			}
+			return new Stored(value, current.ringId);
+		});
+		return previous[0] == null ? null : previous[0].value;
+	}
+
+	public String remove(String key) {
+		final Stored[] previous = new Stored[1];
+		entries.computeIfPresent(key, (k, current) -> {
+			previous[0] = current;
+			ringIndex.remove(new RingKey(current.ringId, key));
+			return null;
+		});
+		return previous[0] == null ? null : previous[0].value;
+	}
+
+	public boolean remove(String key, String value) {
+		final boolean[] removed = new boolean[1];
+		entries.computeIfPresent(key, (k, current) -> {
+			if (!current.value.equals(value)) {
+				return current;
+			}
+			removed[0] = true;
+			ringIndex.remove(new RingKey(current.ringId, key));
+			return null;
+		});
+		return removed[0];
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getRingId(String key) {
+		Stored stored = entries.get(key);
+		return stored == null ? hash(key) : stored.ringId;
+	}
+
+	public Iterator<Map.Entry<String, String>> iterator() {
+		return new StoreIterator(entries.keySet().iterator());
+	}
+
+	public Iterator<Map.Entry<String, String>> range(long fromExclusive, long toInclusive) {
+		NavigableSet<RingKey> keys;
+		int order = RingMath.compare(fromExclusive, toInclusive);
+		if (order < 0) {
+			keys = ringIndex.subSet(RingKey.last(fromExclusive), false, RingKey.last(toInclusive), false);
+		} else if (order > 0) {
+			// The range wraps around zero, walk the end of the ring first
+			NavigableSet<RingKey> tail = ringIndex.tailSet(RingKey.last(fromExclusive), false);
+			NavigableSet<RingKey> head = ringIndex.headSet(RingKey.last(toInclusive), false);
+			return new StoreIterator(new ConcatIterator(tail.iterator(), head.iterator()));
+		} else {
+			keys = ringIndex;
+		}
+		return new StoreIterator(new ConcatIterator(keys.iterator(), null));
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("{");
+		for (Map.Entry<String, String> entry : this) {
+			if (builder.length() > 1) {
+				builder.append(", ");
+			}
+			builder.append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return builder.append('}').toString();
+	}
+
+	private static long hash(String key) {
+		return SHAHelper.hashToRing(key);
+	}
+
+	/**
+	 * Value of a key together with the ring id of the key.
+	 */
+	private static class Stored {
+		private final String value;
+		private final long ringId;
+
+		private Stored(String value, long ringId) {
+			this.value = value;
+			this.ringId = ringId;
+		}
+	}
+
+	/**
+	 * Entry of the ring index, ordered by unsigned ring id and then by key.
+	 */
+	private static class RingKey implements Comparable<RingKey> {
+		private final long ringId;
+		private final String key;
+
+		private RingKey(long ringId, String key) {
+			this.ringId = ringId;
+			this.key = key;
+		}
+
+		/**
+		 * Sorts after every key with the given ring id and before every key
+		 * with a larger one. Used as a bound only, it has no key.
+		 */
+		private static RingKey last(long ringId) {
+			return new RingKey(ringId, null);
+		}
+
+		public int compareTo(RingKey other) {
+			int compare = RingMath.compare(ringId, other.ringId);
+			if (compare != 0) {
+				return compare;
+			}
+			if (key == null || other.key == null) {
+				return key == other.key ? 0 : key == null ? 1 : -1;
+			}
+			return key.compareTo(other.key);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof RingKey && compareTo((RingKey) other) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return key == null ? 0 : key.hashCode();
+		}
+	}
+
+	/**
+	 * Walks one or two ranges of the ring index and yields their keys.
+	 */
+	private static class ConcatIterator implements Iterator<String> {
+		private Iterator<RingKey> current;
+		private Iterator<RingKey> next;
+
+		private ConcatIterator(Iterator<RingKey> first, Iterator<RingKey> second) {
+			this.current = first;
+			this.next = second;
+		}
+
+		public boolean hasNext() {
+			if (!current.hasNext() && next != null) {
+				current = next;
+				next = null;
+			}
+			return current.hasNext();
+		}
+
+		public String next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return current.next().key;
+		}
+	}
+
+	/**
+	 * Turns keys into entries of the store, skipping keys that were removed
+	 * in the meantime. remove() only removes the key if its value has not
+	 * changed since it was returned.
+	 */
+	private class StoreIterator implements Iterator<Map.Entry<String, String>> {
+		private Iterator<String> keys;
+		private Map.Entry<String, String> nextEntry;
+		private Map.Entry<String, String> lastEntry;
+
+		private StoreIterator(Iterator<String> keys) {
+			this.keys = keys;
+		}
+
+		public boolean hasNext() {
+			while (nextEntry == null && keys.hasNext()) {
+				String key = keys.next();
+				Stored stored = entries.get(key);
+				if (stored != null) {
+					nextEntry = new AbstractMap.SimpleImmutableEntry<>(key, stored.value);
+				}
+			}
+			return nextEntry != null;
+		}
+
+		public Map.Entry<String, String> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			lastEntry = nextEntry;
+			nextEntry = null;
+			return lastEntry;
+		}
+
+		public void remove() {
+			if (lastEntry == null) {
+				throw new IllegalStateException();
+			}
+			ConcurrentKeyValueStore.this.remove(lastEntry.getKey(), lastEntry.getValue());
+			lastEntry = null;
+		}
+	}
+
+}
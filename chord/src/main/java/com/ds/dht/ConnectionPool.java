@@ -0,0 +1,433 @@
+package com.ds.dht;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Keeps long lived connections to the other nodes so that a remote call does
+ * not have to pay for a TCP handshake. Connections are kept per peer
+ * address:port, checked with a ping when they have been idle for a while and
+ * closed once they have been idle for too long.
+ *
+ * Binary connections are multiplexed, so requests from many threads share a
+ * few connections per peer. A new connection is only opened when every
+ * existing one already has requests in flight, up to the per peer maximum.
+ *
+ * The connections are blocking sockets. A binary connection has a reader
+ * thread that completes the reply futures, so whatever the caller chains
+ * onto a future runs on that thread.
+ */
+public class ConnectionPool {
+
+	private ConcurrentHashMap<String, PeerPool> peers = new ConcurrentHashMap<>();
+	// Threads sending hedged requests and the timer starting the hedges
+	private ExecutorService hedgeLauncher = Executors.newCachedThreadPool(daemonThreads("dht-hedge"));
+	private ScheduledExecutorService hedgeTimer = Executors
+			.newSingleThreadScheduledExecutor(daemonThreads("dht-hedge-timer"));
+	// Threads opening and checking connections and sending text requests,
+	// see requestAsync
+	private ExecutorService connector = Executors.newCachedThreadPool(daemonThreads("dht-connect"));
+	// Closes idle connections until the pool is closed
+	private Thread evictor;
+	private volatile boolean closed;
+
+	public ConnectionPool() {
+		evictor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(DHTMain.POOL_IDLE_TIMEOUT / 2);
+						evictIdle();
+					}
+				} catch (InterruptedException e) {
+					// The pool was closed
+				}
+			}
+		}, "dht-pool-evictor");
+		evictor.setDaemon(true);
+		evictor.start();
+	}
+
+	/**
+	 * Sends a command to a peer and waits for the reply.
+	 */
+	public String request(String address, int port, String command, Object... fields) throws IOException {
+		return PeerConnection.await(requestAsync(address, port, command, fields), address + ":" + port);
+	}
+
+	public String request(Finger finger, String command, Object... fields) throws IOException {
+		return request(finger.getAddress(), finger.getPort(), command, fields);
+	}
+
+	/**
+	 * Sends a command to a peer and returns a future for the reply. A pooled
+	 * connection that turns out to be stale is dropped and the command is
+	 * sent again once on another connection. A busy peer, see
+	 * {@link PeerConnection.BusyException}, keeps the connection and the
+	 * command is not sent again.
+	 *
+	 * Only a binary connection that is ready is used on the calling thread.
+	 * Opening and checking connections, and text requests, block, so they
+	 * run on the connector threads instead. The caller may be the reader
+	 * thread of another connection, which must not wait for them.
+	 */
+	public CompletableFuture<String> requestAsync(String address, int port, String command, Object... fields) {
+		PeerConnection ready = pick(getPeerPool(address, port));
+		if (ready != null && ready.isBinary()) {
+			ready.setReused(true);
+			return requestOn(ready, address, port, command, fields);
+		}
+
+		CompletableFuture<String> reply = new CompletableFuture<>();
+		connect(reply, () -> {
+			if (reply.isDone()) {
+				// Cancelled while waiting for a connector thread
+				return;
+			}
+			try {
+				forward(requestOn(acquire(address, port), address, port, command, fields), reply);
+			} catch (IOException e) {
+				reply.completeExceptionally(e);
+			}
+		});
+		return reply;
+	}
+
+	private CompletableFuture<String> requestOn(PeerConnection connection, String address, int port,
+			String command, Object... fields) {
+		CompletableFuture<String> reply = connection.requestAsync(command, fields);
+		if (!connection.isReused()) {
+			// A request cancelled by the caller says nothing about the
+			// connection
+			reply.whenComplete((response, error) -> {
+				if (error != null && !reply.isCancelled() && !(error instanceof PeerConnection.BusyException)) {
+					remove(connection);
+				}
+			});
+			return reply;
+		}
+
+		// Retry once on another connection
+		CompletableFuture<String> retried = new CompletableFuture<>();
+		reply.whenComplete((response, error) -> {
+			if (error == null) {
+				retried.complete(response);
+				return;
+			}
+			if (retried.isCancelled()) {
+				return;
+			}
+			if (error instanceof PeerConnection.BusyException) {
+				retried.completeExceptionally(error);
+				return;
+			}
+			remove(connection);
+			connect(retried, () -> {
+				try {
+					PeerConnection other = acquire(address, port);
+					CompletableFuture<String> retryReply = other.requestAsync(command, fields);
+					retryReply.whenComplete((retryResponse, retryError) -> {
+						if (retryError != null && !retryReply.isCancelled()
+								&& !(retryError instanceof PeerConnection.BusyException)) {
+							remove(other);
+						}
+					});
+					forward(retryReply, retried);
+				} catch (IOException e) {
+					retried.completeExceptionally(e);
+				}
+			});
+		});
+		cancelWith(retried, reply);
+		return retried;
+	}
+
+	/**
+	 * Runs a task on the connector threads, the reply fails if the pool was
+	 * closed.
+	 */
+	private void connect(CompletableFuture<String> reply, Runnable task) {
+		try {
+			connector.execute(task);
+		} catch (RejectedExecutionException e) {
+			reply.completeExceptionally(new IOException("connection pool closed"));
+		}
+	}
+
+	/**
+	 * Completes the caller's future with the reply, and cancels the request
+	 * once the caller's future is cancelled.
+	 */
+	private static void forward(CompletableFuture<String> reply, CompletableFuture<String> request) {
+		reply.whenComplete((response, error) -> {
+			if (error != null) {
+				request.completeExceptionally(error);
+			} else {
+				request.complete(response);
+			}
+		});
+		cancelWith(request, reply);
+	}
+
+	/**
+	 * Cancels the reply once the future handed to the caller is cancelled, so
+	 * that the connection forgets the request.
+	 */
+	private static void cancelWith(CompletableFuture<String> request, CompletableFuture<String> reply) {
+		request.whenComplete((response, error) -> {
+			if (request.isCancelled()) {
+				reply.cancel(false);
+			}
+		});
+	}
+
+	public CompletableFuture<String> requestAsync(Finger finger, String command, Object... fields) {
+		return requestAsync(finger.getAddress(), finger.getPort(), command, fields);
+	}
+
+	/**
+	 * Sends a command to several nodes that can each answer it, the next one
+	 * whenever no accepted reply came within hedgeAfter ms, see
+	 * {@link HedgedRequest}. Waits for the first accepted reply, or when no
+	 * reply is accepted for the first reply that came back.
+	 *
+	 * @throws IOException
+	 *             If every node failed or no reply came within the request
+	 *             timeout
+	 */
+	public String requestHedged(List<Finger> targets, long hedgeAfter, Predicate<String> accept, String command,
+			Object... fields) throws IOException {
+		CompletableFuture<String> reply = new HedgedRequest(this, hedgeLauncher, hedgeTimer, targets, hedgeAfter,
+				accept, command, fields).start();
+		return PeerConnection.await(reply, targets.size() + " nodes");
+	}
+
+	/**
+	 * Sends a command that the peer does not answer.
+	 */
+	public void send(String address, int port, String command, Object... fields) throws IOException {
+		PeerConnection connection = acquire(address, port);
+		try {
+			connection.send(command, fields);
+		} catch (IOException e) {
+			remove(connection);
+			throw e;
+		}
+	}
+
+	public void send(Finger finger, String command, Object... fields) throws IOException {
+		send(finger.getAddress(), finger.getPort(), command, fields);
+	}
+
+	/**
+	 * Picks the connection to the peer with the fewest requests in flight,
+	 * opening a new one when all of them are busy and the peer is below the
+	 * maximum. May block for connecting and pinging, see
+	 * {@link #requestAsync(String, int, String, Object...)}.
+	 */
+	private PeerConnection acquire(String address, int port) throws IOException {
+		if (closed) {
+			throw new IOException("connection pool closed");
+		}
+		PeerPool peer = getPeerPool(address, port);
+		long deadline = System.currentTimeMillis() + DHTMain.CONNECT_TIMEOUT;
+		while (true) {
+			for (PeerConnection connection : peer.connections) {
+				if (!isHealthy(connection)) {
+					remove(connection);
+				}
+			}
+			PeerConnection best = pick(peer);
+			if (best != null) {
+				best.setReused(true);
+				return best;
+			}
+			if (peer.reserve()) {
+				return open(peer, address, port);
+			}
+
+			// Other threads are opening the last connections the peer may
+			// have, wait for them
+			if (System.currentTimeMillis() > deadline) {
+				throw new IOException("no connection to " + address + ":" + port + " became available");
+			}
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while waiting for a connection to " + address + ":" + port);
+			}
+		}
+	}
+
+	/**
+	 * Picks the connection to the peer with the fewest requests in flight,
+	 * if it can take another one without being checked first. Null when a
+	 * new connection should be opened.
+	 */
+	private PeerConnection pick(PeerPool peer) {
+		long now = System.currentTimeMillis();
+		PeerConnection best = null;
+		for (PeerConnection connection : peer.connections) {
+			boolean checked = connection.getInFlight() > 0
+					|| now - connection.getLastUsed() <= DHTMain.POOL_VALIDATE_AFTER;
+			if (connection.isOpen() && checked && (best == null || connection.getInFlight() < best.getInFlight())) {
+				best = connection;
+			}
+		}
+
+		// Text connections answer one request at a time
+		int inFlightLimit = best != null && best.isBinary() ? DHTMain.POOL_IN_FLIGHT_PER_CONNECTION : 1;
+		if (best != null && (best.getInFlight() < inFlightLimit || peer.isFull())) {
+			return best;
+		}
+		return null;
+	}
+
+	/**
+	 * Opens a connection in a place reserved with {@link PeerPool#reserve()}.
+	 */
+	private PeerConnection open(PeerPool peer, String address, int port) throws IOException {
+		PeerConnection connection;
+		try {
+			connection = new PeerConnection(address, port);
+		} catch (IOException e) {
+			peer.size.decrementAndGet();
+			throw e;
+		}
+		peer.connections.add(connection);
+		if (closed) {
+			// Opened while the pool was closing
+			remove(connection);
+			throw new IOException("connection pool closed");
+		}
+		return connection;
+	}
+
+	private void remove(PeerConnection connection) {
+		PeerPool peer = getPeerPool(connection.getAddress(), connection.getPort());
+		if (peer.connections.remove(connection)) {
+			peer.size.decrementAndGet();
+		}
+		connection.close();
+	}
+
+	/**
+	 * Closes connections that have not been used for the idle timeout.
+	 */
+	public void evictIdle() {
+		long now = System.currentTimeMillis();
+		for (PeerPool peer : peers.values()) {
+			for (PeerConnection connection : peer.connections) {
+				if (connection.getInFlight() == 0 && now - connection.getLastUsed() > DHTMain.POOL_IDLE_TIMEOUT) {
+					remove(connection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes every pooled connection and stops the threads of the pool.
+	 * Requests still waiting for a reply fail.
+	 */
+	public void close() {
+		closed = true;
+		evictor.interrupt();
+		connector.shutdown();
+		hedgeTimer.shutdownNow();
+		hedgeLauncher.shutdown();
+		for (PeerPool peer : peers.values()) {
+			for (PeerConnection connection : peer.connections) {
+				remove(connection);
+			}
+		}
+	}
+
+	private boolean isHealthy(PeerConnection connection) {
+		if (!connection.isOpen()) {
+			return false;
+		}
+		if (connection.getInFlight() > 0) {
+			// Replies are still coming in on it
+			return true;
+		}
+		long idleTime = System.currentTimeMillis() - connection.getLastUsed();
+		if (idleTime > DHTMain.POOL_IDLE_TIMEOUT) {
+			return false;
+		}
+		if (idleTime > DHTMain.POOL_VALIDATE_AFTER) {
+			// Make sure the peer is still there before handing it out
+			try {
+				return DHTMain.PING_RESPONSE.equals(connection.request(DHTMain.PING_QUERY, 0));
+			} catch (PeerConnection.BusyException e) {
+				// It is there, just overloaded
+				return true;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private PeerPool getPeerPool(String address, int port) {
+		String key = address + ":" + port;
+		PeerPool peer = peers.get(key);
+		if (peer == null) {
+			peer = new PeerPool();
+			PeerPool existing = peers.putIfAbsent(key, peer);
+			if (existing != null) {
+				peer = existing;
+			}
+		}
+		return peer;
+	}
+
+	private static ThreadFactory daemonThreads(String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Open connections of one peer.
+	 */
+	private static class PeerPool {
+		private List<PeerConnection> connections = new CopyOnWriteArrayList<>();
+		// Connections open or being opened, at most POOL_MAX_PER_PEER
+		private AtomicInteger size = new AtomicInteger();
+
+		/**
+		 * Takes a place for a new connection, false if the peer has the
+		 * maximum already.
+		 */
+		private boolean reserve() {
+			int current;
+			do {
+				current = size.get();
+				if (current >= DHTMain.POOL_MAX_PER_PEER) {
+					return false;
+				}
+			} while (!size.compareAndSet(current, current + 1));
+			return true;
+		}
+
+		private boolean isFull() {
+			return size.get() >= DHTMain.POOL_MAX_PER_PEER;
+		}
+	}
+
+}
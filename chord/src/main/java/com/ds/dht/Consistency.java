@@ -0,0 +1,132 @@
+package com.ds.dht;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Consistency levels of reads and writes. A key has N = REPLICATION_FACTOR + 1
+ * copies, on its owner and its replica successors. The owner coordinates
+ * every request for the key: it sends it to the replicas in parallel and
+ * answers once the level's number of copies have: one for {@link #ONE}, a
+ * majority for {@link #QUORUM} and all N for {@link #ALL}. The owner's own
+ * copy counts as one.
+ *
+ * Every copy carries the {@link WriteVersion} of the write that stored it.
+ * A read takes the newest of the copies it reached, so a write and a later
+ * read at QUORUM, or any level plus ALL, have at least one copy in common
+ * and the read returns the write or a later one, even when the owner's own
+ * copy is older. Replicas that do not answer within
+ * {@link DHTMain#REQUEST_TIMEOUT} do not count.
+ *
+ * A replica that gets two writes of a key in the other order keeps the
+ * later one, see {@link VersionedStore#put(String, String, WriteVersion)}.
+ */
+public final class Consistency {
+
+	public final static String ONE = "ONE";
+	public final static String QUORUM = "QUORUM";
+	public final static String ALL = "ALL";
+
+	private Consistency() {
+	}
+
+	/**
+	 * Returns the number of copies a request at the level has to reach out of
+	 * the given number.
+	 *
+	 * @throws IllegalArgumentException
+	 *             for an unknown level
+	 */
+	public static int required(String level, int copies) {
+		switch (level) {
+		case ONE:
+			return 1;
+		case QUORUM:
+			return copies / 2 + 1;
+		case ALL:
+			return copies;
+		default:
+			throw new IllegalArgumentException("unknown consistency level " + level);
+		}
+	}
+
+	/**
+	 * Waits until the given number of replies are accepted, until so many
+	 * replies failed or were not accepted that they no longer can be, or
+	 * until the timeout has passed. Failed replies are not accepted. Replies
+	 * still pending carry on.
+	 *
+	 * @return the accepted replies, in the order they came in
+	 */
+	public static <T> List<T> await(List<CompletableFuture<T>> replies, Predicate<T> accept, int needed,
+			long timeoutMillis) throws InterruptedException {
+		LinkedBlockingQueue<Object> done = new LinkedBlockingQueue<>();
+		Object failed = new Object();
+		for (CompletableFuture<T> reply : replies) {
+			reply.whenComplete((value, error) -> done.add(error == null && value != null ? value : failed));
+		}
+
+		List<T> accepted = new ArrayList<>();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		for (int received = 0; accepted.size() < needed && received < replies.size(); received++) {
+			Object value = done.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			if (value == null) {
+				// Out of time, a replica that hangs counts as failed
+				break;
+			}
+			if (value != failed) {
+				@SuppressWarnings("unchecked")
+				T reply = (T) value;
+				if (accept.test(reply)) {
+					accepted.add(reply);
+				}
+			}
+		}
+		return accepted;
+	}
+
+	/**
+	 * Returns the newest of the copies, the first one of several as new.
+	 */
+	public static VersionedStore.Copy newest(List<VersionedStore.Copy> copies) {
+		VersionedStore.Copy newest = copies.get(0);
+		for (VersionedStore.Copy copy : copies) {
+			if (copy.getVersion().compareTo(newest.getVersion()) > 0) {
+				newest = copy;
+			}
+		}
+		return newest;
+	}
+
+	/**
+	 * Reply to FIND_VERSIONED: VERSIONED_VALUE:epoch:position, followed by
+	 * :value if there is a copy.
+	 */
+	public static String replyCopy(VersionedStore.Copy copy) {
+		return DHTMain.VERSIONED_VALUE + ":" + copy.getVersion()
+				+ (copy.getValue() != null ? ":" + copy.getValue() : "");
+	}
+
+	/**
+	 * Reads a reply to FIND_VERSIONED, see {@link #replyCopy}.
+	 *
+	 * @return the copy, or null if the reply is malformed
+	 */
+	public static VersionedStore.Copy parseCopy(String reply) {
+		String[] fragments = reply != null ? reply.split(":", 4) : new String[0];
+		if (fragments.length < 3 || !DHTMain.VERSIONED_VALUE.equals(fragments[0])) {
+			return null;
+		}
+		try {
+			WriteVersion version = new WriteVersion(Long.parseLong(fragments[1]), Long.parseLong(fragments[2]));
+			return new VersionedStore.Copy(fragments.length == 4 ? fragments[3] : null, version);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+}
@@ -17,26 +17,163 @@ public class DHTMain {
 	public final static String ELECT_LEADER = "ELECT_LEADER";
 	public final static String LEADER_ELECTED = "LEADER_ELECTED";
 	public final static String GET_SUCCESSORS="GET_SUCCESSORS";
+	public final static String GET_FINGERS = "GET_FINGERS";
+	public final static String NEXT_HOP = "NEXT_HOP";
+	public final static String FIND_VALUE_DIRECT = "FIND_VALUE_DIRECT";
+	public final static String PUT_VALUE_DIRECT = "PUT_VALUE_DIRECT";
+	public final static String REDIRECT = "REDIRECT";
+	public final static String GET_MEMBERSHIP = "GET_MEMBERSHIP";
+	public final static String GOSSIP_MEMBERS = "GOSSIP_MEMBERS";
+	public final static String PUT_REPLICAS = "PUT_REPLICAS";
+	public final static String REPLICAS_STORED = "REPLICAS_STORED";
+	public final static String REPLICAS_REJECTED = "REPLICAS_REJECTED";
+	public final static String PUT_VERSIONED = "PUT_VERSIONED";
+	public final static String VERSION_STORED = "VERSION_STORED";
+	public final static String FIND_VERSIONED = "FIND_VERSIONED";
+	public final static String VERSIONED_VALUE = "VERSIONED_VALUE";
+	public final static String MERKLE_HASHES = "MERKLE_HASHES";
+	public final static String MERKLE_KEYS = "MERKLE_KEYS";
+	public final static String FIND_VALUE_AT = "FIND_VALUE_AT";
+	public final static String PUT_VALUE_AT = "PUT_VALUE_AT";
+	public final static String FIND_VALUE_DIRECT_AT = "FIND_VALUE_DIRECT_AT";
+	public final static String PUT_VALUE_DIRECT_AT = "PUT_VALUE_DIRECT_AT";
+	public final static String CONSISTENCY_FAILED = "CONSISTENCY_FAILED";
+	public final static String READ_REPLICA = "READ_REPLICA";
+	public final static String REPLICA_VALUE = "REPLICA_VALUE";
+	public final static String REPLICATED_UP_TO = "REPLICATED_UP_TO";
+	public final static String PROTOCOL_BINARY = "PROTOCOL_BINARY";
+	public final static String PROTOCOL_ACCEPTED = "PROTOCOL_ACCEPTED";
+	public final static String BUSY = "BUSY";
 	
-	public final static long RING_SIZE = 65536;
-	public final static int FINGER_TABLE_SIZE = 16;
+	// Width of node and key ids in bits, from 1 to 64, override with
+	// -Ddht.idBits. There is a finger for every bit. All nodes of a ring must
+	// use the same width
+	public final static int ID_BITS = Integer.getInteger("dht.idBits", 16);
+	// Largest id, ids are unsigned and run from 0 to ID_MASK, see RingMath
+	public final static long ID_MASK = RingMath.mask(ID_BITS);
+	public final static int FINGER_TABLE_SIZE = ID_BITS;
+
+	// Length r of the successor list, the ring survives r - 1 neighbouring
+	// nodes failing at once
+	public final static int SUCCESSOR_LIST_SIZE = Integer.getInteger("dht.successors", 3);
+	// Number of successors that keep a copy of each key, at most
+	// SUCCESSOR_LIST_SIZE. All nodes of a ring must use the same value
+	public final static int REPLICATION_FACTOR = Math.min(Integer.getInteger("dht.replicas", 2),
+			SUCCESSOR_LIST_SIZE);
+	// Consistency level, see Consistency, of reads and writes that do not
+	// name one: "ONE", "QUORUM" or "ALL"
+	public final static String READ_CONSISTENCY = System.getProperty("dht.readConsistency", Consistency.ONE);
+	public final static String WRITE_CONSISTENCY = System.getProperty("dht.writeConsistency", Consistency.ONE);
+
+	static {
+		if (ID_BITS < 1 || ID_BITS > 64) {
+			throw new IllegalArgumentException("dht.idBits must be between 1 and 64, not " + ID_BITS);
+		}
+		if (SUCCESSOR_LIST_SIZE < 1) {
+			throw new IllegalArgumentException("dht.successors must be at least 1, not " + SUCCESSOR_LIST_SIZE);
+		}
+	}
+
+	// Server options, override with -Ddht.<option>=<value>
+	// "nio" runs the selector based server, "blocking" the thread per
+	// connection server
+	public final static String SERVER_MODE = System.getProperty("dht.server", "nio");
+	public final static int REACTOR_THREADS = Integer.getInteger("dht.reactors",
+			Runtime.getRuntime().availableProcessors());
+	public final static int WORKER_THREADS = Integer.getInteger("dht.workers", 64);
+	public final static int WORKER_QUEUE_SIZE = Integer.getInteger("dht.workerQueue", 1024);
+	// "binary" negotiates the binary framing on connections to other nodes,
+	// "text" keeps the colon delimited lines
+	public final static String PEER_PROTOCOL = System.getProperty("dht.protocol", "binary");
+	public final static int NEGOTIATION_TIMEOUT = Integer.getInteger("dht.negotiationTimeout", 2000);
+	// Longest binary frame accepted, in bytes. A connection that announces a
+	// longer one is closed
+	public final static int MAX_FRAME_BYTES = Integer.getInteger("dht.maxFrameBytes", 16 * 1024 * 1024);
+	// Hash function placing nodes and keys on the ring, "sha1", "murmur3" or
+	// a RingHasher class name. All nodes of a ring must use the same one
+	public final static String RING_HASHER = System.getProperty("dht.hasher", "sha1");
+	// KeyValueStore implementation used for the data of each node
+	public final static String STORE_CLASS = System.getProperty("dht.store", ConcurrentKeyValueStore.class.getName());
+	// Replicas go to a successor in PUT_REPLICAS batches of about this many
+	// UTF-8 bytes of keys, values and versions, with up to REPLICA_WINDOW
+	// batches waiting for their acknowledgement, see ReplicaStream
+	public final static int REPLICA_BATCH_BYTES = Integer.getInteger("dht.replicaBatchBytes", 64 * 1024);
+	public final static int REPLICA_WINDOW = Integer.getInteger("dht.replicaWindow", 4);
+	// The ring is cut into 2^MERKLE_LEAF_BITS buckets for comparing replicas,
+	// see MerkleTree. All nodes of a ring must use the same value
+	public final static int MERKLE_LEAF_BITS = Integer.getInteger("dht.merkleLeafBits", 10);
+
+	// Ring positions taken by one process. The first one listens on the port
+	// given on the command line, every further one VIRTUAL_NODE_PORT_STRIDE
+	// ports above the previous one
+	public final static int VIRTUAL_NODES = Integer.getInteger("dht.vnodes", 1);
+	public final static int VIRTUAL_NODE_PORT_STRIDE = Integer.getInteger("dht.vnodePortStride", 100);
+
+	// Fingers refreshed per stabilization round. 0 refreshes the whole table
+	// with one GET_FINGERS request, n refreshes the next n fingers in turn as
+	// fix_fingers does in the Chord paper
+	public final static int FIX_FINGERS_PER_ROUND = Integer.getInteger("dht.fixFingers", 0);
+	// Nodes remembered as owners of key ranges by each node, see OwnerCache.
+	// 0 turns the cache off
+	public final static int OWNER_CACHE_SIZE = Integer.getInteger("dht.ownerCache", 1024);
+	// "fingers" routes requests through the finger table, "onehop" also
+	// keeps a table of all nodes, spread by gossip, and sends requests
+	// straight to the owner. Times are in milliseconds
+	public final static String ROUTING = System.getProperty("dht.routing", "fingers");
+	public final static long GOSSIP_INTERVAL = Long.getLong("dht.gossipInterval", 1000L);
+	public final static long MEMBERSHIP_STALE_AFTER = Long.getLong("dht.membershipStaleAfter", 10000L);
+	public final static long MEMBER_TOMBSTONE = Long.getLong("dht.memberTombstone", 60000L);
+	// "successor" makes finger i the successor of node id + 2^i. "proximity"
+	// picks the node with the lowest round trip time among the first
+	// PROXIMITY_CANDIDATES nodes from there on that stay below node id +
+	// 2^(i+1). Round trip times are measured again after RTT_REFRESH ms
+	public final static String FINGER_SELECTION = System.getProperty("dht.fingerSelection", "successor");
+	public final static int PROXIMITY_CANDIDATES = Integer.getInteger("dht.proximityCandidates", 4);
+	public final static long RTT_REFRESH = Long.getLong("dht.rttRefresh", 60000L);
+	// A lookup that this node starts, for itself or a client, is also sent
+	// to the next best finger, and then to the successor, when no valid reply
+	// came within HEDGE_AFTER ms. The first valid reply wins. HEDGES is the
+	// number of extra nodes tried, 0 for HEDGE_AFTER turns hedging off
+	public final static long HEDGE_AFTER = Long.getLong("dht.hedgeAfter", 0L);
+	public final static int HEDGES = Integer.getInteger("dht.hedges", 2);
+
+	// Connection pool options, times are in milliseconds
+	public final static int POOL_MAX_PER_PEER = Integer.getInteger("dht.pool.maxPerPeer", 4);
+	public final static int POOL_IN_FLIGHT_PER_CONNECTION = Integer.getInteger("dht.pool.inFlightPerConnection", 64);
+	public final static long REQUEST_TIMEOUT = Long.getLong("dht.requestTimeout", 30000L);
+	public final static int CONNECT_TIMEOUT = Integer.getInteger("dht.connectTimeout", 2000);
+	public final static long POOL_VALIDATE_AFTER = Long.getLong("dht.pool.validateAfter", 10000L);
+	public final static long POOL_IDLE_TIMEOUT = Long.getLong("dht.pool.idleTimeout", 60000L);
 
 	public static void main(String[] args) {
+		start(new NodeHost(), args);
+	}
+
+	/**
+	 * Starts the nodes given by the command line arguments on a host.
+	 */
+	public static void start(NodeHost host, String[] args) {
 		// Check arguments
 		//if (args.length == 2) {
 		if (args.length == 1) {
 			// Create new node
-			new Node("127.0.0.1", args[0]);
+			new Node(host, "127.0.0.1", args[0]);
 			//new Node(args[0],args[1]);
 		//} else if (args.length == 4) {
 		} else if (args.length == 3) {
 			// Create new node
-			new Node("127.0.0.1", args[0], args[1], args[2]);
+			new Node(host, "127.0.0.1", args[0], args[1], args[2]);
 			//new Node(args[0], args[1], args[2],args[3]);
 		} else {
 			System.err.println("Usage: DHTMain [port] || DHTMain [port] [bootStrapNodeAddress] [bootStrapNodePort]");
 			System.exit(1);
 		}
+
+		// The further virtual nodes join the ring through the first one
+		int port = Integer.valueOf(args[0]);
+		for (int i = 1; i < VIRTUAL_NODES; i++) {
+			new Node(host, "127.0.0.1", String.valueOf(port + i * VIRTUAL_NODE_PORT_STRIDE), "127.0.0.1", args[0]);
+		}
 	}
 
 }
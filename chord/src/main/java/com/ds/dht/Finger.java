@@ -14,8 +14,7 @@ public class Finger {
 		this.port = port;
 
 		// Hash address:port
-		SHAHelper sha1Hasher = new SHAHelper(this.address + ":" + this.port);
-		this.nodeId = sha1Hasher.getLong();
+		this.nodeId = SHAHelper.hashToRing(this.address + ":" + this.port);
 	}
 
 	public String getAddress() {
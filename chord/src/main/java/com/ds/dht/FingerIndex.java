@@ -0,0 +1,106 @@
+package com.ds.dht;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable snapshot of the finger table for routing. The distinct finger ids
+ * are kept sorted in a primitive array next to a parallel array of the
+ * fingers, so the closest preceding finger of a key is found with a binary
+ * search instead of a walk over the boxed map entries. The ids are stored with
+ * the sign bit flipped so that the signed search orders them unsigned.
+ *
+ * A new index is built whenever a finger changes, see
+ * {@link RoutingState#withFinger(int, Finger)}.
+ */
+public class FingerIndex {
+
+	private final long[] ids;
+	private final Finger[] fingers;
+
+	private FingerIndex(long[] ids, Finger[] fingers) {
+		this.ids = ids;
+		this.fingers = fingers;
+	}
+
+	/**
+	 * Builds an index of the given finger table. Fingers that have not been
+	 * set are skipped and fingers that point to the same node are kept once.
+	 */
+	public static FingerIndex of(Finger[] fingerTable) {
+		long[] ids = new long[fingerTable.length];
+		Finger[] sorted = new Finger[fingerTable.length];
+		int distinct = 0;
+
+		// Keep the ids sorted as they are added, the table only has a few
+		// entries
+		for (Finger finger : fingerTable) {
+			if (finger == null) {
+				continue;
+			}
+			long id = sortable(finger.getNodeId());
+			int position = Arrays.binarySearch(ids, 0, distinct, id);
+			if (position >= 0) {
+				continue;
+			}
+			position = -position - 1;
+			System.arraycopy(ids, position, ids, position + 1, distinct - position);
+			System.arraycopy(sorted, position, sorted, position + 1, distinct - position);
+			ids[position] = id;
+			sorted[position] = finger;
+			distinct++;
+		}
+		return new FingerIndex(Arrays.copyOf(ids, distinct), Arrays.copyOf(sorted, distinct));
+	}
+
+	/**
+	 * Returns the finger whose id is closest to the key going counter
+	 * clockwise, i.e. the largest id not greater than the key, wrapping around
+	 * to the largest id of all. Null if the table is empty.
+	 */
+	public Finger closestPrecedingFinger(long key) {
+		if (ids.length == 0) {
+			return null;
+		}
+		return fingers[precedingPosition(key)];
+	}
+
+	/**
+	 * Returns up to count distinct fingers going counter clockwise from the
+	 * key, the closest preceding finger first.
+	 */
+	public List<Finger> precedingFingers(long key, int count) {
+		List<Finger> preceding = new ArrayList<>();
+		if (ids.length == 0) {
+			return preceding;
+		}
+		int position = precedingPosition(key);
+		for (int i = 0; i < count && i < ids.length; i++) {
+			preceding.add(fingers[Math.floorMod(position - i, ids.length)]);
+		}
+		return preceding;
+	}
+
+	private int precedingPosition(long key) {
+		int position = Arrays.binarySearch(ids, sortable(key));
+		if (position < 0) {
+			// One before the insertion point, or the last one when the key is
+			// smaller than every id
+			position = -position - 2;
+			if (position < 0) {
+				position = ids.length - 1;
+			}
+		}
+		return position;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	private static long sortable(long id) {
+		return id ^ Long.MIN_VALUE;
+	}
+
+}
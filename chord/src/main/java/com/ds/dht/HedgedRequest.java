@@ -0,0 +1,134 @@
+package com.ds.dht;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * One command sent to several nodes that can each answer it, see
+ * {@link ConnectionPool#requestHedged}. The first node gets the command at
+ * once. Every further node gets it when the nodes before it have not given
+ * an accepted reply within the hedge delay, or as soon as one of them fails
+ * or gives a reply that is not accepted.
+ *
+ * The first accepted reply completes the request and the requests still
+ * outstanding are cancelled. Requests are sent from the launcher threads, so
+ * a node that takes long to connect to only holds up its own request.
+ */
+class HedgedRequest {
+
+	private ConnectionPool pool;
+	private List<Finger> targets;
+	private long hedgeAfter;
+	private Predicate<String> accept;
+	private String command;
+	private Object[] fields;
+	private Executor launcher;
+	private ScheduledExecutorService timer;
+
+	private CompletableFuture<String> result = new CompletableFuture<>();
+	private AtomicInteger launched = new AtomicInteger();
+	private AtomicInteger finished = new AtomicInteger();
+	// Replies and hedge timers to cancel once the result is known
+	private List<Future<?>> outstanding = new CopyOnWriteArrayList<>();
+	private volatile String firstReply;
+	private volatile Throwable lastError;
+
+	HedgedRequest(ConnectionPool pool, Executor launcher, ScheduledExecutorService timer, List<Finger> targets,
+			long hedgeAfter, Predicate<String> accept, String command, Object... fields) {
+		this.pool = pool;
+		this.launcher = launcher;
+		this.timer = timer;
+		this.targets = targets;
+		this.hedgeAfter = hedgeAfter;
+		this.accept = accept;
+		this.command = command;
+		this.fields = fields;
+	}
+
+	/**
+	 * Sends the command to the first node. The returned future completes
+	 * with the first accepted reply, or when no reply is accepted with the
+	 * first reply that came back. It fails if every node failed.
+	 */
+	CompletableFuture<String> start() {
+		result.whenComplete((reply, error) -> {
+			for (Future<?> future : outstanding) {
+				future.cancel(false);
+			}
+		});
+		if (targets.isEmpty()) {
+			result.completeExceptionally(new IOException("no node to send " + command + " to"));
+		}
+		launchNext();
+		return result;
+	}
+
+	private void launchNext() {
+		int index = launched.getAndIncrement();
+		if (index >= targets.size() || result.isDone()) {
+			return;
+		}
+		Finger target = targets.get(index);
+
+		try {
+			launcher.execute(new Runnable() {
+				public void run() {
+					CompletableFuture<String> reply = pool.requestAsync(target, command, fields);
+					track(reply);
+					reply.whenComplete((response, error) -> finished(response, error));
+				}
+			});
+			if (index + 1 < targets.size()) {
+				track(timer.schedule(new Runnable() {
+					public void run() {
+						launchNext();
+					}
+				}, hedgeAfter, TimeUnit.MILLISECONDS));
+			}
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(new IOException("connection pool closed"));
+		}
+	}
+
+	private void track(Future<?> future) {
+		outstanding.add(future);
+		// The result may have been completed before the future was added
+		if (result.isDone()) {
+			future.cancel(false);
+		}
+	}
+
+	private void finished(String response, Throwable error) {
+		if (result.isDone()) {
+			return;
+		}
+		if (error == null && accept.test(response)) {
+			result.complete(response);
+			return;
+		}
+		if (error == null && firstReply == null) {
+			firstReply = response;
+		} else if (error != null) {
+			lastError = error;
+		}
+
+		if (finished.incrementAndGet() < targets.size()) {
+			// Do not wait for the hedge delay, the next node is needed now
+			launchNext();
+		} else if (firstReply != null) {
+			result.complete(firstReply);
+		} else {
+			result.completeExceptionally(lastError);
+		}
+	}
+
+}
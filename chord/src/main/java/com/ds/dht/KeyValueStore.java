@@ -0,0 +1,63 @@
+package com.ds.dht;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Storage for the key value pairs a node holds, both the ones it owns and the
+ * replicas of its predecessors. All methods may be called from any number of
+ * threads at the same time.
+ *
+ * The implementation is picked with -Ddht.store, see
+ * {@link DHTMain#STORE_CLASS}.
+ */
+public interface KeyValueStore extends Iterable<Map.Entry<String, String>> {
+
+	/**
+	 * Returns the value stored for the key, or null if there is none.
+	 */
+	String get(String key);
+
+	/**
+	 * Stores a value and returns the one it replaced, or null.
+	 */
+	String put(String key, String value);
+
+	/**
+	 * Removes a key and returns its value, or null if it was not stored.
+	 */
+	String remove(String key);
+
+	/**
+	 * Removes a key only if it is still mapped to the given value.
+	 *
+	 * @return true if the key was removed
+	 */
+	boolean remove(String key, String value);
+
+	int size();
+
+	/**
+	 * Returns the position of the key on the ring. For stored keys this is the
+	 * id that was computed when the key was first stored.
+	 */
+	long getRingId(String key);
+
+	/**
+	 * Iterates over the stored pairs while other threads keep reading and
+	 * writing. The iterator never fails because of concurrent changes, it
+	 * sees every pair that was present when it was created and not removed
+	 * since, and may or may not see later changes. Iterator.remove() removes
+	 * the current key from the store unless its value has changed since.
+	 */
+	Iterator<Map.Entry<String, String>> iterator();
+
+	/**
+	 * Iterates like {@link #iterator()} over the keys whose ring id lies in
+	 * (fromExclusive, toInclusive], going clockwise and wrapping around zero
+	 * if needed. Equal bounds cover the whole ring. The pairs come in ring id
+	 * order and only the keys in the range are visited.
+	 */
+	Iterator<Map.Entry<String, String>> range(long fromExclusive, long toInclusive);
+
+}
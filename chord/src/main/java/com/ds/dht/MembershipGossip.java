@@ -0,0 +1,216 @@
+package com.ds.dht;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the table of all nodes of the ring for one hop routing, see
+ * {@link DHTMain#ROUTING}. Every {@link DHTMain#GOSSIP_INTERVAL} ms the node
+ * swaps tables with a random node of its table, both sides merging what the
+ * other knows, so a joining node reaches every table in about log N rounds.
+ *
+ * Nodes found to have failed are kept as tombstones for
+ * {@link DHTMain#MEMBER_TOMBSTONE} ms and gossiped for the first half of that
+ * time, so that tables which still list them do not bring them back.
+ *
+ * The table is trusted only while exchanges succeed. When there was none for
+ * {@link DHTMain#MEMBERSHIP_STALE_AFTER} ms {@link #ownerOf(long)} returns
+ * null and requests take the finger path.
+ */
+public class MembershipGossip implements Runnable {
+
+	private Node node;
+	private Finger self;
+	private AtomicReference<MembershipTable> table = new AtomicReference<>();
+	// address:port of failed nodes and when they were found to have failed
+	private Map<String, Long> tombstones = new ConcurrentHashMap<>();
+	private volatile long lastExchange;
+
+	public MembershipGossip(Node node) {
+		this(new Finger(node.getNodeIpAddress(), node.getPort()));
+		this.node = node;
+	}
+
+	/**
+	 * Creates the table of a node that only knows itself, without a node to
+	 * gossip for, as the membership benchmark does.
+	 */
+	public MembershipGossip(Finger self) {
+		this.self = self;
+		this.table.set(MembershipTable.of(Collections.singletonList(self)));
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(DHTMain.GOSSIP_INTERVAL);
+			} catch (InterruptedException e) {
+				System.err.println("membership gossip thread interrupted");
+				e.printStackTrace();
+				return;
+			}
+			gossip();
+		}
+	}
+
+	private void gossip() {
+		Finger peer = pickPeer();
+		if (peer == null) {
+			return;
+		}
+		try {
+			String reply = node.getConnectionPool().request(peer, DHTMain.GOSSIP_MEMBERS, entries());
+			merge(reply);
+			lastExchange = System.currentTimeMillis();
+		} catch (IOException e) {
+			System.err.println("membership gossip to " + peer.getAddress() + ":" + peer.getPort() + " failed");
+			remove(peer);
+		}
+	}
+
+	/**
+	 * A random node of the table other than ourselves, or our successor while
+	 * the table only holds us.
+	 */
+	public Finger pickPeer() {
+		List<Finger> nodes = table.get().getNodes();
+		if (nodes.size() > 1) {
+			while (true) {
+				Finger peer = nodes.get(ThreadLocalRandom.current().nextInt(nodes.size()));
+				if (!isSelf(peer)) {
+					return peer;
+				}
+			}
+		}
+		Finger successor = node != null ? node.getSuccessor1() : null;
+		return successor == null || isSelf(successor) ? null : successor;
+	}
+
+	/**
+	 * Handles the table sent by another node and returns ours for the reply.
+	 */
+	public String receive(String entries) {
+		merge(entries);
+		lastExchange = System.currentTimeMillis();
+		return entries();
+	}
+
+	/**
+	 * Returns the node that owns the key according to the table, or null if
+	 * the table is stale.
+	 */
+	public Finger ownerOf(long keyId) {
+		if (System.currentTimeMillis() - lastExchange > DHTMain.MEMBERSHIP_STALE_AFTER) {
+			return null;
+		}
+		return table.get().ownerOf(keyId);
+	}
+
+	public MembershipTable getTable() {
+		return table.get();
+	}
+
+	/**
+	 * Drops a node that failed and keeps a tombstone for it.
+	 */
+	public void remove(Finger failed) {
+		if (isSelf(failed)) {
+			return;
+		}
+		tombstones.putIfAbsent(endpoint(failed), System.currentTimeMillis());
+		table.updateAndGet(current -> merged(current, Collections.<Finger> emptyList(),
+				Collections.singletonList(endpoint(failed))));
+	}
+
+	/**
+	 * The table as address:port entries separated by "::", ourselves first.
+	 * Tombstones follow as -address:port.
+	 */
+	public String entries() {
+		long now = System.currentTimeMillis();
+		StringBuilder entries = new StringBuilder(endpoint(self));
+		for (Finger member : table.get().getNodes()) {
+			if (!isSelf(member)) {
+				entries.append("::").append(endpoint(member));
+			}
+		}
+		for (Iterator<Map.Entry<String, Long>> it = tombstones.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Long> tombstone = it.next();
+			long age = now - tombstone.getValue();
+			if (age >= DHTMain.MEMBER_TOMBSTONE) {
+				it.remove();
+			} else if (age < DHTMain.MEMBER_TOMBSTONE / 2) {
+				entries.append("::-").append(tombstone.getKey());
+			}
+		}
+		return entries.toString();
+	}
+
+	/**
+	 * Merges the entries of another node's table into ours. The first entry
+	 * is the sending node, which is alive even if we hold a tombstone for it.
+	 */
+	public void merge(String entries) {
+		long now = System.currentTimeMillis();
+		List<Finger> added = new ArrayList<>();
+		List<String> removed = new ArrayList<>();
+		String[] parts = entries.split("::");
+		for (int i = 0; i < parts.length; i++) {
+			String entry = parts[i];
+			if (entry.startsWith("-")) {
+				String endpoint = entry.substring(1);
+				if (!endpoint.equals(endpoint(self))) {
+					tombstones.putIfAbsent(endpoint, now);
+					removed.add(endpoint);
+				}
+				continue;
+			}
+
+			String[] addressFragments = entry.split(":");
+			if (addressFragments.length != 2) {
+				continue;
+			}
+			Long failedAt = tombstones.get(entry);
+			if (i == 0) {
+				tombstones.remove(entry);
+			} else if (failedAt != null && now - failedAt < DHTMain.MEMBER_TOMBSTONE) {
+				continue;
+			}
+			added.add(new Finger(addressFragments[0], Integer.valueOf(addressFragments[1])));
+		}
+		table.updateAndGet(current -> merged(current, added, removed));
+	}
+
+	private MembershipTable merged(MembershipTable current, List<Finger> added, List<String> removed) {
+		Map<String, Finger> members = new LinkedHashMap<>();
+		for (Finger member : current.getNodes()) {
+			members.put(endpoint(member), member);
+		}
+		boolean changed = false;
+		for (String endpoint : removed) {
+			changed |= members.remove(endpoint) != null;
+		}
+		for (Finger member : added) {
+			changed |= members.putIfAbsent(endpoint(member), member) == null;
+		}
+		members.put(endpoint(self), self);
+		return changed ? MembershipTable.of(members.values()) : current;
+	}
+
+	private boolean isSelf(Finger finger) {
+		return finger.getPort() == self.getPort() && finger.getAddress().equals(self.getAddress());
+	}
+
+	private static String endpoint(Finger finger) {
+		return finger.getAddress() + ":" + finger.getPort();
+	}
+
+}
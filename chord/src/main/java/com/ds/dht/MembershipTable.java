@@ -0,0 +1,96 @@
+package com.ds.dht;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable table of all nodes of a ring, sorted by node id. The owner of a
+ * key is the first node at or after the key id, found with a binary search.
+ * Like {@link FingerIndex} the ids are stored with the sign bit flipped so
+ * that the signed search orders them unsigned.
+ *
+ * Used by nodes in one hop routing, see {@link MembershipGossip}, and by
+ * clients that route directly.
+ */
+public class MembershipTable {
+
+	private final long[] ids;
+	private final Finger[] nodes;
+
+	private MembershipTable(long[] ids, Finger[] nodes) {
+		this.ids = ids;
+		this.nodes = nodes;
+	}
+
+	/**
+	 * Builds a table of the given nodes, nodes with the same id are kept
+	 * once.
+	 */
+	public static MembershipTable of(Collection<Finger> members) {
+		Finger[] sorted = members.toArray(new Finger[members.size()]);
+		Arrays.sort(sorted, (a, b) -> RingMath.compare(a.getNodeId(), b.getNodeId()));
+
+		long[] ids = new long[sorted.length];
+		int distinct = 0;
+		for (Finger node : sorted) {
+			long id = sortable(node.getNodeId());
+			if (distinct == 0 || ids[distinct - 1] != id) {
+				ids[distinct] = id;
+				sorted[distinct++] = node;
+			}
+		}
+		return new MembershipTable(Arrays.copyOf(ids, distinct), Arrays.copyOf(sorted, distinct));
+	}
+
+	/**
+	 * Returns the node that owns the key id, null if the table is empty.
+	 */
+	public Finger ownerOf(long keyId) {
+		if (ids.length == 0) {
+			return null;
+		}
+		int position = Arrays.binarySearch(ids, sortable(keyId));
+		if (position < 0) {
+			// The insertion point, wrapping around to the first node when the
+			// key is larger than every id
+			position = -position - 1;
+			if (position == ids.length) {
+				position = 0;
+			}
+		}
+		return nodes[position];
+	}
+
+	/**
+	 * Returns up to count nodes that follow the given node on the ring, the
+	 * ones holding its replicas.
+	 */
+	public List<Finger> successorsOf(Finger node, int count) {
+		List<Finger> successors = new ArrayList<>();
+		int position = Arrays.binarySearch(ids, sortable(node.getNodeId()));
+		// Start after the node, or just before the insertion point if the
+		// node is not in the table
+		int start = position >= 0 ? position : -position - 2;
+		int others = position >= 0 ? nodes.length - 1 : nodes.length;
+		for (int i = 1; i <= count && i <= others; i++) {
+			successors.add(nodes[Math.floorMod(start + i, nodes.length)]);
+		}
+		return successors;
+	}
+
+	public List<Finger> getNodes() {
+		return Collections.unmodifiableList(Arrays.asList(nodes));
+	}
+
+	public int size() {
+		return nodes.length;
+	}
+
+	private static long sortable(long id) {
+		return id ^ Long.MIN_VALUE;
+	}
+
+}
@@ -0,0 +1,112 @@
+package com.ds.dht;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Wraps the {@link KeyValueStore} of a host and keeps the bucket hashes of
+ * its {@link MerkleTree} up to date with every write. Each write takes out
+ * the pair it replaced and adds the new one, and the sums do not depend on
+ * the order, so concurrent writes leave the same hashes as any serial order
+ * of them.
+ */
+public class MerkleStore implements KeyValueStore {
+
+	private KeyValueStore store;
+	private MerkleTree tree;
+
+	/**
+	 * Adds the pairs already in the store to the tree.
+	 */
+	public MerkleStore(KeyValueStore store, MerkleTree tree) {
+		this.store = store;
+		this.tree = tree;
+		for (Map.Entry<String, String> entry : store) {
+			tree.add(store.getRingId(entry.getKey()), entry.getKey(), entry.getValue());
+		}
+	}
+
+	public String get(String key) {
+		return store.get(key);
+	}
+
+	public String put(String key, String value) {
+		String previous = store.put(key, value);
+		long ringId = store.getRingId(key);
+		if (previous != null) {
+			tree.subtract(ringId, key, previous);
+		}
+		tree.add(ringId, key, value);
+		return previous;
+	}
+
+	public String remove(String key) {
+		// The ring id of a key is gone once the key is
+		long ringId = store.getRingId(key);
+		String previous = store.remove(key);
+		if (previous != null) {
+			tree.subtract(ringId, key, previous);
+		}
+		return previous;
+	}
+
+	public boolean remove(String key, String value) {
+		long ringId = store.getRingId(key);
+		boolean removed = store.remove(key, value);
+		if (removed) {
+			tree.subtract(ringId, key, value);
+		}
+		return removed;
+	}
+
+	public int size() {
+		return store.size();
+	}
+
+	public long getRingId(String key) {
+		return store.getRingId(key);
+	}
+
+	public Iterator<Map.Entry<String, String>> iterator() {
+		return removing(store.iterator());
+	}
+
+	public Iterator<Map.Entry<String, String>> range(long fromExclusive, long toInclusive) {
+		return removing(store.range(fromExclusive, toInclusive));
+	}
+
+	/**
+	 * Iterator.remove() goes through {@link #remove(String, String)}, so that
+	 * it updates the tree and keeps a key whose value changed.
+	 */
+	private Iterator<Map.Entry<String, String>> removing(Iterator<Map.Entry<String, String>> it) {
+		return new Iterator<Map.Entry<String, String>>() {
+
+			private Map.Entry<String, String> current;
+
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public Map.Entry<String, String> next() {
+				current = it.next();
+				return current;
+			}
+
+			public void remove() {
+				if (current == null) {
+					throw new IllegalStateException();
+				}
+				MerkleStore.this.remove(current.getKey(), current.getValue());
+				current = null;
+			}
+
+		};
+	}
+
+	@Override
+	public String toString() {
+		return store.toString();
+	}
+
+}
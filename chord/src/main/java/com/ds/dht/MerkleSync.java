@@ -0,0 +1,227 @@
+package com.ds.dht;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One anti-entropy exchange of a range between the node that owns it and a
+ * replica. The owner asks for the root hash of the replica's
+ * {@link MerkleTree} of the range, then level by level for the children of
+ * the nodes that differ from its own, and last for the records of the
+ * pieces that differ, see {@link ReplicaStream#add}. Of a key both hold
+ * with another value the newer version wins. The owner takes the records it
+ * is missing or holds in an older version and sends the replica the others.
+ * Ranges that agree cost one request, the others about one request per tree
+ * level and the records of the pieces that differ.
+ *
+ * The replica answers with {@link #replyHashes} and {@link #replyKeys}. A
+ * malformed reply ends the exchange before anything is stored.
+ */
+public class MerkleSync {
+
+	/**
+	 * The replica side of an exchange.
+	 */
+	public interface Peer {
+
+		/**
+		 * Returns the reply to MERKLE_HASHES for nodes of a level.
+		 */
+		String hashes(int level, List<Integer> indexes) throws IOException;
+
+		/**
+		 * Returns the records of pieces of the range the replica holds, see
+		 * {@link ReplicaStream#add}, from its reply to MERKLE_KEYS.
+		 *
+		 * @throws IOException
+		 *             also if the reply is malformed
+		 */
+		List<String> keys(List<Integer> pieces) throws IOException;
+
+		/**
+		 * Stores records on the replica, see {@link ReplicaStream#add}.
+		 *
+		 * @return true if the replica confirmed them
+		 */
+		boolean put(List<String> records) throws IOException;
+
+	}
+
+	private MerkleTree.Hashes local;
+	private VersionedStore store;
+	private Peer peer;
+
+	private int requests;
+	private int differingPieces;
+	private int pushed;
+	private int pulled;
+
+	public MerkleSync(MerkleTree.Hashes local, VersionedStore store, Peer peer) {
+		this.local = local;
+		this.store = store;
+		this.peer = peer;
+	}
+
+	/**
+	 * Runs the exchange.
+	 *
+	 * @return true if the replica holds the owner's records of the range
+	 *         afterwards, as far as the writes during the exchange allow
+	 */
+	public boolean run() throws IOException {
+		List<Integer> indexes = new ArrayList<>();
+		indexes.add(0);
+		for (int level = 0;; level++) {
+			String[] remote = split(peer.hashes(level, indexes), ":");
+			requests++;
+			List<Integer> differing = new ArrayList<>();
+			for (int i = 0; i < indexes.size(); i++) {
+				if (i >= remote.length || Long.parseUnsignedLong(remote[i], 16) != local.get(level,
+						indexes.get(i))) {
+					differing.add(indexes.get(i));
+				}
+			}
+			if (differing.isEmpty()) {
+				return true;
+			}
+			if (level == local.getDepth()) {
+				indexes = differing;
+				break;
+			}
+			indexes = new ArrayList<>();
+			for (int index : differing) {
+				indexes.add(2 * index);
+				indexes.add(2 * index + 1);
+			}
+		}
+
+		differingPieces = indexes.size();
+		List<String> remoteRecords = peer.keys(indexes);
+		requests++;
+		if (remoteRecords.size() % ReplicaStream.RECORD_FIELDS != 0) {
+			throw new IOException("MERKLE_KEYS reply with an incomplete record");
+		}
+		Map<String, VersionedStore.Copy> remote = new HashMap<>();
+		for (int i = 0; i < remoteRecords.size(); i += ReplicaStream.RECORD_FIELDS) {
+			try {
+				remote.put(remoteRecords.get(i), new VersionedStore.Copy(remoteRecords.get(i + 1), new WriteVersion(
+						Long.parseLong(remoteRecords.get(i + 2)), Long.parseLong(remoteRecords.get(i + 3)))));
+			} catch (NumberFormatException e) {
+				throw new IOException("MERKLE_KEYS reply with a malformed version: " + e.getMessage());
+			}
+		}
+
+		List<String> records = new ArrayList<>();
+		for (int index : indexes) {
+			if (index >= local.getPieceCount()) {
+				// Padding, only differs when the nodes disagree on the buckets
+				continue;
+			}
+			long[] piece = local.getPiece(index);
+			for (Iterator<Map.Entry<String, String>> it = store.range(piece[0], piece[1]); it.hasNext();) {
+				String key = it.next().getKey();
+				VersionedStore.Copy copy = store.getCopy(key);
+				VersionedStore.Copy remoteCopy = remote.remove(key);
+				if (copy.getValue() == null || remoteCopy != null && copy.getValue().equals(remoteCopy.getValue())) {
+					continue;
+				}
+				if (remoteCopy != null && remoteCopy.getVersion().compareTo(copy.getVersion()) > 0) {
+					// A write we missed
+					remote.put(key, remoteCopy);
+				} else {
+					ReplicaStream.add(records, key, copy);
+				}
+			}
+		}
+		// What is left the owner does not have or holds in an older version
+		for (Map.Entry<String, VersionedStore.Copy> entry : remote.entrySet()) {
+			VersionedStore.Copy copy = entry.getValue();
+			if (store.put(entry.getKey(), copy.getValue(), copy.getVersion())) {
+				pulled++;
+			}
+		}
+		pushed = records.size() / ReplicaStream.RECORD_FIELDS;
+		if (records.isEmpty()) {
+			return true;
+		}
+		requests++;
+		return peer.put(records);
+	}
+
+	public int getRequests() {
+		return requests;
+	}
+
+	public int getDifferingPieces() {
+		return differingPieces;
+	}
+
+	public int getPushed() {
+		return pushed;
+	}
+
+	public int getPulled() {
+		return pulled;
+	}
+
+	/**
+	 * Reply to MERKLE_HASHES: the hashes of the given nodes of a level, in
+	 * hex and separated by colons.
+	 */
+	public static String replyHashes(MerkleTree.Hashes hashes, int level, List<Integer> indexes) {
+		StringBuilder reply = new StringBuilder();
+		for (int index : indexes) {
+			if (reply.length() > 0) {
+				reply.append(':');
+			}
+			reply.append(Long.toHexString(level <= hashes.getDepth() ? hashes.get(level, index) : 0));
+		}
+		return reply.toString();
+	}
+
+	/**
+	 * Reply to MERKLE_KEYS: the records of the given pieces, see
+	 * {@link ReplicaStream#add}, each field packed with
+	 * {@link Message#packFields(List)}.
+	 */
+	public static String replyKeys(MerkleTree.Hashes hashes, VersionedStore store, List<Integer> pieces) {
+		List<String> records = new ArrayList<>();
+		for (int index : pieces) {
+			if (index >= hashes.getPieceCount()) {
+				continue;
+			}
+			long[] piece = hashes.getPiece(index);
+			for (Iterator<Map.Entry<String, String>> it = store.range(piece[0], piece[1]); it.hasNext();) {
+				String key = it.next().getKey();
+				VersionedStore.Copy copy = store.getCopy(key);
+				if (copy.getValue() != null) {
+					ReplicaStream.add(records, key, copy);
+				}
+			}
+		}
+		return Message.packFields(records);
+	}
+
+	/**
+	 * Reads the records from a reply to MERKLE_KEYS.
+	 *
+	 * @throws IOException
+	 *             if the reply is not made of packed fields
+	 */
+	public static List<String> parseKeys(String reply) throws IOException {
+		try {
+			return Message.unpackFields(reply);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("malformed MERKLE_KEYS reply: " + e.getMessage());
+		}
+	}
+
+	private static String[] split(String reply, String separator) {
+		return reply == null || reply.isEmpty() ? new String[0] : reply.split(separator);
+	}
+
+}
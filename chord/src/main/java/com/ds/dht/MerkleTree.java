@@ -0,0 +1,157 @@
+package com.ds.dht;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hashes of the keys of a store, for comparing a range of the ring with
+ * another node without sending the keys, see {@link MerkleSync}.
+ *
+ * The ring is cut into 2^{@link DHTMain#MERKLE_LEAF_BITS} buckets by the high
+ * bits of the ring id. Each bucket keeps the sum of the hashes of its key
+ * value pairs, which {@link MerkleStore} updates on every write, so a bucket
+ * hash does not depend on the order of writes. For a range, {@link #hashes}
+ * builds a binary tree over the buckets it covers. A bucket the range covers
+ * only in part is hashed from the keys in that part.
+ *
+ * All nodes of a ring must use the same number of buckets.
+ */
+public class MerkleTree {
+
+	private final static Murmur3RingHasher HASHER = new Murmur3RingHasher();
+
+	private final int leafBits;
+	private final int shift;
+	private final AtomicLongArray leaves;
+
+	public MerkleTree() {
+		this(DHTMain.MERKLE_LEAF_BITS);
+	}
+
+	public MerkleTree(int leafBits) {
+		this.leafBits = Math.max(1, Math.min(leafBits, DHTMain.ID_BITS));
+		this.shift = DHTMain.ID_BITS - this.leafBits;
+		this.leaves = new AtomicLongArray(1 << this.leafBits);
+	}
+
+	/**
+	 * Adds a pair to the hash of its bucket.
+	 */
+	public void add(long ringId, String key, String value) {
+		leaves.addAndGet(leaf(ringId), entryHash(key, value));
+	}
+
+	/**
+	 * Takes a pair out of the hash of its bucket.
+	 */
+	public void subtract(long ringId, String key, String value) {
+		leaves.addAndGet(leaf(ringId), -entryHash(key, value));
+	}
+
+	/**
+	 * Builds the tree of the range (fromExclusive, toInclusive] from the
+	 * buckets, walking only the keys of the buckets at the ends of the range
+	 * that it covers in part. Equal bounds cover the whole ring.
+	 */
+	public Hashes hashes(long fromExclusive, long toInclusive, KeyValueStore store) {
+		List<long[]> pieces = new ArrayList<>();
+		List<Long> pieceHashes = new ArrayList<>();
+		long start = fromExclusive;
+		do {
+			int leaf = leaf(RingMath.wrap(start + 1));
+			long leafFirst = (long) leaf << shift;
+			long leafLast = leafFirst + RingMath.mask(shift);
+			long end = RingMath.inInterval(toInclusive, start, leafLast) ? toInclusive : leafLast;
+			if (start == RingMath.wrap(leafFirst - 1) && end == leafLast) {
+				pieceHashes.add(leaves.get(leaf));
+			} else {
+				long hash = 0;
+				for (Iterator<Map.Entry<String, String>> it = store.range(start, end); it.hasNext();) {
+					Map.Entry<String, String> entry = it.next();
+					hash += entryHash(entry.getKey(), entry.getValue());
+				}
+				pieceHashes.add(hash);
+			}
+			pieces.add(new long[] { start, end });
+			start = end;
+		} while (start != toInclusive);
+		return new Hashes(pieces, pieceHashes);
+	}
+
+	private int leaf(long ringId) {
+		return (int) (ringId >>> shift);
+	}
+
+	static long entryHash(String key, String value) {
+		byte[] bytes = (key + '\0' + value).getBytes(StandardCharsets.UTF_8);
+		return HASHER.hash64(bytes, 0, bytes.length);
+	}
+
+	private static long combine(long left, long right) {
+		byte[] bytes = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			bytes[i] = (byte) (left >>> (8 * i));
+			bytes[8 + i] = (byte) (right >>> (8 * i));
+		}
+		return HASHER.hash64(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * The tree of one range. Level 0 is the root, level {@link #getDepth()}
+	 * holds one hash per piece of the range, padded with zeros to a power of
+	 * two. Node i of a level has the children 2i and 2i + 1.
+	 */
+	public static class Hashes {
+
+		private final List<long[]> pieces;
+		private final long[][] levels;
+
+		private Hashes(List<long[]> pieces, List<Long> pieceHashes) {
+			this.pieces = pieces;
+			int depth = 0;
+			while ((1 << depth) < pieces.size()) {
+				depth++;
+			}
+			levels = new long[depth + 1][];
+			levels[depth] = new long[1 << depth];
+			for (int i = 0; i < pieceHashes.size(); i++) {
+				levels[depth][i] = pieceHashes.get(i);
+			}
+			for (int level = depth - 1; level >= 0; level--) {
+				levels[level] = new long[1 << level];
+				for (int i = 0; i < levels[level].length; i++) {
+					levels[level][i] = combine(levels[level + 1][2 * i], levels[level + 1][2 * i + 1]);
+				}
+			}
+		}
+
+		public int getDepth() {
+			return levels.length - 1;
+		}
+
+		/**
+		 * Hash of node i of a level, zero for nodes past the end of it.
+		 */
+		public long get(int level, int index) {
+			return index < levels[level].length ? levels[level][index] : 0;
+		}
+
+		public int getPieceCount() {
+			return pieces.size();
+		}
+
+		/**
+		 * Bounds of piece i as { fromExclusive, toInclusive }, for
+		 * {@link KeyValueStore#range(long, long)}.
+		 */
+		public long[] getPiece(int index) {
+			return pieces.get(index);
+		}
+
+	}
+
+}
@@ -0,0 +1,169 @@
+package com.ds.dht;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A decoded protocol message: the command, the request id it was sent with
+ * and its fields. The same message can travel as a colon delimited text line
+ * or as a binary frame, see {@link BinaryCodec}.
+ */
+public class Message {
+
+	// Number of fields per command in the text protocol. The last field takes
+	// the rest of the line, so values in it may contain ':'
+	private final static Map<String, Integer> TEXT_FIELDS = new HashMap<>();
+
+	static {
+		TEXT_FIELDS.put(DHTMain.FIND_VALUE, 1);
+		TEXT_FIELDS.put(DHTMain.FIND_NODE, 2);
+		TEXT_FIELDS.put(DHTMain.NEW_PREDECESSOR, 2);
+		TEXT_FIELDS.put(DHTMain.REQUEST_PREDECESSOR, 1);
+		TEXT_FIELDS.put(DHTMain.PING_QUERY, 1);
+		TEXT_FIELDS.put(DHTMain.PUT_VALUE, 2);
+		TEXT_FIELDS.put(DHTMain.REQUEST_KEY_VALUES, 1);
+		TEXT_FIELDS.put(DHTMain.PUT_REPLICA, 4);
+		TEXT_FIELDS.put(DHTMain.FIND_VALUE_IN_SUCCESSOR, 1);
+		TEXT_FIELDS.put(DHTMain.FIND_LEADER, 1);
+		TEXT_FIELDS.put(DHTMain.ELECT_LEADER, 1);
+		TEXT_FIELDS.put(DHTMain.LEADER_ELECTED, 3);
+		TEXT_FIELDS.put(DHTMain.GET_SUCCESSORS, 1);
+		TEXT_FIELDS.put(DHTMain.NEXT_HOP, 1);
+		TEXT_FIELDS.put(DHTMain.FIND_VALUE_DIRECT, 1);
+		TEXT_FIELDS.put(DHTMain.PUT_VALUE_DIRECT, 2);
+		TEXT_FIELDS.put(DHTMain.GOSSIP_MEMBERS, 1);
+		TEXT_FIELDS.put(DHTMain.FIND_VALUE_AT, 2);
+		TEXT_FIELDS.put(DHTMain.PUT_VALUE_AT, 3);
+		TEXT_FIELDS.put(DHTMain.FIND_VALUE_DIRECT_AT, 2);
+		TEXT_FIELDS.put(DHTMain.PUT_VALUE_DIRECT_AT, 3);
+		TEXT_FIELDS.put(DHTMain.READ_REPLICA, 2);
+		TEXT_FIELDS.put(DHTMain.PUT_VERSIONED, 4);
+		TEXT_FIELDS.put(DHTMain.FIND_VERSIONED, 1);
+		TEXT_FIELDS.put(DHTMain.PROTOCOL_BINARY, 1);
+	}
+
+	private String command;
+	private long requestId;
+	private String[] fields;
+
+	public Message(String command, long requestId, String... fields) {
+		this.command = command;
+		this.requestId = requestId;
+		this.fields = fields;
+	}
+
+	/**
+	 * Builds a message from arbitrary field values, converting each with
+	 * String.valueOf.
+	 */
+	public static Message of(String command, long requestId, Object... values) {
+		String[] fields = new String[values.length];
+		for (int i = 0; i < values.length; i++) {
+			fields[i] = String.valueOf(values[i]);
+		}
+		return new Message(command, requestId, fields);
+	}
+
+	/**
+	 * Parses a text protocol line, COMMAND:field1:field2...
+	 */
+	public static Message fromLine(String line) {
+		// Split the query on the : token in order to get the command
+		// and the content portions
+		String[] queryContents = line.split(":", 2);
+		String command = queryContents[0];
+		if (queryContents.length < 2) {
+			return new Message(command, 0);
+		}
+
+		Integer fieldCount = TEXT_FIELDS.get(command);
+		String[] fields = queryContents[1].split(":", fieldCount == null ? -1 : fieldCount);
+		return new Message(command, 0, fields);
+	}
+
+	/**
+	 * Packs several fields into one, each as its length in chars, a colon and
+	 * the field, like the length prefixes of {@link BinaryCodec}. Replies
+	 * carry a single field, so replies made of keys and values use this to
+	 * keep ':' in them apart from the separators.
+	 */
+	public static String packFields(List<String> fields) {
+		StringBuilder packed = new StringBuilder();
+		for (String field : fields) {
+			packed.append(field.length()).append(':').append(field);
+		}
+		return packed.toString();
+	}
+
+	/**
+	 * Unpacks fields packed with {@link #packFields(List)}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the text is not made of length prefixed fields
+	 */
+	public static List<String> unpackFields(String packed) {
+		List<String> fields = new ArrayList<>();
+		int position = 0;
+		while (position < packed.length()) {
+			int colon = packed.indexOf(':', position);
+			if (colon <= position || colon - position > 10) {
+				throw new IllegalArgumentException("no field length at " + position);
+			}
+			long length;
+			try {
+				length = Long.parseLong(packed.substring(position, colon));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("bad field length at " + position);
+			}
+			if (length < 0 || length > packed.length() - colon - 1) {
+				throw new IllegalArgumentException("field at " + position + " runs past the end");
+			}
+			fields.add(packed.substring(colon + 1, colon + 1 + (int) length));
+			position = colon + 1 + (int) length;
+		}
+		return fields;
+	}
+
+	/**
+	 * Formats the message as a text protocol line without the line break.
+	 */
+	public String toLine() {
+		StringBuilder line = new StringBuilder(command);
+		for (String field : fields) {
+			line.append(':').append(field);
+		}
+		return line.toString();
+	}
+
+	public String getCommand() {
+		return command;
+	}
+
+	public long getRequestId() {
+		return requestId;
+	}
+
+	public int getFieldCount() {
+		return fields.length;
+	}
+
+	/**
+	 * Returns the field at the given position or an empty string if the
+	 * message has fewer fields.
+	 */
+	public String getField(int index) {
+		return index < fields.length ? fields[index] : "";
+	}
+
+	public String[] getFields() {
+		return fields;
+	}
+
+	@Override
+	public String toString() {
+		return toLine();
+	}
+
+}
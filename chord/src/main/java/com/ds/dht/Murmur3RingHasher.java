@@ -0,0 +1,127 @@
+package com.ds.dht;
+
+/**
+ * Non-cryptographic ring hash: the first 64 bits of MurmurHash3 x64 128,
+ * cut to the id width. Much cheaper than SHA-1 and spreads keys just as
+ * well for placement.
+ */
+public class Murmur3RingHasher implements RingHasher {
+
+	private final static long C1 = 0x87c37b91114253d5L;
+	private final static long C2 = 0x4cf5ad432745937fL;
+
+	private final long seed;
+
+	public Murmur3RingHasher() {
+		this(0);
+	}
+
+	public Murmur3RingHasher(long seed) {
+		this.seed = seed;
+	}
+
+	public long hash(byte[] bytes, int offset, int length, int bits) {
+		return hash64(bytes, offset, length) & RingMath.mask(bits);
+	}
+
+	// The tail switch falls through on purpose, every case adds one more byte
+	@SuppressWarnings("fallthrough")
+	public long hash64(byte[] bytes, int offset, int length) {
+		long h1 = seed;
+		long h2 = seed;
+
+		int blocks = length / 16;
+		for (int i = 0; i < blocks; i++) {
+			int position = offset + i * 16;
+			long k1 = readLong(bytes, position);
+			long k2 = readLong(bytes, position + 8);
+
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		// Remaining 0 to 15 bytes, the cases fall through on purpose
+		int tail = offset + blocks * 16;
+		long k1 = 0;
+		long k2 = 0;
+		switch (length & 15) {
+		case 15:
+			k2 ^= (long) (bytes[tail + 14] & 0xFF) << 48;
+		case 14:
+			k2 ^= (long) (bytes[tail + 13] & 0xFF) << 40;
+		case 13:
+			k2 ^= (long) (bytes[tail + 12] & 0xFF) << 32;
+		case 12:
+			k2 ^= (long) (bytes[tail + 11] & 0xFF) << 24;
+		case 11:
+			k2 ^= (long) (bytes[tail + 10] & 0xFF) << 16;
+		case 10:
+			k2 ^= (long) (bytes[tail + 9] & 0xFF) << 8;
+		case 9:
+			k2 ^= (long) (bytes[tail + 8] & 0xFF);
+			h2 ^= mixK2(k2);
+		case 8:
+			k1 ^= (long) (bytes[tail + 7] & 0xFF) << 56;
+		case 7:
+			k1 ^= (long) (bytes[tail + 6] & 0xFF) << 48;
+		case 6:
+			k1 ^= (long) (bytes[tail + 5] & 0xFF) << 40;
+		case 5:
+			k1 ^= (long) (bytes[tail + 4] & 0xFF) << 32;
+		case 4:
+			k1 ^= (long) (bytes[tail + 3] & 0xFF) << 24;
+		case 3:
+			k1 ^= (long) (bytes[tail + 2] & 0xFF) << 16;
+		case 2:
+			k1 ^= (long) (bytes[tail + 1] & 0xFF) << 8;
+		case 1:
+			k1 ^= (long) (bytes[tail] & 0xFF);
+			h1 ^= mixK1(k1);
+		}
+
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix64(h1);
+		h2 = fmix64(h2);
+		h1 += h2;
+		return h1;
+	}
+
+	private static long mixK1(long k1) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		return k1 * C2;
+	}
+
+	private static long mixK2(long k2) {
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		return k2 * C1;
+	}
+
+	private static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	private static long readLong(byte[] bytes, int position) {
+		return (bytes[position] & 0xFFL) | (bytes[position + 1] & 0xFFL) << 8 | (bytes[position + 2] & 0xFFL) << 16
+				| (bytes[position + 3] & 0xFFL) << 24 | (bytes[position + 4] & 0xFFL) << 32
+				| (bytes[position + 5] & 0xFFL) << 40 | (bytes[position + 6] & 0xFFL) << 48
+				| (bytes[position + 7] & 0xFFL) << 56;
+	}
+
+}
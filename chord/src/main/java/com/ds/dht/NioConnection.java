@@ -0,0 +1,294 @@
+package com.ds.dht;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * State of one client connection on the NIO server.
+ *
+ * A connection starts with text lines and switches to binary frames when the
+ * peer sends {@link DHTMain#PROTOCOL_BINARY}. Text commands from the same
+ * connection are executed one after another so that replies go out in the
+ * order the requests came in, just like with the blocking server. Binary
+ * frames carry a request id, so each of them is handed to the workers on its
+ * own and its reply is sent as soon as it is ready.
+ *
+ * Commands never run on the reactor thread. When every worker is busy and
+ * their queue is full, a binary request is answered with {@link DHTMain#BUSY}
+ * right away, so the peer can turn to another node instead of waiting for
+ * one that may itself be waiting for it. Commands that are not answered,
+ * and text commands, whose replies have to stay in order, wait instead:
+ * the connection stops reading until the reactor finds room for them.
+ */
+public class NioConnection {
+
+	private NioReactor reactor;
+	private Executor workers;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private ProtocolHandler handler;
+
+	private boolean binary = false;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+	private ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+
+	private Queue<Message> pendingQueries = new ConcurrentLinkedQueue<>();
+	private Queue<ByteBuffer> pendingReplies = new ConcurrentLinkedQueue<>();
+	private AtomicBoolean scheduled = new AtomicBoolean(false);
+	// Set while the workers had no room, only used on the reactor thread
+	private boolean paused = false;
+	private Message deferredFrame;
+
+	private Runnable drainTask = new Runnable() {
+		public void run() {
+			drainQueries();
+		}
+	};
+
+	public NioConnection(Node node, NioReactor reactor, Executor workers, SocketChannel channel, SelectionKey key) {
+		this.reactor = reactor;
+		this.workers = workers;
+		this.channel = channel;
+		this.key = key;
+		this.handler = node.getHost().createHandler(node, null);
+	}
+
+	/**
+	 * Reads whatever is available on the socket and queues every complete
+	 * command for execution. Called on the reactor thread.
+	 */
+	public void read() throws IOException {
+		int read = channel.read(readBuffer);
+		if (read < 0) {
+			close();
+			return;
+		}
+
+		readBuffer.flip();
+		if (!binary) {
+			readLines();
+		}
+		if (binary) {
+			readFrames();
+		}
+		readBuffer.compact();
+
+		schedule();
+	}
+
+	private void readLines() throws IOException {
+		while (readBuffer.hasRemaining() && !binary) {
+			byte b = readBuffer.get();
+			if (b == '\n') {
+				String query = new String(partialLine.toByteArray(), StandardCharsets.UTF_8);
+				if (query.endsWith("\r")) {
+					query = query.substring(0, query.length() - 1);
+				}
+				partialLine.reset();
+
+				Message message = Message.fromLine(query);
+				pendingQueries.offer(message);
+
+				// Everything after this line arrives as binary frames
+				if (message.getCommand().equals(DHTMain.PROTOCOL_BINARY)) {
+					binary = true;
+				}
+			} else if (partialLine.size() < DHTMain.MAX_FRAME_BYTES) {
+				partialLine.write(b);
+			} else {
+				throw new IOException("line longer than " + DHTMain.MAX_FRAME_BYTES + " bytes");
+			}
+		}
+	}
+
+	/**
+	 * Hands every complete frame in the buffer to the workers. A frame that
+	 * is too long or corrupt fails with an IOException, see
+	 * {@link BinaryCodec}, and the reactor closes the connection.
+	 */
+	private void readFrames() throws IOException {
+		Message message;
+		while (!paused && (message = BinaryCodec.decode(readBuffer)) != null) {
+			dispatch(message);
+		}
+
+		// Make room for a frame that is bigger than the buffer
+		if (!paused && readBuffer.position() == 0 && readBuffer.limit() == readBuffer.capacity()) {
+			ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+			bigger.put(readBuffer);
+			bigger.flip();
+			readBuffer = bigger;
+		}
+	}
+
+	/**
+	 * Hands a frame to the workers, see the class comment for when they have
+	 * no room.
+	 */
+	private void dispatch(final Message frame) {
+		try {
+			workers.execute(new Runnable() {
+				public void run() {
+					handleFrame(frame);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			if (frame.getRequestId() != 0) {
+				queueReply(encode(new Message(BinaryCodec.REPLY, frame.getRequestId(), DHTMain.BUSY)));
+			} else {
+				deferredFrame = frame;
+				pause();
+			}
+		}
+	}
+
+	/**
+	 * Stops reading until {@link #resume()} finds room for what is waiting.
+	 */
+	private void pause() {
+		paused = true;
+		if (key.isValid()) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+		reactor.retryLater(this);
+	}
+
+	/**
+	 * Tries again to hand the waiting commands to the workers and reads on
+	 * once they all found room. Called on the reactor thread.
+	 */
+	public void resume() throws IOException {
+		if (!key.isValid()) {
+			return;
+		}
+		paused = false;
+		if (deferredFrame != null) {
+			Message frame = deferredFrame;
+			deferredFrame = null;
+			dispatch(frame);
+		}
+		if (!paused && binary) {
+			// Frames that were read but not decoded yet
+			readBuffer.flip();
+			readFrames();
+			readBuffer.compact();
+		}
+		schedule();
+		if (!paused) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Writes queued replies until the socket would block. Called on the
+	 * reactor thread.
+	 */
+	public void write() throws IOException {
+		ByteBuffer reply;
+		while ((reply = pendingReplies.peek()) != null) {
+			channel.write(reply);
+			if (reply.hasRemaining()) {
+				// Socket buffer is full, wait for the next OP_WRITE
+				return;
+			}
+			pendingReplies.poll();
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+		// A reply may have been queued after the loop finished
+		if (!pendingReplies.isEmpty()) {
+			enableWrite();
+		}
+	}
+
+	public void enableWrite() {
+		if (key.isValid()) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	public void close() {
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Starts a worker on the queued text commands. Called on the reactor
+	 * thread.
+	 */
+	private void schedule() {
+		if (!paused && !pendingQueries.isEmpty() && scheduled.compareAndSet(false, true)) {
+			try {
+				workers.execute(drainTask);
+			} catch (RejectedExecutionException e) {
+				scheduled.set(false);
+				pause();
+			}
+		}
+	}
+
+	private void drainQueries() {
+		do {
+			Message query;
+			while ((query = pendingQueries.poll()) != null) {
+				String response = null;
+				try {
+					response = handler.handleMessage(query);
+				} catch (Exception e) {
+					System.err.println("error handling query " + query);
+					e.printStackTrace();
+				}
+
+				// Send response back to client
+				if (response != null) {
+					queueReply(ByteBuffer.wrap((response + "\n").getBytes(StandardCharsets.UTF_8)));
+				}
+			}
+			scheduled.set(false);
+
+			// Pick up commands that arrived while we were finishing up, on
+			// this worker
+		} while (!pendingQueries.isEmpty() && scheduled.compareAndSet(false, true));
+	}
+
+	private void handleFrame(Message frame) {
+		String response = null;
+		try {
+			response = handler.handleMessage(frame);
+		} catch (Exception e) {
+			System.err.println("error handling query " + frame);
+			e.printStackTrace();
+		}
+
+		// Request id 0 marks commands sent without waiting for a reply
+		if (response != null && frame.getRequestId() != 0) {
+			queueReply(encode(new Message(BinaryCodec.REPLY, frame.getRequestId(), response)));
+		}
+	}
+
+	private static ByteBuffer encode(Message reply) {
+		ByteBuffer buffer = ByteBuffer.allocate(BinaryCodec.frameLength(reply));
+		BinaryCodec.encode(reply, buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	private void queueReply(ByteBuffer reply) {
+		pendingReplies.offer(reply);
+		reactor.requestWrite(this);
+	}
+
+}
@@ -0,0 +1,66 @@
+package com.ds.dht;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector based alternative to {@link NodeServer}. An acceptor thread per
+ * listening port hands new connections to a fixed set of {@link NioReactor}
+ * threads which do all socket reads and writes. Decoded commands are executed
+ * on the host's bounded worker pool, so the number of threads no longer grows
+ * with the number of connections.
+ *
+ * One server is shared by all virtual nodes of a {@link NodeHost}, every node
+ * listens on its own port and its connections are served by the same
+ * reactors.
+ */
+public class NioNodeServer {
+
+	private NioReactor[] reactors;
+	private AtomicInteger next = new AtomicInteger();
+
+	public NioNodeServer(Executor workers) throws IOException {
+		// Start the reactors that will own the accepted connections
+		reactors = new NioReactor[Math.max(1, DHTMain.REACTOR_THREADS)];
+		for (int i = 0; i < reactors.length; i++) {
+			reactors[i] = new NioReactor(workers);
+			new Thread(reactors[i], "dht-reactor-" + i).start();
+		}
+	}
+
+	/**
+	 * Starts accepting connections for the node on its port.
+	 */
+	public void listen(Node node) {
+		new Thread(new Runnable() {
+			public void run() {
+				accept(node);
+			}
+		}, "dht-acceptor-" + node.getPort()).start();
+	}
+
+	private void accept(Node node) {
+		try {
+			// Listen for connections on port
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(node.getPort()));
+
+			// Continuously loop for connections and spread them over the
+			// reactors
+			while (true) {
+				SocketChannel clientChannel = serverChannel.accept();
+				clientChannel.configureBlocking(false);
+				clientChannel.socket().setTcpNoDelay(true);
+				reactors[Math.floorMod(next.getAndIncrement(), reactors.length)].register(clientChannel, node);
+			}
+		} catch (IOException e) {
+			System.err.println("error when listening for connections");
+			e.printStackTrace();
+		}
+	}
+
+}
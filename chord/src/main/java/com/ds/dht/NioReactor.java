@@ -0,0 +1,143 @@
+package com.ds.dht;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Event loop that owns a set of connections. It reads command lines off the
+ * sockets, passes them to the worker pool and writes the replies back once the
+ * workers have produced them. The connections of all nodes of a host may share
+ * a reactor, each connection is tied to the node it was accepted for.
+ */
+public class NioReactor implements Runnable {
+
+	private Executor workers;
+	private Selector selector;
+
+	// Connections accepted but not yet registered with the selector
+	private Queue<Accepted> newChannels = new ConcurrentLinkedQueue<>();
+	// Connections that have replies waiting to be written
+	private Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+	// Connections that stopped reading because the workers had no room,
+	// only used on the reactor thread
+	private Queue<NioConnection> paused = new ArrayDeque<>();
+
+	// How often paused connections try again
+	private final static long RETRY_MILLIS = 10;
+
+	public NioReactor(Executor workers) throws IOException {
+		this.workers = workers;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Hands a freshly accepted connection of a node over to this reactor. Safe
+	 * to call from the acceptor threads.
+	 */
+	public void register(SocketChannel channel, Node node) {
+		newChannels.offer(new Accepted(channel, node));
+		selector.wakeup();
+	}
+
+	/**
+	 * Asks the reactor to flush the write queue of a connection. Called by the
+	 * worker threads after they have queued a reply.
+	 */
+	public void requestWrite(NioConnection connection) {
+		pendingWrites.offer(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * Makes a paused connection try again on the next turn of the loop.
+	 * Called on the reactor thread.
+	 */
+	public void retryLater(NioConnection connection) {
+		paused.offer(connection);
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				selector.select(paused.isEmpty() ? 0 : RETRY_MILLIS);
+
+				registerNewChannels();
+				enableWrites();
+				resumePaused();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					NioConnection connection = (NioConnection) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					} catch (IOException e) {
+						// The peer went away, drop the connection
+						connection.close();
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("error in reactor select loop");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void registerNewChannels() {
+		Accepted accepted;
+		while ((accepted = newChannels.poll()) != null) {
+			try {
+				SelectionKey key = accepted.channel.register(selector, SelectionKey.OP_READ);
+				key.attach(new NioConnection(accepted.node, this, workers, accepted.channel, key));
+			} catch (ClosedChannelException e) {
+				// Closed before we got to it, nothing to do
+			}
+		}
+	}
+
+	private void resumePaused() {
+		// A connection that still finds no room queues itself again
+		for (int count = paused.size(); count > 0; count--) {
+			NioConnection connection = paused.poll();
+			try {
+				connection.resume();
+			} catch (IOException e) {
+				// A frame it had read was corrupt
+				connection.close();
+			}
+		}
+	}
+
+	private void enableWrites() {
+		NioConnection connection;
+		while ((connection = pendingWrites.poll()) != null) {
+			connection.enableWrite();
+		}
+	}
+
+	private static class Accepted {
+		private final SocketChannel channel;
+		private final Node node;
+
+		private Accepted(SocketChannel channel, Node node) {
+			this.channel = channel;
+			this.node = node;
+		}
+	}
+
+}
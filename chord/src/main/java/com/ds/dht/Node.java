@@ -1,30 +1,32 @@
 package com.ds.dht;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.math.BigInteger;
-import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * One position on the ring. A process may run several of them as virtual
+ * nodes, they share the {@link NodeHost} and each has its own port, id and
+ * routing state.
+ */
 public class Node {
 
+	private NodeHost host;
 	private String nodeIpAddress;
 	private int port;
 
 	private String bootStrapNodeAddress = null;
 	private int bootStrapNodePort;
 
-	private Finger predecessor2;
-	private Finger predecessor1;
-	private Finger successor1;
-	private Finger successor2;
-
-	private Map<Integer, Finger> fingerTable = new HashMap<>();
-	private Map<String, String> dataStore = new HashMap<>();
+	// Fingers, successors and predecessors. Replaced as a whole so readers
+	// never need a lock
+	private AtomicReference<RoutingState> routingState = new AtomicReference<>(RoutingState.empty());
 
 	private long nodeId;
 	private String hex;
@@ -35,7 +37,16 @@ public class Node {
 
 	private String electionMessage;
 
-	private Semaphore semaphore = new Semaphore(1);
+	private ConnectionPool connectionPool;
+	private OwnerCache ownerCache = new OwnerCache(DHTMain.OWNER_CACHE_SIZE);
+	// Table of all nodes, only kept in one hop routing
+	private MembershipGossip membershipGossip;
+	private PeerLatency peerLatency = new PeerLatency();
+	// Position of the change log up to which all our replica successors
+	// have our keys
+	private volatile long replicatedPosition;
+	// Position of the change log when our range last changed
+	private AtomicLong rangeChanged = new AtomicLong();
 
 	/**
 	 * Constructor for creating a new node that is the first in the ring.
@@ -46,7 +57,16 @@ public class Node {
 	 *            The port that this node needs to listen on
 	 */
 	public Node(String address, String port) {
+		this(new NodeHost(), address, port);
+	}
+
+	/**
+	 * Constructor for creating the first node of a new ring on the given host.
+	 */
+	public Node(NodeHost host, String address, String port) {
 		// Set node fields
+		this.host = host;
+		this.connectionPool = host.getConnectionPool();
 		this.nodeIpAddress = address;
 		this.port = Integer.valueOf(port);
 		this.setLeader(true);
@@ -69,7 +89,17 @@ public class Node {
 	 *            The port of the existing ring member
 	 */
 	public Node(String address, String port, String bootStrapNodeAddress, String bootStrapNodePort) {
+		this(new NodeHost(), address, port, bootStrapNodeAddress, bootStrapNodePort);
+	}
+
+	/**
+	 * Constructor for creating a node on the given host that will join an
+	 * existing ring, e.g. another virtual node of the host.
+	 */
+	public Node(NodeHost host, String address, String port, String bootStrapNodeAddress, String bootStrapNodePort) {
 		// Set node fields
+		this.host = host;
+		this.connectionPool = host.getConnectionPool();
 		this.nodeIpAddress = address;
 		this.port = Integer.valueOf(port);
 		System.out.println("Joining the Chord ring");
@@ -109,9 +139,13 @@ public class Node {
 		printFingerTableEntries();
 
 		// Start listening for connections and heartbeats from neighbors
-		new Thread(new NodeServer(this)).start();
+		host.serve(this);
 		new Thread(new RingStabilizer(this)).start();
 		new Thread(new PingHandler(this)).start();
+		if (DHTMain.ROUTING.equals("onehop")) {
+			membershipGossip = new MembershipGossip(this);
+			new Thread(membershipGossip).start();
+		}
 
 		// If this is not the only node in the ring
 		if (this.bootStrapNodeAddress != null) {
@@ -125,13 +159,8 @@ public class Node {
 	private void findLeaderId() {
 
 		try {
-			Socket socket = new Socket(this.bootStrapNodeAddress, this.bootStrapNodePort);
-
-			// Open reader/writer to chord node
-			PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-			BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			socketWriter.println(DHTMain.FIND_LEADER + ":" + nodeId);
-			String serverResponse = socketReader.readLine();
+			String serverResponse = connectionPool.request(this.bootStrapNodeAddress, this.bootStrapNodePort,
+					DHTMain.FIND_LEADER, nodeId);
 
 			String[] leaderData = serverResponse.split(":");
 			this.leaderId = Long.valueOf(leaderData[0]);
@@ -139,10 +168,6 @@ public class Node {
 			this.leaderPort = Integer.valueOf(leaderData[2]);
 			this.bootStrapNodeAddress = this.leaderIpAddress;
 			this.bootStrapNodePort = this.leaderPort;
-			// Close connections
-			socketWriter.close();
-			socketReader.close();
-			socket.close();
 		} catch (IOException e) {
 			logError("Could not open connection to existing node");
 			e.printStackTrace();
@@ -160,52 +185,31 @@ public class Node {
 		if (bootStrapNodeAddress == null) {
 			// Initialize all fingers to refer to self
 			for (int i = 0; i < DHTMain.FINGER_TABLE_SIZE; i++) {
-				fingerTable.put(i, new Finger(nodeIpAddress, port));
+				setFinger(i, new Finger(nodeIpAddress, port));
 			}
 		} else {
 			// Open connection to the bootstrap node
 			try {
 				System.out.println("Bootstrap Node : " + bootStrapNodeAddress + ", Port : " + bootStrapNodePort);
-				Socket socket = new Socket(bootStrapNodeAddress, bootStrapNodePort);
-
-				// Open reader/writer to chord node
-				PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-				BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-				BigInteger bigQuery = BigInteger.valueOf(2L);
-				BigInteger bigSelfId = BigInteger.valueOf(nodeId);
 
+				// Ask for the nodes corresponding to each entry in the table
+				// (node id + 2 power i) in one request
+				long[] fingerStarts = new long[DHTMain.FINGER_TABLE_SIZE];
 				for (int i = 0; i < DHTMain.FINGER_TABLE_SIZE; i++) {
-					// 2 power i calculation
-					BigInteger bigResult = bigQuery.pow(i);
-					// node id + 2 power i
-					bigResult = bigResult.add(bigSelfId);
-
-					// Send query to chord to find the node corresponding to
-					// each entry in the table for (node id + 2 power i)
-					socketWriter.println(DHTMain.FIND_NODE + ":" + bigResult.longValue());
-
-					// Read response from chord
-					String serverResponse = socketReader.readLine();
-					if (serverResponse != null && !serverResponse.isEmpty()) {
-						// ServerResponse format:
-						// response = DHTMain.NODE_FOUND + ":" +
-						// node.getAddress() +
-						// ":" + node.getPort();
-						// Parse out address and port
-						String[] serverResponseFragments = serverResponse.split(":", 2);
-						String[] addressFragments = serverResponseFragments[1].split(":");
+					fingerStarts[i] = RingMath.fingerStart(nodeId, i);
+				}
+				int[] indexes = new int[DHTMain.FINGER_TABLE_SIZE];
+				for (int i = 0; i < indexes.length; i++) {
+					indexes[i] = i;
+				}
+				List<Finger> owners = nearestFingers(indexes,
+						findFingers(bootStrapNodeAddress, bootStrapNodePort, fingerStarts));
+				for (int i = 0; i < owners.size(); i++) {
+					if (owners.get(i) != null) {
 						// Add response finger to table
-						fingerTable.put(i, new Finger(addressFragments[0], Integer.valueOf(addressFragments[1])));
+						setFinger(i, owners.get(i));
 					}
-
-					// System.out.println("Received: " + serverResponse);
 				}
-
-				// Close connections
-				socketWriter.close();
-				socketReader.close();
-				socket.close();
 			} catch (IOException e) {
 				logError("Could not open connection to existing node");
 				e.printStackTrace();
@@ -215,35 +219,114 @@ public class Node {
 	}
 
 	/**
-	 * Initializes successors. Uses the finger table to get the successors and
+	 * Finds the nodes owning the given ids with a single GET_FINGERS request
+	 * to the given node. The owners come back in the order of the ids, null
+	 * where the node could not find one.
+	 */
+	public List<Finger> findFingers(String address, int port, long... ids) throws IOException {
+		Object[] fields = new Object[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			fields[i] = ids[i];
+		}
+		return ProtocolHandler.parseFingers(connectionPool.request(address, port, DHTMain.GET_FINGERS, fields));
+	}
+
+	/**
+	 * Picks the fingers with the given indexes by proximity when
+	 * {@link DHTMain#FINGER_SELECTION} is "proximity", see
+	 * {@link ProximityFingers}. The candidates for a finger are its owner and
+	 * the nodes the owner lists for GET_MEMBERSHIP, candidates not measured
+	 * lately are pinged first. Otherwise returns the owners as they are.
+	 */
+	public List<Finger> nearestFingers(int[] indexes, List<Finger> owners) {
+		if (!"proximity".equals(DHTMain.FINGER_SELECTION)) {
+			return owners;
+		}
+		Map<Long, List<Finger>> membersOfOwner = new HashMap<>();
+		List<Finger> fingers = new ArrayList<>(owners);
+		for (int i = 0; i < indexes.length && i < owners.size(); i++) {
+			Finger owner = owners.get(i);
+			if (indexes[i] == 0 || owner == null || owner.getNodeId() == nodeId) {
+				continue;
+			}
+			List<Finger> members = membersOfOwner.computeIfAbsent(owner.getNodeId(), id -> getMembers(owner));
+			List<Finger> candidates = ProximityFingers.candidates(nodeId, indexes[i], members,
+					DHTMain.PROXIMITY_CANDIDATES);
+			for (Finger candidate : candidates) {
+				if (!peerLatency.isFresh(candidate)) {
+					measureRoundTrip(candidate);
+				}
+			}
+			Finger nearest = ProximityFingers.nearest(candidates, peerLatency::getMillis);
+			if (nearest != null) {
+				fingers.set(i, nearest);
+			}
+		}
+		return fingers;
+	}
+
+	/**
+	 * The node followed by the nodes it lists for GET_MEMBERSHIP, its
+	 * successors or in one hop routing all nodes. Just the node if it does
+	 * not answer.
+	 */
+	private List<Finger> getMembers(Finger node) {
+		List<Finger> members = new ArrayList<>();
+		members.add(node);
+		try {
+			for (Finger member : ProtocolHandler
+					.parseFingers(connectionPool.request(node, DHTMain.GET_MEMBERSHIP))) {
+				if (member != null) {
+					members.add(member);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("could not get the members listed by " + node.getAddress() + ":" + node.getPort());
+		}
+		return members;
+	}
+
+	/**
+	 * Pings a node and adds the round trip time to its average. A node that
+	 * was never measured is pinged twice, the first ping may have to open the
+	 * connection.
+	 */
+	private void measureRoundTrip(Finger node) {
+		try {
+			if (Double.isNaN(peerLatency.getMillis(node))) {
+				connectionPool.request(node, DHTMain.PING_QUERY, nodeId);
+			}
+			long start = System.nanoTime();
+			String reply = connectionPool.request(node, DHTMain.PING_QUERY, nodeId);
+			if (DHTMain.PING_RESPONSE.equals(reply)) {
+				peerLatency.record(node, System.nanoTime() - start);
+			}
+		} catch (IOException e) {
+			System.err.println("could not ping finger candidate " + node.getAddress() + ":" + node.getPort());
+		}
+	}
+
+	/**
+	 * Initializes successors. Uses the first finger as the first successor,
+	 * the rest of the successor list comes with the first stabilization, and
 	 * defaults the predecessors to self until it learns about new ones.
 	 */
 	private void initializeSuccessors() {
-		successor1 = fingerTable.get(0);
-		successor2 = fingerTable.get(1);
-		predecessor1 = new Finger(nodeIpAddress, port);
-		predecessor2 = new Finger(nodeIpAddress, port);
+		final Finger self = new Finger(nodeIpAddress, port);
+		Finger successor1 = updateRoutingState(state -> state.withSuccessor1(state.getFinger(0))
+				.withPredecessor1(self).withPredecessor2(self)).getSuccessor1();
 
 		// Notify the first successor that we are the new predecessor, provided
 		// we do not open a connection to ourselves
 		// If I am not my successor then connect with the succesor
 		if (!nodeIpAddress.equals(successor1.getAddress()) || (port != successor1.getPort())) {
 			try {
-				Socket socket = new Socket(successor1.getAddress(), successor1.getPort());
-
-				// Open writer to successor node
-				PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-
 				// Tell successor that this node is its new predecessor
-				socketWriter.println(DHTMain.NEW_PREDECESSOR + ":" + getNodeIpAddress() + ":" + getPort());
+				connectionPool.send(successor1, DHTMain.NEW_PREDECESSOR, getNodeIpAddress(), getPort());
 				// System.out.println("Sent: " + DHTMain.NEW_PREDECESSOR + ":" +
 				// getNodeIpAddress() + ":" + getPort()
 				// + " to " + successor1.getAddress() + ":" +
 				// successor1.getPort());
-
-				// Close connections
-				socketWriter.close();
-				socket.close();
 			} catch (IOException e) {
 				logError("Could not open connection to first successor");
 				e.printStackTrace();
@@ -253,9 +336,10 @@ public class Node {
 	}
 
 	private void printKeyValueMap() {
-		for (String s : this.dataStore.keySet()) {
+		for (Map.Entry<String, String> entry : getDataStore()) {
 
-			System.out.println("(key,value) => (" + s + "," + this.dataStore.get(s) + ")" + "Hashed value of key");
+			System.out.println("(key,value) => (" + entry.getKey() + "," + entry.getValue() + ")"
+					+ "Hashed value of key");
 		}
 	}
 
@@ -266,20 +350,13 @@ public class Node {
 	private void distributeKeyValues() {
 		System.out.println("distributing key values");
 		try {
-			if (this.successor1 != null) {
-				Socket socket = new Socket(this.successor1.getAddress(), this.successor1.getPort());
-
-				// Open reader/writer to successor node
-				PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-				BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
+			Finger successor1 = getSuccessor1();
+			if (successor1 != null) {
 				// Ask successor to distribute key value to this node
-				socketWriter.println(DHTMain.REQUEST_KEY_VALUES + ":" + this.nodeId);
-
-				String serverResponse = socketReader.readLine();
+				String serverResponse = connectionPool.request(successor1,
+						DHTMain.REQUEST_KEY_VALUES, this.nodeId);
 				if (serverResponse != null && !serverResponse.isEmpty() && serverResponse != "") {
 					String[] keyValuePairs = serverResponse.split("::");
-					this.lock();
 
 					for (int i = 0; i < keyValuePairs.length; i++) {
 						String[] keyValue = keyValuePairs[i].split(":", 2);
@@ -289,13 +366,7 @@ public class Node {
 							this.getDataStore().put(key, value);
 						}
 					}
-					this.unlock();
 				}
-
-				// Close connections
-				socketWriter.close();
-				socketReader.close();
-				socket.close();
 			}
 		} catch (Exception ex) {
 			logError("Could not open connection to first successor");
@@ -315,20 +386,101 @@ public class Node {
 		System.err.println("Error (" + nodeId + "): " + errorMessage);
 	}
 
-	public void lock() {
-		try {
-			semaphore.acquire();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+	/**
+	 * Returns the current routing snapshot. Read several fields from the same
+	 * snapshot when they have to be consistent with each other.
+	 */
+	public RoutingState getRoutingState() {
+		return routingState.get();
+	}
+
+	/**
+	 * Atomically replaces the routing state with the one derived by the
+	 * update. The update may run more than once when other threads swap in
+	 * their own state at the same time, so it must not have side effects.
+	 *
+	 * @return The new routing state
+	 */
+	public RoutingState updateRoutingState(UnaryOperator<RoutingState> update) {
+		RoutingState previous;
+		RoutingState updated;
+		do {
+			previous = routingState.get();
+			updated = update.apply(previous);
+		} while (!routingState.compareAndSet(previous, updated));
+
+		// Keys in a range we just took over may have changed at any time
+		// before, count them as changed now
+		if (previous.getPredecessor1() != updated.getPredecessor1() && host != null) {
+			rangeChanged.accumulateAndGet(host.getChangeLog().position(), Math::max);
 		}
+		return updated;
+	}
+
+	public void setFinger(int index, Finger finger) {
+		updateRoutingState(state -> state.withFinger(index, finger));
+	}
+
+	public FingerIndex getFingerIndex() {
+		return getRoutingState().getFingerIndex();
+	}
+
+	/**
+	 * The position of the host's {@link ChangeLog} up to which all our
+	 * replica successors confirmed our keys.
+	 */
+	public long getReplicatedPosition() {
+		return replicatedPosition;
+	}
+
+	public void setReplicatedPosition(long replicatedPosition) {
+		this.replicatedPosition = replicatedPosition;
+	}
+
+	/**
+	 * The version of one of our keys: the position of the host's
+	 * {@link ChangeLog} of its last change. Once that has been trimmed from
+	 * the log, every replica successor has it and the position they all
+	 * confirmed stands in. Never lower than the position at which our range
+	 * last changed, as replicas may not have the keys of a range we took
+	 * over.
+	 */
+	public long getKeyVersion(String key) {
+		Long position = host.getChangeLog().positionOf(key);
+		return Math.max(position != null ? position : replicatedPosition, rangeChanged.get());
 	}
 
-	public void unlock() {
-		semaphore.release();
+	/**
+	 * Round trip times to other nodes, see {@link PeerLatency}.
+	 */
+	public PeerLatency getPeerLatency() {
+		return peerLatency;
+	}
+
+	/**
+	 * Nodes this node recently found to own keys, see {@link OwnerCache}.
+	 */
+	public OwnerCache getOwnerCache() {
+		return ownerCache;
+	}
+
+	/**
+	 * The table of all nodes in one hop routing, null otherwise.
+	 */
+	public MembershipGossip getMembershipGossip() {
+		return membershipGossip;
 	}
 
-	public Map<Integer, Finger> getFingerTable() {
-		return fingerTable;
+	/**
+	 * Forgets a node that failed in the owner cache, the round trip times and
+	 * the membership table.
+	 */
+	public void forgetNode(Finger failed) {
+		ownerCache.remove(failed);
+		peerLatency.remove(failed);
+		if (membershipGossip != null) {
+			membershipGossip.remove(failed);
+		}
 	}
 
 	public void setNodeIpAddress(String nodeIpAddress) {
@@ -348,69 +500,86 @@ public class Node {
 	}
 
 	public Finger getSuccessor1() {
-		return successor1;
+		return getRoutingState().getSuccessor1();
 	}
 
 	public void setSuccessor1(Finger firstSuccessor) {
-		successor1 = firstSuccessor;
+		updateRoutingState(state -> state.withSuccessor1(firstSuccessor));
 	}
 
 	public Finger getPredecessor1() {
-		return predecessor1;
+		return getRoutingState().getPredecessor1();
 	}
 
 	public void setPredecessor1(Finger firstPredecessor) {
-		predecessor1 = firstPredecessor;
+		updateRoutingState(state -> state.withPredecessor1(firstPredecessor));
 	}
 
-	public Finger getSuccessor2() {
-		return successor2;
+	/**
+	 * Returns the successor list, closest first.
+	 */
+	public List<Finger> getSuccessors() {
+		return getRoutingState().getSuccessors();
 	}
 
-	public void setSuccessor2(Finger secondSuccessor) {
-		successor2 = secondSuccessor;
+	/**
+	 * Returns the successors that keep a copy of our keys, the first
+	 * REPLICATION_FACTOR of them on other hosts. The ones on this host share
+	 * our store.
+	 */
+	public List<Finger> getReplicaTargets() {
+		List<Finger> targets = new ArrayList<>();
+		for (Finger successor : getSuccessors()) {
+			if (targets.size() == DHTMain.REPLICATION_FACTOR) {
+				break;
+			}
+			if (!host.isLocal(successor.getNodeId())) {
+				targets.add(successor);
+			}
+		}
+		return targets;
 	}
 
 	public Finger getPredecessor2() {
-		return predecessor2;
+		return getRoutingState().getPredecessor2();
 	}
 
 	public void setPredecessor2(Finger secondPredecessor) {
-		predecessor2 = secondPredecessor;
+		updateRoutingState(state -> state.withPredecessor2(secondPredecessor));
 	}
 
 	public long getNodeId() {
 		return nodeId;
 	}
 
-	public Semaphore getSemaphore() {
-		return semaphore;
+	public ConnectionPool getConnectionPool() {
+		return connectionPool;
 	}
 
-	public Map<String, String> getDataStore() {
-		return dataStore;
+	public ExecutorService getWorkerPool() {
+		return host.getWorkerPool();
 	}
 
-	public void setDataStore(Map<String, String> dataStore) {
-		this.dataStore = dataStore;
+	public NodeHost getHost() {
+		return host;
+	}
+
+	/**
+	 * Returns the store of the host, shared with the other virtual nodes.
+	 */
+	public KeyValueStore getDataStore() {
+		return host.getDataStore();
+	}
+
+	public void setDataStore(KeyValueStore dataStore) {
+		host.setDataStore(dataStore);
 	}
 
 	public void initiateLeaderElection(String ipAddress, int port) {
 		if (!this.getElectionMessage().equals(DHTMain.ELECT_LEADER)) {
 			try {
-				// Open socket to predecessor
-				Socket socket = new Socket(ipAddress, port);
-
-				// Open reader/writer to chord node
-				PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-				BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-				// Send a ping
-				socketWriter.println(DHTMain.ELECT_LEADER + ":" + this.getNodeId());
-				// Close connections
-				socketWriter.close();
-				socketReader.close();
-				socket.close();
+				// Start the election at the given node
+				connectionPool.send(ipAddress, port, DHTMain.ELECT_LEADER, this.getNodeId());
 				this.setElectionMessage(DHTMain.ELECT_LEADER);
 			} catch (IOException e) {
 				System.out.println("Exception occurred in electionInitiator: " + e.getMessage());
@@ -427,8 +596,9 @@ public class Node {
 		System.out.println("Finger Entry  " + " ip                " + " port    " + " NodeID");
 		System.out.println("---------------------------------------------- -------------------");
 
+		RoutingState state = getRoutingState();
 		for (int i = 0; i < DHTMain.FINGER_TABLE_SIZE; i++) {
-			Finger finger = fingerTable.get(i);
+			Finger finger = state.getFinger(i);
 			// System.out.println("Finger Entry " + i + " ip " +
 			// finger.getAddress() + " port " + finger.getPort() + " NodeID " +
 			// finger.getNodeId());
@@ -436,9 +606,14 @@ public class Node {
 					+ "     " + finger.getNodeId());
 
 		}
-		System.out.println("Node: " + this.getNodeId() + ", Successor1: " + getSuccessor1().getNodeId()
-				+ ", Predecessor1: " + getPredecessor1().getNodeId() + ", Successor2: " + getSuccessor2().getNodeId()
-				+ ", Predecessor2: " + getPredecessor2().getNodeId() + ", leaderId: " + leaderId
+		StringBuilder successors = new StringBuilder();
+		for (Finger successor : state.getSuccessors()) {
+			successors.append(successors.length() == 0 ? "" : " ").append(successor.getNodeId());
+		}
+		System.out.println("Node: " + this.getNodeId() + ", Successor1: " + state.getSuccessor1().getNodeId()
+				+ ", Predecessor1: " + state.getPredecessor1().getNodeId() + ", Successors: [" + successors
+				+ "], Predecessor2: " + state.getPredecessor2().getNodeId()
+				+ ", leaderId: " + leaderId
 				+ ", electionMessage : " + electionMessage);
 		System.out.println("-------------------- Finger Table Entries -------------------");
 	}
@@ -0,0 +1,209 @@
+package com.ds.dht;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * What the ring positions hosted by one process share: the server, the
+ * connection pool, the worker pool and the data store. Each {@link Node} on
+ * the host is one virtual node with its own id, port and routing state, see
+ * {@link DHTMain#VIRTUAL_NODES}.
+ */
+public class NodeHost {
+
+	private List<Node> nodes = new CopyOnWriteArrayList<>();
+
+	private ConnectionPool connectionPool = new ConnectionPool();
+	// Keys written to the store, so that replicas are only sent for changes,
+	// and the hashes replicas are compared with
+	private ChangeLog changeLog = new ChangeLog();
+	private MerkleTree merkleTree = new MerkleTree();
+	// Position of the change log of each owner, by node id, up to which it
+	// last confirmed that our store holds its keys
+	private ConcurrentHashMap<Long, Long> replicaVersions = new ConcurrentHashMap<>();
+	// The time this host started, the first part of the versions of the
+	// writes of the keys it owns, see WriteVersion
+	private long epoch = System.currentTimeMillis();
+	private VersionedStore dataStore = new VersionedStore(
+			new ChangeLoggingStore(new MerkleStore(createDataStore(), merkleTree), changeLog));
+
+	// Runs the commands received by the servers. When the queue is full it
+	// rejects further commands, the servers then answer BUSY or stop reading
+	// the connection, see NioConnection
+	private ThreadPoolExecutor workerPool = new ThreadPoolExecutor(DHTMain.WORKER_THREADS, DHTMain.WORKER_THREADS,
+			60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(DHTMain.WORKER_QUEUE_SIZE),
+			new ThreadPoolExecutor.AbortPolicy());
+
+	private NioNodeServer nioServer;
+	// Creates the handler of each connection, the socket is null for the NIO
+	// server
+	private BiFunction<Node, Socket, ProtocolHandler> handlerFactory = ProtocolHandler::new;
+
+	/**
+	 * Adds a node to this host and starts accepting connections on its port.
+	 */
+	public void serve(Node node) {
+		nodes.add(node);
+		if (DHTMain.SERVER_MODE.equals("blocking")) {
+			new Thread(new NodeServer(node)).start();
+		} else {
+			getNioServer().listen(node);
+		}
+	}
+
+	private synchronized NioNodeServer getNioServer() {
+		if (nioServer == null) {
+			try {
+				nioServer = new NioNodeServer(workerPool);
+			} catch (IOException e) {
+				throw new IllegalStateException("could not start the reactors", e);
+			}
+		}
+		return nioServer;
+	}
+
+	/**
+	 * Returns the nodes of this host, the first one is the one that joined
+	 * the ring through the bootstrap node.
+	 */
+	public List<Node> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Whether the given id is the id of one of the nodes of this host.
+	 */
+	public boolean isLocal(long nodeId) {
+		for (Node node : nodes) {
+			if (node.getNodeId() == nodeId) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the node of this host that owns the given key id, or null if the
+	 * key belongs to another host.
+	 */
+	public Node getOwner(long keyId) {
+		for (Node node : nodes) {
+			Finger predecessor = node.getPredecessor1();
+			if (predecessor != null && RingMath.inInterval(keyId, predecessor.getNodeId(), node.getNodeId())) {
+				return node;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Creates the handler for a connection of a node, see
+	 * {@link #setHandlerFactory(BiFunction)}.
+	 */
+	public ProtocolHandler createHandler(Node node, Socket socket) {
+		return handlerFactory.apply(node, socket);
+	}
+
+	/**
+	 * Replaces the handlers of connections accepted from now on, e.g. with
+	 * ones that wrap {@link ProtocolHandler#handleMessage(Message)}. Set it
+	 * before the first node is added.
+	 */
+	public void setHandlerFactory(BiFunction<Node, Socket, ProtocolHandler> handlerFactory) {
+		this.handlerFactory = handlerFactory;
+	}
+
+	public ConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
+	public ExecutorService getWorkerPool() {
+		return workerPool;
+	}
+
+	public KeyValueStore getDataStore() {
+		return dataStore;
+	}
+
+	/**
+	 * The data store, with the versions of the copies in it.
+	 */
+	public VersionedStore getVersionedStore() {
+		return dataStore;
+	}
+
+	public void setDataStore(KeyValueStore dataStore) {
+		merkleTree = new MerkleTree();
+		this.dataStore = new VersionedStore(
+				new ChangeLoggingStore(new MerkleStore(dataStore, merkleTree), changeLog));
+	}
+
+	public MerkleTree getMerkleTree() {
+		return merkleTree;
+	}
+
+	/**
+	 * The version of the replicas of an owner held here: the position of the
+	 * owner's change log up to which our store has all of its keys, 0 if it
+	 * never said.
+	 */
+	public long getReplicaVersion(long ownerId) {
+		return replicaVersions.getOrDefault(ownerId, 0L);
+	}
+
+	public void setReplicaVersion(long ownerId, long position) {
+		// Replaced rather than raised, an owner that restarts counts from 0
+		replicaVersions.put(ownerId, position);
+	}
+
+	public ChangeLog getChangeLog() {
+		return changeLog;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Stores a write of a key this host owns, newer than the version of the
+	 * copy it replaces and than the writes of earlier runs.
+	 *
+	 * @return the version of the write
+	 */
+	public WriteVersion putOwned(String key, String value) {
+		return dataStore.putNewer(key, value, new WriteVersion(epoch, changeLog.position()));
+	}
+
+	/**
+	 * Drops the entries of the change log that every node of this host has
+	 * sent to all of its replica successors.
+	 */
+	public void trimChangeLog() {
+		long position = Long.MAX_VALUE;
+		for (Node node : nodes) {
+			position = Math.min(position, node.getReplicatedPosition());
+		}
+		if (!nodes.isEmpty()) {
+			changeLog.trim(position);
+		}
+	}
+
+	private static KeyValueStore createDataStore() {
+		try {
+			return (KeyValueStore) Class.forName(DHTMain.STORE_CLASS).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			System.err.println("Could not create store " + DHTMain.STORE_CLASS + ", using the default one");
+			e.printStackTrace();
+			return new ConcurrentKeyValueStore();
+		}
+	}
+
+}
@@ -21,7 +21,7 @@ public class NodeServer implements Runnable {
             while (true) {
                 // When connection is established launch a new thread for communicating with client
                 Socket clientSocket = serverSocket.accept();
-                new Thread(new ProtocolHandler(currentNode, clientSocket)).start();
+                new Thread(currentNode.getHost().createHandler(currentNode, clientSocket)).start();
             }
         } catch (IOException e) {
             System.err.println("error when listening for connections");
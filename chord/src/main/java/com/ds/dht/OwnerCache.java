@@ -0,0 +1,86 @@
+package com.ds.dht;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Bounded cache of the nodes that recently owned keys, sorted by node id. A
+ * node owns the ids from its predecessor up to its own id, so the cached node
+ * with the next id at or after a key is the likely owner of the key. One
+ * entry covers the whole range of a node and a skewed workload ends up with
+ * the owners of its hot ranges cached.
+ *
+ * The guess is only optimistic: a node that does not own the key answers
+ * with a REDIRECT to a node closer to it, and the caller caches the node
+ * that finally answers. Entries are dropped when a node fails and the whole
+ * cache when the ring around a node changes.
+ */
+public class OwnerCache {
+
+	// Ids are stored with the sign bit flipped so that they sort unsigned,
+	// as in FingerIndex
+	private ConcurrentSkipListMap<Long, Finger> owners = new ConcurrentSkipListMap<>();
+	private int capacity;
+
+	/**
+	 * @param capacity
+	 *            Largest number of nodes kept, 0 disables the cache
+	 */
+	public OwnerCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the cached node that most likely owns the key, or null if
+	 * nothing is cached.
+	 */
+	public Finger get(long keyId) {
+		Map.Entry<Long, Finger> owner = owners.ceilingEntry(sortable(keyId));
+		if (owner == null) {
+			// Wrap around to the node with the smallest id
+			owner = owners.firstEntry();
+		}
+		return owner == null ? null : owner.getValue();
+	}
+
+	/**
+	 * Remembers a node that answered for a key it owns.
+	 */
+	public void put(Finger owner) {
+		if (capacity <= 0) {
+			return;
+		}
+		owners.put(sortable(owner.getNodeId()), owner);
+
+		// Make room by dropping random entries, hot ranges come back on the
+		// next request
+		while (owners.size() > capacity) {
+			Long victim = owners.ceilingKey(ThreadLocalRandom.current().nextLong());
+			owners.remove(victim != null ? victim : owners.firstKey());
+		}
+	}
+
+	/**
+	 * Forgets a node, e.g. because it did not answer.
+	 */
+	public void remove(Finger owner) {
+		owners.remove(sortable(owner.getNodeId()));
+	}
+
+	/**
+	 * Forgets all nodes, called when the ring changed.
+	 */
+	public void clear() {
+		owners.clear();
+	}
+
+	public int size() {
+		return owners.size();
+	}
+
+	private static long sortable(long id) {
+		return id ^ Long.MIN_VALUE;
+	}
+
+}
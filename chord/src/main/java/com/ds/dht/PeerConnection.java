@@ -0,0 +1,321 @@
+package com.ds.dht;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long lived connection to another node, handed out by the
+ * {@link ConnectionPool}.
+ *
+ * Unless the text protocol is configured, the connection asks the peer to
+ * switch to binary frames (see {@link BinaryCodec}) right after connecting.
+ * Binary connections are multiplexed: every request carries its own id, any
+ * number of threads can have requests in flight at the same time and a reader
+ * thread hands each reply to the future waiting for that id, in whatever
+ * order the replies arrive. Text connections serve one request at a time.
+ */
+public class PeerConnection {
+
+	private String address;
+	private int port;
+	private Socket socket;
+	private PrintWriter socketWriter;
+	private BufferedReader socketReader;
+
+	// Binary framing state, only used once the peer has accepted it
+	private boolean binary = false;
+	private OutputStream frameWriter;
+	private ByteBuffer writeBuffer;
+	private AtomicLong nextRequestId = new AtomicLong(1);
+	private Map<Long, CompletableFuture<String>> pendingReplies = new ConcurrentHashMap<>();
+
+	private AtomicInteger inFlight = new AtomicInteger();
+	private volatile long lastUsed;
+	private volatile boolean open = true;
+	private boolean reused = false;
+
+	public PeerConnection(String address, int port) throws IOException {
+		this.address = address;
+		this.port = port;
+
+		connect();
+		if (DHTMain.PEER_PROTOCOL.equals("binary") && !negotiateBinary()) {
+			// The peer did not answer the negotiation, start over in text
+			close();
+			connect();
+			open = true;
+		}
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	private void connect() throws IOException {
+		// Open socket and reader/writer to chord node
+		this.socket = new Socket();
+		this.socket.connect(new InetSocketAddress(address, port), DHTMain.CONNECT_TIMEOUT);
+		this.socket.setTcpNoDelay(true);
+		this.socketWriter = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8),
+				true);
+		this.socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Asks the peer to switch this connection to binary frames.
+	 *
+	 * @return false if the peer did not answer in time
+	 */
+	private boolean negotiateBinary() throws IOException {
+		socket.setSoTimeout(DHTMain.NEGOTIATION_TIMEOUT);
+		try {
+			socketWriter.println(DHTMain.PROTOCOL_BINARY + ":1");
+			String response = socketReader.readLine();
+			if (response != null && response.startsWith(DHTMain.PROTOCOL_ACCEPTED)) {
+				binary = true;
+				frameWriter = new BufferedOutputStream(socket.getOutputStream());
+
+				Thread replyReader = new Thread(new Runnable() {
+					public void run() {
+						readReplies();
+					}
+				}, "dht-replies-" + address + ":" + port);
+				replyReader.setDaemon(true);
+				replyReader.start();
+			}
+			return true;
+		} catch (SocketTimeoutException e) {
+			return false;
+		} finally {
+			socket.setSoTimeout(0);
+		}
+	}
+
+	/**
+	 * Sends a command and waits for its reply.
+	 *
+	 * @param command
+	 *            The command to send, one of the DHTMain constants
+	 * @param fields
+	 *            The command's fields
+	 * @return The reply
+	 * @throws IOException
+	 *             If the connection broke, was closed by the peer or the reply
+	 *             did not arrive within the request timeout
+	 */
+	public String request(String command, Object... fields) throws IOException {
+		return await(requestAsync(command, fields), address + ":" + port);
+	}
+
+	/**
+	 * Sends a command without waiting for the reply. On a binary connection
+	 * the returned future completes when the reply with the matching request
+	 * id has been read, on a text connection the request is done before this
+	 * method returns.
+	 */
+	public CompletableFuture<String> requestAsync(String command, Object... fields) {
+		CompletableFuture<String> reply = new CompletableFuture<>();
+		inFlight.incrementAndGet();
+		reply.whenComplete((response, error) -> {
+			inFlight.decrementAndGet();
+			lastUsed = System.currentTimeMillis();
+		});
+
+		if (!binary) {
+			try {
+				reply.complete(requestLine(command, fields));
+			} catch (IOException e) {
+				open = false;
+				reply.completeExceptionally(e);
+			}
+			return reply;
+		}
+
+		long requestId = nextRequestId.getAndIncrement();
+		pendingReplies.put(requestId, reply);
+		// Forget requests that were cancelled or timed out
+		reply.whenComplete((response, error) -> pendingReplies.remove(requestId));
+		try {
+			writeFrame(Message.of(command, requestId, fields));
+		} catch (IOException e) {
+			pendingReplies.remove(requestId);
+			reply.completeExceptionally(e);
+		}
+		return reply;
+	}
+
+	/**
+	 * Sends a command that the peer does not answer.
+	 */
+	public void send(String command, Object... fields) throws IOException {
+		if (binary) {
+			// Request id 0 tells the peer that no reply is expected
+			writeFrame(Message.of(command, 0, fields));
+		} else {
+			synchronized (this) {
+				writeLine(command, fields);
+			}
+		}
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Waits for a reply future and turns its failures into IOExceptions.
+	 */
+	public static String await(CompletableFuture<String> reply, String peer) throws IOException {
+		try {
+			return reply.get(DHTMain.REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			reply.cancel(false);
+			throw new IOException("no reply from " + peer + " within " + DHTMain.REQUEST_TIMEOUT + "ms");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while waiting for " + peer);
+		}
+	}
+
+	private synchronized String requestLine(String command, Object... fields) throws IOException {
+		writeLine(command, fields);
+		String response = socketReader.readLine();
+		if (response == null) {
+			throw new IOException("connection closed by " + address + ":" + port);
+		}
+		return response;
+	}
+
+	private void writeLine(String command, Object... fields) throws IOException {
+		socketWriter.println(Message.of(command, 0, fields).toLine());
+		if (socketWriter.checkError()) {
+			open = false;
+			throw new IOException("could not write to " + address + ":" + port);
+		}
+	}
+
+	private void writeFrame(Message message) throws IOException {
+		synchronized (frameWriter) {
+			try {
+				writeBuffer = BinaryCodec.writeFrame(frameWriter, message, writeBuffer);
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Reads reply frames and completes the matching futures until the
+	 * connection goes away.
+	 */
+	private void readReplies() {
+		DataInputStream frameReader;
+		ByteBuffer readBuffer = null;
+		try {
+			frameReader = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			while ((readBuffer = BinaryCodec.readFrame(frameReader, readBuffer)) != null) {
+				Message reply = BinaryCodec.decodePayload(readBuffer);
+				CompletableFuture<String> waiting = pendingReplies.remove(reply.getRequestId());
+				if (waiting == null) {
+					continue;
+				}
+				if (DHTMain.BUSY.equals(reply.getField(0))) {
+					waiting.completeExceptionally(new BusyException(address + ":" + port));
+				} else {
+					waiting.complete(reply.getField(0));
+				}
+			}
+		} catch (IOException e) {
+			// Connection broke, fail whatever is still waiting below
+		}
+
+		close();
+		IOException closed = new IOException("connection closed by " + address + ":" + port);
+		for (Long requestId : pendingReplies.keySet()) {
+			CompletableFuture<String> waiting = pendingReplies.remove(requestId);
+			if (waiting != null) {
+				waiting.completeExceptionally(closed);
+			}
+		}
+	}
+
+	public boolean isOpen() {
+		return open && !socket.isClosed() && socket.isConnected() && !socket.isInputShutdown()
+				&& !socket.isOutputShutdown();
+	}
+
+	public void close() {
+		open = false;
+		try {
+			socketWriter.close();
+			socketReader.close();
+			socket.close();
+		} catch (IOException e) {
+			// Nothing more we can do with a broken connection
+		}
+	}
+
+	/**
+	 * Fails a request the peer turned down because all of its workers were
+	 * busy. The connection itself is fine.
+	 */
+	public static class BusyException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public BusyException(String peer) {
+			super(peer + " is busy");
+		}
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * Number of requests sent on this connection that have not been answered
+	 * yet.
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	public boolean isReused() {
+		return reused;
+	}
+
+	public void setReused(boolean reused) {
+		this.reused = reused;
+	}
+
+}
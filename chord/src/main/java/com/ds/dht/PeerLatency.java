@@ -0,0 +1,66 @@
+package com.ds.dht;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Round trip times to other nodes, each kept as an exponentially weighted
+ * moving average of its samples. Samples come from the heartbeats of the
+ * {@link PingHandler} and from the pings sent to finger candidates, see
+ * {@link ProximityFingers}.
+ */
+public class PeerLatency {
+
+	// Weight of a new sample in the average
+	private final static double SAMPLE_WEIGHT = 0.2;
+
+	// address:port of the node and its average
+	private ConcurrentHashMap<String, Average> averages = new ConcurrentHashMap<>();
+
+	/**
+	 * Adds a round trip time measured to a node.
+	 */
+	public void record(Finger peer, long nanos) {
+		double millis = nanos / 1e6;
+		averages.compute(endpoint(peer), (endpoint, average) -> average == null ? new Average(millis)
+				: new Average(average.millis + SAMPLE_WEIGHT * (millis - average.millis)));
+	}
+
+	/**
+	 * Returns the average round trip time to the node in milliseconds, NaN if
+	 * it was never measured.
+	 */
+	public double getMillis(Finger peer) {
+		Average average = averages.get(endpoint(peer));
+		return average == null ? Double.NaN : average.millis;
+	}
+
+	/**
+	 * Whether the node was measured within the last
+	 * {@link DHTMain#RTT_REFRESH} ms.
+	 */
+	public boolean isFresh(Finger peer) {
+		Average average = averages.get(endpoint(peer));
+		return average != null && System.currentTimeMillis() - average.updatedAt < DHTMain.RTT_REFRESH;
+	}
+
+	/**
+	 * Forgets a node, e.g. because it failed.
+	 */
+	public void remove(Finger peer) {
+		averages.remove(endpoint(peer));
+	}
+
+	private static String endpoint(Finger peer) {
+		return peer.getAddress() + ":" + peer.getPort();
+	}
+
+	private static class Average {
+		private final double millis;
+		private final long updatedAt = System.currentTimeMillis();
+
+		private Average(double millis) {
+			this.millis = millis;
+		}
+	}
+
+}
@@ -1,10 +1,7 @@
 package com.ds.dht;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.util.List;
 
 public class PingHandler implements Runnable {
 
@@ -38,77 +35,65 @@ public class PingHandler implements Runnable {
 	private void pingSuccessor() {
 		// Only send heartbeats if we are not the destination
 		Finger successor = currentNode.getSuccessor1();
-		Socket socket = null;
-		PrintWriter socketWriter = null;
-		BufferedReader socketReader = null;
 		if (!currentNode.getNodeIpAddress().equals(successor.getAddress())
 				|| (currentNode.getPort() != successor.getPort())) {
 			try {
-				// Open socket to successor
-				socket = new Socket(successor.getAddress(), successor.getPort());
-
-				// Open reader/writer to chord node
-				socketWriter = new PrintWriter(socket.getOutputStream(), true);
-				socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-				// Send a ping
-				socketWriter.println(DHTMain.PING_QUERY + ":" + currentNode.getNodeId());
-				// System.out.println("Sent: " + DHTMain.PING_QUERY + ":" +
-				// currentNode.getNodeId());
-
-				// Read response
-				String serverResponse = socketReader.readLine();
+				// Send a ping and read response
+				long start = System.nanoTime();
+				String serverResponse = currentNode.getConnectionPool().request(successor,
+						DHTMain.PING_QUERY, currentNode.getNodeId());
 				// System.out.println("Received: " + serverResponse);
 
 				// If we do not receive the proper response then something has
 				// gone wrong and we need to set our new immediate successor to
 				// the backup
 				if (!serverResponse.equals(DHTMain.PING_RESPONSE)) {
-					Finger failedSuccessor1 = currentNode.getSuccessor1();
-					checkForLeaderDown(failedSuccessor1);
+					checkForLeaderDown(successor);
 
-					currentNode.lock();
-					currentNode.setSuccessor1(currentNode.getSuccessor2());
-					currentNode.getFingerTable().put(0, currentNode.getSuccessor2());
-					currentNode.unlock();
+					failOverToNextSuccessor(successor);
+				} else {
+					currentNode.getPeerLatency().record(successor, System.nanoTime() - start);
 				}
-
-				// Close connections
-				socketWriter.close();
-				socketReader.close();
-				socket.close();
+			} catch (PeerConnection.BusyException e) {
+				// Still there, just overloaded, ping again next time
+				System.out.println("pingSuccessor: " + e.getMessage());
 			} catch (IOException e) {
 				System.out.println("pingSuccessor: IOException:" + e.getMessage());
-				Finger failedSuccessor1 = currentNode.getSuccessor1();
-				checkForLeaderDown(failedSuccessor1);
-
-				currentNode.lock();
-				System.out.println("setting successor1 to " + currentNode.getSuccessor2().getPort());
-				currentNode.setSuccessor1(currentNode.getSuccessor2());
-				currentNode.getFingerTable().put(0, currentNode.getSuccessor2());
-				currentNode.unlock();
-				try {
-					if (socket != null) {
-						socketWriter.close();
-						socketReader.close();
-						socket.close();
-					}
-				} catch (Exception e1) {
+				checkForLeaderDown(successor);
 
-				}
+				failOverToNextSuccessor(successor);
+				System.out.println("setting successor1 to " + currentNode.getSuccessor1().getPort());
 			} catch (Exception ex) {
 				System.out.println("Exception occurred in pingSuccessor: " + ex.getMessage());
 			}
 		}
 	}
 
+	/**
+	 * Drops the failed successor from the successor list and makes the next
+	 * one the first successor. When no successor is left the node points to
+	 * itself until stabilization finds the ring again.
+	 */
+	private void failOverToNextSuccessor(Finger failedSuccessor) {
+		final Finger self = new Finger(currentNode.getNodeIpAddress(), currentNode.getPort());
+		currentNode.updateRoutingState(state -> {
+			RoutingState updated = state.withoutSuccessor(failedSuccessor);
+			Finger next = updated.getSuccessor1() != null ? updated.getSuccessor1() : self;
+			return updated.withSuccessor1(next).withFinger(0, next);
+		});
+		currentNode.forgetNode(failedSuccessor);
+	}
+
 	private void checkForLeaderDown(Finger failedSuccessor1) {
 		if (failedSuccessor1.getNodeId() == currentNode.getLeaderId()) {
 			System.out.println(
 					"**** LEADER DOWN " + failedSuccessor1.getNodeId() + " **** Initiating ELECTION for new leader");
-			
-			currentNode.initiateLeaderElection(currentNode.getSuccessor2().getAddress(),
-					currentNode.getSuccessor2().getPort());
+
+			// Start the election at the next successor that is still there
+			List<Finger> successors = currentNode.getSuccessors();
+			Finger next = successors.size() > 1 ? successors.get(1)
+					: new Finger(currentNode.getNodeIpAddress(), currentNode.getPort());
+			currentNode.initiateLeaderElection(next.getAddress(), next.getPort());
 		}
 	}
 
@@ -118,43 +103,31 @@ public class PingHandler implements Runnable {
 		if (!currentNode.getNodeIpAddress().equals(predecessor1.getAddress())
 				|| (currentNode.getPort() != predecessor1.getPort())) {
 			try {
-				// Open socket to predecessor
-				Socket socket = new Socket(predecessor1.getAddress(), predecessor1.getPort());
-
-				// Open reader/writer to chord node
-				PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-				BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-				// Send a ping
-				socketWriter.println(DHTMain.PING_QUERY + ":" + currentNode.getNodeId());
-				// System.out.println("Sent: " + DHTMain.PING_QUERY + ":" +
-				// currentNode.getNodeId());
-
-				// Read response
-				String serverResponse = socketReader.readLine();
+				// Send a ping and read response
+				long start = System.nanoTime();
+				String serverResponse = currentNode.getConnectionPool().request(predecessor1,
+						DHTMain.PING_QUERY, currentNode.getNodeId());
 				// System.out.println("Received: " + serverResponse);
 
 				// If we do not receive the proper response then something has
 				// gone wrong and we need to set our new immediate predecessor
 				// to the backup
 				if (!serverResponse.equals(DHTMain.PING_RESPONSE)) {
-					currentNode.lock();
-					currentNode.setPredecessor1(currentNode.getPredecessor2());
-					currentNode.unlock();
+					failOverToPredecessor2();
+				} else {
+					currentNode.getPeerLatency().record(predecessor1, System.nanoTime() - start);
 				}
-
-				// Close connections
-				socketWriter.close();
-				socketReader.close();
-				socket.close();
 			} catch (IOException e) {
-				currentNode.lock();
-				currentNode.setPredecessor1(currentNode.getPredecessor2());
-				currentNode.unlock();
+				failOverToPredecessor2();
 			} catch (Exception ex) {
 				System.out.println("Exception occurred in pingPredecessor: " + ex.getMessage());
 			}
 		}
 	}
 
+	private void failOverToPredecessor2() {
+		currentNode.updateRoutingState(state -> state.withPredecessor1(state.getPredecessor2()));
+		currentNode.getOwnerCache().clear();
+	}
+
 }
@@ -1,12 +1,26 @@
 package com.ds.dht;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
 
 public class ProtocolHandler implements Runnable {
 
@@ -18,6 +32,14 @@ public class ProtocolHandler implements Runnable {
 		this.socket = socket;
 	}
 
+	/**
+	 * Creates a handler that is not bound to a socket. Used by the NIO server,
+	 * which reads the lines itself and only needs {@link #handleQuery(String)}.
+	 */
+	public ProtocolHandler(Node node) {
+		this(node, null);
+	}
+
 	/**
 	 * Method that will read/send messages. It should attempt to read
 	 * PING/STORE/FIND_NODE/GET_VALUE messages
@@ -26,199 +48,463 @@ public class ProtocolHandler implements Runnable {
 
 		try {
 			// Create readers and writers from socket
-			PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-			BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			PrintWriter socketWriter = new PrintWriter(
+					new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+			BufferedReader socketReader = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
 
 			// Read input from client
 			String query;
 			while ((query = socketReader.readLine()) != null) {
-				// Split the query on the : token in order to get the command
-				// and the content portions
-				String[] queryContents = query.split(":", 2);
-				String command = queryContents[0];
-				String content = queryContents[1];
-
-				// System.out.println("Received: " + command + " " + content);
-
-				switch (command) {
-				case DHTMain.FIND_VALUE: {
-					// Here the content is key got from user
-					String response = getValue(content);
-					// System.out.println("Sent: " + response);
-
-					// Send response back to client
-					System.out.println("GET call output from node " + currentNode.getNodeId() + " " + response);
+				String response = handleQuery(query);
+
+				// Send response back to client
+				if (response != null) {
 					socketWriter.println(response);
+				}
 
+				// The peer asked for binary frames, nothing else is sent on
+				// this connection until it has seen our answer
+				if (query.startsWith(DHTMain.PROTOCOL_BINARY)) {
+					runBinary();
 					break;
 				}
-				case DHTMain.FIND_NODE: {
-					String response = findNode(content);
-					// System.out.println("Sent: " + response);
+			}
 
-					// Send response back to client
-					socketWriter.println(response);
+			// Close connections
+			socketWriter.close();
+			socketReader.close();
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			try {
+				socket.close();
+			} catch (IOException closeFailed) {
+				// Nothing more we can do with a broken connection
+			}
+		}
 
-					break;
+		// System.out.println("Client connection terminated on port " +
+		// socket.getLocalPort());
+	}
+
+	/**
+	 * Serves binary frames until the peer closes the connection. Every frame
+	 * is executed on the node's worker pool, so a slow command does not hold
+	 * up the ones behind it and replies go out in the order they finish.
+	 * While the pool is full, requests are answered with
+	 * {@link DHTMain#BUSY} and commands without a reply run on this thread,
+	 * which stops reading the connection until they are done.
+	 */
+	private void runBinary() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+		ByteBuffer readBuffer = null;
+
+		while ((readBuffer = BinaryCodec.readFrame(in, readBuffer)) != null) {
+			final Message request = BinaryCodec.decodePayload(readBuffer);
+			Runnable task = new Runnable() {
+				public void run() {
+					String response = handleMessage(request);
+
+					// Request id 0 marks commands sent without waiting for a
+					// reply
+					if (response != null && request.getRequestId() != 0) {
+						writeReply(out, new Message(BinaryCodec.REPLY, request.getRequestId(), response));
+					}
 				}
-				case DHTMain.NEW_PREDECESSOR: {
-					// Parse address and port from message
-					String[] contentFragments = content.split(":");
-					String address = contentFragments[0];
-					int port = Integer.valueOf(contentFragments[1]);
-					System.out.println("GOT NEW PREDECESSOR address : " + address + ", port : " + port);
-					// Acquire lock
-					currentNode.lock();
+			};
+			try {
+				currentNode.getWorkerPool().execute(task);
+			} catch (RejectedExecutionException e) {
+				if (request.getRequestId() != 0) {
+					writeReply(out, new Message(BinaryCodec.REPLY, request.getRequestId(), DHTMain.BUSY));
+				} else {
+					task.run();
+				}
+			}
+		}
+	}
 
-					// Move first predecessor to second
-					currentNode.setPredecessor2(currentNode.getPredecessor1());
+	private void writeReply(OutputStream out, Message reply) {
+		ByteBuffer buffer = ByteBuffer.allocate(BinaryCodec.frameLength(reply));
+		BinaryCodec.encode(reply, buffer);
+		synchronized (out) {
+			try {
+				out.write(buffer.array(), 0, buffer.position());
+				out.flush();
+			} catch (IOException e) {
+				System.err.println("could not send reply to " + socket.getRemoteSocketAddress());
+			}
+		}
+	}
 
-					// Set first predecessor to new finger received in message
-					currentNode.setPredecessor1(new Finger(address, port));
+	/**
+	 * Decodes a single protocol line and executes the command.
+	 *
+	 * @param query
+	 *            The line received from the peer, COMMAND:content
+	 * @return The reply line, or null if the command does not send a reply
+	 */
+	public String handleQuery(String query) {
+		return handleMessage(Message.fromLine(query));
+	}
 
-					// Release lock
-					currentNode.unlock();
+	/**
+	 * Executes a decoded command.
+	 *
+	 * @param message
+	 *            The command received from the peer
+	 * @return The reply, or null if the command does not send a reply
+	 */
+	public String handleMessage(Message message) {
+		String response = null;
 
-					break;
-				}
-				case DHTMain.REQUEST_PREDECESSOR: {
-					// Return the first predecessor address:port
-					String response = currentNode.getPredecessor1().getAddress() + ":"
-							+ currentNode.getPredecessor1().getPort();
-							// System.out.println("Sent: " + response);
+		// System.out.println("Received: " + message);
 
-					// Send response back to client
-					socketWriter.println(response);
+		switch (message.getCommand()) {
+		case DHTMain.FIND_VALUE: {
+			// Here the content is key got from user
+			response = getValue(message.getField(0), DHTMain.READ_CONSISTENCY);
+			// System.out.println("Sent: " + response);
 
-					break;
-				}
-				case DHTMain.PING_QUERY: {
-					// Reply to the ping
-					String response = DHTMain.PING_RESPONSE;
-					// System.out.println("Sent: " + response);
+			System.out.println("GET call output from node " + currentNode.getNodeId() + " " + response);
 
-					// Send response back to client
-					socketWriter.println(response);
+			break;
+		}
+		case DHTMain.FIND_NODE: {
+			// A second field marks lookups passed on by another node
+			response = findNode(message.getField(0), message.getFields().length > 1);
+			// System.out.println("Sent: " + response);
 
-					break;
-				}
+			break;
+		}
+		case DHTMain.NEXT_HOP: {
+			// One step of an iterative lookup, the caller goes on from here
+			response = nextHop(message.getField(0));
 
-				case DHTMain.PUT_VALUE: { // System.out.println("Sent: " +
-											// response);
-					// Send response back to client
-					String response = putValue(content);
-					socketWriter.println(response);
+			break;
+		}
+		case DHTMain.GET_FINGERS: {
+			// One owner per id, in the order of the ids
+			response = findNodes(message.getFields());
 
-					break;
+			break;
+		}
+		case DHTMain.NEW_PREDECESSOR: {
+			// Parse address and port from message
+			String address = message.getField(0);
+			int port = Integer.valueOf(message.getField(1));
+			System.out.println("GOT NEW PREDECESSOR address : " + address + ", port : " + port);
+			Finger newPredecessor = new Finger(address, port);
+
+			// Move first predecessor to second and set first predecessor to
+			// new finger received in message, unless it is not between our
+			// predecessor and us. Otherwise nodes that join at the same time
+			// would leave the ring out of order
+			RoutingState updated = currentNode.updateRoutingState(state -> {
+				long predecessorId = state.getPredecessor1().getNodeId();
+				if (predecessorId != currentNode.getNodeId()
+						&& !RingMath.inInterval(newPredecessor.getNodeId(), predecessorId, currentNode.getNodeId())) {
+					return state;
 				}
+				return state.withPredecessor2(state.getPredecessor1()).withPredecessor1(newPredecessor);
+			});
 
-				case DHTMain.REQUEST_KEY_VALUES: {
-					String response = requestKeyValues(content);
-					// System.out.println("Sent from requestKeyValues: " +
-					// response);
+			// The new predecessor took over part of our range
+			if (updated.getPredecessor1() == newPredecessor) {
+				currentNode.getOwnerCache().clear();
+			}
 
-					// Send response back to client
-					socketWriter.println(response);
-					break;
-				}
-				case DHTMain.PUT_REPLICA: {
-					// Store replicated data to the given node
-					String[] contentFragments = content.split(":");
-					String dataKey = contentFragments[2];
-					String dataValue = contentFragments[3];
-					currentNode.lock();
-
-					// put key,value to dataStore
-					currentNode.getDataStore().put(dataKey, dataValue);
-					System.out.println("Replicated " + dataKey + "-" + dataValue + " to "
-							+ currentNode.getNodeIpAddress() + ":" + currentNode.getPort());
-
-					currentNode.unlock();
-					break;
-				}
-				case DHTMain.FIND_VALUE_IN_SUCCESSOR: {
-					// Here the content is key got from user
-					System.out.println(content);
-					String response = currentNode.getDataStore().get(content);
-					// System.out.println("Sent: " + response);
+			break;
+		}
+		case DHTMain.REQUEST_PREDECESSOR: {
+			// Return the first predecessor address:port followed by the
+			// address:port of every successor, so that the asking node can
+			// rebuild its successor list from ours in the same exchange
+			RoutingState state = currentNode.getRoutingState();
+			StringBuilder reply = new StringBuilder();
+			reply.append(state.getPredecessor1().getAddress()).append(':').append(state.getPredecessor1().getPort());
+			for (Finger successor : state.getSuccessors()) {
+				reply.append(':').append(successor.getAddress()).append(':').append(successor.getPort());
+			}
+			response = reply.toString();
+			// System.out.println("Sent: " + response);
 
-					socketWriter.println(response);
+			break;
+		}
+		case DHTMain.PING_QUERY: {
+			// Reply to the ping
+			response = DHTMain.PING_RESPONSE;
+			// System.out.println("Sent: " + response);
 
-					break;
-				}
-				case DHTMain.FIND_LEADER: {
-					// Parse address and port from message
-					String response = findLeader();
-					// Send response back to client
-					socketWriter.println(response);
-					break;
-				}
+			break;
+		}
 
-				case DHTMain.ELECT_LEADER: {
-					// Parse address and port from message
-					String[] contentFragments = content.split(":");
-					long electionInitiator = Long.valueOf(contentFragments[0]);
+		case DHTMain.PUT_VALUE: {
+			response = putValue(message.getField(0), message.getField(1), DHTMain.WRITE_CONSISTENCY);
 
-					// Reply to the ping
-					leaderElection(electionInitiator);
-					break;
-				}
+			break;
+		}
+		case DHTMain.FIND_VALUE_DIRECT: {
+			// Sent to the node believed to own the key, which answers only if
+			// it does and otherwise redirects
+			long hashedKey = SHAHelper.hashToRing(message.getField(0));
+			response = isThisMyNode(hashedKey) ? getValue(message.getField(0), DHTMain.READ_CONSISTENCY)
+					: redirect(hashedKey);
+
+			break;
+		}
+		case DHTMain.PUT_VALUE_DIRECT: {
+			long hashedKey = SHAHelper.hashToRing(message.getField(0));
+			response = isThisMyNode(hashedKey)
+					? putValue(message.getField(0), message.getField(1), DHTMain.WRITE_CONSISTENCY)
+					: redirect(hashedKey);
 
-				case DHTMain.LEADER_ELECTED: {
-					// Parse address and port from message
-					String[] contentFragments = content.split(":");
-					long electionInitiator = Long.valueOf(contentFragments[0]);
-					String ipAddress = contentFragments[1];
-					int port = Integer.valueOf(contentFragments[2]);
+			break;
+		}
+		case DHTMain.FIND_VALUE_AT: {
+			// The same requests with the consistency level first
+			response = getValue(message.getField(1), message.getField(0));
 
-					// Reply to the ping
-					leaderElected(electionInitiator, ipAddress, port);
-					break;
-				}
-				case DHTMain.GET_SUCCESSORS: {
-					String response = currentNode.getSuccessor1().getNodeId() + ":"
-							+ currentNode.getSuccessor2().getNodeId();
-					socketWriter.println(response);
+			break;
+		}
+		case DHTMain.PUT_VALUE_AT: {
+			response = putValue(message.getField(1), message.getField(2), message.getField(0));
 
-					break;
-				}
+			break;
+		}
+		case DHTMain.FIND_VALUE_DIRECT_AT: {
+			long hashedKey = SHAHelper.hashToRing(message.getField(1));
+			response = isThisMyNode(hashedKey) ? getValue(message.getField(1), message.getField(0))
+					: redirect(hashedKey);
+
+			break;
+		}
+		case DHTMain.PUT_VALUE_DIRECT_AT: {
+			long hashedKey = SHAHelper.hashToRing(message.getField(1));
+			response = isThisMyNode(hashedKey)
+					? putValue(message.getField(1), message.getField(2), message.getField(0))
+					: redirect(hashedKey);
+
+			break;
+		}
+
+		case DHTMain.REQUEST_KEY_VALUES: {
+			response = requestKeyValues(message.getField(0));
+			// System.out.println("Sent from requestKeyValues: " +
+			// response);
+
+			break;
+		}
+		case DHTMain.PUT_REPLICA: {
+			// Store replicated data to the given node
+			String dataKey = message.getField(2);
+			String dataValue = message.getField(3);
+
+			// put key,value to dataStore
+			currentNode.getDataStore().put(dataKey, dataValue);
+			System.out.println("Replicated " + dataKey + "-" + dataValue + " to "
+					+ currentNode.getNodeIpAddress() + ":" + currentNode.getPort());
+			break;
+		}
+		case DHTMain.FIND_VALUE_IN_SUCCESSOR: {
+			// Here the content is key got from user
+			System.out.println(message.getField(0));
+			// A missing key is answered with the literal "null" line
+			response = String.valueOf(currentNode.getDataStore().get(message.getField(0)));
+			// System.out.println("Sent: " + response);
+
+			break;
+		}
+		case DHTMain.FIND_LEADER: {
+			// Parse address and port from message
+			response = findLeader();
+			break;
+		}
+
+		case DHTMain.ELECT_LEADER: {
+			// Parse address and port from message
+			long electionInitiator = Long.valueOf(message.getField(0));
+
+			// Reply to the ping
+			leaderElection(electionInitiator);
+			break;
+		}
+
+		case DHTMain.LEADER_ELECTED: {
+			// Parse address and port from message
+			long electionInitiator = Long.valueOf(message.getField(0));
+			String ipAddress = message.getField(1);
+			int port = Integer.valueOf(message.getField(2));
+
+			// Reply to the ping
+			leaderElected(electionInitiator, ipAddress, port);
+			break;
+		}
+		case DHTMain.GET_SUCCESSORS: {
+			// Ids of the successor list, the nodes that hold our replicas
+			StringBuilder reply = new StringBuilder();
+			for (Finger successor : currentNode.getSuccessors()) {
+				reply.append(reply.length() == 0 ? "" : ":").append(successor.getNodeId());
+			}
+			response = reply.toString();
+
+			break;
+		}
+		case DHTMain.GET_MEMBERSHIP: {
+			// This node followed by its successor list, in the format of
+			// GET_FINGERS. Clients walk the ring by asking the last one. In
+			// one hop routing the list holds all nodes we know
+			MembershipGossip membershipGossip = currentNode.getMembershipGossip();
+			List<Finger> members = membershipGossip != null && membershipGossip.getTable().size() > 1
+					? membershipGossip.getTable().getNodes() : currentNode.getSuccessors();
+			StringBuilder reply = new StringBuilder();
+			reply.append(currentNode.getNodeIpAddress()).append(':').append(currentNode.getPort());
+			for (Finger member : members) {
+				if (member.getNodeId() != currentNode.getNodeId()) {
+					reply.append("::").append(member.getAddress()).append(':').append(member.getPort());
 				}
 			}
+			response = reply.toString();
 
-			// Close connections
-			socketWriter.close();
-			socketReader.close();
-			socket.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+			break;
 		}
+		case DHTMain.GOSSIP_MEMBERS: {
+			// Merge the sender's table and reply with ours, empty if we do
+			// not keep one
+			MembershipGossip membershipGossip = currentNode.getMembershipGossip();
+			response = membershipGossip != null ? membershipGossip.receive(message.getField(0)) : "";
 
-		// System.out.println("Client connection terminated on port " +
-		// socket.getLocalPort());
+			break;
+		}
+		case DHTMain.PUT_REPLICAS: {
+			// The checksum of the batch, then records of key, value, epoch
+			// and position. Store none of them unless the checksum matches,
+			// see ReplicaStream, and reply with the number of records and the
+			// checksum once all are in the store. A record older than the
+			// copy we hold counts as stored, the newer one is
+			List<String> fields = Arrays.asList(message.getFields());
+			String checksum = ReplicaStream.checksum(fields, 1);
+			if ((fields.size() - 1) % ReplicaStream.RECORD_FIELDS != 0 || !checksum.equals(fields.get(0))) {
+				response = DHTMain.REPLICAS_REJECTED + ":" + checksum;
+				break;
+			}
+			int count = ReplicaStream.store(currentNode.getHost().getVersionedStore(), fields, 1);
+			System.out.println("Replicated " + count + " keys to " + currentNode.getNodeIpAddress() + ":"
+					+ currentNode.getPort());
+			response = DHTMain.REPLICAS_STORED + ":" + count + ":" + checksum;
+
+			break;
+		}
+		case DHTMain.PUT_VERSIONED: {
+			// Fields are the version of the write, as epoch and position, the
+			// key and the value. A write that lost to a later one is
+			// acknowledged too, the later value is what the owner has
+			currentNode.getHost().getVersionedStore().put(message.getField(2), message.getField(3),
+					new WriteVersion(Long.valueOf(message.getField(0)), Long.valueOf(message.getField(1))));
+			response = DHTMain.VERSION_STORED + ":" + message.getField(1);
+
+			break;
+		}
+		case DHTMain.FIND_VERSIONED: {
+			// Our copy of a key with its version, for the owner to pick the
+			// newest copy, see readReplicated
+			response = Consistency.replyCopy(currentNode.getHost().getVersionedStore().getCopy(message.getField(0)));
+
+			break;
+		}
+		case DHTMain.MERKLE_HASHES: {
+			// Fields are the range, the tree level and the nodes of the level
+			// the owner of the range asks for, see MerkleSync
+			MerkleTree.Hashes hashes = currentNode.getHost().getMerkleTree().hashes(
+					Long.valueOf(message.getField(0)), Long.valueOf(message.getField(1)), currentNode.getDataStore());
+			response = MerkleSync.replyHashes(hashes, Integer.valueOf(message.getField(2)), indexes(message, 3));
+
+			break;
+		}
+		case DHTMain.MERKLE_KEYS: {
+			// Fields are the range and the pieces of it to send the keys of
+			VersionedStore dataStore = currentNode.getHost().getVersionedStore();
+			MerkleTree.Hashes hashes = currentNode.getHost().getMerkleTree().hashes(
+					Long.valueOf(message.getField(0)), Long.valueOf(message.getField(1)), dataStore);
+			response = MerkleSync.replyKeys(hashes, dataStore, indexes(message, 2));
+
+			break;
+		}
+		case DHTMain.READ_REPLICA: {
+			// Fields are the id of the owner the client knows and the key.
+			// The owner answers with the version of the key, a replica with
+			// the version of the owner's keys it holds. The version is taken
+			// first, so the value is at least as new as it
+			NodeHost host = currentNode.getHost();
+			long ownerId = Long.valueOf(message.getField(0));
+			String key = message.getField(1);
+			long hashedKey = SHAHelper.hashToRing(key);
+			Node owner = host.getOwner(hashedKey);
+			if (owner == null && ownerId == currentNode.getNodeId()) {
+				response = redirect(hashedKey);
+				break;
+			}
+			long version = owner != null ? owner.getKeyVersion(key) : host.getReplicaVersion(ownerId);
+			String value = currentNode.getDataStore().get(key);
+			response = DHTMain.REPLICA_VALUE + ":" + version + (value != null ? ":" + value : "");
+
+			break;
+		}
+		case DHTMain.REPLICATED_UP_TO: {
+			// An owner confirmed that we hold its keys up to a position of
+			// its change log
+			currentNode.getHost().setReplicaVersion(Long.valueOf(message.getField(0)),
+					Long.valueOf(message.getField(1)));
+
+			break;
+		}
+		case DHTMain.PROTOCOL_BINARY: {
+			// Agree to switch the connection to binary frames
+			response = DHTMain.PROTOCOL_ACCEPTED + ":" + message.getField(0);
+
+			break;
+		}
+		}
+
+		return response;
 	}
 
-	private String getValue(String key) {
+	private static List<Integer> indexes(Message message, int from) {
+		List<Integer> indexes = new ArrayList<>();
+		for (int i = from; i < message.getFieldCount(); i++) {
+			indexes.add(Integer.valueOf(message.getField(i)));
+		}
+		return indexes;
+	}
+
+	private String getValue(String key, String level) {
 		// Get long of query
-		SHAHelper keyHasher = new SHAHelper(key);
-		long hashedKey = keyHasher.getLong();
+		long hashedKey = SHAHelper.hashToRing(key);
 		System.out.println("Hashed Value for GET --------> " + hashedKey + " my current node id -----> "
 				+ currentNode.getNodeId());
 
-		// Wrap the queryNodeId if it is as big as the ring
-		if (hashedKey >= DHTMain.RING_SIZE) {
-			hashedKey -= DHTMain.RING_SIZE;
-		}
-
 		String response = "Key NOT FOUND.";
 
 		// If the query is greater than our predecessor id and less than equal
 		// to our id then we have the value
 		if (isThisMyNode(hashedKey)) {
 			System.out.println("isThisMyNode true in GET  current node id ----> " + currentNode.getNodeId());
-			String resourceValue = currentNode.getDataStore().get(key);
-			if (resourceValue != null && !resourceValue.isEmpty() && resourceValue != "")
-				response = "VALUE_FOUND:Request acknowledged on node " + currentNode.getNodeId() + ":"
-						+ currentNode.getPort() + ":" + currentNode.getDataStore().get(key);
+			response = readReplicated(key, level);
+		}
+
+		else if (isThisNextNode(hashedKey) && !Consistency.ONE.equals(level)) {
+			// Our successor owns the key and reads it from its replicas
+			try {
+				String serverResponse = currentNode.getConnectionPool().request(currentNode.getSuccessor1(),
+						DHTMain.FIND_VALUE_DIRECT_AT, level, key);
+				if (serverResponse != null) {
+					response = serverResponse;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 
 		else if (isThisNextNode(hashedKey)) {
@@ -226,74 +512,40 @@ public class ProtocolHandler implements Runnable {
 			System.out.println(strKey);
 			if (strKey != null && !strKey.isEmpty() && strKey != "") {
 				response = "VALUE_FOUND:Request acknowledged on node " + currentNode.getSuccessor1().getAddress() + ":"
-						+ currentNode.getSuccessor1().getPort() + ":" + getValueInSuccessor(key);
+						+ currentNode.getSuccessor1().getPort() + ":" + strKey;
 			}
 		}
 
 		else {
+			// Ask the owner directly if we know it or can find it
+			String ownerResponse = requestOwner(hashedKey, DHTMain.FIND_VALUE_DIRECT_AT, level, key);
+			if (ownerResponse != null) {
+				return ownerResponse;
+			}
+
 			// We don't have the keyResidingNodeId so we must search our fingers
 			// for it
-			long minimumDistance = DHTMain.RING_SIZE;
-			Finger closestNodeToKey = null;
-
-			currentNode.lock();
-
 			try {
 				// Look for a node identifier in the finger table that is less
 				// than
 				// the queryNodeId and closest in the ID space to the
 				// queryNodeId
-				for (Finger finger : currentNode.getFingerTable().values()) {
-					long distance;
-
-					// Find clockwise distance from finger to queryNodeId
-					if (hashedKey >= finger.getNodeId()) {
-						distance = hashedKey - finger.getNodeId();
-					} else {
-						distance = hashedKey + DHTMain.RING_SIZE - finger.getNodeId();
-					}
-					// if (finger.getNodeId() >= hashedKey) {
-					// distance = finger.getNodeId() - hashedKey;
-					// } else {
-					// distance = DHTMain.RING_SIZE + finger.getNodeId()
-					// - hashedKey;
-					// }
-
-					// If the distance we have found is smaller than the current
-					// minimum, replace the current minimum
-					if (distance < minimumDistance) {
-						minimumDistance = distance;
-						closestNodeToKey = finger;
-					}
-				}
+				Finger closestNodeToKey = currentNode.getFingerIndex().closestPrecedingFinger(hashedKey);
+				long minimumDistance = RingMath.distance(closestNodeToKey.getNodeId(), hashedKey);
 
 				System.out.println("GET call ---> hashedKey: " + hashedKey + " minimum distance: " + minimumDistance
 						+ " on " + closestNodeToKey.getAddress() + ":" + closestNodeToKey.getPort());
 
 				try {
-					// Open socket to chord node
-					Socket socket = new Socket(closestNodeToKey.getAddress(), closestNodeToKey.getPort());
-
-					// Open reader/writer to chord node
-					PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-					BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-					// Send query to chord
-					socketWriter.println(DHTMain.FIND_VALUE + ":" + key);
+					// Send query to chord and read response
+					String serverResponse = currentNode.getConnectionPool().request(closestNodeToKey,
+							DHTMain.FIND_VALUE_AT, level, key);
 					// System.out.println("Sent: " + DHTMain.FIND_VALUE + ":" +
 					// key);
-
-					// Read response from chord
-					String serverResponse = socketReader.readLine();
 					System.out.println("GET call ----> Response from node " + closestNodeToKey.getAddress() + ", port "
 							+ closestNodeToKey.getPort() + ", position " + " (" + closestNodeToKey.getNodeId() + "):");
 					if (serverResponse != null)
 						response = serverResponse;
-
-					// Close connections
-					socketWriter.close();
-					socketReader.close();
-					socket.close();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
@@ -301,51 +553,38 @@ public class ProtocolHandler implements Runnable {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
-
-			currentNode.unlock();
 		}
 
 		return response;
 	}
 
-	private String putValue(String keyValue) {
-
-		String[] keyValueArray = keyValue.split(":");
+	private String putValue(String key, String value, String level) {
 
 		// Get long of query
-		SHAHelper keyHasher = new SHAHelper(keyValueArray[0]);
-		long hashedKey = keyHasher.getLong();
-
-		// Wrap the queryNodeId if it is as big as the ring
-		if (hashedKey >= DHTMain.RING_SIZE) {
-			hashedKey -= DHTMain.RING_SIZE;
-		}
+		long hashedKey = SHAHelper.hashToRing(key);
 
 		String response = "Not found.";
 
 		// If the query is greater than our predecessor id and less than equal
 		// to our id then we have the value
 		if (isThisMyNode(hashedKey)) {
-			currentNode.lock();
-			currentNode.getDataStore().put(keyValueArray[0], keyValueArray[1]);
-			currentNode.unlock();
-			response = "(" + keyValueArray[0] + "," + keyValueArray[1] + ")  stored for " + hashedKey + " on node "
-					+ currentNode.getNodeId() + ":" + currentNode.getPort();
+			response = writeReplicated(key, value, level);
 		}
 
 		else if (isThisNextNode(hashedKey)) {
 
-			putValueInSuccessor(keyValueArray[0], keyValueArray[1]);
+			String successorResponse = putValueInSuccessor(key, value, level);
 
-			// currentNode.getDataStore().put(keyValueArray[0],
-			// keyValueArray[1]);
-			response = "(" + keyValueArray[0] + "," + keyValueArray[1] + ")  stored for " + hashedKey + " on node "
-					+ currentNode.getSuccessor1().getNodeId() + ":" + currentNode.getSuccessor1().getPort();
+			// currentNode.getDataStore().put(key,
+			// value);
+			response = successorResponse != null ? successorResponse
+					: "(" + key + "," + value + ")  stored for " + hashedKey + " on node "
+							+ currentNode.getSuccessor1().getNodeId() + ":" + currentNode.getSuccessor1().getPort();
 		}
 
 		// else if (isThisNextNode(hashedKey)) {
 		//
-		// currentNode.getDataStore().put(keyValueArray[0], keyValueArray[1]);
+		// currentNode.getDataStore().put(key, value);
 		//
 		// response = "VALUE_STORED: on node " + currentNode.getNodeId() + ":" +
 		// currentNode.getPort(); }
@@ -353,152 +592,212 @@ public class ProtocolHandler implements Runnable {
 		// TODO remove isThisNextNode method below which is not needed
 
 		else {
+			// Ask the owner directly if we know it or can find it
+			String ownerResponse = requestOwner(hashedKey, DHTMain.PUT_VALUE_DIRECT_AT, level, key, value);
+			if (ownerResponse != null) {
+				return ownerResponse;
+			}
+
 			// We don't have the keyResidingNodeId so we must search our fingers
 			// for it
-			long minimumDistance = DHTMain.RING_SIZE;
-			Finger closestNodeToKey = null;
-
-			// currentNode.lock();
-
 			// Look for a node identifier in the finger table that is less than
 			// the keyResidingNodeId and closest in the ID space to the
 			// keyResidingNodeId
-			for (Finger finger : currentNode.getFingerTable().values()) {
-				long distance;
-
-				// Find clockwise distance from finger to queryNodeId
-				/*
-				 * if (finger.getNodeId() >= hashedKey) { distance =
-				 * finger.getNodeId() - hashedKey; } else { distance =
-				 * DHTMain.RING_SIZE + finger.getNodeId() - hashedKey; }
-				 */
-
-				if (hashedKey >= finger.getNodeId()) {
-					distance = hashedKey - finger.getNodeId();
-				} else {
-					distance = hashedKey + DHTMain.RING_SIZE - finger.getNodeId();
-				}
-
-				// If the distance we have found is smaller than the current
-				// minimum, replace the current minimum
-				if (distance < minimumDistance) {
-					minimumDistance = distance;
-					closestNodeToKey = finger;
-				}
-			}
+			Finger closestNodeToKey = currentNode.getFingerIndex().closestPrecedingFinger(hashedKey);
+			long minimumDistance = RingMath.distance(closestNodeToKey.getNodeId(), hashedKey);
 
 			System.out.println("keyResidingNodeId: " + hashedKey + " minimum distance: " + minimumDistance + " on "
 					+ closestNodeToKey.getAddress() + ":" + closestNodeToKey.getPort());
 
 			try {
-				// Open socket to closest node
-				Socket socket = new Socket(closestNodeToKey.getAddress(), closestNodeToKey.getPort());
-
-				// Open reader/writer to closest node
-				PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-				BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-				// Send query to chord
-				socketWriter.println(DHTMain.PUT_VALUE + ":" + keyValue);
+				// Send query to the closest node and read response
+				String serverResponse = currentNode.getConnectionPool().request(closestNodeToKey,
+						DHTMain.PUT_VALUE_AT, level, key, value);
 				// System.out.println("Sent: " + DHTMain.PUT_VALUE + ":" +
 				// keyValue);
-
-				// Read response from chord
-				String serverResponse = socketReader.readLine();
 				System.out.println("Response from node " + closestNodeToKey.getAddress() + ", port "
 						+ closestNodeToKey.getPort() + ", position " + " (" + closestNodeToKey.getNodeId() + "):");
 				response = serverResponse;
-
-				// Close connections
-				socketWriter.close();
-				socketReader.close();
-				socket.close();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
-
-			// currentNode.unlock();
 		}
 
 		return response;
 
 	}
 
-	private String findNode(String query) {
-		long queryNodeId = Long.valueOf(query);
+	/**
+	 * Reads a key we own from as many of its copies as the consistency level
+	 * asks for, see {@link Consistency}. Our copy is the first. The newest
+	 * of the copies read wins, and the copies that were read with an older
+	 * version, ours among them, are repaired with it.
+	 */
+	private String readReplicated(String key, String level) {
+		VersionedStore dataStore = currentNode.getHost().getVersionedStore();
+		List<Finger> replicas = currentNode.getReplicaTargets();
+		int required;
+		try {
+			required = Consistency.required(level, DHTMain.REPLICATION_FACTOR + 1);
+		} catch (IllegalArgumentException e) {
+			return DHTMain.CONSISTENCY_FAILED + ":" + level;
+		}
+		if (replicas.size() + 1 < required) {
+			return consistencyFailed(level, replicas.size() + 1, required);
+		}
 
-		// Wrap the queryid if it is as big as the ring
-		if (queryNodeId >= DHTMain.RING_SIZE) {
-			queryNodeId -= DHTMain.RING_SIZE;
+		VersionedStore.Copy copy = dataStore.getCopy(key);
+		if (required > 1) {
+			List<CompletableFuture<VersionedStore.Copy>> replies = new ArrayList<>();
+			for (Finger replica : replicas) {
+				replies.add(currentNode.getConnectionPool().requestAsync(replica, DHTMain.FIND_VERSIONED, key)
+						.thenApply(Consistency::parseCopy));
+			}
+			List<VersionedStore.Copy> copies;
+			try {
+				// A malformed reply parses to null and counts as failed
+				copies = Consistency.await(replies, reply -> true, required - 1, DHTMain.REQUEST_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return consistencyFailed(level, 1, required);
+			}
+			if (copies.size() < required - 1) {
+				return consistencyFailed(level, copies.size() + 1, required);
+			}
+			copies.add(0, copy);
+			VersionedStore.Copy newest = Consistency.newest(copies);
+			repair(key, newest, copy, replicas, replies);
+			copy = newest;
+		}
+
+		if (copy.getValue() == null || copy.getValue().isEmpty()) {
+			return "Key NOT FOUND.";
+		}
+		return "VALUE_FOUND:Request acknowledged on node " + currentNode.getNodeId() + ":" + currentNode.getPort()
+				+ ":" + copy.getValue();
+	}
+
+	/**
+	 * Sends the newest copy of a key read by {@link #readReplicated} to the
+	 * replicas that answered with an older one and stores it here if ours is
+	 * older. Replicas that did not answer yet get it from the replication.
+	 */
+	private void repair(String key, VersionedStore.Copy newest, VersionedStore.Copy ours, List<Finger> replicas,
+			List<CompletableFuture<VersionedStore.Copy>> replies) {
+		if (newest.getValue() == null) {
+			return;
+		}
+		WriteVersion version = newest.getVersion();
+		if (ours.getVersion().compareTo(version) < 0) {
+			currentNode.getHost().getVersionedStore().put(key, newest.getValue(), version);
+		}
+		for (int i = 0; i < replicas.size(); i++) {
+			CompletableFuture<VersionedStore.Copy> reply = replies.get(i);
+			VersionedStore.Copy copy = reply.isDone() && !reply.isCompletedExceptionally() ? reply.join() : null;
+			if (copy != null && copy.getVersion().compareTo(version) < 0) {
+				currentNode.getConnectionPool().requestAsync(replicas.get(i), DHTMain.PUT_VERSIONED,
+						version.getEpoch(), version.getPosition(), key, newest.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Stores a key we own and sends it to our replica successors at once,
+	 * answering when as many copies as the consistency level asks for have
+	 * it, see {@link Consistency}. Our copy is the first. A write that does
+	 * not reach enough copies stays on the ones it reached.
+	 */
+	private String writeReplicated(String key, String value, String level) {
+		List<Finger> replicas = currentNode.getReplicaTargets();
+		int required;
+		try {
+			required = Consistency.required(level, DHTMain.REPLICATION_FACTOR + 1);
+		} catch (IllegalArgumentException e) {
+			return DHTMain.CONSISTENCY_FAILED + ":" + level;
+		}
+		if (replicas.size() + 1 < required) {
+			return consistencyFailed(level, replicas.size() + 1, required);
 		}
 
+		WriteVersion version = currentNode.getHost().putOwned(key, value);
+		String acknowledgement = DHTMain.VERSION_STORED + ":" + version.getPosition();
+		List<CompletableFuture<Boolean>> acknowledgements = new ArrayList<>();
+		for (Finger replica : replicas) {
+			acknowledgements.add(currentNode.getConnectionPool()
+					.requestAsync(replica, DHTMain.PUT_VERSIONED, version.getEpoch(), version.getPosition(), key,
+							value)
+					.handle((response, error) -> error == null && acknowledgement.equals(response)));
+		}
+		if (required > 1) {
+			int confirmed;
+			try {
+				confirmed = Consistency.await(acknowledgements, stored -> stored, required - 1,
+						DHTMain.REQUEST_TIMEOUT).size();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				confirmed = 0;
+			}
+			if (confirmed < required - 1) {
+				return consistencyFailed(level, confirmed + 1, required);
+			}
+		}
+
+		return "(" + key + "," + value + ")  stored for " + SHAHelper.hashToRing(key) + " on node "
+				+ currentNode.getNodeId() + ":" + currentNode.getPort();
+	}
+
+	/**
+	 * CONSISTENCY_FAILED:level:copies reached:copies required
+	 */
+	private static String consistencyFailed(String level, int reached, int required) {
+		return DHTMain.CONSISTENCY_FAILED + ":" + level + ":" + reached + ":" + required;
+	}
+
+	/**
+	 * Finds the node owning the id, passing the lookup on through the fingers
+	 * when it is not us or our successor. Only the node that starts a lookup
+	 * hedges it, nodes it was passed on to send it to one finger.
+	 */
+	private String findNode(String query, boolean forwarded) {
+		// Wrap the queryid if it is as big as the ring
+		long queryNodeId = RingMath.wrap(Long.valueOf(query));
+
 		String response = "Not found.";
 
 		// If the queryNodeId is greater than our predecessor id and less than
 		// equal
 		// to our id then we have the value
+		// The last field counts the nodes the lookup went through
+		Finger tableOwner = tableOwner(queryNodeId);
 		if (isThisMyNode(queryNodeId)) {
-			response = DHTMain.NODE_FOUND + ":" + currentNode.getNodeIpAddress() + ":" + currentNode.getPort();
+			response = DHTMain.NODE_FOUND + ":" + currentNode.getNodeIpAddress() + ":" + currentNode.getPort() + ":1";
+		} else if (tableOwner != null) {
+			response = DHTMain.NODE_FOUND + ":" + tableOwner.getAddress() + ":" + tableOwner.getPort() + ":1";
 		} else if (isThisNextNode(queryNodeId)) {
 			response = DHTMain.NODE_FOUND + ":" + currentNode.getSuccessor1().getAddress() + ":"
-					+ currentNode.getSuccessor1().getPort();
+					+ currentNode.getSuccessor1().getPort() + ":1";
 		} else { // We don't have the query so we must search our fingers for it
-			long minimumDistance = DHTMain.RING_SIZE;
-			Finger closestNodeToKey = null;
-
-
 			try {
 				// Look for a node identifier in the finger table that is less
 				// than
 				// the key id and closest in the ID space to the key id
-				currentNode.lock();
-				for (Finger finger : currentNode.getFingerTable().values()) {
-					long distance;
-
-					// Find clockwise distance from finger to query
-					if (queryNodeId >= finger.getNodeId()) {
-						distance = queryNodeId - finger.getNodeId();
-					} else {
-						distance = queryNodeId + DHTMain.RING_SIZE - finger.getNodeId();
-					}
+				Finger closestNodeToKey = currentNode.getFingerIndex().closestPrecedingFinger(queryNodeId);
+				long minimumDistance = RingMath.distance(closestNodeToKey.getNodeId(), queryNodeId);
 
-					// If the distance we have found is smaller than the current
-					// minimum, replace the current minimum
-					if (distance < minimumDistance) {
-						minimumDistance = distance;
-						closestNodeToKey = finger;
-					}
-				}
-
-				currentNode.unlock();
-				
 				System.out.println("queryid: " + queryNodeId + " minimum distance: " + minimumDistance + " on "
 						+ closestNodeToKey.getAddress() + ":" + closestNodeToKey.getPort());
 
 				try {
-					// Open socket to chord node
-					Socket socket = new Socket(closestNodeToKey.getAddress(), closestNodeToKey.getPort());
-
-					// Open reader/writer to chord node
-					PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-					BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-					// Send query to chord
-					socketWriter.println(DHTMain.FIND_NODE + ":" + queryNodeId);
+					// Send query to chord and read response
+					String serverResponse = forward(closestNodeToKey, queryNodeId, !forwarded,
+							reply -> reply != null && reply.startsWith(DHTMain.NODE_FOUND + ":"), DHTMain.FIND_NODE,
+							queryNodeId, 1);
 					// System.out.println("Sent: " + DHTMain.FIND_NODE + ":" +
 					// queryNodeId);
-
-					// Read response from chord
-					String serverResponse = socketReader.readLine();
 					System.out.println("Response from node " + closestNodeToKey.getAddress() + ", port "
 							+ closestNodeToKey.getPort() + ", position " + " (" + closestNodeToKey.getNodeId() + "):");
 
-					response = serverResponse;
-
-					// Close connections
-					socketWriter.close();
-					socketReader.close();
-					socket.close();
+					response = countHop(serverResponse);
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
@@ -513,75 +812,280 @@ public class ProtocolHandler implements Runnable {
 		return response;
 	}
 
-	private boolean isThisMyNode(long queryNodeId) {
-		boolean response = false;
+	/**
+	 * Passes a lookup on to the finger closest to the id. With
+	 * {@link DHTMain#HEDGE_AFTER} set and hedge true, the next nodes towards
+	 * the id get it as well when the finger is slow to give a reply that the
+	 * accept test passes.
+	 */
+	private String forward(Finger closestNodeToKey, long queryNodeId, boolean hedge, Predicate<String> accept,
+			String command, Object... fields) throws IOException {
+		if (!hedge || DHTMain.HEDGE_AFTER <= 0) {
+			return currentNode.getConnectionPool().request(closestNodeToKey, command, fields);
+		}
+		return currentNode.getConnectionPool().requestHedged(hedgeTargets(queryNodeId), DHTMain.HEDGE_AFTER, accept,
+				command, fields);
+	}
+
+	/**
+	 * The nodes a hedged lookup for the id goes to in turn: the closest
+	 * preceding finger, the fingers before it and then our successor. Fingers
+	 * at or behind us are left out, they would send the lookup around the
+	 * ring once more.
+	 */
+	private List<Finger> hedgeTargets(long queryNodeId) {
+		List<Finger> targets = new ArrayList<>();
+		for (Finger finger : currentNode.getFingerIndex().precedingFingers(queryNodeId, DHTMain.HEDGES + 1)) {
+			if (finger.getNodeId() == currentNode.getNodeId()) {
+				break;
+			}
+			targets.add(finger);
+		}
+		Finger successor = currentNode.getSuccessor1();
+		if (successor != null && successor.getNodeId() != currentNode.getNodeId()
+				&& targets.stream().noneMatch(target -> target.getNodeId() == successor.getNodeId())) {
+			targets.add(successor);
+		}
+		return targets.subList(0, Math.min(targets.size(), DHTMain.HEDGES + 1));
+	}
+
+	/**
+	 * Adds this node to the hop count of a NODE_FOUND reply passed back
+	 * towards the node that started the lookup.
+	 */
+	private static String countHop(String reply) {
+		if (reply == null || !reply.startsWith(DHTMain.NODE_FOUND + ":")) {
+			return reply;
+		}
+		String[] replyFragments = reply.split(":");
+		if (replyFragments.length != 4) {
+			return reply;
+		}
+		return replyFragments[0] + ":" + replyFragments[1] + ":" + replyFragments[2] + ":"
+				+ (Integer.valueOf(replyFragments[3]) + 1);
+	}
+
+	/**
+	 * Answers one step of an iterative lookup without contacting any other
+	 * node. The reply is NODE_FOUND with the owner of the id if it is us or
+	 * our successor, otherwise NEXT_HOP with the finger to ask next.
+	 */
+	private String nextHop(String query) {
+		long queryNodeId = RingMath.wrap(Long.valueOf(query));
+		Finger successor = currentNode.getSuccessor1();
+		Finger tableOwner = tableOwner(queryNodeId);
+
+		if (isThisMyNode(queryNodeId)) {
+			return DHTMain.NODE_FOUND + ":" + currentNode.getNodeIpAddress() + ":" + currentNode.getPort();
+		} else if (tableOwner != null) {
+			return DHTMain.NODE_FOUND + ":" + tableOwner.getAddress() + ":" + tableOwner.getPort();
+		} else if (isThisNextNode(queryNodeId)) {
+			return DHTMain.NODE_FOUND + ":" + successor.getAddress() + ":" + successor.getPort();
+		}
 
-		// If we are working in a nice clockwise direction without wrapping
-		if (currentNode.getNodeId() > currentNode.getPredecessor1().getNodeId()) {
-			// If the queryNodeId is between my predecessor and me, the query
-			// belongs to me
-			if ((queryNodeId > currentNode.getPredecessor1().getNodeId()) && (queryNodeId <= currentNode.getNodeId())) {
-				response = true;
+		Finger closestNodeToKey = closerNode(queryNodeId);
+		return DHTMain.NEXT_HOP + ":" + closestNodeToKey.getAddress() + ":" + closestNodeToKey.getPort();
+	}
+
+	/**
+	 * The owner of the id in our membership table in one hop routing, null
+	 * when we route through the fingers or the table is stale.
+	 */
+	private Finger tableOwner(long queryNodeId) {
+		MembershipGossip membershipGossip = currentNode.getMembershipGossip();
+		return membershipGossip != null ? membershipGossip.ownerOf(queryNodeId) : null;
+	}
+
+	/**
+	 * Reply to a direct request for a key we do not own, naming our
+	 * successor if it owns the key or else the finger closest to it.
+	 */
+	private String redirect(long hashedKey) {
+		Finger closestNodeToKey = isThisNextNode(hashedKey) ? currentNode.getSuccessor1() : closerNode(hashedKey);
+		return DHTMain.REDIRECT + ":" + closestNodeToKey.getAddress() + ":" + closestNodeToKey.getPort();
+	}
+
+	/**
+	 * The finger preceding the id most closely, or our successor while our
+	 * fingers do not go past us yet.
+	 */
+	private Finger closerNode(long queryNodeId) {
+		Finger closestNodeToKey = currentNode.getFingerIndex().closestPrecedingFinger(queryNodeId);
+		if (closestNodeToKey == null || closestNodeToKey.getNodeId() == currentNode.getNodeId()) {
+			return currentNode.getSuccessor1();
+		}
+		return closestNodeToKey;
+	}
+
+	/**
+	 * Sends a FIND_VALUE_DIRECT or PUT_VALUE_DIRECT to the owner of the key,
+	 * taken from the membership table in one hop routing, or from the owner
+	 * cache, or else found with FIND_NODE. Follows the redirects of nodes that
+	 * no longer own it. Returns null when neither the table nor the cache is
+	 * used or no owner answered, the request is then passed on through the
+	 * fingers as before.
+	 */
+	private String requestOwner(long hashedKey, String command, Object... fields) {
+		OwnerCache ownerCache = currentNode.getOwnerCache();
+		Finger owner = tableOwner(hashedKey);
+		if (owner == null) {
+			if (DHTMain.OWNER_CACHE_SIZE <= 0) {
+				return null;
 			}
-		} else { // If we are wrapping
-			if ((queryNodeId > currentNode.getPredecessor1().getNodeId()) || (queryNodeId <= currentNode.getNodeId())) {
-				response = true;
+			owner = ownerCache.get(hashedKey);
+		}
+		if (owner == null) {
+			owner = parseOwner(findNode(String.valueOf(hashedKey), false));
+		}
+
+		for (int hops = 0; owner != null && hops < DHTMain.FINGER_TABLE_SIZE; hops++) {
+			try {
+				String reply = currentNode.getConnectionPool().request(owner, command, fields);
+				if (reply == null || !reply.startsWith(DHTMain.REDIRECT + ":")) {
+					ownerCache.put(owner);
+					return reply;
+				}
+				owner = parseOwner(reply);
+			} catch (IOException e) {
+				System.err.println(command + " failed on " + owner.getAddress() + ":" + owner.getPort());
+				ownerCache.remove(owner);
+				return null;
 			}
 		}
+		return null;
+	}
 
-		return response;
+	/**
+	 * Reads the node from a NODE_FOUND or REDIRECT reply, null for any other
+	 * reply.
+	 */
+	public static Finger parseOwner(String reply) {
+		if (reply == null) {
+			return null;
+		}
+		String[] replyFragments = reply.split(":");
+		if (replyFragments.length < 3
+				|| !(DHTMain.NODE_FOUND.equals(replyFragments[0]) || DHTMain.REDIRECT.equals(replyFragments[0]))) {
+			return null;
+		}
+		return new Finger(replyFragments[1], Integer.valueOf(replyFragments[2]));
 	}
 
-	private boolean isThisNextNode(long queryNodeId) {
-		boolean response = false;
+	/**
+	 * Finds the owners of several ids at once. Ids owned by us or our
+	 * successor are answered here. The others are grouped by the finger that
+	 * precedes them and each group is sent on as one GET_FINGERS request, all
+	 * groups at the same time. The reply lists address:port of each owner
+	 * separated by "::", an owner that could not be found is left empty.
+	 */
+	private String findNodes(String[] queries) {
+		Finger self = new Finger(currentNode.getNodeIpAddress(), currentNode.getPort());
+		Finger successor = currentNode.getSuccessor1();
+		Finger[] owners = new Finger[queries.length];
+
+		// Positions of the ids to forward, per finger
+		Map<Finger, List<Integer>> forwards = new IdentityHashMap<>();
+		for (int i = 0; i < queries.length; i++) {
+			long queryNodeId = RingMath.wrap(Long.valueOf(queries[i]));
+			if (isThisMyNode(queryNodeId)) {
+				owners[i] = self;
+			} else if (isThisNextNode(queryNodeId)) {
+				owners[i] = successor;
+			} else {
+				Finger closestNodeToKey = currentNode.getFingerIndex().closestPrecedingFinger(queryNodeId);
+				if (closestNodeToKey == null || closestNodeToKey.getNodeId() == currentNode.getNodeId()) {
+					// Our fingers do not go past us yet, the successor is the
+					// best we know
+					owners[i] = successor;
+				} else {
+					forwards.computeIfAbsent(closestNodeToKey, finger -> new ArrayList<>()).add(i);
+				}
+			}
+		}
 
-		// If we are working in a nice clockwise direction without wrapping
-		if (currentNode.getNodeId() < currentNode.getSuccessor1().getNodeId()) {
-			// If the query id is between our successor and us, the query
-			// belongs to our successor
-			if ((queryNodeId > currentNode.getNodeId()) && (queryNodeId <= currentNode.getSuccessor1().getNodeId())) {
-				response = true;
+		// Send all groups before waiting for any of them
+		Map<Finger, CompletableFuture<String>> replies = new IdentityHashMap<>();
+		for (Map.Entry<Finger, List<Integer>> forward : forwards.entrySet()) {
+			Object[] ids = new Object[forward.getValue().size()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = queries[forward.getValue().get(i)];
 			}
-		} else { // If we are wrapping
-			if ((queryNodeId > currentNode.getNodeId()) || (queryNodeId <= currentNode.getSuccessor1().getNodeId())) {
-				response = true;
+			replies.put(forward.getKey(),
+					currentNode.getConnectionPool().requestAsync(forward.getKey(), DHTMain.GET_FINGERS, ids));
+		}
+		for (Map.Entry<Finger, List<Integer>> forward : forwards.entrySet()) {
+			Finger finger = forward.getKey();
+			try {
+				List<Finger> found = parseFingers(
+						PeerConnection.await(replies.get(finger), finger.getAddress() + ":" + finger.getPort()));
+				List<Integer> positions = forward.getValue();
+				for (int i = 0; i < positions.size() && i < found.size(); i++) {
+					owners[positions.get(i)] = found.get(i);
+				}
+			} catch (IOException e) {
+				System.err.println("GET_FINGERS failed on " + finger.getAddress() + ":" + finger.getPort());
+				e.printStackTrace();
 			}
 		}
 
-		return response;
+		StringBuilder reply = new StringBuilder();
+		for (int i = 0; i < owners.length; i++) {
+			reply.append(i == 0 ? "" : "::");
+			if (owners[i] != null) {
+				reply.append(owners[i].getAddress()).append(':').append(owners[i].getPort());
+			}
+		}
+		return reply.toString();
+	}
+
+	/**
+	 * Reads the owners from a GET_FINGERS reply, null for the ones that were
+	 * not found.
+	 */
+	public static List<Finger> parseFingers(String reply) {
+		List<Finger> fingers = new ArrayList<>();
+		if (reply == null) {
+			return fingers;
+		}
+		for (String owner : reply.split("::", -1)) {
+			String[] addressFragments = owner.split(":");
+			if (addressFragments.length == 2) {
+				fingers.add(new Finger(addressFragments[0], Integer.valueOf(addressFragments[1])));
+			} else {
+				fingers.add(null);
+			}
+		}
+		return fingers;
+	}
+
+	private boolean isThisMyNode(long queryNodeId) {
+		// If the queryNodeId is between my predecessor and me, going
+		// clockwise and wrapping around zero, the query belongs to me
+		return RingMath.inInterval(queryNodeId, currentNode.getPredecessor1().getNodeId(), currentNode.getNodeId());
+	}
+
+	private boolean isThisNextNode(long queryNodeId) {
+		// If the query id is between us and our successor, the query belongs
+		// to our successor
+		return RingMath.inInterval(queryNodeId, currentNode.getNodeId(), currentNode.getSuccessor1().getNodeId());
 	}
 
 	private String requestKeyValues(String strNodeId) {
 		StringBuffer sbResponse = new StringBuffer();
 		long newNodeId = Long.valueOf(strNodeId);
-		SHAHelper queryHasher;
 		try {
-			for (Iterator<Map.Entry<String, String>> it = currentNode.getDataStore().entrySet().iterator(); it
-					.hasNext();) {
-				Map.Entry<String, String> entry = it.next();
-				String strKey = entry.getKey();
-				queryHasher = new SHAHelper(strKey);
-				long hashedKeyEntry = queryHasher.getLong();
-				if (newNodeId < currentNode.getNodeId()
-						&& ((hashedKeyEntry > currentNode.getNodeId()) || (hashedKeyEntry < newNodeId))) {
-					// sbResponse.append(strKey + ":" + entry.getValue());
-					sbResponse.append(strKey + ":" + entry.getValue());
+			// The new node takes over the keys from us up to its own id, going
+			// clockwise. A virtual node of our own host already has them in
+			// the shared store
+			if (newNodeId != currentNode.getNodeId() && !currentNode.getHost().isLocal(newNodeId)) {
+				for (Iterator<Map.Entry<String, String>> it = currentNode.getDataStore()
+						.range(currentNode.getNodeId(), newNodeId); it.hasNext();) {
+					Map.Entry<String, String> entry = it.next();
+					sbResponse.append(entry.getKey() + ":" + entry.getValue());
 					sbResponse.append("::");
 
 					// Remove the key value pair from the current node
-					currentNode.lock();
-					it.remove();
-					currentNode.unlock();
-
-				} else if ((newNodeId > currentNode.getNodeId())
-						&& (hashedKeyEntry > currentNode.getNodeId() && hashedKeyEntry < newNodeId)) {
-					sbResponse.append(strKey + ":" + entry.getValue());
-					sbResponse.append("::");
-					// Remove the key value pair from the current node
-					currentNode.lock();
 					it.remove();
-					currentNode.unlock();
-
 				}
 			}
 
@@ -599,57 +1103,21 @@ public class ProtocolHandler implements Runnable {
 	private String getValueInSuccessor(String key) {
 		String response = null;
 		try {
-			// Open socket to chord node
-			Socket socket = new Socket(currentNode.getSuccessor1().getAddress(), currentNode.getSuccessor1().getPort());
-
-			// Open reader/writer to chord node
-			PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-			BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-			// Send query to chord
-			socketWriter.println(DHTMain.FIND_VALUE_IN_SUCCESSOR + ":" + key);
-			// System.out.println("Sent: " + DHTMain.FIND_NODE + ":" +
-			// queryNodeId);
-
-			// Read response from chord
-			String serverResponse = socketReader.readLine();
-
-			response = serverResponse;
-
-			// Close connections
-			socketWriter.close();
-			socketReader.close();
-			socket.close();
+			// Send query to the successor and read response
+			response = currentNode.getConnectionPool().request(currentNode.getSuccessor1(),
+					DHTMain.FIND_VALUE_IN_SUCCESSOR, key);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		return response;
 	}
 
-	private String putValueInSuccessor(String key, String value) {
+	private String putValueInSuccessor(String key, String value, String level) {
 		String response = null;
 		try {
-			// Open socket to chord node
-			Socket socket = new Socket(currentNode.getSuccessor1().getAddress(), currentNode.getSuccessor1().getPort());
-
-			// Open reader/writer to chord node
-			PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-			BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-			// Send query to chord
-			socketWriter.println(DHTMain.PUT_VALUE + ":" + key + ":" + value);
-			// System.out.println("Sent: " + DHTMain.FIND_NODE + ":" +
-			// queryNodeId);
-
-			// Read response from chord
-			String serverResponse = socketReader.readLine();
-
-			response = serverResponse;
-
-			// Close connections
-			socketWriter.close();
-			socketReader.close();
-			socket.close();
+			// Send query to the successor and read response
+			response = currentNode.getConnectionPool().request(currentNode.getSuccessor1(),
+					DHTMain.PUT_VALUE_AT, level, key, value);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -674,21 +1142,18 @@ public class ProtocolHandler implements Runnable {
 				currentNode.setLeaderIpAddress(currentNode.getNodeIpAddress());
 				currentNode.setLeaderPort(currentNode.getPort());
 
-				String messageToPass = DHTMain.LEADER_ELECTED + ":" + currentNode.getNodeId() + ":"
-						+ currentNode.getNodeIpAddress() + ":" + currentNode.getPort();
-				passElectionMessageToNextNode(messageToPass);
+				passElectionMessageToNextNode(DHTMain.LEADER_ELECTED, currentNode.getNodeId(),
+						currentNode.getNodeIpAddress(), currentNode.getPort());
 				System.out.println("Leader is elected");
 
 			}
 
-		} else if (currentNode.getNodeId() > electionInitiator) {
+		} else if (RingMath.compare(currentNode.getNodeId(), electionInitiator) > 0) {
 			currentNode.setElectionMessage(DHTMain.ELECT_LEADER);
-			String messageToPass = DHTMain.ELECT_LEADER + ":" + currentNode.getNodeId();
-			passElectionMessageToNextNode(messageToPass);
-		} else if (currentNode.getNodeId() < electionInitiator) {
+			passElectionMessageToNextNode(DHTMain.ELECT_LEADER, currentNode.getNodeId());
+		} else if (RingMath.compare(currentNode.getNodeId(), electionInitiator) < 0) {
 			currentNode.setElectionMessage(DHTMain.ELECT_LEADER);
-			String messageToPass = DHTMain.ELECT_LEADER + ":" + electionInitiator;
-			passElectionMessageToNextNode(messageToPass);
+			passElectionMessageToNextNode(DHTMain.ELECT_LEADER, electionInitiator);
 
 		}
 
@@ -701,24 +1166,14 @@ public class ProtocolHandler implements Runnable {
 			currentNode.setLeaderId(electionInitiator);
 			currentNode.setLeaderIpAddress(ipAddress);
 			currentNode.setLeaderPort(port);
-			String messageToPass = DHTMain.LEADER_ELECTED + ":" + electionInitiator + ":" + ipAddress + ":" + port;
-			passElectionMessageToNextNode(messageToPass);
+			passElectionMessageToNextNode(DHTMain.LEADER_ELECTED, electionInitiator, ipAddress, port);
 		}
 	}
 
-	private void passElectionMessageToNextNode(String messageToPass) {
+	private void passElectionMessageToNextNode(String command, Object... fields) {
 		try {
-			// Open socket to chord node
-			Socket socket = new Socket(currentNode.getSuccessor1().getAddress(), currentNode.getSuccessor1().getPort());
-			// Open reader/writer to chord node
-			PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-			BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			// Send query to chord
-			socketWriter.println(messageToPass);
-			// Close connections
-			socketWriter.close();
-			socketReader.close();
-			socket.close();
+			// Send message to the successor
+			currentNode.getConnectionPool().send(currentNode.getSuccessor1(), command, fields);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
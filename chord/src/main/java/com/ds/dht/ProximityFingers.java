@@ -0,0 +1,60 @@
+package com.ds.dht;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Proximity neighbour selection for fingers, see
+ * {@link DHTMain#FINGER_SELECTION}. Finger i of a node only has to lie in
+ * [node id + 2^i, node id + 2^(i+1)) for lookups to take O(log N) hops, the
+ * exact successor of node id + 2^i is just the first node in that interval.
+ * Of the first {@link DHTMain#PROXIMITY_CANDIDATES} nodes in the interval the
+ * one with the lowest round trip time is picked.
+ *
+ * Finger 0 stays the exact successor, it is our successor on the ring.
+ */
+public final class ProximityFingers {
+
+	private ProximityFingers() {
+	}
+
+	/**
+	 * Returns the nodes of the known ones that can serve as finger i of the
+	 * node, in ring order from the start of the finger, at most count.
+	 */
+	public static List<Finger> candidates(long nodeId, int i, Collection<Finger> known, int count) {
+		long start = RingMath.fingerStart(nodeId, i);
+		long span = 1L << i;
+		List<Finger> candidates = new ArrayList<>();
+		for (Finger node : known) {
+			if (Long.compareUnsigned(RingMath.distance(start, node.getNodeId()), span) < 0
+					&& candidates.stream().noneMatch(candidate -> candidate.getNodeId() == node.getNodeId())) {
+				candidates.add(node);
+			}
+		}
+		candidates.sort((a, b) -> Long.compareUnsigned(RingMath.distance(start, a.getNodeId()),
+				RingMath.distance(start, b.getNodeId())));
+		return candidates.size() > count ? candidates.subList(0, count) : candidates;
+	}
+
+	/**
+	 * Returns the candidate with the lowest round trip time. Candidates
+	 * without a time only win when none has one, then the first one does.
+	 * Null if there is no candidate.
+	 */
+	public static Finger nearest(List<Finger> candidates, ToDoubleFunction<Finger> roundTrip) {
+		Finger nearest = null;
+		double nearestMillis = Double.NaN;
+		for (Finger candidate : candidates) {
+			double millis = roundTrip.applyAsDouble(candidate);
+			if (nearest == null || (!Double.isNaN(millis) && (Double.isNaN(nearestMillis) || millis < nearestMillis))) {
+				nearest = candidate;
+				nearestMillis = millis;
+			}
+		}
+		return nearest;
+	}
+
+}
@@ -0,0 +1,181 @@
+package com.ds.dht;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+/**
+ * Sends replicas to a successor as a stream of PUT_REPLICAS batches over the
+ * pooled connection. A record is a key, its value and the epoch and position
+ * of its {@link WriteVersion}, see {@link #add}. A batch holds records up to
+ * {@link DHTMain#REPLICA_BATCH_BYTES} in UTF-8 and starts with the checksum
+ * of its records. The successor stores a batch only if the checksum matches,
+ * each record unless it holds a newer version of the key, and then
+ * acknowledges it with REPLICAS_STORED:count:checksum. Up
+ * to {@link DHTMain#REPLICA_WINDOW} batches are sent before the first one
+ * is acknowledged. A batch not acknowledged within
+ * {@link DHTMain#REQUEST_TIMEOUT} has failed.
+ */
+public final class ReplicaStream {
+
+	// Fields of a record: key, value, epoch and position
+	public final static int RECORD_FIELDS = 4;
+
+	private ReplicaStream() {
+	}
+
+	/**
+	 * Appends the record of a copy of a key to the records to send.
+	 */
+	public static void add(List<String> records, String key, VersionedStore.Copy copy) {
+		records.add(key);
+		records.add(copy.getValue());
+		records.add(String.valueOf(copy.getVersion().getEpoch()));
+		records.add(String.valueOf(copy.getVersion().getPosition()));
+	}
+
+	/**
+	 * Stores the records from the given field on, each unless the store
+	 * holds a newer version of the key.
+	 *
+	 * @return the number of records
+	 * @throws NumberFormatException
+	 *             if a version is not a number
+	 */
+	public static int store(VersionedStore store, List<String> records, int from) {
+		int count = (records.size() - from) / RECORD_FIELDS;
+		for (int i = 0; i < count; i++) {
+			int record = from + RECORD_FIELDS * i;
+			store.put(records.get(record), records.get(record + 1), new WriteVersion(
+					Long.parseLong(records.get(record + 2)), Long.parseLong(records.get(record + 3))));
+		}
+		return count;
+	}
+
+	/**
+	 * Sends records, see {@link #add}, with the default batch size and
+	 * window.
+	 *
+	 * @return the number of records from the start that the successor
+	 *         confirmed
+	 */
+	public static int send(ConnectionPool connectionPool, Finger successor, List<String> records) {
+		return send(connectionPool, successor, records, DHTMain.REPLICA_BATCH_BYTES, DHTMain.REPLICA_WINDOW);
+	}
+
+	/**
+	 * Sends records in batches of up to batchBytes, at least one record
+	 * each, with up to window batches waiting for their acknowledgement.
+	 * Stops at the first batch that is not confirmed.
+	 *
+	 * @return the number of records from the start that the successor
+	 *         confirmed
+	 */
+	public static int send(ConnectionPool connectionPool, Finger successor, List<String> records, int batchBytes,
+			int window) {
+		int count = records.size() / RECORD_FIELDS;
+		ArrayDeque<CompletableFuture<Boolean>> replies = new ArrayDeque<>();
+		// Records sent up to the end of each batch waiting for its
+		// acknowledgement
+		ArrayDeque<Integer> batchEnds = new ArrayDeque<>();
+		int next = 0;
+		int confirmed = 0;
+		while (next < count || !replies.isEmpty()) {
+			if (next < count && replies.size() < window) {
+				int start = next;
+				int bytes = 0;
+				do {
+					for (int i = 0; i < RECORD_FIELDS; i++) {
+						bytes += BinaryCodec.utf8Length(records.get(RECORD_FIELDS * next + i));
+					}
+					next++;
+				} while (next < count && bytes < batchBytes);
+				replies.add(sendBatch(connectionPool, successor,
+						records.subList(RECORD_FIELDS * start, RECORD_FIELDS * next)));
+				batchEnds.add(next);
+				continue;
+			}
+
+			int batchEnd = batchEnds.poll();
+			CompletableFuture<Boolean> reply = replies.poll();
+			try {
+				if (!reply.get(DHTMain.REQUEST_TIMEOUT, TimeUnit.MILLISECONDS)) {
+					break;
+				}
+			} catch (InterruptedException | ExecutionException e) {
+				break;
+			} catch (TimeoutException e) {
+				// A successor that stops acknowledging must not hold up the
+				// stabilizer, the batch counts as failed
+				System.err.println("No acknowledgement from " + successor.getPort() + " within "
+						+ DHTMain.REQUEST_TIMEOUT + "ms");
+				reply.cancel(false);
+				break;
+			}
+			confirmed = batchEnd;
+		}
+		// Batches after a failed one may still land, but are not counted, and
+		// the connection stops waiting for their replies
+		for (CompletableFuture<Boolean> reply : replies) {
+			reply.cancel(false);
+		}
+		return confirmed;
+	}
+
+	/**
+	 * Sends records, see {@link #add}, as one batch whatever their size.
+	 *
+	 * @return a future that completes with true once the successor confirmed
+	 *         the batch, and with false if it did not
+	 */
+	public static CompletableFuture<Boolean> sendBatch(ConnectionPool connectionPool, Finger successor,
+			List<String> records) {
+		List<Object> fields = new ArrayList<>();
+		fields.add(null);
+		fields.addAll(records);
+		String checksum = checksum(fields, 1);
+		fields.set(0, checksum);
+		String acknowledgement = DHTMain.REPLICAS_STORED + ":" + records.size() / RECORD_FIELDS + ":" + checksum;
+		CompletableFuture<String> request = connectionPool.requestAsync(successor, DHTMain.PUT_REPLICAS,
+				fields.toArray());
+		CompletableFuture<Boolean> confirmed = request.handle((response, error) -> {
+			if (error != null) {
+				System.err.println("Error from ReplicaStream.sendBatch(): " + error.getMessage()
+						+ " when replicating to " + successor.getPort());
+				return false;
+			}
+			if (!acknowledgement.equals(response)) {
+				System.err.println("Replicas not confirmed by " + successor.getPort() + ": " + response);
+				return false;
+			}
+			return true;
+		});
+		// Cancelling the confirmation, e.g. after a timeout, forgets the request
+		confirmed.whenComplete((stored, error) -> {
+			if (confirmed.isCancelled()) {
+				request.cancel(false);
+			}
+		});
+		return confirmed;
+	}
+
+	/**
+	 * CRC-32 of the UTF-8 bytes of the fields from the given one on, each
+	 * followed by a zero byte, in hex.
+	 */
+	public static String checksum(List<?> fields, int from) {
+		CRC32 crc = new CRC32();
+		for (int i = from; i < fields.size(); i++) {
+			crc.update(String.valueOf(fields.get(i)).getBytes(StandardCharsets.UTF_8));
+			crc.update(0);
+		}
+		return Long.toHexString(crc.getValue());
+	}
+
+}
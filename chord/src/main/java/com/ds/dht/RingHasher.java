@@ -0,0 +1,37 @@
+package com.ds.dht;
+
+/**
+ * Hash function that places keys and nodes on the ring. Every node of a ring
+ * must use the same one, it is selected with -Ddht.hasher, see
+ * {@link DHTMain#RING_HASHER}.
+ *
+ * Implementations must be thread safe and should not allocate per call.
+ */
+public interface RingHasher {
+
+	/**
+	 * Hashes the given bytes to an id of the given width in bits, between 0
+	 * and {@link RingMath#mask(int)} of the width, unsigned.
+	 */
+	long hash(byte[] bytes, int offset, int length, int bits);
+
+	/**
+	 * Returns the hasher for a -Ddht.hasher value: "sha1", "murmur3" or the
+	 * name of a class implementing this interface.
+	 */
+	static RingHasher forName(String name) {
+		switch (name) {
+		case "sha1":
+			return new Sha1RingHasher();
+		case "murmur3":
+			return new Murmur3RingHasher();
+		default:
+			try {
+				return (RingHasher) Class.forName(name).getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException | ClassCastException e) {
+				throw new IllegalArgumentException("unknown ring hasher " + name, e);
+			}
+		}
+	}
+
+}
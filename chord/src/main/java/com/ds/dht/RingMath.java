@@ -0,0 +1,62 @@
+package com.ds.dht;
+
+/**
+ * Arithmetic on ring ids. Ids are {@link DHTMain#ID_BITS} wide and treated as
+ * unsigned, so with 64 bit ids the upper half of the ring holds ids that are
+ * negative as a Java long. Everything here works on the bits modulo the ring
+ * size and compares unsigned, without BigInteger.
+ */
+public final class RingMath {
+
+	private RingMath() {
+	}
+
+	/**
+	 * Mask of the lowest bits of a long, all bits for 64.
+	 */
+	public static long mask(int bits) {
+		return bits >= 64 ? -1L : (1L << bits) - 1;
+	}
+
+	/**
+	 * Reduces any long to an id on the ring.
+	 */
+	public static long wrap(long id) {
+		return id & DHTMain.ID_MASK;
+	}
+
+	/**
+	 * Start of finger i of a node, node id + 2^i around the ring.
+	 */
+	public static long fingerStart(long nodeId, int i) {
+		return wrap(nodeId + (1L << i));
+	}
+
+	/**
+	 * Clockwise distance on the ring from one id to another, unsigned.
+	 */
+	public static long distance(long from, long to) {
+		return wrap(to - from);
+	}
+
+	/**
+	 * Whether an id lies in the clockwise interval (fromExclusive,
+	 * toInclusive]. When both ends are the same node the interval is the whole
+	 * ring.
+	 */
+	public static boolean inInterval(long id, long fromExclusive, long toInclusive) {
+		if (fromExclusive == toInclusive) {
+			return true;
+		}
+		long offset = distance(fromExclusive, id);
+		return offset != 0 && Long.compareUnsigned(offset, distance(fromExclusive, toInclusive)) <= 0;
+	}
+
+	/**
+	 * Compares two ids as unsigned numbers.
+	 */
+	public static int compare(long id1, long id2) {
+		return Long.compareUnsigned(id1, id2);
+	}
+
+}
@@ -1,15 +1,14 @@
 package com.ds.dht;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.math.BigInteger;
-import java.net.ConnectException;
-import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * The role of RingStabilizer is to keep the finger table up-to-date and to make
@@ -20,6 +19,12 @@ public class RingStabilizer extends Thread {
 
 	private Node currentNode;
 	private int delaySeconds = 10000;
+	// Next finger to refresh when only some are refreshed per round
+	private int nextFinger = 0;
+	// Position of the change log each replica successor confirmed, by
+	// address:port, and the predecessor we owned the keys from at that time
+	private Map<String, Long> replicatedPositions = new HashMap<>();
+	private long replicatedFrom = -1;
 
 	public RingStabilizer(Node node) {
 		this.currentNode = node;
@@ -35,9 +40,7 @@ public class RingStabilizer extends Thread {
 			// Initially sleep
 			Thread.sleep(delaySeconds);
 
-			Socket socket = null;
-			PrintWriter socketWriter = null;
-			BufferedReader socketReader = null;
+			ConnectionPool connectionPool = currentNode.getConnectionPool();
 
 			while (true) {
 				try {
@@ -47,34 +50,24 @@ public class RingStabilizer extends Thread {
 							|| (currentNode.getPort() != currentNode.getSuccessor1().getPort())) {
 						System.out.println("StabilizeProtocol will run now.");
 
-						// for multiple nodes, successor1 and successor2 cannot
-						// be equal
-						updateSuccessors();// by priya - initial successor1 & 2
-											// updation
-
-						// Open socket to successor
-						socket = new Socket(currentNode.getSuccessor1().getAddress(),
-								currentNode.getSuccessor1().getPort());
-
-						// Open reader/writer to chord node
-						socketWriter = new PrintWriter(socket.getOutputStream(), true);
-						socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-						// Submit a request for the predecessor
-						socketWriter.println(DHTMain.REQUEST_PREDECESSOR + ":" + currentNode.getNodeId() + " asking "
-								+ currentNode.getSuccessor1().getNodeId());
+						// Submit a request for the predecessor to the
+						// successor, the reply also carries its successor list
+						Finger successor = currentNode.getSuccessor1();
+						String serverResponse = connectionPool.request(successor, DHTMain.REQUEST_PREDECESSOR,
+								currentNode.getNodeId() + " asking " + successor.getNodeId());
 								// System.out.println("Sent: " +
 								// DHTMain.REQUEST_PREDECESSOR + ":" +
 								// currentNode.getNodeId()
 								// + " asking " +
 								// currentNode.getSuccessor1().getNodeId());
-
-						// Read response from chord
-						String serverResponse = socketReader.readLine();
 						// System.out.println("Received: " + serverResponse);
 
-						// Parse server response for address and port
+						// Parse server response for address and port, followed
+						// by address and port of each of its successors
 						String[] predecessorFragments = serverResponse.split(":");
+						List<Finger> successors = new ArrayList<>();
+						successors.add(successor);
+						successors.addAll(parseSuccessors(predecessorFragments));
 						String predecessorAddress = predecessorFragments[0];
 						int predecessorPort = Integer.valueOf(predecessorFragments[1]);
 						// If the address:port that was returned from the
@@ -85,25 +78,23 @@ public class RingStabilizer extends Thread {
 						// predecessor
 						// for my
 						// Successor, if not update my finger table)
-						if (!currentNode.getNodeIpAddress().equals(predecessorAddress)
-								|| (currentNode.getPort() != predecessorPort)) {
-							currentNode.lock();
-							Finger newSuccessor = new Finger(predecessorAddress, predecessorPort);
+						Finger newSuccessor = new Finger(predecessorAddress, predecessorPort);
+						if ((!currentNode.getNodeIpAddress().equals(predecessorAddress)
+								|| (currentNode.getPort() != predecessorPort))
+								&& isBetweenUsAndSuccessor(newSuccessor.getNodeId(), successor.getNodeId())) {
 
 							// Update finger table entries to reflect new
 							// successor
-							currentNode.getFingerTable().put(1, currentNode.getFingerTable().get(0));
-							currentNode.getFingerTable().put(0, newSuccessor);
+							currentNode.updateRoutingState(
+									state -> state.withFinger(1, state.getFinger(0)).withFinger(0, newSuccessor));
 
-							currentNode.unlock();
-							// Close connections
-							socketWriter.close();
-							socketReader.close();
-							socket.close();
+							// The new successor comes before the old one, its
+							// own list comes with the next round
+							successors.add(0, newSuccessor);
 
-							// Update successor entries to reflect new
-							// successor
-							updateSuccessors();// by priya
+							// It took over part of the ring, the owners we
+							// remember may be wrong now
+							currentNode.getOwnerCache().clear();
 
 							// If the new node entered has a Higher nodeId than
 							// the current LeaderId then start LeaderElection
@@ -113,29 +104,25 @@ public class RingStabilizer extends Thread {
 							// Inform new successor that I am your
 							// predecessor
 							// now
-							socket = new Socket(newSuccessor.getAddress(), newSuccessor.getPort());
-
-							// Open writer/reader to new successor node
-							socketWriter = new PrintWriter(socket.getOutputStream(), true);
-							socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-							// Tell successor that this node is its new
-							// predecessor
-							socketWriter.println(DHTMain.NEW_PREDECESSOR + ":" + currentNode.getNodeIpAddress() + ":"
-									+ currentNode.getPort());
+							connectionPool.send(newSuccessor, DHTMain.NEW_PREDECESSOR,
+									currentNode.getNodeIpAddress(), currentNode.getPort());
 							System.out.println("Sent: " + DHTMain.NEW_PREDECESSOR + ":" + currentNode.getNodeIpAddress()
 									+ ":" + currentNode.getPort());
 
+							successor = newSuccessor;
+						} else if (!currentNode.getNodeIpAddress().equals(predecessorAddress)
+								|| (currentNode.getPort() != predecessorPort)) {
+							// Our successor does not know us as its
+							// predecessor, e.g. because its predecessor failed
+							connectionPool.send(successor, DHTMain.NEW_PREDECESSOR, currentNode.getNodeIpAddress(),
+									currentNode.getPort());
 						}
 
-						fingerTableUpdate(socketWriter, socketReader);
-						// Close connections
-						socketWriter.close();
-						socketReader.close();
-						socket.close();
+						// Our successor list is our successor followed by its
+						// list
+						currentNode.updateRoutingState(state -> state.withSuccessors(successors));
 
-						// update successor2 logic//code by priya
-						updateSuccessors();
+						fixFingers(successor);
 
 						// manage replicas///code by priya
 						// replicate data to successors
@@ -147,20 +134,8 @@ public class RingStabilizer extends Thread {
 					// then connect to my predecessor and update my finger table
 					else if (!currentNode.getNodeIpAddress().equals(currentNode.getPredecessor1().getAddress())
 							|| (currentNode.getPort() != currentNode.getPredecessor1().getPort())) {
-						// Open socket to successor
-						socket = new Socket(currentNode.getPredecessor1().getAddress(),
-								currentNode.getPredecessor1().getPort());
-
-						// Open reader/writer to chord node
-						socketWriter = new PrintWriter(socket.getOutputStream(), true);
-						socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-						fingerTableUpdate(socketWriter, socketReader);
-						// Close connections
-						socketWriter.close();
-						socketReader.close();
-						socket.close();
-						// update successor2 logic//by priya
-						updateSuccessors();
+						// Update the finger table through the predecessor
+						fingerTableUpdate(currentNode.getPredecessor1());
 
 						// Happens only in the first node case when a second
 						// node joined
@@ -174,43 +149,19 @@ public class RingStabilizer extends Thread {
 				} catch (UnknownHostException e) {
 					System.err.println("stabilize() could not find host of first successor");
 					e.printStackTrace();
+				} catch (PeerConnection.BusyException e) {
+					// The successor is there, just overloaded, try again
+					// next round
+					System.err.println("stabilize() " + e.getMessage() + ", trying again next round");
 				} catch (IOException e) {// Handles successor node failure
 					System.err.println("stabilize() could not connect to first successor");
 					e.printStackTrace();
 					// which means something is wrong/////////////trying
 					// Successor1 connection did not work
-					// Contact successor2 to update finger table
-					boolean callAgain = true;
-					while (callAgain) {
-						try {
-							// Open socket to successor2
-							socket = new Socket(currentNode.getSuccessor2().getAddress(),
-									currentNode.getSuccessor2().getPort());
-							System.out.println("ask help from successor2 to update finger table:"
-									+ currentNode.getSuccessor2().getPort());
-							// Open reader/writer to chord node
-							socketWriter = new PrintWriter(socket.getOutputStream(), true);
-							socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-							// update finger table
-							fingerTableUpdate(socketWriter, socketReader);
-							// Close connections
-							socketWriter.close();
-							socketReader.close();
-							socket.close();
-							updateSuccessors();
-							startLeaderElectionIfRequired(currentNode.getSuccessor1());
-							System.out.println("successor2 helped me :)");
-							callAgain = false;
-						} catch (IOException ex) {
-							System.out.println("stabilize()-within catch - socket failed");
-							ex.printStackTrace();
-						} catch (Exception ex) {
-							System.out.println("stabilize- within catch - sm excptn:" + ex.getMessage());
-							ex.printStackTrace();
-						}
-						manageReplica();
-
-					}
+					// Drop it and ask the next successors in the list to
+					// update the finger table, until one of them answers
+					failOverToNextSuccessor();
+					manageReplica();
 
 				}
 				// Stabilize again after delay
@@ -227,167 +178,215 @@ public class RingStabilizer extends Thread {
 
 	}
 
-	// This method is for finger Table updation
-	private void fingerTableUpdate(PrintWriter socketWriter, BufferedReader socketReader) throws IOException {
-		BigInteger bigQuery = BigInteger.valueOf(2L);
-		BigInteger bigSelfId = BigInteger.valueOf(currentNode.getNodeId());
-
-		
+	/**
+	 * Refreshes the fingers due this round, all of them or the next
+	 * {@link DHTMain#FIX_FINGERS_PER_ROUND} in turn.
+	 */
+	private void fixFingers(Finger target) throws IOException {
+		if (DHTMain.FIX_FINGERS_PER_ROUND <= 0 || DHTMain.FIX_FINGERS_PER_ROUND >= DHTMain.FINGER_TABLE_SIZE) {
+			fingerTableUpdate(target);
+			return;
+		}
+		int[] indexes = new int[DHTMain.FIX_FINGERS_PER_ROUND];
+		for (int i = 0; i < indexes.length; i++) {
+			indexes[i] = nextFinger;
+			nextFinger = (nextFinger + 1) % DHTMain.FINGER_TABLE_SIZE;
+		}
+		updateFingers(target, indexes);
+	}
 
-		// Update all fingers
-		for (int i = 0; i < DHTMain.FINGER_TABLE_SIZE; i++) {
-			try {
-				BigInteger bigResult = bigQuery.pow(i);
-				bigResult = bigResult.add(bigSelfId);
-
-				// Send query to chord
-				socketWriter.println(DHTMain.FIND_NODE + ":" + bigResult.longValue());
-				// System.out.println("Sent: " + DHTMain.FIND_NODE + ":" +
-				// bigResult.longValue());
-
-				// Read response from chord
-				String serverResponse = socketReader.readLine();
-				System.out.println(serverResponse);
-				if (serverResponse != null && !serverResponse.isEmpty()
-						&& !serverResponse.equalsIgnoreCase("Not found.")) {
-					// Parse out address and port
-					String[] serverResponseFragments = serverResponse.split(":", 2);
-					String[] addressFragments = serverResponseFragments[1].split(":");
-					if (addressFragments != null && addressFragments.length == 2) {
-						currentNode.lock();
-						// Add response to finger table
-						currentNode.getFingerTable().put(i,
-								new Finger(addressFragments[0], Integer.valueOf(addressFragments[1])));
-						currentNode.setSuccessor1(currentNode.getFingerTable().get(0));
-						// currentNode.setSuccessor2(currentNode.getFingerTable().get(1));
-						currentNode.unlock();
-					}
+	// This method is for finger Table updation
+	private void fingerTableUpdate(Finger target) throws IOException {
+		int[] indexes = new int[DHTMain.FINGER_TABLE_SIZE];
+		for (int i = 0; i < indexes.length; i++) {
+			indexes[i] = i;
+		}
+		updateFingers(target, indexes);
+	}
 
-					// System.out.println("Received: " + serverResponse);
+	/**
+	 * Looks up the given fingers with one GET_FINGERS request to the target,
+	 * which resolves them in parallel, and picks nearer nodes for them when
+	 * fingers are selected by proximity.
+	 */
+	private void updateFingers(Finger target, int[] indexes) throws IOException {
+		long[] fingerStarts = new long[indexes.length];
+		for (int i = 0; i < indexes.length; i++) {
+			fingerStarts[i] = RingMath.fingerStart(currentNode.getNodeId(), indexes[i]);
+		}
+		List<Finger> owners = currentNode.nearestFingers(indexes,
+				currentNode.findFingers(target.getAddress(), target.getPort(), fingerStarts));
+
+		// Update the fingers that were found
+		currentNode.updateRoutingState(state -> {
+			RoutingState updated = state;
+			for (int i = 0; i < indexes.length && i < owners.size(); i++) {
+				if (owners.get(i) != null) {
+					updated = updated.withFinger(indexes[i], owners.get(i));
 				}
-
-			} catch (Exception e) {
-				System.err.println("Error from updateFingerTable(): " + e.getMessage());
-				e.printStackTrace();
 			}
-		}
-		
+			return updated.withSuccessor1(updated.getFinger(0));
+		});
+
 		currentNode.printFingerTableEntries();
 
 		System.out.println("printing data in RingStabilizer " + currentNode.getDataStore());
 
 	}
 
-	// new logic to update successor2//by priya
-	private void updateSuccessors() throws UnknownHostException, IOException {
-		Socket socket = null;
-		PrintWriter socketWriter = null;
-		BufferedReader socketReader = null;
-		// try {
-		currentNode.setSuccessor1(currentNode.getFingerTable().get(0));
-		// Open socket to successor
-		socket = new Socket(currentNode.getSuccessor1().getAddress(), currentNode.getSuccessor1().getPort());
-
-		// Open reader/writer to chord node
-		socketWriter = new PrintWriter(socket.getOutputStream(), true);
-		socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-		// socket to successor1 and get its successor1 entry
-		BigInteger bigQuery = BigInteger.valueOf(2L);
-		BigInteger bigSelfId = BigInteger.valueOf(currentNode.getSuccessor1().getNodeId());
-		BigInteger bigResult = bigQuery.pow(0);
-		bigResult = bigResult.add(bigSelfId);
-
-		
-		// Send query to chord
-		socketWriter.println(DHTMain.FIND_NODE + ":" + bigResult.longValue());
-
-		// Read response from chord
-		String serverResponse = socketReader.readLine();
-		if (serverResponse != null && !serverResponse.isEmpty()) {
-			// Parse out address and port
-			String[] serverResponseFragments = serverResponse.split(":", 2);
-			String[] addressFragments = serverResponseFragments[1].split(":");
-			currentNode.lock();
-			Finger newSuccessor2 = new Finger(addressFragments[0], Integer.valueOf(addressFragments[1]));
-			currentNode.setSuccessor2(newSuccessor2);
-			currentNode.unlock();
-			System.out.println("On entry:successor1=" + currentNode.getSuccessor1().getPort() + " successor2 set to "
-					+ currentNode.getSuccessor2().getPort());
-		}
-		
-		/*
-		 * } catch (Exception ex) { System.err.println(
-		 * "Error from updateSuccessors():" + ex.getMessage()); }
-		 */
-		// // Close connections
-		// if (socketWriter != null)
-		// socketWriter.close();
-		try {
-			// Close connections
-			// if (socketWriter != null)
-			socketWriter.close();
-			// if (socketReader != null)
-			socketReader.close();
-			// if (socket != null)
-			socket.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+	/**
+	 * Reads the successors that follow the predecessor in a
+	 * REQUEST_PREDECESSOR reply. Stops at this node, in a ring of fewer than
+	 * r + 1 nodes the list comes back around to us.
+	 */
+	private List<Finger> parseSuccessors(String[] replyFragments) {
+		List<Finger> successors = new ArrayList<>();
+		for (int i = 2; i + 1 < replyFragments.length; i += 2) {
+			String address = replyFragments[i];
+			int port = Integer.valueOf(replyFragments[i + 1]);
+			if (currentNode.getNodeIpAddress().equals(address) && currentNode.getPort() == port) {
+				break;
+			}
+			successors.add(new Finger(address, port));
 		}
+		return successors;
+	}
 
+	/**
+	 * Called when the first successor does not answer. Drops successors from
+	 * the list until one of them can update the finger table.
+	 */
+	private void failOverToNextSuccessor() {
+		Finger failed = currentNode.getSuccessor1();
+		while (failed != null && (!currentNode.getNodeIpAddress().equals(failed.getAddress())
+				|| currentNode.getPort() != failed.getPort())) {
+			final Finger dropped = failed;
+			final Finger self = new Finger(currentNode.getNodeIpAddress(), currentNode.getPort());
+			RoutingState state = currentNode.updateRoutingState(current -> {
+				RoutingState updated = current.withoutSuccessor(dropped);
+				Finger next = updated.getSuccessor1() != null ? updated.getSuccessor1() : self;
+				return updated.withSuccessor1(next).withFinger(0, next);
+			});
+			currentNode.forgetNode(dropped);
+			Finger next = state.getSuccessor1();
+			System.out.println("ask help from successor " + next.getPort() + " to update finger table");
+			try {
+				fingerTableUpdate(next);
+				startLeaderElectionIfRequired(currentNode.getSuccessor1());
+				return;
+			} catch (IOException ex) {
+				System.out.println("stabilize()-within catch - socket failed");
+				ex.printStackTrace();
+				failed = next;
+			}
+		}
 	}
 
-	// replicate data to successor1 and 2.//by priya
+	/**
+	 * Sends the keys we own to the first REPLICATION_FACTOR successors on
+	 * other hosts, the ones on this host share our store. Each successor gets
+	 * the keys written since the position of the change log it confirmed
+	 * last, then its hashes of our range are compared with ours, see
+	 * {@link MerkleSync}, which also brings a successor that was not one of
+	 * them in the last round up to date. When our predecessor changed, the
+	 * keys we own changed as well and every successor is compared again
+	 * before it gets only changes.
+	 *
+	 * Then drops the replicas this host no longer has to keep.
+	 */
 	private void manageReplica() {
+		VersionedStore dataStore = currentNode.getHost().getVersionedStore();
+		ChangeLog changeLog = currentNode.getHost().getChangeLog();
+
+		long predecessorId = currentNode.getPredecessor1().getNodeId();
+		if (predecessorId != replicatedFrom) {
+			replicatedPositions.clear();
+			replicatedFrom = predecessorId;
+		}
 
-		// loop through data map entries of this node
+		List<Finger> targets = currentNode.getReplicaTargets();
+		Set<String> endpoints = new HashSet<>();
+		for (Finger target : targets) {
+			endpoints.add(endpoint(target));
+		}
+		replicatedPositions.keySet().retainAll(endpoints);
+
+		long replicated = changeLog.position();
+		for (Finger target : targets) {
+			// Keys written after this position go out next round
+			long upTo = changeLog.position();
+			Long position = replicatedPositions.get(endpoint(target));
+			boolean delivered = true;
+			if (position != null) {
+				List<String> records = new ArrayList<>();
+				// Change log position of each record
+				List<Long> positions = new ArrayList<>();
+				for (Map.Entry<Long, String> change : changeLog.since(position).headMap(upTo, true).entrySet()) {
+					String key = change.getValue();
+					VersionedStore.Copy copy = dataStore.getCopy(key);
+					if (copy.getValue() != null && isThisMyNode(dataStore.getRingId(key))) {
+						ReplicaStream.add(records, key, copy);
+						positions.add(change.getKey());
+					}
+				}
+				int confirmed = records.isEmpty() ? 0 : putReplicas(target, records);
+				delivered = confirmed == positions.size();
+				if (!delivered && confirmed > 0) {
+					// Keep what the successor confirmed
+					position = positions.get(confirmed - 1);
+					replicatedPositions.put(endpoint(target), position);
+				}
+			}
+			delivered = synchronizeReplica(target, predecessorId) && delivered;
+
+			if (delivered) {
+				replicatedPositions.put(endpoint(target), upTo);
+				replicated = Math.min(replicated, upTo);
+				announceVersion(target, upTo);
+			} else if (position != null) {
+				replicated = Math.min(replicated, position);
+			}
+		}
+		currentNode.setReplicatedPosition(replicated);
+		currentNode.getHost().trimChangeLog();
 
-		// for (Map.Entry<String, String> entry : currentNode.getDataStore()
-		// .entrySet()) {
-		for (Iterator<Map.Entry<String, String>> it = currentNode.getDataStore().entrySet().iterator(); it.hasNext();) {
+		// The store is shared by the virtual nodes of this host, the first
+		// one checks the replicas for all of them
+		if (currentNode != currentNode.getHost().getNodes().get(0)) {
+			return;
+		}
+		// Ranges of other owners already checked, as { fromExclusive,
+		// toInclusive, 1 if their keys are deleted here }
+		List<long[]> checkedRanges = new ArrayList<>();
+		for (Iterator<Map.Entry<String, String>> it = dataStore.iterator(); it.hasNext();) {
 			Map.Entry<String, String> entry = it.next();
 			try {
-				String dataKey = entry.getKey();
-				String dataValue = entry.getValue();
-				// Get long of query
-				SHAHelper keyHasher = new SHAHelper(dataKey);
-				long keyNodeId = keyHasher.getLong();
-
-				// Wrap the queryNodeId if it is as big as the ring
-				if (keyNodeId >= DHTMain.RING_SIZE) {
-					keyNodeId -= DHTMain.RING_SIZE;
+				// Ring id of the key, hashed when it was stored
+				long keyNodeId = dataStore.getRingId(entry.getKey());
+				// Keys of a node of this host are ours to keep
+				if (currentNode.getHost().getOwner(keyNodeId) != null) {
+					continue;
 				}
-				// If the query is greater than our predecessor id and less than
-				// equal
-				// to our id then we have the value
-				if (isThisMyNode(keyNodeId)) // if(dataKey<=currentNode.getId()
-												// &&
-												// dataKey>currentNode.getPredecessor1().getNodeId())
-				{
-					// this node's data
-
-					// if datakey is present in successor2's datamap
-					// socket to successor2
-					// Store_replica:dataKey:dataValue
-					// copy dataKey,dataValue to successor1's datamap
-					// close socket
-					// check response
-
-					connectToSuccessor(currentNode.getSuccessor1().getAddress(), currentNode.getSuccessor1().getPort(),
-							dataKey, dataValue);
-					connectToSuccessor(currentNode.getSuccessor2().getAddress(), currentNode.getSuccessor2().getPort(),
-							dataKey, dataValue);
-				} else {
-					// these are replicas -- should i keep?
-					// find the owner and check its successor1 and 2
-					// if currentnode not a successor, delete dataKey from
-					// current node's data store
-					if (globalMaintainence(keyNodeId)) {
-						currentNode.lock();
-						it.remove();
-						currentNode.unlock();
+				long[] range = null;
+				for (long[] checked : checkedRanges) {
+					if (RingMath.inInterval(keyNodeId, checked[0], checked[1])) {
+						range = checked;
+						break;
+					}
+				}
+				if (range == null) {
+					range = checkReplicaRange(keyNodeId);
+					if (range == null) {
+						continue;
+					}
+					// An owner whose predecessor is not up to date yet
+					// decides only for this key
+					if (RingMath.inInterval(keyNodeId, range[0], range[1])) {
+						checkedRanges.add(range);
 					}
-
+				}
+				if (range[2] == 1) {
+					it.remove();
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -396,133 +395,140 @@ public class RingStabilizer extends Thread {
 
 	}
 
-	private boolean globalMaintainence(long keyNodeId) {
-		boolean canDelete = false;
-		Socket socket = null;
-		PrintWriter socketWriter = null;
-		BufferedReader socketReader = null;
+	/**
+	 * Compares our range with the one of a replica successor and repairs the
+	 * keys that differ.
+	 *
+	 * @return true if the replica holds our keys
+	 */
+	private boolean synchronizeReplica(Finger successor, long predecessorId) {
+		long nodeId = currentNode.getNodeId();
+		ConnectionPool connectionPool = currentNode.getConnectionPool();
+		MerkleSync sync = new MerkleSync(
+				currentNode.getHost().getMerkleTree().hashes(predecessorId, nodeId, currentNode.getDataStore()),
+				currentNode.getHost().getVersionedStore(), new MerkleSync.Peer() {
+
+					public String hashes(int level, List<Integer> indexes) throws IOException {
+						List<Object> fields = new ArrayList<>();
+						fields.add(predecessorId);
+						fields.add(nodeId);
+						fields.add(level);
+						fields.addAll(indexes);
+						return connectionPool.request(successor, DHTMain.MERKLE_HASHES, fields.toArray());
+					}
+
+					public List<String> keys(List<Integer> pieces) throws IOException {
+						List<Object> fields = new ArrayList<>();
+						fields.add(predecessorId);
+						fields.add(nodeId);
+						fields.addAll(pieces);
+						return MerkleSync.parseKeys(
+								connectionPool.request(successor, DHTMain.MERKLE_KEYS, fields.toArray()));
+					}
+
+					public boolean put(List<String> records) {
+						return putReplicas(successor, records) == records.size() / ReplicaStream.RECORD_FIELDS;
+					}
+
+				});
 		try {
+			boolean inSync = sync.run();
+			if (sync.getDifferingPieces() > 0) {
+				System.out.println("Anti-entropy with " + successor.getPort() + ": " + sync.getDifferingPieces()
+						+ " buckets differed, sent " + sync.getPushed() + " keys, took " + sync.getPulled()
+						+ " keys in " + sync.getRequests() + " requests");
+			}
+			return inSync;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Error from synchronizeReplica(): " + e.getMessage() + " when comparing with "
+					+ successor.getPort());
+			return false;
+		}
+	}
 
-			socket = new Socket(currentNode.getSuccessor1().getAddress(), currentNode.getSuccessor1().getPort());
-			// Open reader/writer to chord node
-			socketWriter = new PrintWriter(socket.getOutputStream(), true);
-			socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			// Send query to chord
-			socketWriter.println(DHTMain.FIND_NODE + ":" + keyNodeId);
-
-			// Read response from chord
-			String address = null;
-			int port = 0;
-			String serverResponse = socketReader.readLine();
-			System.out.println(serverResponse);
-			if (serverResponse != null && !serverResponse.isEmpty() && !serverResponse.equalsIgnoreCase("Not found.")) {
-				// Parse out address and port
-				String[] serverResponseFragments = serverResponse.split(":", 2);
-				String[] addressFragments = serverResponseFragments[1].split(":");
-				address = addressFragments[0];
-				port = Integer.parseInt(addressFragments[1]);
+	/**
+	 * Finds the owner of a key this host holds a replica of, and the range
+	 * the owner holds. The keys of the range are ours to keep while a node of
+	 * this host is in the owner's successor list.
+	 *
+	 * @return { fromExclusive, toInclusive, 1 if the keys can be deleted },
+	 *         or null if the owner could not be asked
+	 */
+	private long[] checkReplicaRange(long keyNodeId) {
+		ConnectionPool connectionPool = currentNode.getConnectionPool();
+		try {
+			Finger owner = ProtocolHandler.parseOwner(
+					connectionPool.request(currentNode.getSuccessor1(), DHTMain.FIND_NODE, keyNodeId));
+			if (owner == null) {
+				return null;
 			}
-			// Close connections
-			socketWriter.close();
-			socketReader.close();
-			socket.close();
-
-			if (address != null && port != 0) {
-				// Open socket to chord node
-				socket = new Socket(address, port);
-
-				// Open reader/writer to chord node
-				socketWriter = new PrintWriter(socket.getOutputStream(), true);
-				socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-				// get the successor1 and 2 of this node, if current node is not
-				// a successor, delete value from current node
-				socketWriter.println(DHTMain.GET_SUCCESSORS + ":" + port);
-
-				String response = socketReader.readLine();
-				if (response != null && !response.isEmpty()) {
-					String[] responseFragments = response.split(":");
-					String successor1NodeId = responseFragments[0];
-					String successor2NodeId = responseFragments[1];
-					if (!String.valueOf(currentNode.getNodeId()).equals(successor1NodeId)
-							&& !String.valueOf(currentNode.getNodeId()).equals(successor2NodeId)) {
-						canDelete = true;
-					}
+			String response = connectionPool.request(owner, DHTMain.REQUEST_PREDECESSOR,
+					currentNode.getNodeId() + " asking " + owner.getNodeId());
+			String[] replyFragments = response == null ? new String[0] : response.split(":");
+			if (replyFragments.length < 2) {
+				return null;
+			}
+			long predecessorId = new Finger(replyFragments[0], Integer.valueOf(replyFragments[1])).getNodeId();
+			boolean canDelete = !currentNode.getHost().isLocal(owner.getNodeId());
+			for (int i = 2; i + 1 < replyFragments.length; i += 2) {
+				Finger successor = new Finger(replyFragments[i], Integer.valueOf(replyFragments[i + 1]));
+				if (currentNode.getHost().isLocal(successor.getNodeId())) {
+					canDelete = false;
 				}
-				// Close connections
-				socketWriter.close();
-				socketReader.close();
-				socket.close();
 			}
-
+			return new long[] { predecessorId, owner.getNodeId(), canDelete ? 1 : 0 };
 		} catch (Exception e) {
 			e.printStackTrace();
+			return null;
 		}
-		return canDelete;
+	}
+
+	/**
+	 * Whether a node reported by our successor sits between us and the
+	 * successor, so that it is closer to us.
+	 */
+	private boolean isBetweenUsAndSuccessor(long nodeId, long successorId) {
+		return nodeId != successorId && RingMath.inInterval(nodeId, currentNode.getNodeId(), successorId);
 	}
 
 	// copied it for use in manageReplica
 	private boolean isThisMyNode(long queryNodeId) {
-		boolean response = false;
-
-		// If we are working in a nice clockwise direction without wrapping
-		if (currentNode.getNodeId() > currentNode.getPredecessor1().getNodeId()) {
-			// If the queryNodeId is between my predecessor and me, the query
-			// belongs to me
-			if ((queryNodeId > currentNode.getPredecessor1().getNodeId()) && (queryNodeId <= currentNode.getNodeId())) {
-				response = true;
-			}
-		} else { // If we are wrapping
-			if ((queryNodeId > currentNode.getPredecessor1().getNodeId()) || (queryNodeId <= currentNode.getNodeId())) {
-				response = true;
-			}
-		}
-
-		return response;
+		// If the queryNodeId is between my predecessor and me, going
+		// clockwise and wrapping around zero, the query belongs to me
+		return RingMath.inInterval(queryNodeId, currentNode.getPredecessor1().getNodeId(), currentNode.getNodeId());
 	}
 
-	// socket to given node and put replica//by priya
-	private void connectToSuccessor(String address, int port, String key, String value) {
-		Socket socket = null;
-		PrintWriter socketWriter = null;
-		// BufferedReader socketReader = null;
-
-		// socket to successor
-		try {
-			socket = new Socket(address, port);
-			// Open reader/writer to chord node
-			socketWriter = new PrintWriter(socket.getOutputStream(), true);
-			// socketReader = new BufferedReader(new
-			// InputStreamReader(socket.getInputStream()));
-			// submit a request to copy dataKey,dataValue to successor's datamap
-			socketWriter.println(DHTMain.PUT_REPLICA + ":" + address + ":" + port + ":" + key + ":" + value);
-			// Read response from chord
-			// String serverResponse = socketReader.readLine();
-		} catch (Exception ex) {
-
-			System.err.println("Error from connectToSuccessors():" + ex.getMessage() + " when connecting to " + port);
-		}
+	/**
+	 * Sends records to a successor in PUT_REPLICAS batches, see
+	 * {@link ReplicaStream}.
+	 *
+	 * @return the number of records from the start that the successor
+	 *         confirmed
+	 */
+	private int putReplicas(Finger successor, List<String> records) {
+		return ReplicaStream.send(currentNode.getConnectionPool(), successor, records);
+	}
 
+	/**
+	 * Tells a replica successor that it holds all our keys written up to the
+	 * position, the version it serves reads of them at.
+	 */
+	private void announceVersion(Finger successor, long position) {
 		try {
-			// Close connections
-			// if (socketWriter != null)
-			socketWriter.close();
-			// if (socketReader != null)
-			// socketReader.close();
-			// if (socket != null)
-			socket.close();
+			currentNode.getConnectionPool().send(successor, DHTMain.REPLICATED_UP_TO, currentNode.getNodeId(),
+					position);
 		} catch (IOException e) {
-			e.printStackTrace();
+			System.err.println("Error from announceVersion(): " + e.getMessage() + " when connecting to "
+					+ successor.getPort());
 		}
+	}
 
-		// check response
-		// System.out.println("replicate data to " + address + "-" + port);
-		// System.out.println("replicate data to "+address+"-"+port+":
-		// "+serverResponse);
-
+	private static String endpoint(Finger finger) {
+		return finger.getAddress() + ":" + finger.getPort();
 	}
 
 	private void startLeaderElectionIfRequired(Finger newSuccessor) {
-		if (currentNode.getLeaderId() < newSuccessor.getNodeId()) {
+		if (RingMath.compare(currentNode.getLeaderId(), newSuccessor.getNodeId()) < 0) {
 			currentNode.initiateLeaderElection(newSuccessor.getAddress(), newSuccessor.getPort());
 		}
 	}
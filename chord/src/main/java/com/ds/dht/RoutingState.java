@@ -0,0 +1,151 @@
+package com.ds.dht;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of what a node knows about the ring: its finger table,
+ * the sorted {@link FingerIndex} built from it, its successor list and its
+ * two predecessors.
+ *
+ * A node publishes its current state through
+ * {@link Node#updateRoutingState(java.util.function.UnaryOperator)}. Readers
+ * take one snapshot and work with it without locking, writers derive a new
+ * snapshot with the with* methods and swap it in.
+ */
+public final class RoutingState {
+
+	private final Finger[] fingers;
+	private final FingerIndex fingerIndex;
+	// The next DHTMain.SUCCESSOR_LIST_SIZE nodes clockwise, closest first
+	private final List<Finger> successors;
+	private final Finger predecessor1;
+	private final Finger predecessor2;
+
+	private RoutingState(Finger[] fingers, FingerIndex fingerIndex, List<Finger> successors, Finger predecessor1,
+			Finger predecessor2) {
+		this.fingers = fingers;
+		this.fingerIndex = fingerIndex;
+		this.successors = successors;
+		this.predecessor1 = predecessor1;
+		this.predecessor2 = predecessor2;
+	}
+
+	/**
+	 * State of a node that does not know any other node yet.
+	 */
+	public static RoutingState empty() {
+		Finger[] fingers = new Finger[DHTMain.FINGER_TABLE_SIZE];
+		return new RoutingState(fingers, FingerIndex.of(fingers), Collections.<Finger> emptyList(), null, null);
+	}
+
+	public RoutingState withFinger(int index, Finger finger) {
+		Finger[] updated = Arrays.copyOf(fingers, fingers.length);
+		updated[index] = finger;
+		return new RoutingState(updated, FingerIndex.of(updated), successors, predecessor1, predecessor2);
+	}
+
+	/**
+	 * Replaces the successor list. Duplicates are dropped and the list is cut
+	 * to {@link DHTMain#SUCCESSOR_LIST_SIZE} entries.
+	 */
+	public RoutingState withSuccessors(List<Finger> list) {
+		List<Finger> distinct = new ArrayList<>(DHTMain.SUCCESSOR_LIST_SIZE);
+		for (Finger finger : list) {
+			if (distinct.size() == DHTMain.SUCCESSOR_LIST_SIZE) {
+				break;
+			}
+			if (finger != null && indexOf(distinct, finger) < 0) {
+				distinct.add(finger);
+			}
+		}
+		return new RoutingState(fingers, fingerIndex, Collections.unmodifiableList(distinct), predecessor1,
+				predecessor2);
+	}
+
+	/**
+	 * Makes the given node the first successor. Successors that came before it
+	 * in the list are dropped, the ones after it are kept.
+	 */
+	public RoutingState withSuccessor1(Finger finger) {
+		if (finger == null) {
+			return this;
+		}
+		int position = indexOf(successors, finger);
+		if (position >= 0) {
+			return withSuccessors(successors.subList(position, successors.size()));
+		}
+		List<Finger> list = new ArrayList<>(successors.size() + 1);
+		list.add(finger);
+		list.addAll(successors);
+		return withSuccessors(list);
+	}
+
+	/**
+	 * Drops a successor from the list, e.g. because it failed. The ones after
+	 * it move up.
+	 */
+	public RoutingState withoutSuccessor(Finger finger) {
+		int position = indexOf(successors, finger);
+		if (position < 0) {
+			return this;
+		}
+		List<Finger> list = new ArrayList<>(successors);
+		list.remove(position);
+		return withSuccessors(list);
+	}
+
+	public RoutingState withPredecessor1(Finger finger) {
+		return new RoutingState(fingers, fingerIndex, successors, finger, predecessor2);
+	}
+
+	public RoutingState withPredecessor2(Finger finger) {
+		return new RoutingState(fingers, fingerIndex, successors, predecessor1, finger);
+	}
+
+	/**
+	 * Returns the finger at the given position of the finger table, or null if
+	 * it has not been set yet.
+	 */
+	public Finger getFinger(int index) {
+		return fingers[index];
+	}
+
+	public FingerIndex getFingerIndex() {
+		return fingerIndex;
+	}
+
+	/**
+	 * Returns the closest successor, or null if none is known yet.
+	 */
+	public Finger getSuccessor1() {
+		return successors.isEmpty() ? null : successors.get(0);
+	}
+
+	/**
+	 * Returns the successor list, closest first. Unmodifiable.
+	 */
+	public List<Finger> getSuccessors() {
+		return successors;
+	}
+
+	public Finger getPredecessor1() {
+		return predecessor1;
+	}
+
+	public Finger getPredecessor2() {
+		return predecessor2;
+	}
+
+	private static int indexOf(List<Finger> list, Finger finger) {
+		for (int i = 0; i < list.size(); i++) {
+			if (list.get(i).getAddress().equals(finger.getAddress()) && list.get(i).getPort() == finger.getPort()) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+}
@@ -1,14 +1,26 @@
 package com.ds.dht;
 
-import javax.xml.bind.DatatypeConverter;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-
+/**
+ * Places node addresses and keys on the ring with the configured
+ * {@link RingHasher}, SHA-1 unless -Ddht.hasher says otherwise.
+ *
+ * Use the static {@link #hashToRing(CharSequence)} on hot paths, it reuses
+ * per-thread buffers and does not allocate.
+ */
 public class SHAHelper {
 
+	private final static RingHasher HASHER = RingHasher.forName(DHTMain.RING_HASHER);
+
+	// Encoded input, grown when a longer key comes along
+	private final static ThreadLocal<byte[]> INPUT = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[256];
+		}
+	};
+
 	private String address;
-	private byte[] hashedBytes = new byte[8];
+	private long ringId;
 
 	public SHAHelper() {
 	}
@@ -18,44 +30,36 @@ public class SHAHelper {
 		this.hash();
 	}
 
-	public void hash() {
-		MessageDigest md;
-
-		try {
-			// Create new SHA-1 digest
-			md = MessageDigest.getInstance("SHA-1");
+	/**
+	 * Returns the ring position of a key or address, hashing its UTF-8 bytes.
+	 */
+	public static long hashToRing(CharSequence text) {
+		byte[] input = INPUT.get();
+		if (input.length < text.length() * 3) {
+			input = new byte[text.length() * 3];
+			INPUT.set(input);
+		}
+		int length = encodeUtf8(text, input);
+		return HASHER.hash(input, 0, length, DHTMain.ID_BITS);
+	}
 
-			// Hash address
-			byte[] addressBytes = md.digest(this.address.getBytes());
-			/*//testing
-			for (byte s : addressBytes) {
-				System.out.println("addressBytes" + s);
+	/**
+	 * Returns the ring position of raw bytes.
+	 */
+	public static long hashToRing(byte[] bytes) {
+		return HASHER.hash(bytes, 0, bytes.length, DHTMain.ID_BITS);
+	}
 
-			}*/
-			
-			// Create 4-byte segments from 20-byte hash then XOR them together
-			// to get final 4-byte hash
-			/**for (int i = 0; i < 4; i++) {
-				this.hashedBytes[i + 4] = (byte) (addressBytes[i] ^ addressBytes[i + 4] ^ addressBytes[i + 8]
-						^ addressBytes[i + 12] ^ addressBytes[i + 16]);
-			}**/
-			for (int i = 0; i < 2; i++) {
-				this.hashedBytes[i + 6] = (byte) (addressBytes[i] ^ addressBytes[i+2] ^ addressBytes[i + 4] ^ 
-						addressBytes[i + 6] ^ addressBytes[i + 8] ^ addressBytes[i + 10] ^ addressBytes[i + 12] ^ 
-						addressBytes[i + 12] ^ addressBytes[i + 16] ^ addressBytes[i + 18]);
-			}
-		} catch (NoSuchAlgorithmException e) {
-			System.err.println("Error: SHA-1 DNE");
-			e.printStackTrace();
-		}
+	public void hash() {
+		this.ringId = hashToRing(this.address);
 	}
 
 	public String getHex() {
-		return DatatypeConverter.printHexBinary(Arrays.copyOfRange(this.hashedBytes, 4, 8));
+		return String.format(DHTMain.ID_BITS > 32 ? "%016X" : "%08X", this.ringId);
 	}
 
 	public long getLong() {
-		return java.nio.ByteBuffer.wrap(this.hashedBytes).getLong();
+		return this.ringId;
 	}
 
 	public void setAddress(String address) {
@@ -63,4 +67,29 @@ public class SHAHelper {
 		this.hash();
 	}
 
+	private static int encodeUtf8(CharSequence text, byte[] out) {
+		int length = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				out[length++] = (byte) c;
+			} else if (c < 0x800) {
+				out[length++] = (byte) (0xC0 | (c >> 6));
+				out[length++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				out[length++] = (byte) (0xF0 | (codePoint >> 18));
+				out[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				out[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				out[length++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else {
+				out[length++] = (byte) (0xE0 | (c >> 12));
+				out[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				out[length++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return length;
+	}
+
 }
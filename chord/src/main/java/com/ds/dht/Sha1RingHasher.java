@@ -0,0 +1,64 @@
+package com.ds.dht;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The original ring hash: SHA-1 of the bytes. Ids of up to 16 bits are
+ * folded out of the digest by XORing every other byte together as before,
+ * wider ids take the first eight bytes of the digest. Each thread keeps its
+ * own digest and output buffer.
+ */
+public class Sha1RingHasher implements RingHasher {
+
+	private final static int DIGEST_LENGTH = 20;
+
+	private static class Scratch {
+		private MessageDigest digest;
+		private byte[] output = new byte[DIGEST_LENGTH];
+	}
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			Scratch scratch = new Scratch();
+			try {
+				scratch.digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("Error: SHA-1 DNE", e);
+			}
+			return scratch;
+		}
+	};
+
+	public long hash(byte[] bytes, int offset, int length, int bits) {
+		Scratch state = scratch.get();
+		byte[] digest = state.output;
+		try {
+			state.digest.update(bytes, offset, length);
+			state.digest.digest(digest, 0, DIGEST_LENGTH);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+
+		if (bits > 16) {
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (digest[i] & 0xFF);
+			}
+			return hash & RingMath.mask(bits);
+		}
+
+		// Byte 12 is folded in twice and so cancels out, kept that way so
+		// that node and key ids stay what they were
+		long hash = 0;
+		for (int i = 0; i < 2; i++) {
+			int folded = digest[i] ^ digest[i + 2] ^ digest[i + 4] ^ digest[i + 6] ^ digest[i + 8]
+					^ digest[i + 10] ^ digest[i + 12] ^ digest[i + 12] ^ digest[i + 16] ^ digest[i + 18];
+			hash = (hash << 8) | (folded & 0xFF);
+		}
+		return hash & RingMath.mask(bits);
+	}
+
+}
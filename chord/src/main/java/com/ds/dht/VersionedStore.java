@@ -0,0 +1,182 @@
+package com.ds.dht;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Wraps the {@link KeyValueStore} of a host and keeps the
+ * {@link WriteVersion} of every copy written with one. A versioned write
+ * only replaces an older copy, so copies end up with the same value
+ * whatever order the writes arrive in, and a read of several copies can
+ * tell which one is the newest. Plain puts and removes forget the version,
+ * the copy then counts as older than any versioned one.
+ */
+public class VersionedStore implements KeyValueStore {
+
+	private KeyValueStore store;
+	private ConcurrentHashMap<String, WriteVersion> versions = new ConcurrentHashMap<>();
+
+	public VersionedStore(KeyValueStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * A value together with its version.
+	 */
+	public static final class Copy {
+		private final String value;
+		private final WriteVersion version;
+
+		public Copy(String value, WriteVersion version) {
+			this.value = value;
+			this.version = version;
+		}
+
+		/**
+		 * The value, null if there is no copy.
+		 */
+		public String getValue() {
+			return value;
+		}
+
+		public WriteVersion getVersion() {
+			return version;
+		}
+	}
+
+	/**
+	 * Returns the value of a key with its version, {@link WriteVersion#NONE}
+	 * if it has none or there is no copy.
+	 */
+	public Copy getCopy(String key) {
+		Copy[] copy = new Copy[1];
+		versions.compute(key, (k, version) -> {
+			String value = store.get(key);
+			copy[0] = new Copy(value, version != null && value != null ? version : WriteVersion.NONE);
+			return version;
+		});
+		return copy[0];
+	}
+
+	public WriteVersion getVersion(String key) {
+		return getCopy(key).getVersion();
+	}
+
+	/**
+	 * Stores a copy unless the one stored is newer.
+	 *
+	 * @return false if the write was older and dropped
+	 */
+	public boolean put(String key, String value, WriteVersion version) {
+		boolean[] stored = new boolean[1];
+		versions.compute(key, (k, last) -> {
+			if (last != null && last.compareTo(version) > 0) {
+				return last;
+			}
+			store.put(key, value);
+			stored[0] = true;
+			return version;
+		});
+		return stored[0];
+	}
+
+	/**
+	 * Stores a write of the owner of the key at the given version, or right
+	 * after the version of the stored copy if that is not older, so that
+	 * every write is newer than the copy it replaces.
+	 *
+	 * @return the version of the write
+	 */
+	public WriteVersion putNewer(String key, String value, WriteVersion least) {
+		WriteVersion[] written = new WriteVersion[1];
+		versions.compute(key, (k, last) -> {
+			written[0] = last == null || last.compareTo(least) < 0 ? least : last.next();
+			store.put(key, value);
+			return written[0];
+		});
+		return written[0];
+	}
+
+	public String get(String key) {
+		return store.get(key);
+	}
+
+	public String put(String key, String value) {
+		String[] previous = new String[1];
+		versions.compute(key, (k, version) -> {
+			previous[0] = store.put(key, value);
+			return null;
+		});
+		return previous[0];
+	}
+
+	public String remove(String key) {
+		String[] previous = new String[1];
+		versions.compute(key, (k, version) -> {
+			previous[0] = store.remove(key);
+			return null;
+		});
+		return previous[0];
+	}
+
+	public boolean remove(String key, String value) {
+		boolean[] removed = new boolean[1];
+		versions.compute(key, (k, version) -> {
+			removed[0] = store.remove(key, value);
+			return removed[0] ? null : version;
+		});
+		return removed[0];
+	}
+
+	public int size() {
+		return store.size();
+	}
+
+	public long getRingId(String key) {
+		return store.getRingId(key);
+	}
+
+	public Iterator<Map.Entry<String, String>> iterator() {
+		return removing(store.iterator());
+	}
+
+	public Iterator<Map.Entry<String, String>> range(long fromExclusive, long toInclusive) {
+		return removing(store.range(fromExclusive, toInclusive));
+	}
+
+	/**
+	 * Iterator.remove() goes through {@link #remove(String, String)}, so
+	 * that the version goes with the key.
+	 */
+	private Iterator<Map.Entry<String, String>> removing(Iterator<Map.Entry<String, String>> it) {
+		return new Iterator<Map.Entry<String, String>>() {
+
+			private Map.Entry<String, String> current;
+
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public Map.Entry<String, String> next() {
+				current = it.next();
+				return current;
+			}
+
+			public void remove() {
+				if (current == null) {
+					throw new IllegalStateException();
+				}
+				VersionedStore.this.remove(current.getKey(), current.getValue());
+				current = null;
+			}
+
+		};
+	}
+
+	@Override
+	public String toString() {
+		return store.toString();
+	}
+
+}
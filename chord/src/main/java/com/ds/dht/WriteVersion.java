@@ -0,0 +1,64 @@
+package com.ds.dht;
+
+/**
+ * The version of a copy of a key: the epoch of the owner's host and a
+ * position of its change log at the time of the write. Versions compare by
+ * epoch first. The epoch is the time the host started, so the writes of a
+ * later run of an owner are newer, and an owner makes each write newer than
+ * the copy it replaces, see {@link VersionedStore#putNewer}, so a node that
+ * took over a range writes past the versions of the previous owner.
+ */
+public final class WriteVersion implements Comparable<WriteVersion> {
+
+	/**
+	 * The version of a copy written without one, older than any other.
+	 */
+	public final static WriteVersion NONE = new WriteVersion(0, 0);
+
+	private final long epoch;
+	private final long position;
+
+	public WriteVersion(long epoch, long position) {
+		this.epoch = epoch;
+		this.position = position;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * The version right after this one.
+	 */
+	public WriteVersion next() {
+		return new WriteVersion(epoch, position + 1);
+	}
+
+	public int compareTo(WriteVersion other) {
+		int byEpoch = Long.compare(epoch, other.epoch);
+		return byEpoch != 0 ? byEpoch : Long.compare(position, other.position);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof WriteVersion && compareTo((WriteVersion) other) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(epoch) * 31 + Long.hashCode(position);
+	}
+
+	/**
+	 * epoch:position, as sent in the fields of a message.
+	 */
+	@Override
+	public String toString() {
+		return epoch + ":" + position;
+	}
+
+}
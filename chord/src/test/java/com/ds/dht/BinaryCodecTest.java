@@ -0,0 +1,146 @@
+package com.ds.dht;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class BinaryCodecTest {
+
+	@Test
+	public void roundTripsFieldsWithSeparators() throws IOException {
+		Message message = new Message(DHTMain.PUT_VALUE, 1234567890123L, "key:with:colons", "line\nbreak", "",
+				"caf\u00e9 \u65e5\u672c \ud83d\ude00");
+		Message decoded = BinaryCodec.decode(encode(message));
+
+		assertEquals(message.getCommand(), decoded.getCommand());
+		assertEquals(message.getRequestId(), decoded.getRequestId());
+		assertArrayEquals(message.getFields(), decoded.getFields());
+	}
+
+	@Test
+	public void roundTripsReplies() throws IOException {
+		Message reply = new Message(BinaryCodec.REPLY, 7, DHTMain.BUSY);
+		Message decoded = BinaryCodec.decode(encode(reply));
+
+		assertEquals(BinaryCodec.REPLY, decoded.getCommand());
+		assertEquals(7, decoded.getRequestId());
+		assertEquals(DHTMain.BUSY, decoded.getField(0));
+	}
+
+	@Test
+	public void frameLengthMatchesEncoding() {
+		Message message = new Message(DHTMain.PUT_REPLICAS, 300, "k\u00e9y", "v");
+		assertEquals(BinaryCodec.frameLength(message), encode(message).remaining());
+	}
+
+	@Test
+	public void leavesIncompleteFramesInTheBuffer() throws IOException {
+		ByteBuffer frame = encode(new Message(DHTMain.FIND_VALUE, 1, "some key"));
+		ByteBuffer partial = ByteBuffer.allocate(frame.remaining());
+		partial.put(frame.array(), 0, frame.remaining() - 1);
+		partial.flip();
+
+		assertNull(BinaryCodec.decode(partial));
+		assertEquals(0, partial.position());
+	}
+
+	@Test
+	public void decodesFramesOneAfterTheOther() throws IOException {
+		ByteBuffer first = encode(new Message(DHTMain.FIND_VALUE, 1, "a"));
+		ByteBuffer second = encode(new Message(DHTMain.PUT_VALUE, 2, "b", "c"));
+		ByteBuffer both = ByteBuffer.allocate(first.remaining() + second.remaining());
+		both.put(first).put(second).flip();
+
+		assertEquals("a", BinaryCodec.decode(both).getField(0));
+		assertArrayEquals(new String[] { "b", "c" }, BinaryCodec.decode(both).getFields());
+		assertNull(BinaryCodec.decode(both));
+	}
+
+	@Test
+	public void roundTripsThroughStreams() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteBuffer buffer = BinaryCodec.writeFrame(out, new Message(DHTMain.PUT_VALUE, 5, "k", "v"), null);
+		BinaryCodec.writeFrame(out, new Message(DHTMain.FIND_VALUE, 6, "k"), buffer);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		ByteBuffer read = BinaryCodec.readFrame(in, null);
+		assertEquals(5, BinaryCodec.decodePayload(read).getRequestId());
+		read = BinaryCodec.readFrame(in, read);
+		assertEquals(DHTMain.FIND_VALUE, BinaryCodec.decodePayload(read).getCommand());
+		assertNull(BinaryCodec.readFrame(in, read));
+	}
+
+	@Test
+	public void rejectsFramesLongerThanTheMaximum() {
+		byte[] length = varint(DHTMain.MAX_FRAME_BYTES + 1L);
+		try {
+			BinaryCodec.decode(ByteBuffer.wrap(length));
+			fail("decoded an oversized frame");
+		} catch (IOException e) {
+			// Expected
+		}
+		try {
+			BinaryCodec.readFrame(new DataInputStream(new ByteArrayInputStream(length)), null);
+			fail("read an oversized frame");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsLengthsThatOverflow() throws IOException {
+		byte[] length = new byte[11];
+		Arrays.fill(length, (byte) 0xFF);
+		BinaryCodec.decode(ByteBuffer.wrap(length));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsFieldsRunningPastTheFrame() throws IOException {
+		// Opcode, request id 1, one field that claims 100 bytes but has 1
+		byte[] payload = { BinaryCodec.opcode(DHTMain.FIND_VALUE), 1, 1, 100, 'k' };
+		ByteBuffer frame = ByteBuffer.allocate(payload.length + 1);
+		frame.put((byte) payload.length).put(payload).flip();
+		BinaryCodec.decode(frame);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsUnknownOpcodes() throws IOException {
+		BinaryCodec.decodePayload(ByteBuffer.wrap(new byte[] { 127, 1, 0 }));
+	}
+
+	@Test
+	public void countsUtf8Bytes() {
+		for (String s : new String[] { "", "ascii", "caf\u00e9", "\u65e5\u672c", "\ud83d\ude00" }) {
+			assertEquals(s, s.getBytes(StandardCharsets.UTF_8).length, BinaryCodec.utf8Length(s));
+		}
+	}
+
+	private static ByteBuffer encode(Message message) {
+		ByteBuffer buffer = ByteBuffer.allocate(BinaryCodec.frameLength(message));
+		BinaryCodec.encode(message, buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static byte[] varint(long value) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+		return out.toByteArray();
+	}
+
+}
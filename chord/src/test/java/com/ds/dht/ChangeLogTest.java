@@ -0,0 +1,73 @@
+package com.ds.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ChangeLogTest {
+
+	@Test
+	public void positionsCountWrites() {
+		ChangeLog log = new ChangeLog();
+		assertEquals(0, log.position());
+		assertEquals(1, log.record("a"));
+		assertEquals(2, log.record("b"));
+		assertEquals(2, log.position());
+	}
+
+	@Test
+	public void aKeyWrittenAgainMovesToTheEnd() {
+		ChangeLog log = new ChangeLog();
+		log.record("a");
+		log.record("b");
+		log.record("a");
+
+		assertEquals(2, log.size());
+		assertEquals(Arrays.asList("b", "a"), new ArrayList<>(log.since(0).values()));
+		assertEquals(Long.valueOf(3), log.positionOf("a"));
+	}
+
+	@Test
+	public void sinceExcludesThePositionItself() {
+		ChangeLog log = new ChangeLog();
+		log.record("a");
+		log.record("b");
+		log.record("c");
+
+		assertEquals(Arrays.asList("c"), new ArrayList<>(log.since(2).values()));
+		assertEquals(0, log.since(3).size());
+	}
+
+	@Test
+	public void trimDropsEntriesUpToThePosition() {
+		ChangeLog log = new ChangeLog();
+		log.record("a");
+		log.record("b");
+		log.record("c");
+		log.trim(2);
+
+		assertEquals(1, log.size());
+		assertNull(log.positionOf("a"));
+		assertNull(log.positionOf("b"));
+		assertEquals(Long.valueOf(3), log.positionOf("c"));
+		// Positions go on where they were
+		assertEquals(4, log.record("a"));
+	}
+
+	@Test
+	public void trimKeepsKeysWrittenAgainLater() {
+		ChangeLog log = new ChangeLog();
+		log.record("a");
+		log.record("b");
+		log.record("a");
+		log.trim(2);
+
+		assertEquals(Arrays.asList("a"), new ArrayList<>(log.since(0).values()));
+		assertEquals(Long.valueOf(3), log.positionOf("a"));
+	}
+
+}
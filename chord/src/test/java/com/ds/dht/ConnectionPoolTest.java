@@ -0,0 +1,116 @@
+package com.ds.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+	private FakePeer peer;
+	private ConnectionPool pool;
+
+	@Before
+	public void start() throws IOException {
+		peer = new FakePeer();
+		pool = new ConnectionPool();
+	}
+
+	@After
+	public void stop() throws IOException {
+		pool.close();
+		peer.close();
+	}
+
+	@Test
+	public void aBusyPeerKeepsItsConnection() throws Exception {
+		CompletableFuture<String> reply = pool.requestAsync("127.0.0.1", peer.getPort(), DHTMain.FIND_VALUE, "a");
+		peer.next().reply(DHTMain.BUSY);
+		assertTrue(PeerConnectionTest.failure(reply) instanceof PeerConnection.BusyException);
+
+		CompletableFuture<String> next = pool.requestAsync("127.0.0.1", peer.getPort(), DHTMain.FIND_VALUE, "b");
+		FakePeer.Request request = peer.next();
+		// Not sent again after the BUSY reply
+		assertEquals("b", request.getMessage().getField(0));
+		request.reply("b");
+		assertEquals("b", next.get(5, TimeUnit.SECONDS));
+		assertEquals(1, peer.getConnections());
+	}
+
+	@Test
+	public void requestsShareAConnectionAndGetTheirOwnReply() throws Exception {
+		CompletableFuture<String> a = pool.requestAsync("127.0.0.1", peer.getPort(), DHTMain.FIND_VALUE, "a");
+		FakePeer.Request first = peer.next();
+		CompletableFuture<String> b = pool.requestAsync("127.0.0.1", peer.getPort(), DHTMain.FIND_VALUE, "b");
+		FakePeer.Request second = peer.next();
+
+		second.reply("value of " + second.getMessage().getField(0));
+		first.reply("value of " + first.getMessage().getField(0));
+		assertEquals("value of a", a.get(5, TimeUnit.SECONDS));
+		assertEquals("value of b", b.get(5, TimeUnit.SECONDS));
+		assertEquals(1, peer.getConnections());
+	}
+
+	@Test
+	public void waitingRequestsFailWhenThePoolIsClosed() throws Exception {
+		CompletableFuture<String> reply = pool.requestAsync("127.0.0.1", peer.getPort(), DHTMain.FIND_VALUE, "a");
+		peer.next();
+		pool.close();
+
+		assertTrue(PeerConnectionTest.failure(reply) instanceof IOException);
+	}
+
+	@Test
+	public void repliesOfANioNodeFindTheirRequests() throws Exception {
+		Node node = new Node(new NodeHost(), "127.0.0.1", String.valueOf(freePort()));
+		awaitListening(node.getPort());
+		int keys = 200;
+		for (int i = 0; i < keys; i++) {
+			node.getDataStore().put("key" + i, "value" + i);
+		}
+
+		// The node's workers answer in whatever order they finish
+		List<CompletableFuture<String>> replies = new ArrayList<>();
+		for (int i = 0; i < keys; i++) {
+			replies.add(pool.requestAsync("127.0.0.1", node.getPort(), DHTMain.FIND_VALUE, "key" + i));
+		}
+		for (int i = 0; i < keys; i++) {
+			String reply = replies.get(i).get(10, TimeUnit.SECONDS);
+			assertTrue(reply, reply.endsWith(":value" + i));
+		}
+	}
+
+	/**
+	 * The node's server binds its port on a thread of its own.
+	 */
+	private static void awaitListening(int port) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			try (Socket socket = new Socket("127.0.0.1", port)) {
+				return;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw new AssertionError("node did not start listening on " + port);
+				}
+				Thread.sleep(20);
+			}
+		}
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+package com.ds.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+public class ConsistencyTest {
+
+	@Test
+	public void levelsNeedOneAMajorityOrAll() {
+		assertEquals(1, Consistency.required(Consistency.ONE, 3));
+		assertEquals(2, Consistency.required(Consistency.QUORUM, 3));
+		assertEquals(3, Consistency.required(Consistency.QUORUM, 4));
+		assertEquals(3, Consistency.required(Consistency.ALL, 3));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownLevels() {
+		Consistency.required("SOME", 3);
+	}
+
+	@Test
+	public void returnsOnceEnoughRepliesAreAccepted() throws InterruptedException {
+		CompletableFuture<String> pending = new CompletableFuture<>();
+		List<CompletableFuture<String>> replies = Arrays.asList(CompletableFuture.completedFuture("a"), pending,
+				CompletableFuture.completedFuture("b"));
+
+		assertEquals(Arrays.asList("a", "b"), Consistency.await(replies, reply -> true, 2, 10000));
+		// Replies still pending carry on
+		assertFalse(pending.isDone());
+	}
+
+	@Test
+	public void failedNullAndRejectedRepliesDoNotCount() throws InterruptedException {
+		CompletableFuture<String> failed = new CompletableFuture<>();
+		failed.completeExceptionally(new IOException("replica down"));
+		List<CompletableFuture<String>> replies = Arrays.asList(failed, CompletableFuture.completedFuture(null),
+				CompletableFuture.completedFuture("no"), CompletableFuture.completedFuture("ok"));
+
+		assertEquals(Arrays.asList("ok"), Consistency.await(replies, "ok"::equals, 2, 10000));
+	}
+
+	@Test
+	public void givesUpWhenTheRepliesAreAllIn() throws InterruptedException {
+		CompletableFuture<String> failed = new CompletableFuture<>();
+		failed.completeExceptionally(new IOException("replica down"));
+		List<CompletableFuture<String>> replies = Arrays.asList(CompletableFuture.completedFuture("ok"), failed);
+
+		long start = System.nanoTime();
+		assertEquals(1, Consistency.await(replies, reply -> true, 2, 10000).size());
+		assertTrue(System.nanoTime() - start < 5_000_000_000L);
+	}
+
+	@Test
+	public void aHangingReplicaCountsAsFailedAfterTheTimeout() throws InterruptedException {
+		List<CompletableFuture<String>> replies = Arrays.asList(CompletableFuture.completedFuture("ok"),
+				new CompletableFuture<String>());
+
+		long start = System.nanoTime();
+		assertEquals(1, Consistency.await(replies, reply -> true, 2, 200).size());
+		long millis = (System.nanoTime() - start) / 1_000_000;
+		assertTrue("waited " + millis + " ms", millis >= 150 && millis < 5000);
+	}
+
+	@Test
+	public void repliesArrivingLaterAreCounted() throws InterruptedException {
+		CompletableFuture<String> late = new CompletableFuture<>();
+		new Thread(() -> {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				return;
+			}
+			late.complete("late");
+		}).start();
+
+		List<CompletableFuture<String>> replies = Arrays.asList(CompletableFuture.completedFuture("ok"), late);
+		assertEquals(Arrays.asList("ok", "late"), Consistency.await(replies, reply -> true, 2, 10000));
+	}
+
+	@Test
+	public void copiesKeepTheLaterOfTwoWrites() {
+		VersionedStore store = new VersionedStore(new ConcurrentKeyValueStore());
+		assertTrue(store.put("k", "second", new WriteVersion(1, 5)));
+		assertFalse(store.put("k", "first", new WriteVersion(1, 4)));
+		assertEquals("second", store.get("k"));
+
+		// A write of a later run of the owner is newer
+		assertTrue(store.put("k", "restarted", new WriteVersion(2, 1)));
+		assertEquals("restarted", store.get("k"));
+	}
+
+	@Test
+	public void ownerWritesAreNewerThanTheCopyTheyReplace() {
+		VersionedStore store = new VersionedStore(new ConcurrentKeyValueStore());
+		assertEquals(new WriteVersion(1, 3), store.putNewer("k", "a", new WriteVersion(1, 3)));
+		// Written by an owner that started later
+		store.put("k", "b", new WriteVersion(5, 9));
+
+		assertEquals(new WriteVersion(5, 10), store.putNewer("k", "c", new WriteVersion(1, 4)));
+		assertEquals("c", store.get("k"));
+	}
+
+	@Test
+	public void plainWritesAndRemovesForgetTheVersion() {
+		VersionedStore store = new VersionedStore(new ConcurrentKeyValueStore());
+		store.put("k", "a", new WriteVersion(1, 1));
+		store.put("k", "b");
+		assertEquals(WriteVersion.NONE, store.getVersion("k"));
+
+		store.put("k", "c", new WriteVersion(1, 2));
+		store.remove("k");
+		assertEquals(WriteVersion.NONE, store.getVersion("k"));
+		assertTrue(store.put("k", "d", new WriteVersion(1, 1)));
+	}
+
+	@Test
+	public void theNewestCopyWinsOverAStaleOwner() {
+		VersionedStore owner = new VersionedStore(new ConcurrentKeyValueStore());
+		VersionedStore replica = new VersionedStore(new ConcurrentKeyValueStore());
+		owner.put("k", "old", new WriteVersion(1, 1));
+		replica.put("k", "new", new WriteVersion(1, 2));
+
+		VersionedStore.Copy newest = Consistency.newest(Arrays.asList(owner.getCopy("k"),
+				Consistency.parseCopy(Consistency.replyCopy(replica.getCopy("k")))));
+		assertEquals("new", newest.getValue());
+		assertEquals(new WriteVersion(1, 2), newest.getVersion());
+	}
+
+	@Test
+	public void copiesGoThroughTheirReply() {
+		VersionedStore.Copy copy = Consistency
+				.parseCopy(Consistency.replyCopy(new VersionedStore.Copy("a:b", new WriteVersion(3, 4))));
+		assertEquals("a:b", copy.getValue());
+		assertEquals(new WriteVersion(3, 4), copy.getVersion());
+
+		VersionedStore.Copy missing = Consistency.parseCopy(Consistency.replyCopy(
+				new VersionedStore.Copy(null, WriteVersion.NONE)));
+		assertEquals(null, missing.getValue());
+		assertEquals(null, Consistency.parseCopy("null"));
+		assertEquals(null, Consistency.parseCopy(DHTMain.VERSIONED_VALUE + ":x:1:v"));
+	}
+
+}
@@ -0,0 +1,149 @@
+package com.ds.dht;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A peer on a local port that accepts binary connections and hands every
+ * request it reads to the test, which answers them in any order it likes.
+ */
+class FakePeer implements Closeable {
+
+	/**
+	 * A request read from one of the connections.
+	 */
+	static final class Request {
+		private final Message message;
+		private final OutputStream out;
+
+		private Request(Message message, OutputStream out) {
+			this.message = message;
+			this.out = out;
+		}
+
+		Message getMessage() {
+			return message;
+		}
+
+		void reply(String text) throws IOException {
+			synchronized (out) {
+				BinaryCodec.writeFrame(out, new Message(BinaryCodec.REPLY, message.getRequestId(), text), null);
+			}
+		}
+	}
+
+	private ServerSocket server;
+	private List<Socket> connections = new CopyOnWriteArrayList<>();
+	private BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+
+	FakePeer() throws IOException {
+		server = new ServerSocket(0);
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Socket socket = server.accept();
+						connections.add(socket);
+						serve(socket);
+					}
+				} catch (IOException e) {
+					// The peer was closed
+				}
+			}
+		}, "fake-peer");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private void serve(Socket socket) {
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+					OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+					if (!readLine(in).startsWith(DHTMain.PROTOCOL_BINARY)) {
+						socket.close();
+						return;
+					}
+					out.write((DHTMain.PROTOCOL_ACCEPTED + "\n").getBytes(StandardCharsets.UTF_8));
+					out.flush();
+
+					ByteBuffer buffer = null;
+					while ((buffer = BinaryCodec.readFrame(in, buffer)) != null) {
+						requests.add(new Request(BinaryCodec.decodePayload(buffer), out));
+					}
+				} catch (IOException e) {
+					// The connection was closed
+				}
+			}
+		}, "fake-peer-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private static String readLine(DataInputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		for (int b = in.read(); b >= 0 && b != '\n'; b = in.read()) {
+			line.write(b);
+		}
+		return new String(line.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Number of connections accepted so far.
+	 */
+	int getConnections() {
+		return connections.size();
+	}
+
+	/**
+	 * The next request that arrived, waiting for it a few seconds.
+	 */
+	Request next() throws InterruptedException {
+		Request request = poll(5000);
+		if (request == null) {
+			throw new AssertionError("no request arrived");
+		}
+		return request;
+	}
+
+	/**
+	 * The next request that arrived within the given time, or null.
+	 */
+	Request poll(long millis) throws InterruptedException {
+		return requests.poll(millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Closes every accepted connection, as a peer that went away.
+	 */
+	void dropConnections() throws IOException {
+		for (Socket socket : connections) {
+			socket.close();
+		}
+	}
+
+	public void close() throws IOException {
+		server.close();
+		dropConnections();
+	}
+
+}
@@ -0,0 +1,107 @@
+package com.ds.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FingerIndexTest {
+
+	@Test
+	public void emptyTableHasNoFingers() {
+		FingerIndex index = FingerIndex.of(new Finger[4]);
+
+		assertEquals(0, index.size());
+		assertNull(index.closestPrecedingFinger(42));
+		assertTrue(index.precedingFingers(42, 3).isEmpty());
+	}
+
+	@Test
+	public void skipsUnsetAndDuplicateFingers() {
+		Finger a = new Finger("127.0.0.1", 9001);
+		Finger b = new Finger("127.0.0.1", 9002);
+		FingerIndex index = FingerIndex.of(new Finger[] { a, null, b, a, null });
+
+		assertEquals(a.getNodeId() == b.getNodeId() ? 1 : 2, index.size());
+	}
+
+	@Test
+	public void findsTheClosestPrecedingFinger() {
+		Finger[] table = fingers(16);
+		FingerIndex index = FingerIndex.of(table);
+		Random random = new Random(1);
+		for (int i = 0; i < 10000; i++) {
+			long key = RingMath.wrap(random.nextLong());
+			assertEquals("key " + key, closestPreceding(table, key).getNodeId(),
+					index.closestPrecedingFinger(key).getNodeId());
+		}
+	}
+
+	@Test
+	public void aFingerAtTheKeyPrecedesIt() {
+		Finger[] table = fingers(8);
+		FingerIndex index = FingerIndex.of(table);
+		for (Finger finger : table) {
+			assertEquals(finger.getNodeId(), index.closestPrecedingFinger(finger.getNodeId()).getNodeId());
+		}
+	}
+
+	@Test
+	public void listsPrecedingFingersCounterClockwise() {
+		Finger[] table = fingers(16);
+		FingerIndex index = FingerIndex.of(table);
+		List<Long> ids = distinctIds(table);
+		Random random = new Random(2);
+		for (int i = 0; i < 1000; i++) {
+			long key = RingMath.wrap(random.nextLong());
+			ids.sort(Comparator.comparing(id -> RingMath.distance(id, key), Long::compareUnsigned));
+
+			List<Finger> preceding = index.precedingFingers(key, 5);
+			assertEquals(Math.min(5, ids.size()), preceding.size());
+			for (int j = 0; j < preceding.size(); j++) {
+				assertEquals(ids.get(j).longValue(), preceding.get(j).getNodeId());
+			}
+		}
+		assertEquals(ids.size(), index.precedingFingers(0, ids.size() + 10).size());
+	}
+
+	private static Finger[] fingers(int count) {
+		Finger[] table = new Finger[count];
+		for (int i = 0; i < count; i++) {
+			table[i] = new Finger("127.0.0.1", 8001 + 17 * i);
+		}
+		return table;
+	}
+
+	/**
+	 * The finger the fewest steps counter clockwise from the key, by walking
+	 * the whole table.
+	 */
+	private static Finger closestPreceding(Finger[] table, long key) {
+		Finger closest = null;
+		for (Finger finger : table) {
+			if (closest == null || Long.compareUnsigned(RingMath.distance(finger.getNodeId(), key),
+					RingMath.distance(closest.getNodeId(), key)) < 0) {
+				closest = finger;
+			}
+		}
+		return closest;
+	}
+
+	private static List<Long> distinctIds(Finger[] table) {
+		Map<Long, Finger> byId = new LinkedHashMap<>();
+		for (Finger finger : table) {
+			byId.putIfAbsent(finger.getNodeId(), finger);
+		}
+		return new ArrayList<>(byId.keySet());
+	}
+
+}
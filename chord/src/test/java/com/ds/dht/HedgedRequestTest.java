@@ -0,0 +1,143 @@
+package com.ds.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class HedgedRequestTest {
+
+	private final static List<Finger> TARGETS = Arrays.asList(new Finger("127.0.0.1", 9001),
+			new Finger("127.0.0.1", 9002), new Finger("127.0.0.1", 9003));
+
+	private ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+	private StubPool pool = new StubPool();
+
+	/**
+	 * Hands out one reply future per node instead of sending anything.
+	 */
+	private static class StubPool extends ConnectionPool {
+		private Map<Integer, CompletableFuture<String>> replies = new ConcurrentHashMap<>();
+
+		@Override
+		public CompletableFuture<String> requestAsync(Finger finger, String command, Object... fields) {
+			return reply(finger.getPort());
+		}
+
+		CompletableFuture<String> reply(int port) {
+			return replies.computeIfAbsent(port, p -> new CompletableFuture<>());
+		}
+
+		boolean wasSentTo(int port) {
+			return replies.containsKey(port);
+		}
+	}
+
+	@After
+	public void stop() {
+		timer.shutdownNow();
+		pool.close();
+	}
+
+	private CompletableFuture<String> start(long hedgeAfter) {
+		return new HedgedRequest(pool, Runnable::run, timer, TARGETS, hedgeAfter, reply -> reply.startsWith("ok"),
+				DHTMain.FIND_NODE, "42").start();
+	}
+
+	@Test
+	public void aFastReplyIsNotHedged() throws Exception {
+		CompletableFuture<String> result = start(200);
+		pool.reply(9001).complete("ok 1");
+
+		assertEquals("ok 1", result.get(5, TimeUnit.SECONDS));
+		Thread.sleep(300);
+		assertFalse(pool.wasSentTo(9002));
+	}
+
+	@Test
+	public void theFirstAcceptedReplyWinsAndTheOthersAreCancelled() throws Exception {
+		CompletableFuture<String> result = start(50);
+		awaitSent(9003);
+		pool.reply(9002).complete("ok 2");
+
+		assertEquals("ok 2", result.get(5, TimeUnit.SECONDS));
+		assertTrue(pool.reply(9001).isCancelled());
+		assertTrue(pool.reply(9003).isCancelled());
+		// A later reply changes nothing
+		pool.reply(9001).complete("ok 1");
+		assertEquals("ok 2", result.get());
+	}
+
+	@Test
+	public void aRejectedReplyHedgesAtOnce() throws Exception {
+		CompletableFuture<String> result = start(60000);
+		pool.reply(9001).complete("redirect");
+		assertTrue(pool.wasSentTo(9002));
+		assertFalse(pool.wasSentTo(9003));
+
+		pool.reply(9002).completeExceptionally(new IOException("down"));
+		pool.reply(9003).complete("ok 3");
+		assertEquals("ok 3", result.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void withoutAnAcceptedReplyTheFirstReplyIsReturned() throws Exception {
+		CompletableFuture<String> result = start(60000);
+		pool.reply(9001).completeExceptionally(new IOException("down"));
+		pool.reply(9002).complete("redirect 2");
+		pool.reply(9003).complete("redirect 3");
+
+		assertEquals("redirect 2", result.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void failsWhenEveryNodeFails() throws Exception {
+		CompletableFuture<String> result = start(60000);
+		for (Finger target : TARGETS) {
+			pool.reply(target.getPort()).completeExceptionally(new IOException("down " + target.getPort()));
+		}
+
+		Throwable error = PeerConnectionTest.failure(result);
+		assertEquals("down 9003", error.getMessage());
+	}
+
+	@Test
+	public void cancellingTheResultCancelsTheRequests() throws Exception {
+		CompletableFuture<String> result = start(500);
+		awaitSent(9002);
+		result.cancel(false);
+
+		assertTrue(pool.reply(9001).isCancelled());
+		assertTrue(pool.reply(9002).isCancelled());
+		Thread.sleep(700);
+		assertFalse(pool.wasSentTo(9003));
+	}
+
+	@Test
+	public void failsOnceThePoolIsStopped() throws Exception {
+		timer.shutdownNow();
+		CompletableFuture<String> result = start(50);
+
+		assertTrue(PeerConnectionTest.failure(result) instanceof IOException);
+	}
+
+	private void awaitSent(int port) throws InterruptedException {
+		for (int i = 0; i < 250 && !pool.wasSentTo(port); i++) {
+			Thread.sleep(20);
+		}
+		assertTrue(pool.wasSentTo(port));
+	}
+
+}
@@ -0,0 +1,108 @@
+package com.ds.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MembershipTableTest {
+
+	@Test
+	public void emptyTableHasNoOwner() {
+		assertNull(MembershipTable.of(Collections.<Finger> emptyList()).ownerOf(42));
+	}
+
+	@Test
+	public void keepsNodesWithTheSameIdOnce() {
+		Finger node = new Finger("127.0.0.1", 9001);
+		MembershipTable table = MembershipTable.of(Arrays.asList(node, new Finger("127.0.0.1", 9001)));
+
+		assertEquals(1, table.size());
+	}
+
+	@Test
+	public void theOwnerIsTheFirstNodeAtOrAfterTheKey() {
+		List<Finger> nodes = nodes(12);
+		MembershipTable table = MembershipTable.of(nodes);
+		Random random = new Random(3);
+		for (int i = 0; i < 10000; i++) {
+			long key = RingMath.wrap(random.nextLong());
+			assertEquals("key " + key, successor(nodes, key).getNodeId(), table.ownerOf(key).getNodeId());
+		}
+		for (Finger node : nodes) {
+			assertEquals(node.getNodeId(), table.ownerOf(node.getNodeId()).getNodeId());
+		}
+	}
+
+	@Test
+	public void successorsFollowTheNodeClockwise() {
+		List<Finger> nodes = nodes(12);
+		MembershipTable table = MembershipTable.of(nodes);
+		List<Finger> ring = new ArrayList<>(table.getNodes());
+		for (int n = 0; n < ring.size(); n++) {
+			List<Finger> successors = table.successorsOf(ring.get(n), 3);
+			assertEquals(3, successors.size());
+			for (int i = 0; i < 3; i++) {
+				assertEquals(ring.get((n + 1 + i) % ring.size()).getNodeId(), successors.get(i).getNodeId());
+			}
+		}
+	}
+
+	@Test
+	public void successorsOfAnUnknownNodeStartAtItsOwner() {
+		List<Finger> nodes = nodes(12);
+		MembershipTable table = MembershipTable.of(nodes.subList(1, nodes.size()));
+		Finger missing = nodes.get(0);
+
+		List<Finger> successors = table.successorsOf(missing, 2);
+		assertEquals(table.ownerOf(missing.getNodeId()).getNodeId(), successors.get(0).getNodeId());
+	}
+
+	@Test
+	public void successorsNeverIncludeTheNodeItself() {
+		List<Finger> nodes = nodes(3);
+		MembershipTable table = MembershipTable.of(nodes);
+		for (Finger node : nodes) {
+			List<Finger> successors = table.successorsOf(node, 5);
+			assertEquals(table.size() - 1, successors.size());
+			for (Finger successor : successors) {
+				assertFalse(successor.getNodeId() == node.getNodeId());
+			}
+		}
+	}
+
+	@Test
+	public void tableIsSortedByUnsignedId() {
+		List<Finger> sorted = MembershipTable.of(nodes(12)).getNodes();
+		for (int i = 1; i < sorted.size(); i++) {
+			assertEquals(-1, Integer.signum(RingMath.compare(sorted.get(i - 1).getNodeId(),
+					sorted.get(i).getNodeId())));
+		}
+	}
+
+	private static List<Finger> nodes(int count) {
+		List<Finger> nodes = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			nodes.add(new Finger("127.0.0.1", 8001 + 31 * i));
+		}
+		return nodes;
+	}
+
+	/**
+	 * The node the fewest steps clockwise from the key, by walking all
+	 * nodes.
+	 */
+	private static Finger successor(List<Finger> nodes, long key) {
+		return Collections.min(nodes,
+				Comparator.comparing(node -> RingMath.distance(key, node.getNodeId()), Long::compareUnsigned));
+	}
+
+}
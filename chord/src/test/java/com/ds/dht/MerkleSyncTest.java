@@ -0,0 +1,142 @@
+package com.ds.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MerkleSyncTest {
+
+	private MerkleTree ownerTree = new MerkleTree();
+	private VersionedStore owner = new VersionedStore(new MerkleStore(new ConcurrentKeyValueStore(), ownerTree));
+	private MerkleTree replicaTree = new MerkleTree();
+	private VersionedStore replica = new VersionedStore(new MerkleStore(new ConcurrentKeyValueStore(), replicaTree));
+
+	@Test
+	public void rangesThatAgreeCostOneRequest() throws IOException {
+		fill(owner, 100);
+		fill(replica, 100);
+		MerkleSync sync = sync(new ReplicaPeer());
+
+		assertTrue(sync.run());
+		assertEquals(1, sync.getRequests());
+		assertEquals(0, sync.getDifferingPieces());
+	}
+
+	@Test
+	public void repairsBothSides() throws IOException {
+		fill(owner, 100);
+		fill(replica, 100);
+		replica.remove("key1");
+		replica.put("key2", "stale");
+		replica.put("missed", "value");
+		MerkleSync sync = sync(new ReplicaPeer());
+
+		assertTrue(sync.run());
+		assertEquals(2, sync.getPushed());
+		assertEquals(1, sync.getPulled());
+		assertEquals("value1", replica.get("key1"));
+		assertEquals("value2", replica.get("key2"));
+		assertEquals("value", owner.get("missed"));
+		assertEquals(root(ownerTree, owner), root(replicaTree, replica));
+	}
+
+	@Test
+	public void theNewerVersionWins() throws IOException {
+		owner.put("written", "old", new WriteVersion(1, 1));
+		replica.put("written", "new", new WriteVersion(1, 2));
+		owner.put("replicated", "new", new WriteVersion(1, 4));
+		replica.put("replicated", "old", new WriteVersion(1, 3));
+		MerkleSync sync = sync(new ReplicaPeer());
+
+		assertTrue(sync.run());
+		assertEquals(1, sync.getPulled());
+		assertEquals(1, sync.getPushed());
+		assertEquals("new", owner.get("written"));
+		assertEquals(new WriteVersion(1, 2), owner.getVersion("written"));
+		assertEquals("new", replica.get("replicated"));
+		assertEquals(new WriteVersion(1, 4), replica.getVersion("replicated"));
+	}
+
+	@Test
+	public void keysAndValuesKeepTheirSeparators() throws IOException {
+		replica.put("user:42", "a::b");
+		replica.put("::", ":");
+		owner.put("host:port", "x:y::z");
+		MerkleSync sync = sync(new ReplicaPeer());
+
+		assertTrue(sync.run());
+		assertEquals("a::b", owner.get("user:42"));
+		assertEquals(":", owner.get("::"));
+		assertEquals("x:y::z", replica.get("host:port"));
+		assertNull(owner.get("user"));
+		assertEquals(root(ownerTree, owner), root(replicaTree, replica));
+	}
+
+	@Test
+	public void malformedKeyRepliesStoreNothing() {
+		replica.put("a", "1");
+		ReplicaPeer peer = new ReplicaPeer() {
+			@Override
+			public List<String> keys(List<Integer> pieces) {
+				return Arrays.asList("a", "1", "1", "1", "b");
+			}
+		};
+
+		try {
+			sync(peer).run();
+			fail("stored a reply with an incomplete record");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertNull(owner.get("a"));
+		assertNull(owner.get("b"));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsRepliesThatAreNotPackedFields() throws IOException {
+		MerkleSync.parseKeys("3:ab");
+	}
+
+	private MerkleSync sync(MerkleSync.Peer peer) {
+		// The whole ring, as owned by the only node of a ring
+		return new MerkleSync(ownerTree.hashes(0, 0, owner), owner, peer);
+	}
+
+	private static void fill(KeyValueStore store, int count) {
+		for (int i = 0; i < count; i++) {
+			store.put("key" + i, "value" + i);
+		}
+	}
+
+	private static long root(MerkleTree tree, KeyValueStore store) {
+		return tree.hashes(0, 0, store).get(0, 0);
+	}
+
+	/**
+	 * Answers like a replica node would, through the text of the replies.
+	 */
+	private class ReplicaPeer implements MerkleSync.Peer {
+
+		public String hashes(int level, List<Integer> indexes) {
+			return MerkleSync.replyHashes(replicaTree.hashes(0, 0, replica), level, indexes);
+		}
+
+		public List<String> keys(List<Integer> pieces) throws IOException {
+			return MerkleSync.parseKeys(MerkleSync.replyKeys(replicaTree.hashes(0, 0, replica), replica, pieces));
+		}
+
+		public boolean put(List<String> records) {
+			ReplicaStream.store(replica, records, 0);
+			return true;
+		}
+
+	}
+
+}
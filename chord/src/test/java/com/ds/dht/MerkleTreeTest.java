@@ -0,0 +1,111 @@
+package com.ds.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+public class MerkleTreeTest {
+
+	@Test
+	public void rootDoesNotDependOnWriteOrder() {
+		MerkleTree first = new MerkleTree();
+		KeyValueStore firstStore = new MerkleStore(new ConcurrentKeyValueStore(), first);
+		MerkleTree second = new MerkleTree();
+		KeyValueStore secondStore = new MerkleStore(new ConcurrentKeyValueStore(), second);
+		for (int i = 0; i < 100; i++) {
+			firstStore.put("key" + i, "value" + i);
+			secondStore.put("key" + (99 - i), "value" + (99 - i));
+		}
+
+		assertEquals(root(first, firstStore), root(second, secondStore));
+	}
+
+	@Test
+	public void rootChangesWithAValue() {
+		MerkleTree tree = new MerkleTree();
+		KeyValueStore store = new MerkleStore(new ConcurrentKeyValueStore(), tree);
+		store.put("a", "1");
+		long before = root(tree, store);
+		store.put("a", "2");
+
+		assertNotEquals(before, root(tree, store));
+		store.put("a", "1");
+		assertEquals(before, root(tree, store));
+	}
+
+	@Test
+	public void removingAKeyTakesItOutOfTheHash() {
+		MerkleTree tree = new MerkleTree();
+		KeyValueStore store = new MerkleStore(new ConcurrentKeyValueStore(), tree);
+		long empty = root(tree, store);
+		store.put("a", "1");
+		store.remove("a");
+
+		assertEquals(empty, root(tree, store));
+	}
+
+	@Test
+	public void subtractUndoesAdd() {
+		MerkleTree tree = new MerkleTree(4);
+		KeyValueStore store = new ConcurrentKeyValueStore();
+		long empty = root(tree, store);
+		tree.add(SHAHelper.hashToRing("a"), "a", "1");
+		tree.subtract(SHAHelper.hashToRing("a"), "a", "1");
+
+		assertEquals(empty, root(tree, store));
+	}
+
+	@Test
+	public void aRangeOnlyCoversItsOwnKeys() {
+		MerkleTree first = new MerkleTree();
+		KeyValueStore firstStore = new MerkleStore(new ConcurrentKeyValueStore(), first);
+		MerkleTree second = new MerkleTree();
+		KeyValueStore secondStore = new MerkleStore(new ConcurrentKeyValueStore(), second);
+		for (int i = 0; i < 100; i++) {
+			firstStore.put("key" + i, "value" + i);
+			secondStore.put("key" + i, "value" + i);
+		}
+		long outside = SHAHelper.hashToRing("key0");
+		long from = outside;
+		long to = RingMath.wrap(outside + DHTMain.ID_MASK / 2);
+		secondStore.put("key0", "changed");
+
+		assertEquals(first.hashes(from, to, firstStore).get(0, 0), second.hashes(from, to, secondStore).get(0, 0));
+		assertNotEquals(root(first, firstStore), root(second, secondStore));
+	}
+
+	@Test
+	public void piecesAreTheBucketsWhenTheRangeIsAligned() {
+		MerkleTree tree = new MerkleTree(4);
+		MerkleTree.Hashes hashes = tree.hashes(DHTMain.ID_MASK, DHTMain.ID_MASK, new ConcurrentKeyValueStore());
+
+		assertEquals(16, hashes.getPieceCount());
+		assertEquals(4, hashes.getDepth());
+		assertContiguous(hashes, DHTMain.ID_MASK);
+	}
+
+	@Test
+	public void bucketsCutByTheRangeAreSplit() {
+		MerkleTree tree = new MerkleTree(4);
+		MerkleTree.Hashes hashes = tree.hashes(0, 0, new ConcurrentKeyValueStore());
+
+		// Bucket 0 is cut at id 0, which comes last
+		assertEquals(17, hashes.getPieceCount());
+		assertEquals(5, hashes.getDepth());
+		assertContiguous(hashes, 0);
+	}
+
+	private static void assertContiguous(MerkleTree.Hashes hashes, long bound) {
+		assertEquals(bound, hashes.getPiece(0)[0]);
+		for (int i = 1; i < hashes.getPieceCount(); i++) {
+			assertEquals(hashes.getPiece(i - 1)[1], hashes.getPiece(i)[0]);
+		}
+		assertEquals(bound, hashes.getPiece(hashes.getPieceCount() - 1)[1]);
+	}
+
+	private static long root(MerkleTree tree, KeyValueStore store) {
+		return tree.hashes(0, 0, store).get(0, 0);
+	}
+
+}
@@ -0,0 +1,45 @@
+package com.ds.dht;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MessageTest {
+
+	@Test
+	public void packedFieldsRoundTrip() {
+		List<String> fields = Arrays.asList("key:1", "a::b", "", ":", "12:34", "line\nbreak");
+		assertEquals(fields, Message.unpackFields(Message.packFields(fields)));
+	}
+
+	@Test
+	public void packsNothingToAnEmptyString() {
+		assertEquals("", Message.packFields(Collections.<String> emptyList()));
+		assertEquals(Collections.emptyList(), Message.unpackFields(""));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAFieldRunningPastTheEnd() {
+		Message.unpackFields("5:abc");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAMissingLength() {
+		Message.unpackFields(":abc");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsABadLength() {
+		Message.unpackFields("x:abc");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnOverlongLength() {
+		Message.unpackFields("99999999999:abc");
+	}
+
+}
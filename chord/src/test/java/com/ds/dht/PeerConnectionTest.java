@@ -0,0 +1,126 @@
+package com.ds.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PeerConnectionTest {
+
+	private FakePeer peer;
+	private PeerConnection connection;
+
+	@Before
+	public void connect() throws IOException {
+		peer = new FakePeer();
+		connection = new PeerConnection("127.0.0.1", peer.getPort());
+	}
+
+	@After
+	public void close() throws IOException {
+		connection.close();
+		peer.close();
+	}
+
+	@Test
+	public void requestsCarryTheirOwnIds() throws Exception {
+		assertTrue(connection.isBinary());
+		connection.requestAsync(DHTMain.FIND_VALUE, "a");
+		connection.requestAsync(DHTMain.FIND_VALUE, "b");
+
+		FakePeer.Request first = peer.next();
+		FakePeer.Request second = peer.next();
+		assertEquals("a", first.getMessage().getField(0));
+		assertFalse(first.getMessage().getRequestId() == second.getMessage().getRequestId());
+		assertFalse(first.getMessage().getRequestId() == 0);
+	}
+
+	@Test
+	public void repliesFindTheirRequestInAnyOrder() throws Exception {
+		CompletableFuture<String> a = connection.requestAsync(DHTMain.FIND_VALUE, "a");
+		CompletableFuture<String> b = connection.requestAsync(DHTMain.FIND_VALUE, "b");
+		FakePeer.Request first = peer.next();
+		FakePeer.Request second = peer.next();
+		assertEquals(2, connection.getInFlight());
+
+		second.reply("value of " + second.getMessage().getField(0));
+		assertEquals("value of b", b.get(5, TimeUnit.SECONDS));
+		assertFalse(a.isDone());
+
+		first.reply("value of " + first.getMessage().getField(0));
+		assertEquals("value of a", a.get(5, TimeUnit.SECONDS));
+		assertEquals(0, connection.getInFlight());
+	}
+
+	@Test
+	public void busyRepliesFailWithBusyException() throws Exception {
+		CompletableFuture<String> reply = connection.requestAsync(DHTMain.FIND_VALUE, "a");
+		peer.next().reply(DHTMain.BUSY);
+
+		assertTrue(failure(reply) instanceof PeerConnection.BusyException);
+		// The connection itself is fine
+		assertTrue(connection.isOpen());
+		CompletableFuture<String> next = connection.requestAsync(DHTMain.FIND_VALUE, "b");
+		peer.next().reply("b");
+		assertEquals("b", next.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void waitingRequestsFailWhenThePeerGoesAway() throws Exception {
+		CompletableFuture<String> a = connection.requestAsync(DHTMain.FIND_VALUE, "a");
+		CompletableFuture<String> b = connection.requestAsync(DHTMain.FIND_VALUE, "b");
+		peer.next();
+		peer.next();
+		peer.dropConnections();
+
+		assertTrue(failure(a) instanceof IOException);
+		assertTrue(failure(b) instanceof IOException);
+	}
+
+	@Test
+	public void waitingRequestsFailWhenTheConnectionIsClosed() throws Exception {
+		CompletableFuture<String> reply = connection.requestAsync(DHTMain.FIND_VALUE, "a");
+		peer.next();
+		connection.close();
+
+		assertTrue(failure(reply) instanceof IOException);
+		assertFalse(connection.isOpen());
+	}
+
+	@Test
+	public void cancelledRequestsIgnoreTheirLateReply() throws Exception {
+		CompletableFuture<String> reply = connection.requestAsync(DHTMain.FIND_VALUE, "a");
+		FakePeer.Request request = peer.next();
+		reply.cancel(false);
+		request.reply("late");
+
+		CompletableFuture<String> next = connection.requestAsync(DHTMain.FIND_VALUE, "b");
+		peer.next().reply("b");
+		assertEquals("b", next.get(5, TimeUnit.SECONDS));
+		assertEquals(0, connection.getInFlight());
+	}
+
+	/**
+	 * The error a request failed with, waiting for it a few seconds.
+	 */
+	static Throwable failure(CompletableFuture<String> reply) throws InterruptedException, TimeoutException {
+		try {
+			reply.get(5, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+		fail("the request did not fail");
+		return null;
+	}
+
+}
@@ -0,0 +1,171 @@
+package com.ds.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReplicaStreamTest {
+
+	private FakePeer peer;
+	private ConnectionPool pool;
+	private Finger successor;
+
+	@Before
+	public void start() throws IOException {
+		peer = new FakePeer();
+		pool = new ConnectionPool();
+		successor = new Finger("127.0.0.1", peer.getPort());
+	}
+
+	@After
+	public void stop() throws IOException {
+		pool.close();
+		peer.close();
+	}
+
+	@Test
+	public void noMoreThanTheWindowWaitsForAcknowledgement() throws Exception {
+		// One record per batch
+		CompletableFuture<Integer> sent = send(records(5), 1, 2);
+		List<FakePeer.Request> batches = nextBatches(2);
+		assertNull(peer.poll(200));
+
+		acknowledge(batches.get(0));
+		FakePeer.Request third = peer.next();
+		assertEquals("key2", third.getMessage().getField(1));
+		assertNull(peer.poll(200));
+
+		acknowledge(batches.get(1));
+		acknowledge(third);
+		acknowledge(peer.next());
+		acknowledge(peer.next());
+		assertEquals(Integer.valueOf(5), sent.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void batchesHoldRecordsUpToTheBatchSize() throws Exception {
+		List<String> records = records(10);
+		int recordBytes = 0;
+		for (int i = 0; i < ReplicaStream.RECORD_FIELDS; i++) {
+			recordBytes += records.get(i).length();
+		}
+		CompletableFuture<Integer> sent = send(records, 3 * recordBytes, 10);
+
+		int batches = 0;
+		for (int confirmed = 0; confirmed < 10; batches++) {
+			FakePeer.Request batch = peer.next();
+			confirmed += (batch.getMessage().getFieldCount() - 1) / ReplicaStream.RECORD_FIELDS;
+			acknowledge(batch);
+		}
+		assertEquals(4, batches);
+		assertEquals(Integer.valueOf(10), sent.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void aRejectedBatchStopsTheStream() throws Exception {
+		CompletableFuture<Integer> sent = send(records(5), 1, 2);
+		List<FakePeer.Request> batches = nextBatches(2);
+		acknowledge(batches.get(0));
+		batches.get(1).reply(DHTMain.REPLICAS_REJECTED + ":0");
+
+		// Only the records before the rejected batch count
+		assertEquals(Integer.valueOf(1), sent.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void anAcknowledgementOfOtherRecordsDoesNotConfirm() throws Exception {
+		CompletableFuture<Integer> sent = send(records(1), 1, 1);
+		peer.next().reply(DHTMain.REPLICAS_STORED + ":1:0");
+
+		assertEquals(Integer.valueOf(0), sent.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void aNodeStoresNoRecordOfABatchWithTheWrongChecksum() throws IOException {
+		Node node = new Node(new NodeHost(), "127.0.0.1", String.valueOf(freePort()));
+		List<String> records = records(2);
+		List<Object> fields = new ArrayList<>();
+		fields.add(ReplicaStream.checksum(records, 0));
+		fields.addAll(records);
+		// Changed on the way
+		fields.set(2, "changed");
+
+		String reply = new ProtocolHandler(node)
+				.handleMessage(Message.of(DHTMain.PUT_REPLICAS, 0, fields.toArray()));
+		assertTrue(reply, reply.startsWith(DHTMain.REPLICAS_REJECTED));
+		assertNull(node.getDataStore().get("key0"));
+		assertNull(node.getDataStore().get("key1"));
+
+		fields.set(2, records.get(1));
+		reply = new ProtocolHandler(node).handleMessage(Message.of(DHTMain.PUT_REPLICAS, 0, fields.toArray()));
+		assertEquals(DHTMain.REPLICAS_STORED + ":2:" + fields.get(0), reply);
+		assertEquals("value1", node.getDataStore().get("key1"));
+	}
+
+	@Test
+	public void checksumsChangeWithTheFields() {
+		List<String> records = records(2);
+		String checksum = ReplicaStream.checksum(records, 0);
+		assertEquals(checksum, ReplicaStream.checksum(new ArrayList<>(records), 0));
+
+		// The separators count, fields cannot be moved between records
+		List<String> shifted = new ArrayList<>(records);
+		shifted.set(0, "key0v");
+		shifted.set(1, "alue0");
+		assertFalse(checksum.equals(ReplicaStream.checksum(shifted, 0)));
+	}
+
+	private CompletableFuture<Integer> send(List<String> records, int batchBytes, int window) {
+		return CompletableFuture.supplyAsync(() -> ReplicaStream.send(pool, successor, records, batchBytes, window));
+	}
+
+	/**
+	 * The next batches that arrived, in the order they were sent. Batches
+	 * may go out on different connections and arrive in any order.
+	 */
+	private List<FakePeer.Request> nextBatches(int count) throws InterruptedException {
+		List<FakePeer.Request> batches = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			batches.add(peer.next());
+		}
+		batches.sort(Comparator.comparing(batch -> Integer.valueOf(batch.getMessage().getField(1).substring(3))));
+		return batches;
+	}
+
+	/**
+	 * Replies to a batch as a node that stored it.
+	 */
+	private static void acknowledge(FakePeer.Request batch) throws IOException {
+		Message message = batch.getMessage();
+		int count = (message.getFieldCount() - 1) / ReplicaStream.RECORD_FIELDS;
+		batch.reply(DHTMain.REPLICAS_STORED + ":" + count + ":" + message.getField(0));
+	}
+
+	private static List<String> records(int count) {
+		List<String> records = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			ReplicaStream.add(records, "key" + i, new VersionedStore.Copy("value" + i, new WriteVersion(1, i + 1)));
+		}
+		return records;
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+}
@@ -0,0 +1,107 @@
+package com.ds.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Reads and writes at QUORUM and ALL through an owner with two replicas, each
+ * a node of its own host on a local port. The owner owns the whole ring and
+ * is given the replicas as its successors, the stabilizers do not start
+ * before the tests are done.
+ */
+public class ReplicatedReadTest {
+
+	private static Node owner;
+	private static Node firstReplica;
+	private static Node secondReplica;
+
+	@BeforeClass
+	public static void startNodes() throws IOException {
+		owner = new Node(new NodeHost(), "127.0.0.1", String.valueOf(freePort()));
+		firstReplica = new Node(new NodeHost(), "127.0.0.1", String.valueOf(freePort()));
+		secondReplica = new Node(new NodeHost(), "127.0.0.1", String.valueOf(freePort()));
+		List<Finger> successors = Arrays.asList(finger(firstReplica), finger(secondReplica));
+		owner.updateRoutingState(state -> state.withSuccessors(successors));
+	}
+
+	@Test
+	public void aQuorumReadReturnsANewerReplicaOverAStaleOwner() throws InterruptedException {
+		assertTrue(request(owner, DHTMain.PUT_VALUE_AT, Consistency.ALL, "stale owner", "new").contains("stored"));
+		// The owner took the range over with an older copy
+		owner.getDataStore().put("stale owner", "old");
+
+		String reply = request(owner, DHTMain.FIND_VALUE_AT, Consistency.QUORUM, "stale owner");
+		assertTrue(reply, reply.endsWith(":new"));
+		assertEquals("new", owner.getDataStore().get("stale owner"));
+	}
+
+	@Test
+	public void readsRepairOlderReplicas() throws InterruptedException {
+		request(owner, DHTMain.PUT_VALUE_AT, Consistency.ALL, "stale replica", "new");
+		secondReplica.getDataStore().put("stale replica", "old");
+
+		String reply = request(owner, DHTMain.FIND_VALUE_AT, Consistency.ALL, "stale replica");
+		assertTrue(reply, reply.endsWith(":new"));
+		awaitValue(secondReplica, "stale replica", "new");
+	}
+
+	@Test
+	public void replicaBatchesDoNotUndoNewerWrites() {
+		WriteVersion older = new WriteVersion(1, 5);
+		WriteVersion newer = new WriteVersion(1, 6);
+		request(firstReplica, DHTMain.PUT_VERSIONED, newer.getEpoch(), newer.getPosition(), "batched", "newer");
+
+		// A batch read before the write and delivered after it
+		List<String> records = new ArrayList<>();
+		ReplicaStream.add(records, "batched", new VersionedStore.Copy("older", older));
+		List<Object> fields = new ArrayList<>();
+		fields.add(ReplicaStream.checksum(records, 0));
+		fields.addAll(records);
+		String reply = request(firstReplica, DHTMain.PUT_REPLICAS, fields.toArray());
+
+		assertTrue(reply, reply.startsWith(DHTMain.REPLICAS_STORED + ":1:"));
+		assertEquals("newer", firstReplica.getDataStore().get("batched"));
+		assertEquals(newer, firstReplica.getHost().getVersionedStore().getVersion("batched"));
+	}
+
+	@Test
+	public void writesOfANewOwnerAreNewerThanTheCopiesItHolds() {
+		WriteVersion previousOwner = new WriteVersion(owner.getHost().getEpoch() + 1000, 42);
+		owner.getHost().getVersionedStore().put("taken over", "previous", previousOwner);
+
+		request(owner, DHTMain.PUT_VALUE_AT, Consistency.ONE, "taken over", "current");
+		assertTrue(owner.getHost().getVersionedStore().getVersion("taken over").compareTo(previousOwner) > 0);
+		assertEquals("current", owner.getDataStore().get("taken over"));
+	}
+
+	private static String request(Node node, String command, Object... fields) {
+		return new ProtocolHandler(node).handleMessage(Message.of(command, 0, fields));
+	}
+
+	private static void awaitValue(Node node, String key, String value) throws InterruptedException {
+		for (int i = 0; i < 100 && !value.equals(node.getDataStore().get(key)); i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(value, node.getDataStore().get(key));
+	}
+
+	private static Finger finger(Node node) {
+		return new Finger(node.getNodeIpAddress(), node.getPort());
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+}
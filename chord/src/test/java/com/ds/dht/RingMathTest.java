@@ -0,0 +1,82 @@
+package com.ds.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Runs with the id width the JVM was started with, 16 bits by default.
+ */
+public class RingMathTest {
+
+	private final static long MAX = DHTMain.ID_MASK;
+
+	@Test
+	public void masksTheLowBits() {
+		assertEquals(1L, RingMath.mask(1));
+		assertEquals(0xFFFFL, RingMath.mask(16));
+		assertEquals(Long.MAX_VALUE, RingMath.mask(63));
+		assertEquals(-1L, RingMath.mask(64));
+	}
+
+	@Test
+	public void wrapsAroundTheRing() {
+		assertEquals(5, RingMath.wrap(5));
+		assertEquals(MAX, RingMath.wrap(-1));
+		if (DHTMain.ID_BITS < 64) {
+			assertEquals(5, RingMath.wrap(MAX + 6));
+		}
+	}
+
+	@Test
+	public void fingerStartsWrap() {
+		assertEquals(1, RingMath.fingerStart(0, 0));
+		assertEquals(0, RingMath.fingerStart(MAX, 0));
+		long half = 1L << (DHTMain.ID_BITS - 1);
+		assertEquals(RingMath.wrap(MAX + half), RingMath.fingerStart(MAX, DHTMain.ID_BITS - 1));
+	}
+
+	@Test
+	public void measuresClockwiseDistance() {
+		assertEquals(0, RingMath.distance(7, 7));
+		assertEquals(3, RingMath.distance(7, 10));
+		assertEquals(2, RingMath.distance(MAX, 1));
+		assertEquals(MAX, RingMath.distance(1, 0));
+	}
+
+	@Test
+	public void intervalsAreOpenBeforeAndClosedAfter() {
+		assertFalse(RingMath.inInterval(10, 10, 20));
+		assertTrue(RingMath.inInterval(11, 10, 20));
+		assertTrue(RingMath.inInterval(20, 10, 20));
+		assertFalse(RingMath.inInterval(21, 10, 20));
+		assertFalse(RingMath.inInterval(5, 10, 20));
+	}
+
+	@Test
+	public void intervalsWrapPastZero() {
+		long from = MAX - 5;
+		assertTrue(RingMath.inInterval(MAX, from, 5));
+		assertTrue(RingMath.inInterval(0, from, 5));
+		assertTrue(RingMath.inInterval(5, from, 5));
+		assertFalse(RingMath.inInterval(6, from, 5));
+		assertFalse(RingMath.inInterval(from, from, 5));
+	}
+
+	@Test
+	public void equalBoundsCoverTheWholeRing() {
+		assertTrue(RingMath.inInterval(0, 7, 7));
+		assertTrue(RingMath.inInterval(7, 7, 7));
+		assertTrue(RingMath.inInterval(MAX, 7, 7));
+	}
+
+	@Test
+	public void comparesUnsigned() {
+		assertTrue(RingMath.compare(-1L, 1L) > 0);
+		assertTrue(RingMath.compare(Long.MIN_VALUE, Long.MAX_VALUE) > 0);
+		assertEquals(0, RingMath.compare(3, 3));
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.ds.dht.query;
+
+import java.util.Arrays;
+
+import com.ds.dht.Consistency;
+
+/**
+ * Compares the latency of puts and gets at each consistency level against a
+ * running ring. Writes and then reads generated keys one after the other at
+ * ONE, QUORUM and ALL, and prints the median and 99th percentile latency
+ * and how many requests did not reach enough copies.
+ *
+ * Usage: ConsistencyBenchmark [nodeaddress] [nodeport] [requests]
+ */
+public class ConsistencyBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: ConsistencyBenchmark [nodeaddress] [nodeport] [requests]");
+			System.exit(1);
+		}
+		int requests = args.length > 2 ? Integer.valueOf(args[2]) : 2000;
+
+		DhtClient client = new DhtClient(args[0], Integer.valueOf(args[1]));
+		String[] levels = { Consistency.ONE, Consistency.QUORUM, Consistency.ALL };
+
+		// Warm up, then measure
+		for (int round = 0; round < 2; round++) {
+			for (String level : levels) {
+				long[] putNanos = new long[requests];
+				long[] getNanos = new long[requests];
+				int failed = 0;
+				for (int i = 0; i < requests; i++) {
+					long start = System.nanoTime();
+					String reply = client.put("consistency-" + i, level + "-" + round, DhtClient.RECURSIVE, level)
+							.get();
+					putNanos[i] = System.nanoTime() - start;
+					if (reply == null || reply.startsWith("CONSISTENCY_FAILED")) {
+						failed++;
+					}
+				}
+				for (int i = 0; i < requests; i++) {
+					long start = System.nanoTime();
+					String reply = client.get("consistency-" + i, DhtClient.RECURSIVE, level).get();
+					getNanos[i] = System.nanoTime() - start;
+					if (reply == null || reply.startsWith("CONSISTENCY_FAILED")) {
+						failed++;
+					}
+				}
+
+				if (round > 0) {
+					print(level + " put", putNanos);
+					print(level + " get", getNanos);
+					System.out.println(level + " requests that reached too few copies: " + failed);
+				}
+			}
+		}
+		System.out.println(requests + " requests each");
+
+		client.close();
+		System.exit(0);
+	}
+
+	private static void print(String name, long[] nanos) {
+		Arrays.sort(nanos);
+		System.out.println(String.format("%-12s p50 %8.3f ms, p99 %8.3f ms", name, nanos[nanos.length / 2] / 1e6,
+				nanos[nanos.length * 99 / 100] / 1e6));
+	}
+
+}
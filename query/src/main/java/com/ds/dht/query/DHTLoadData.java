@@ -1,32 +1,34 @@
 package com.ds.dht.query;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import com.ds.dht.DHTMain;
-import com.ds.dht.Node;
 import com.ds.dht.SHAHelper;
 
 public class DHTLoadData {
 
-	private String chordNodeAddress;
-	private int chordNodePort;
+	private List<InetSocketAddress> entryNodes;
 	private SHAHelper sha1Hasher;
-	Node currentNode;
 
 	public DHTLoadData(String address, String port) {
-		this.chordNodeAddress = address;
-		this.chordNodePort = Integer.valueOf(port);
+		this(DhtClient.parseEntryNodes(new String[] { address, port }, 0));
+	}
+
+	public DHTLoadData(List<InetSocketAddress> entryNodes) {
+		this.entryNodes = entryNodes;
+		InetSocketAddress entryNode = entryNodes.get(0);
 
 		// Hash address
-		this.sha1Hasher = new SHAHelper(this.chordNodeAddress + ":" + this.chordNodePort);
+		this.sha1Hasher = new SHAHelper(entryNode.getHostString() + ":" + entryNode.getPort());
 
-		System.out.println("Connecting to node " + this.chordNodeAddress + ", port " + this.chordNodePort
+		System.out.println("Connecting to node " + entryNode.getHostString() + ", port " + entryNode.getPort()
 				+ ", position " + sha1Hasher.getHex() + " (" + sha1Hasher.getLong() + "):");
 
 		// Establish connection to chord
@@ -35,37 +37,33 @@ public class DHTLoadData {
 	}
 
 	private void connectToChord() {
-		try {
-			// Open socket to chord node
-			Socket socket = new Socket(this.chordNodeAddress, this.chordNodePort);
-
-			// Open reader/writer to chord node
-			PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-			BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			try (BufferedReader br = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("/data.txt")))) {
-
-				String keyValue;
-				System.out.println("starting to load data from data.txt");
-				while ((keyValue = br.readLine()) != null) {
-
-					socketWriter.println("PUT_VALUE:" + keyValue);
-					String response = socketReader.readLine();
-					System.out.println(response);
-					// TODO check the Response
-				}
-				System.out.println("loaded data to DHT");
+		DhtClient client = new DhtClient(entryNodes, DhtClient.DEFAULT_MAX_IN_FLIGHT, DHTMain.REQUEST_TIMEOUT);
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("/data.txt")))) {
+
+			// Lines are key:value, the value may contain ':' itself
+			Map<String, String> values = new LinkedHashMap<>();
+			String keyValue;
+			System.out.println("starting to load data from data.txt");
+			while ((keyValue = br.readLine()) != null) {
+				String[] fields = keyValue.split(":", 2);
+				values.put(fields[0], fields.length > 1 ? fields[1] : "");
+			}
 
+			// Store all values at once and print the responses in file order
+			for (String response : client.putAll(values).get().values()) {
+				System.out.println(response);
+				// TODO check the Response
 			}
-			socketWriter.close();
-			socketReader.close();
-			socket.close();
+			System.out.println("loaded data to DHT");
+
+			client.close();
 			System.exit(0);
-		} catch (UnknownHostException e) {
-			System.err.println("Error: Unknown host " + this.chordNodeAddress);
+		} catch (ExecutionException e) {
+			System.err.println("Error: Could not store data: " + e.getCause().getMessage());
 			e.printStackTrace();
 			System.exit(1);
-		} catch (IOException e) {
-			System.err.println("Error: Cannot connect to host");
+		} catch (IOException | InterruptedException e) {
+			System.err.println("Error: Cannot read data.txt");
 			e.printStackTrace();
 			System.exit(1);
 		}
@@ -73,11 +71,11 @@ public class DHTLoadData {
 
 	public static void main(String[] args) {
 		// Check arguments
-		if (args.length == 2) {
-			// Create query node with chord node address and port
-			new DHTLoadData(args[0], args[1]);
+		if (args.length >= 2 && args.length % 2 == 0) {
+			// Create query node with chord node addresses and ports
+			new DHTLoadData(DhtClient.parseEntryNodes(args, 0));
 		} else {
-			System.err.println("Usage: DHTLoadData [nodeaddress] [nodeport]");
+			System.err.println("Usage: DHTLoadData [nodeaddress] [nodeport] [[nodeaddress] [nodeport]...]");
 			System.exit(1);
 		}
 	}
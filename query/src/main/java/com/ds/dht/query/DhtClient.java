@@ -0,0 +1,874 @@
+package com.ds.dht.query;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.ds.dht.ConnectionPool;
+import com.ds.dht.DHTMain;
+import com.ds.dht.Finger;
+import com.ds.dht.MembershipTable;
+import com.ds.dht.OwnerCache;
+import com.ds.dht.PeerLatency;
+import com.ds.dht.ProtocolHandler;
+import com.ds.dht.SHAHelper;
+
+/**
+ * Client for a chord ring, for embedding the DHT in other programs. Every
+ * request returns a future. Requests go to one of the configured entry nodes
+ * over the same connections the nodes use between themselves, see
+ * {@link ConnectionPool}. These are blocking sockets. On binary connections
+ * many requests can be in flight at once, and a reader thread per
+ * connection completes the futures. Text connections serve one request at a
+ * time, on a thread of the pool.
+ *
+ * The number of requests in flight is bounded. Requests made while the
+ * limit is reached wait in a queue and are sent in order as earlier ones
+ * complete, so {@link #get(String)} and {@link #put(String, String)} never
+ * block, and may be called from callbacks of other requests. A request that
+ * fails or gets no reply within the timeout is sent again to the next entry
+ * node, until every entry node has been tried once. A request that timed
+ * out is cancelled, the connection it was sent on stays open for the
+ * others.
+ *
+ * The futures complete with the reply line of the node, e.g.
+ * "VALUE_FOUND:..." or "Key NOT FOUND." for a get.
+ *
+ * Keys are found either recursively, the entry node passes the request on
+ * and every node on the way waits for the rest of the chain, or iteratively,
+ * every node only names the next node to ask and the client asks it itself.
+ * The nodes found to own keys are cached, later requests for keys in their
+ * ranges go straight to them and follow a REDIRECT if the ring has changed.
+ *
+ * In {@link #DIRECT} routing the client instead learns all nodes of the ring
+ * and computes the owner of every key itself, see {@link MembershipTable}.
+ *
+ * Gets without a consistency level can be spread over the owner and its
+ * replica successors, see {@link #setReadMode(String)}. Every copy answers
+ * with a version. The owner's is the position in its host's change log of
+ * the last change of the key, a replica's the position up to which it
+ * holds all of the owner's keys. A replica's answer is only taken if its
+ * version is at least the one this client last read the key at from the
+ * owner, and after a put of a key, until the owner is read again, reads of
+ * it go to the owner, so a client never reads an older value of a key than
+ * it has seen or written. Replicas lag the owner by at most one replication
+ * round. Keys the client has not read from their owner recently, see
+ * {@link #VERSION_CACHE_SIZE}, are read from the owner.
+ */
+public class DhtClient implements Closeable {
+
+	public final static int DEFAULT_MAX_IN_FLIGHT = Integer.getInteger("dht.client.maxInFlight", 256);
+
+	// Routing modes for lookups, the default is set with
+	// -Ddht.client.routing
+	public final static String RECURSIVE = "recursive";
+	public final static String ITERATIVE = "iterative";
+	public final static String DIRECT = "direct";
+	public final static String DEFAULT_ROUTING = System.getProperty("dht.client.routing", RECURSIVE);
+	// Consistency level of gets and puts, "ONE", "QUORUM" or "ALL", see
+	// Consistency. Without -Ddht.client.consistency the nodes use their own
+	public final static String DEFAULT_CONSISTENCY = System.getProperty("dht.client.consistency");
+	// Where gets without a consistency level are read, the default is set
+	// with -Ddht.client.readMode: always the owner, or the owner or one of its
+	// replica successors with the fewest of this client's requests waiting
+	// or with the lowest average latency
+	public final static String READ_OWNER = "owner";
+	public final static String LEAST_OUTSTANDING = "leastOutstanding";
+	public final static String LOWEST_LATENCY = "lowestLatency";
+	public final static String DEFAULT_READ_MODE = System.getProperty("dht.client.readMode", READ_OWNER);
+	// Keys whose version read from their owner the client remembers for
+	// reading them from replicas
+	public final static int VERSION_CACHE_SIZE = Integer.getInteger("dht.client.versionCache", 10000);
+	// Nodes an iterative lookup asks before it gives up
+	public final static int MAX_HOPS = Integer.getInteger("dht.client.maxHops", 64);
+	// Owners remembered by the client, 0 turns the owner cache off
+	public final static int OWNER_CACHE_SIZE = Integer.getInteger("dht.client.ownerCache", 1024);
+
+	private List<InetSocketAddress> entryNodes;
+	private long timeout;
+	private Semaphore inFlight;
+	// Requests waiting for one of the places in flight
+	private ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+	private volatile boolean closed;
+	private ConnectionPool connectionPool = new ConnectionPool();
+	private ScheduledExecutorService timer;
+	private OwnerCache ownerCache = new OwnerCache(OWNER_CACHE_SIZE);
+
+	// Nodes of the ring for direct routing, loaded on first use and again
+	// after a node turned out not to own a key
+	private MembershipTable membership;
+	private boolean membershipStale;
+	private CompletableFuture<MembershipTable> membershipRefresh;
+
+	// Entry node that answered last, new requests start there
+	private AtomicInteger preferredEntry = new AtomicInteger();
+
+	private volatile String readMode = DEFAULT_READ_MODE;
+	// Requests waiting for a reply and average latency by address:port, for
+	// choosing the copy to read from
+	private ConcurrentHashMap<String, AtomicInteger> outstanding = new ConcurrentHashMap<>();
+	private PeerLatency latency = new PeerLatency();
+	// Id of the owner and lowest version a replica has to answer with, by
+	// key, the least recently read dropped first
+	private Map<String, long[]> minimumVersions = Collections.synchronizedMap(new LinkedHashMap<String, long[]>(16,
+			0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+			return size() > VERSION_CACHE_SIZE;
+		}
+	});
+	private AtomicLong replicaReads = new AtomicLong();
+	private AtomicLong staleReplicaReads = new AtomicLong();
+
+	public DhtClient(String address, int port) {
+		this(Collections.singletonList(new InetSocketAddress(address, port)), DEFAULT_MAX_IN_FLIGHT,
+				DHTMain.REQUEST_TIMEOUT);
+	}
+
+	/**
+	 * @param entryNodes
+	 *            Nodes of the ring to send requests to, in order of preference
+	 * @param maxInFlight
+	 *            Maximum number of requests waiting for a reply
+	 * @param timeout
+	 *            Milliseconds to wait for a reply before trying the next entry
+	 *            node
+	 */
+	public DhtClient(List<InetSocketAddress> entryNodes, int maxInFlight, long timeout) {
+		if (entryNodes.isEmpty()) {
+			throw new IllegalArgumentException("at least one entry node is needed");
+		}
+		this.entryNodes = new ArrayList<>(entryNodes);
+		this.timeout = timeout;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "dht-client-timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Looks up the value stored for a key, routed as set by
+	 * {@link #DEFAULT_ROUTING}.
+	 */
+	public CompletableFuture<String> get(String key) {
+		return get(key, DEFAULT_ROUTING);
+	}
+
+	/**
+	 * Looks up the value stored for a key with the given routing mode.
+	 */
+	public CompletableFuture<String> get(String key, String routing) {
+		return get(key, routing, DEFAULT_CONSISTENCY);
+	}
+
+	/**
+	 * Looks up the value stored for a key with the given routing mode, read
+	 * from as many copies as the consistency level asks for. A null level
+	 * leaves it to the nodes.
+	 */
+	public CompletableFuture<String> get(String key, String routing, String consistency) {
+		if (consistency == null && !READ_OWNER.equals(readMode)) {
+			return bounded(() -> balancedRead(key, routing));
+		}
+		if (consistency == null) {
+			return bounded(() -> toOwner(key, routing, DHTMain.FIND_VALUE_DIRECT, DHTMain.FIND_VALUE, key));
+		}
+		return bounded(() -> toOwner(key, routing, DHTMain.FIND_VALUE_DIRECT_AT, DHTMain.FIND_VALUE_AT,
+				consistency, key));
+	}
+
+	/**
+	 * Reads the value for a key from the node a lookup found for it.
+	 */
+	public CompletableFuture<String> get(String key, Lookup owner) {
+		return bounded(() -> {
+			CompletableFuture<String> reply = new CompletableFuture<>();
+			Finger finger = new Finger(owner.getAddress(), owner.getPort());
+			if (DEFAULT_CONSISTENCY == null) {
+				direct(reply, finger, 1, DHTMain.FIND_VALUE_DIRECT, DHTMain.FIND_VALUE, key);
+			} else {
+				direct(reply, finger, 1, DHTMain.FIND_VALUE_DIRECT_AT, DHTMain.FIND_VALUE_AT, DEFAULT_CONSISTENCY,
+						key);
+			}
+			return reply;
+		});
+	}
+
+	/**
+	 * Stores a value for a key, routed as set by {@link #DEFAULT_ROUTING}.
+	 */
+	public CompletableFuture<String> put(String key, String value) {
+		return put(key, value, DEFAULT_ROUTING);
+	}
+
+	/**
+	 * Stores a value for a key with the given routing mode.
+	 */
+	public CompletableFuture<String> put(String key, String value, String routing) {
+		return put(key, value, routing, DEFAULT_CONSISTENCY);
+	}
+
+	/**
+	 * Stores a value for a key with the given routing mode, answered once as
+	 * many copies as the consistency level asks for have it. A null level
+	 * leaves it to the nodes.
+	 */
+	public CompletableFuture<String> put(String key, String value, String routing, String consistency) {
+		if (!READ_OWNER.equals(readMode)) {
+			readOwnerNext(key);
+		}
+		if (consistency == null) {
+			return bounded(() -> toOwner(key, routing, DHTMain.PUT_VALUE_DIRECT, DHTMain.PUT_VALUE, key, value));
+		}
+		return bounded(() -> toOwner(key, routing, DHTMain.PUT_VALUE_DIRECT_AT, DHTMain.PUT_VALUE_AT, consistency,
+				key, value));
+	}
+
+	/**
+	 * Sets where gets without a consistency level are read, {@link #READ_OWNER},
+	 * {@link #LEAST_OUTSTANDING} or {@link #LOWEST_LATENCY}.
+	 */
+	public void setReadMode(String readMode) {
+		this.readMode = readMode;
+	}
+
+	public String getReadMode() {
+		return readMode;
+	}
+
+	/**
+	 * Gets answered by a replica rather than the owner.
+	 */
+	public long getReplicaReads() {
+		return replicaReads.get();
+	}
+
+	/**
+	 * Gets a replica answered with an older version than this client had
+	 * seen, which were read again from the owner.
+	 */
+	public long getStaleReplicaReads() {
+		return staleReplicaReads.get();
+	}
+
+	/**
+	 * Finds the node that owns a key. {@link #RECURSIVE} sends one FIND_NODE
+	 * that the nodes pass on among themselves. {@link #ITERATIVE} asks the
+	 * entry node and then every node it is pointed to for the next hop with
+	 * NEXT_HOP, so no node waits for another one. {@link #DIRECT} computes
+	 * the owner from the membership without asking any node. The owner cache
+	 * is not used.
+	 */
+	public CompletableFuture<Lookup> lookup(String key, String routing) {
+		return bounded(() -> findOwner(key, routing));
+	}
+
+	/**
+	 * The owners of key ranges this client has found, see {@link OwnerCache}.
+	 */
+	public OwnerCache getOwnerCache() {
+		return ownerCache;
+	}
+
+	private CompletableFuture<Lookup> findOwner(String key, String routing) {
+		long keyId = SHAHelper.hashToRing(key);
+		long start = System.nanoTime();
+		if (DIRECT.equals(routing)) {
+			return membership().thenApply(ring -> {
+				Finger owner = ring.ownerOf(keyId);
+				return new Lookup(owner.getAddress(), owner.getPort(), 0, System.nanoTime() - start, DIRECT);
+			});
+		}
+		if (ITERATIVE.equals(routing)) {
+			CompletableFuture<Lookup> lookup = new CompletableFuture<>();
+			toEntryNodes(DHTMain.NEXT_HOP, keyId)
+					.whenComplete((response, error) -> nextHop(lookup, keyId, start, 1, response, error));
+			return lookup;
+		}
+
+		return toEntryNodes(DHTMain.FIND_NODE, keyId).thenApply(response -> {
+			// NODE_FOUND:address:port:hops
+			String[] responseFragments = response.split(":");
+			if (responseFragments.length < 3 || !DHTMain.NODE_FOUND.equals(responseFragments[0])) {
+				throw new CompletionException(new IOException("no node found for " + key + ": " + response));
+			}
+			int hops = responseFragments.length > 3 ? Integer.valueOf(responseFragments[3]) : -1;
+			return new Lookup(responseFragments[1], Integer.valueOf(responseFragments[2]), hops,
+					System.nanoTime() - start, RECURSIVE);
+		});
+	}
+
+	/**
+	 * Sends a request for a key to the node that owns it, taken from the
+	 * owner cache or else looked up with the given routing. Without the
+	 * cache a recursive request goes to an entry node as a whole.
+	 */
+	private CompletableFuture<String> toOwner(String key, String routing, String directCommand, String command,
+			Object... fields) {
+		if (DIRECT.equals(routing)) {
+			return toMember(key, directCommand, command, fields);
+		}
+		Finger cached = ownerCache.get(SHAHelper.hashToRing(key));
+		if (cached == null && OWNER_CACHE_SIZE <= 0 && !ITERATIVE.equals(routing)) {
+			return toEntryNodes(command, fields);
+		}
+
+		CompletableFuture<Finger> owner = cached != null ? CompletableFuture.completedFuture(cached)
+				: findOwner(key, routing).thenApply(lookup -> new Finger(lookup.getAddress(), lookup.getPort()));
+		CompletableFuture<String> reply = new CompletableFuture<>();
+		owner.whenComplete((finger, error) -> {
+			if (error != null) {
+				reply.completeExceptionally(error);
+			} else {
+				direct(reply, finger, 1, directCommand, command, fields);
+			}
+		});
+		return reply;
+	}
+
+	/**
+	 * Sends a direct request to the node believed to own the key and follows
+	 * its redirects. Caches the node that finally answers. If a node does not
+	 * answer, or the redirects do not end, the request goes to an entry node
+	 * instead.
+	 */
+	private void direct(CompletableFuture<String> reply, Finger owner, int hops, String directCommand,
+			String command, Object... fields) {
+		request(owner.getAddress(), owner.getPort(), directCommand, fields).whenComplete((response, error) -> {
+			boolean redirected = error == null && response.startsWith(DHTMain.REDIRECT + ":");
+			if (error == null && !redirected) {
+				ownerCache.put(owner);
+				reply.complete(response);
+			} else if (redirected && hops < MAX_HOPS) {
+				direct(reply, ProtocolHandler.parseOwner(response), hops + 1, directCommand, command, fields);
+			} else {
+				if (error != null) {
+					ownerCache.remove(owner);
+				}
+				pipe(toEntryNodes(command, fields), reply);
+			}
+		});
+	}
+
+	/**
+	 * Sends a request for a key straight to the node the membership names as
+	 * its owner. A REDIRECT means the membership is out of date, it is
+	 * reloaded in the background while the redirect is followed. If the owner
+	 * does not answer, reads go to its successors, which hold its replicas,
+	 * and writes to the entry nodes.
+	 */
+	private CompletableFuture<String> toMember(String key, String directCommand, String command,
+			Object... fields) {
+		long keyId = SHAHelper.hashToRing(key);
+		CompletableFuture<String> reply = new CompletableFuture<>();
+		membership().whenComplete((ring, error) -> {
+			if (error != null) {
+				System.err.println("could not load the ring membership, using the entry nodes: " + error);
+				pipe(toEntryNodes(command, fields), reply);
+				return;
+			}
+
+			Finger owner = ring.ownerOf(keyId);
+			CompletableFuture<String> ownerReply = request(owner.getAddress(), owner.getPort(), directCommand, fields);
+			ownerReply.whenComplete((response, requestError) -> {
+				if (requestError == null && !response.startsWith(DHTMain.REDIRECT + ":")) {
+					reply.complete(response);
+					return;
+				}
+
+				invalidateMembership();
+				if (requestError == null) {
+					direct(reply, ProtocolHandler.parseOwner(response), 2, directCommand, command, fields);
+				} else if (DHTMain.FIND_VALUE_DIRECT.equals(directCommand)) {
+					readReplicas(reply, ring.successorsOf(owner, DHTMain.REPLICATION_FACTOR), 0, key);
+				} else {
+					pipe(toEntryNodes(command, fields), reply);
+				}
+			});
+		});
+		return reply;
+	}
+
+	/**
+	 * Reads a key from the replicas of its failed owner in turn, then from
+	 * the entry nodes.
+	 */
+	private void readReplicas(CompletableFuture<String> reply, List<Finger> replicas, int index, String key) {
+		if (index == replicas.size()) {
+			pipe(toEntryNodes(DHTMain.FIND_VALUE, key), reply);
+			return;
+		}
+
+		Finger replica = replicas.get(index);
+		request(replica.getAddress(), replica.getPort(), DHTMain.FIND_VALUE_IN_SUCCESSOR, key)
+				.whenComplete((value, error) -> {
+					// A replica that lacks the key answers "null"
+					if (error != null || value == null || value.isEmpty() || value.equals("null")) {
+						readReplicas(reply, replicas, index + 1, key);
+					} else {
+						reply.complete("VALUE_FOUND:Request acknowledged on node " + replica.getAddress() + ":"
+								+ replica.getPort() + ":" + value);
+					}
+				});
+	}
+
+	/**
+	 * Reads a key from the owner or one of its replica successors in the
+	 * membership, chosen by the read mode, with READ_REPLICA. Falls back to
+	 * reading the owner as the routing says if the membership cannot be
+	 * loaded, and to the owner if the replica fails or is behind.
+	 */
+	private CompletableFuture<String> balancedRead(String key, String routing) {
+		long keyId = SHAHelper.hashToRing(key);
+		CompletableFuture<String> reply = new CompletableFuture<>();
+		membership().whenComplete((ring, error) -> {
+			if (error != null) {
+				pipe(toOwner(key, routing, DHTMain.FIND_VALUE_DIRECT, DHTMain.FIND_VALUE, key), reply);
+				return;
+			}
+
+			Finger owner = ring.ownerOf(keyId);
+			long[] seen = minimumVersions.get(key);
+			// Until the owner has been read, after a put, or when the key
+			// moved to another owner, whose versions count differently, only
+			// the owner can tell which version is recent enough
+			long minimum = seen != null && seen[0] == owner.getNodeId() ? seen[1] : Long.MAX_VALUE;
+			List<Finger> copies = new ArrayList<>();
+			copies.add(owner);
+			if (minimum != Long.MAX_VALUE) {
+				copies.addAll(ring.successorsOf(owner, DHTMain.REPLICATION_FACTOR));
+			}
+			Finger copy = chooseCopy(copies);
+			if (copy == owner) {
+				readOwner(reply, owner, key, routing, seen);
+				return;
+			}
+
+			readCopy(copy, owner, key).whenComplete((response, copyError) -> {
+				String[] fragments = copyError == null ? response.split(":", 3) : null;
+				if (fragments == null || !DHTMain.REPLICA_VALUE.equals(fragments[0])) {
+					readOwner(reply, owner, key, routing, seen);
+				} else if (Long.valueOf(fragments[1]) < minimum) {
+					staleReplicaReads.incrementAndGet();
+					readOwner(reply, owner, key, routing, seen);
+				} else {
+					replicaReads.incrementAndGet();
+					reply.complete(found(copy, fragments));
+				}
+			});
+		});
+		return reply;
+	}
+
+	/**
+	 * Reads a key from its owner with READ_REPLICA and remembers the owner's
+	 * version as the lowest one to take from its replicas, unless the key
+	 * was written or read again in the meantime, i.e. what the client
+	 * remembers for it is no longer what it was when the read started. A
+	 * redirect or a failure reloads the membership and reads the key as the
+	 * routing says.
+	 */
+	private void readOwner(CompletableFuture<String> reply, Finger owner, String key, String routing,
+			long[] seen) {
+		readCopy(owner, owner, key).whenComplete((response, error) -> {
+			String[] fragments = error == null ? response.split(":", 3) : null;
+			if (fragments == null || !DHTMain.REPLICA_VALUE.equals(fragments[0])) {
+				invalidateMembership();
+				pipe(toOwner(key, routing, DHTMain.FIND_VALUE_DIRECT, DHTMain.FIND_VALUE, key), reply);
+				return;
+			}
+			long version = Long.valueOf(fragments[1]);
+			minimumVersions.compute(key,
+					(k, current) -> current == seen ? new long[] { owner.getNodeId(), version } : current);
+			reply.complete(found(owner, fragments));
+		});
+	}
+
+	/**
+	 * Makes the next read of a key go to its owner, so that it sees a value
+	 * just written. Reads of the owner that started before do not undo it.
+	 */
+	private void readOwnerNext(String key) {
+		minimumVersions.put(key, new long[] { 0, Long.MAX_VALUE });
+	}
+
+	/**
+	 * Sends READ_REPLICA for a key to one of its copies and keeps count of
+	 * the requests waiting for it and of its latency.
+	 */
+	private CompletableFuture<String> readCopy(Finger copy, Finger owner, String key) {
+		AtomicInteger waiting = outstanding.computeIfAbsent(copy.getAddress() + ":" + copy.getPort(),
+				endpoint -> new AtomicInteger());
+		waiting.incrementAndGet();
+		long start = System.nanoTime();
+		CompletableFuture<String> reply = request(copy.getAddress(), copy.getPort(), DHTMain.READ_REPLICA,
+				owner.getNodeId(), key);
+		reply.whenComplete((response, error) -> {
+			waiting.decrementAndGet();
+			if (error == null) {
+				latency.record(copy, System.nanoTime() - start);
+			} else {
+				latency.remove(copy);
+			}
+		});
+		return reply;
+	}
+
+	/**
+	 * Picks the copy with the fewest requests waiting or the lowest average
+	 * latency, a node without a measurement counting as the fastest so it
+	 * gets one. Ties go to a random one of the copies.
+	 */
+	private Finger chooseCopy(List<Finger> copies) {
+		Finger chosen = null;
+		double best = Double.MAX_VALUE;
+		int ties = 0;
+		for (Finger copy : copies) {
+			double cost;
+			if (LOWEST_LATENCY.equals(readMode)) {
+				cost = latency.getMillis(copy);
+				cost = Double.isNaN(cost) ? 0 : cost;
+			} else {
+				AtomicInteger waiting = outstanding.get(copy.getAddress() + ":" + copy.getPort());
+				cost = waiting == null ? 0 : waiting.get();
+			}
+			if (cost < best) {
+				chosen = copy;
+				best = cost;
+				ties = 1;
+			} else if (cost == best && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+				chosen = copy;
+			}
+		}
+		return chosen;
+	}
+
+	/**
+	 * Turns REPLICA_VALUE:version[:value] into the reply of FIND_VALUE.
+	 */
+	private static String found(Finger copy, String[] fragments) {
+		if (fragments.length < 3) {
+			return "Key NOT FOUND.";
+		}
+		return "VALUE_FOUND:Request acknowledged on node " + copy.getAddress() + ":" + copy.getPort() + ":"
+				+ fragments[2];
+	}
+
+	/**
+	 * Returns the membership, loading it first if there is none yet. A stale
+	 * membership is still returned while a fresh one loads.
+	 */
+	private synchronized CompletableFuture<MembershipTable> membership() {
+		CompletableFuture<MembershipTable> refresh = membershipRefresh;
+		if (refresh == null && (membership == null || membershipStale)) {
+			membershipStale = false;
+			refresh = loadMembership();
+			membershipRefresh = refresh;
+			refresh.whenComplete((loaded, error) -> membershipLoaded(loaded));
+		}
+		if (membership != null) {
+			return CompletableFuture.completedFuture(membership);
+		}
+		return refresh;
+	}
+
+	private synchronized void membershipLoaded(MembershipTable loaded) {
+		if (loaded != null) {
+			membership = loaded;
+		}
+		membershipRefresh = null;
+	}
+
+	private synchronized void invalidateMembership() {
+		membershipStale = true;
+	}
+
+	/**
+	 * Walks the ring with GET_MEMBERSHIP, each node names itself and its
+	 * successors, until the walk comes back to a node it has seen.
+	 */
+	private CompletableFuture<MembershipTable> loadMembership() {
+		CompletableFuture<MembershipTable> loaded = new CompletableFuture<>();
+		toEntryNodes(DHTMain.GET_MEMBERSHIP).whenComplete(
+				(response, error) -> walk(loaded, new LinkedHashMap<Long, Finger>(), response, error));
+		return loaded;
+	}
+
+	private void walk(CompletableFuture<MembershipTable> loaded, Map<Long, Finger> nodes, String response,
+			Throwable error) {
+		Finger last = null;
+		boolean wrapped = false;
+		if (error == null) {
+			List<Finger> reply = ProtocolHandler.parseFingers(response);
+			for (int i = 0; i < reply.size() && !wrapped; i++) {
+				Finger node = reply.get(i);
+				if (node == null) {
+					continue;
+				}
+				// The first node is the one we asked, which we know already
+				if (nodes.putIfAbsent(node.getNodeId(), node) == null) {
+					last = node;
+				} else if (i > 0) {
+					wrapped = true;
+				}
+			}
+		}
+
+		if (last != null && !wrapped) {
+			request(last.getAddress(), last.getPort(), DHTMain.GET_MEMBERSHIP)
+					.whenComplete((next, nextError) -> walk(loaded, nodes, next, nextError));
+		} else if (!nodes.isEmpty()) {
+			// A node that did not answer ends the walk early, the requests
+			// it leaves out are redirected and reload the membership
+			loaded.complete(MembershipTable.of(nodes.values()));
+		} else {
+			loaded.completeExceptionally(error != null ? error : new IOException("no nodes in " + response));
+		}
+	}
+
+	private static void pipe(CompletableFuture<String> from, CompletableFuture<String> to) {
+		from.whenComplete((response, error) -> {
+			if (error != null) {
+				to.completeExceptionally(error);
+			} else {
+				to.complete(response);
+			}
+		});
+	}
+
+	/**
+	 * Handles the reply to one NEXT_HOP of an iterative lookup, either the
+	 * owner or the node to ask next.
+	 */
+	private void nextHop(CompletableFuture<Lookup> lookup, long keyId, long start, int hops, String response,
+			Throwable error) {
+		if (error != null) {
+			lookup.completeExceptionally(error);
+			return;
+		}
+
+		// NODE_FOUND:address:port or NEXT_HOP:address:port
+		String[] responseFragments = response.split(":");
+		if (responseFragments.length == 3 && DHTMain.NODE_FOUND.equals(responseFragments[0])) {
+			lookup.complete(new Lookup(responseFragments[1], Integer.valueOf(responseFragments[2]), hops,
+					System.nanoTime() - start, ITERATIVE));
+		} else if (responseFragments.length == 3 && DHTMain.NEXT_HOP.equals(responseFragments[0]) && hops < MAX_HOPS) {
+			request(responseFragments[1], Integer.valueOf(responseFragments[2]), DHTMain.NEXT_HOP, keyId)
+					.whenComplete((next, nextError) -> nextHop(lookup, keyId, start, hops + 1, next, nextError));
+		} else {
+			lookup.completeExceptionally(
+					new IOException("lookup of " + keyId + " stopped after " + hops + " hops: " + response));
+		}
+	}
+
+	/**
+	 * Looks up several keys at once. The map holds the reply for every key, in
+	 * the order of the keys.
+	 */
+	public CompletableFuture<Map<String, String>> getAll(Collection<String> keys) {
+		Map<String, CompletableFuture<String>> replies = new LinkedHashMap<>();
+		for (String key : keys) {
+			replies.put(key, get(key));
+		}
+		return collect(replies);
+	}
+
+	/**
+	 * Stores several values at once. The map holds the reply for every key, in
+	 * the order of the given map.
+	 */
+	public CompletableFuture<Map<String, String>> putAll(Map<String, String> values) {
+		Map<String, CompletableFuture<String>> replies = new LinkedHashMap<>();
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			replies.put(entry.getKey(), put(entry.getKey(), entry.getValue()));
+		}
+		return collect(replies);
+	}
+
+	/**
+	 * Closes the connections to the entry nodes. Requests still in flight or
+	 * waiting to be sent fail.
+	 */
+	public void close() {
+		closed = true;
+		startWaiting();
+		connectionPool.close();
+		timer.shutdownNow();
+	}
+
+	/**
+	 * Runs a request once fewer than the maximum number of requests are in
+	 * flight, at once if that is the case and otherwise queued until an
+	 * earlier request completes.
+	 */
+	private <T> CompletableFuture<T> bounded(Supplier<CompletableFuture<T>> request) {
+		CompletableFuture<T> reply = new CompletableFuture<>();
+		waiting.add(() -> {
+			if (closed) {
+				reply.completeExceptionally(new IOException("client closed"));
+			}
+			if (reply.isDone()) {
+				// Cancelled while it waited, or the client is closed
+				inFlight.release();
+				return;
+			}
+			CompletableFuture<T> sent = request.get();
+			sent.whenComplete((response, error) -> {
+				inFlight.release();
+				if (!waiting.isEmpty()) {
+					// Not on this thread, which may be the reader of a
+					// connection and would run the next request in this
+					// callback
+					try {
+						timer.execute(this::startWaiting);
+					} catch (RejectedExecutionException e) {
+						startWaiting();
+					}
+				}
+				if (error != null) {
+					reply.completeExceptionally(error);
+				} else {
+					reply.complete(response);
+				}
+			});
+			reply.whenComplete((response, error) -> {
+				if (reply.isCancelled()) {
+					sent.cancel(false);
+				}
+			});
+		});
+		startWaiting();
+		return reply;
+	}
+
+	/**
+	 * Starts waiting requests while there are places in flight.
+	 */
+	private void startWaiting() {
+		while (!waiting.isEmpty() && inFlight.tryAcquire()) {
+			Runnable next = waiting.poll();
+			if (next == null) {
+				inFlight.release();
+				continue;
+			}
+			next.run();
+		}
+	}
+
+	/**
+	 * Sends the command to the entry nodes, starting with the one that
+	 * answered last.
+	 */
+	private CompletableFuture<String> toEntryNodes(String command, Object... fields) {
+		CompletableFuture<String> reply = new CompletableFuture<>();
+		attempt(reply, preferredEntry.get(), 0, command, fields);
+		return reply;
+	}
+
+	/**
+	 * Sends the command to one entry node and moves on to the next one if it
+	 * fails.
+	 */
+	private void attempt(CompletableFuture<String> reply, int entry, int attempts, String command,
+			Object... fields) {
+		InetSocketAddress node = entryNodes.get(entry % entryNodes.size());
+		CompletableFuture<String> attemptReply = request(node.getHostString(), node.getPort(), command, fields);
+
+		attemptReply.whenComplete((response, error) -> {
+			if (error == null) {
+				preferredEntry.set(entry % entryNodes.size());
+				reply.complete(response);
+			} else if (attempts + 1 < entryNodes.size()) {
+				System.err.println("request to " + node + " failed, trying the next entry node: " + error);
+				attempt(reply, entry + 1, attempts + 1, command, fields);
+			} else {
+				reply.completeExceptionally(error);
+			}
+		});
+	}
+
+	/**
+	 * Sends the command to the given node, failing if it does not answer
+	 * within the timeout.
+	 */
+	private CompletableFuture<String> request(String address, int port, String command, Object... fields) {
+		CompletableFuture<String> sent = connectionPool.requestAsync(address, port, command, fields);
+		CompletableFuture<String> reply = new CompletableFuture<>();
+		sent.whenComplete((response, error) -> {
+			if (error != null) {
+				reply.completeExceptionally(error);
+			} else {
+				reply.complete(response);
+			}
+		});
+
+		ScheduledFuture<?> timeoutTask = timer.schedule(new Runnable() {
+			public void run() {
+				reply.completeExceptionally(new TimeoutException("no reply from " + address + ":" + port
+						+ " within " + timeout + "ms"));
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		reply.whenComplete((response, error) -> {
+			timeoutTask.cancel(false);
+			// Timed out or cancelled. Cancelling the request makes the
+			// connection forget it without counting as a failure of the
+			// connection, which other requests share
+			if (!sent.isDone()) {
+				sent.cancel(false);
+			}
+		});
+		return reply;
+	}
+
+	private static CompletableFuture<Map<String, String>> collect(Map<String, CompletableFuture<String>> replies) {
+		CompletableFuture<Void> all = CompletableFuture
+				.allOf(replies.values().toArray(new CompletableFuture<?>[replies.size()]));
+		return all.thenApply(done -> {
+			Map<String, String> responses = new LinkedHashMap<>();
+			for (Map.Entry<String, CompletableFuture<String>> reply : replies.entrySet()) {
+				responses.put(reply.getKey(), reply.getValue().join());
+			}
+			return responses;
+		});
+	}
+
+	/**
+	 * Parses [address] [port] pairs from command line arguments.
+	 */
+	public static List<InetSocketAddress> parseEntryNodes(String[] args, int offset) {
+		List<InetSocketAddress> entryNodes = new ArrayList<>();
+		for (int i = offset; i + 1 < args.length; i += 2) {
+			entryNodes.add(new InetSocketAddress(args[i], Integer.valueOf(args[i + 1])));
+		}
+		return entryNodes;
+	}
+
+}
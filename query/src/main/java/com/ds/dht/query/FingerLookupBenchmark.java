@@ -0,0 +1,86 @@
+package com.ds.dht.query;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.ds.dht.DHTMain;
+import com.ds.dht.Finger;
+import com.ds.dht.FingerIndex;
+import com.ds.dht.RingMath;
+
+/**
+ * Compares the closest preceding finger lookup over the finger table map with
+ * the binary search in {@link FingerIndex}.
+ *
+ * Usage: FingerLookupBenchmark [lookups]
+ */
+public class FingerLookupBenchmark {
+
+	public static void main(String[] args) {
+		int lookups = args.length > 0 ? Integer.valueOf(args[0]) : 10000000;
+
+		// A finger table of a node in a ring of 64 nodes
+		Map<Integer, Finger> fingerTable = new HashMap<>();
+		for (int i = 0; i < DHTMain.FINGER_TABLE_SIZE; i++) {
+			fingerTable.put(i, new Finger("127.0.0.1", 8000 + (1 << i) % 64));
+		}
+		FingerIndex fingerIndex = FingerIndex.of(fingerTable.values().toArray(new Finger[0]));
+
+		long[] keys = new long[1024];
+		Random random = new Random(42);
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = random.nextLong() & DHTMain.ID_MASK;
+		}
+
+		// Both must route every key to the same node
+		for (long key : keys) {
+			if (scan(fingerTable, key).getNodeId() != fingerIndex.closestPrecedingFinger(key).getNodeId()) {
+				throw new IllegalStateException("lookups disagree for key " + key);
+			}
+		}
+
+		// Warm up, then measure
+		for (int round = 0; round < 2; round++) {
+			long sink = 0;
+
+			long start = System.nanoTime();
+			for (int i = 0; i < lookups; i++) {
+				sink += scan(fingerTable, keys[i & 1023]).getPort();
+			}
+			long scanTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < lookups; i++) {
+				sink += fingerIndex.closestPrecedingFinger(keys[i & 1023]).getPort();
+			}
+			long indexTime = System.nanoTime() - start;
+
+			if (round > 0) {
+				System.out.println("finger table scan: " + (scanTime / lookups) + " ns/lookup");
+				System.out.println("finger index:      " + (indexTime / lookups) + " ns/lookup");
+			}
+			if (sink == 0) {
+				System.out.println();
+			}
+		}
+	}
+
+	/**
+	 * The lookup as it was done by the request handlers, a walk over all
+	 * fingers for the smallest clockwise distance to the key.
+	 */
+	private static Finger scan(Map<Integer, Finger> fingerTable, long key) {
+		long minimumDistance = 0;
+		Finger closestNodeToKey = null;
+		for (Finger finger : fingerTable.values()) {
+			long distance = RingMath.distance(finger.getNodeId(), key);
+			if (closestNodeToKey == null || Long.compareUnsigned(distance, minimumDistance) < 0) {
+				minimumDistance = distance;
+				closestNodeToKey = finger;
+			}
+		}
+		return closestNodeToKey;
+	}
+
+}
@@ -0,0 +1,102 @@
+package com.ds.dht.query;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.ds.dht.DHTMain;
+import com.ds.dht.Murmur3RingHasher;
+import com.ds.dht.RingHasher;
+import com.ds.dht.SHAHelper;
+import com.ds.dht.Sha1RingHasher;
+
+/**
+ * Compares placing keys on the ring the way {@link SHAHelper} used to, with a
+ * new MessageDigest and buffers for every key, against the allocation free
+ * {@link RingHasher}s.
+ *
+ * Usage: HashBenchmark [hashes]
+ */
+public class HashBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int hashes = args.length > 0 ? Integer.valueOf(args[0]) : 2000000;
+
+		String[] keys = new String[1024];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = "key-" + i + "-" + Integer.toHexString(i * 7919);
+		}
+		byte[][] keyBytes = new byte[keys.length][];
+		for (int i = 0; i < keys.length; i++) {
+			keyBytes[i] = keys[i].getBytes("UTF-8");
+		}
+
+		RingHasher sha1 = new Sha1RingHasher();
+		RingHasher murmur3 = new Murmur3RingHasher();
+
+		// The reused SHA-1 digest must place every key where it was before on
+		// the 16 bit ring
+		for (int i = 0; i < keys.length; i++) {
+			if (allocating(keys[i]) != sha1.hash(keyBytes[i], 0, keyBytes[i].length, 16)) {
+				throw new IllegalStateException("hashes disagree for key " + keys[i]);
+			}
+		}
+
+		// Warm up, then measure
+		for (int round = 0; round < 2; round++) {
+			long sink = 0;
+
+			long start = System.nanoTime();
+			for (int i = 0; i < hashes; i++) {
+				sink += allocating(keys[i & 1023]);
+			}
+			long allocatingTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < hashes; i++) {
+				byte[] bytes = keyBytes[i & 1023];
+				sink += sha1.hash(bytes, 0, bytes.length, DHTMain.ID_BITS);
+			}
+			long sha1Time = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < hashes; i++) {
+				byte[] bytes = keyBytes[i & 1023];
+				sink += murmur3.hash(bytes, 0, bytes.length, DHTMain.ID_BITS);
+			}
+			long murmur3Time = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < hashes; i++) {
+				sink += SHAHelper.hashToRing(keys[i & 1023]);
+			}
+			long helperTime = System.nanoTime() - start;
+
+			if (round > 0) {
+				System.out.println("allocating SHA-1:  " + (allocatingTime / hashes) + " ns/hash");
+				System.out.println("reused SHA-1:      " + (sha1Time / hashes) + " ns/hash");
+				System.out.println("murmur3:           " + (murmur3Time / hashes) + " ns/hash");
+				System.out.println("SHAHelper (" + DHTMain.RING_HASHER + "): " + (helperTime / hashes) + " ns/hash");
+			}
+			if (sink == 0) {
+				System.out.println();
+			}
+		}
+	}
+
+	/**
+	 * The hash as SHAHelper computed it, a new digest, key bytes and result
+	 * buffer for every call.
+	 */
+	private static long allocating(String key) throws NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		byte[] digest = md.digest(key.getBytes());
+		byte[] hashedBytes = new byte[8];
+		for (int i = 0; i < 2; i++) {
+			hashedBytes[i + 6] = (byte) (digest[i] ^ digest[i + 2] ^ digest[i + 4] ^ digest[i + 6] ^ digest[i + 8]
+					^ digest[i + 10] ^ digest[i + 12] ^ digest[i + 12] ^ digest[i + 16] ^ digest[i + 18]);
+		}
+		return ByteBuffer.wrap(hashedBytes).getLong();
+	}
+
+}
@@ -0,0 +1,62 @@
+package com.ds.dht.query;
+
+import java.util.Arrays;
+
+/**
+ * Measures the tail latency of recursive lookups and gets against a running
+ * ring, to compare rings with and without hedging. Prints the median, 99th
+ * and 99.9th percentile and the largest latency.
+ *
+ * Start some nodes of the ring with {@link SlowNode} so that they answer
+ * late, then run the benchmark once against a ring started without
+ * -Ddht.hedgeAfter and once against the same ring started with it.
+ * The entry node should not be one of the slow ones, it is the one that
+ * hedges.
+ *
+ * Usage: HedgeBenchmark [nodeaddress] [nodeport] [lookups]
+ */
+public class HedgeBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: HedgeBenchmark [nodeaddress] [nodeport] [lookups]");
+			System.exit(1);
+		}
+		int lookups = args.length > 2 ? Integer.valueOf(args[2]) : 5000;
+
+		DhtClient client = new DhtClient(args[0], Integer.valueOf(args[1]));
+
+		// Warm up, then measure
+		for (int round = 0; round < 2; round++) {
+			long[] lookupNanos = new long[lookups];
+			for (int i = 0; i < lookups; i++) {
+				lookupNanos[i] = client.lookup("key-" + i, DhtClient.RECURSIVE).get().getNanos();
+			}
+			long[] getNanos = new long[lookups];
+			for (int i = 0; i < lookups; i++) {
+				// Every get looks up the owner on the ring
+				client.getOwnerCache().clear();
+				long start = System.nanoTime();
+				client.get("key-" + i, DhtClient.RECURSIVE).get();
+				getNanos[i] = System.nanoTime() - start;
+			}
+
+			if (round > 0) {
+				print("recursive lookup", lookupNanos);
+				print("get", getNanos);
+			}
+		}
+		System.out.println(lookups + " requests each");
+
+		client.close();
+		System.exit(0);
+	}
+
+	private static void print(String name, long[] nanos) {
+		Arrays.sort(nanos);
+		System.out.println(String.format("%-18s p50 %8.3f ms, p99 %8.3f ms, p999 %8.3f ms, max %8.3f ms", name,
+				nanos[nanos.length / 2] / 1e6, nanos[nanos.length * 99 / 100] / 1e6,
+				nanos[nanos.length * 999 / 1000] / 1e6, nanos[nanos.length - 1] / 1e6));
+	}
+
+}
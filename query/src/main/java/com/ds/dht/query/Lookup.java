@@ -0,0 +1,55 @@
+package com.ds.dht.query;
+
+/**
+ * The node a lookup found to own a key, with the number of nodes the lookup
+ * went through and how long it took.
+ */
+public class Lookup {
+
+	private String address;
+	private int port;
+	private int hops;
+	private long nanos;
+	private String routing;
+
+	public Lookup(String address, int port, int hops, long nanos, String routing) {
+		this.address = address;
+		this.port = port;
+		this.hops = hops;
+		this.nanos = nanos;
+		this.routing = routing;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Number of nodes that took part in the lookup, the entry node included.
+	 * -1 if a node on the way did not report it.
+	 */
+	public int getHops() {
+		return hops;
+	}
+
+	public long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * {@link DhtClient#RECURSIVE} or {@link DhtClient#ITERATIVE}.
+	 */
+	public String getRouting() {
+		return routing;
+	}
+
+	public String toString() {
+		return address + ":" + port + " after " + hops + " hops in " + String.format("%.2f", nanos / 1e6) + " ms ("
+				+ routing + ")";
+	}
+
+}
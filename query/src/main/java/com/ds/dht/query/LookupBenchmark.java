@@ -0,0 +1,90 @@
+package com.ds.dht.query;
+
+import java.util.Arrays;
+
+import com.ds.dht.DHTMain;
+
+/**
+ * Compares recursive and iterative lookups against a running ring. Looks up
+ * the owners of generated keys one after the other in each mode and prints
+ * the mean number of hops and the mean, median and 99th percentile latency.
+ * Then times gets of the same keys with an empty owner cache, so every get
+ * looks up its owner first, with the cache filled by the previous gets, and
+ * with the owners computed from the ring membership.
+ *
+ * Usage: LookupBenchmark [nodeaddress] [nodeport] [lookups]
+ */
+public class LookupBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: LookupBenchmark [nodeaddress] [nodeport] [lookups]");
+			System.exit(1);
+		}
+		int lookups = args.length > 2 ? Integer.valueOf(args[2]) : 2000;
+
+		DhtClient client = new DhtClient(args[0], Integer.valueOf(args[1]));
+		String[] routings = { DhtClient.RECURSIVE, DhtClient.ITERATIVE, DhtClient.DIRECT };
+
+		// Warm up, then measure
+		for (int round = 0; round < 2; round++) {
+			for (String routing : routings) {
+				long[] nanos = new long[lookups];
+				long hops = 0;
+				for (int i = 0; i < lookups; i++) {
+					Lookup lookup = client.lookup("key-" + i, routing).get();
+					nanos[i] = lookup.getNanos();
+					hops += lookup.getHops();
+				}
+
+				if (round > 0) {
+					print(String.format("%s lookup, %.2f hops", routing, (double) hops / lookups), nanos);
+				}
+			}
+		}
+
+		for (int round = 0; round < 2; round++) {
+			long[] cold = new long[lookups];
+			for (int i = 0; i < lookups; i++) {
+				client.getOwnerCache().clear();
+				long start = System.nanoTime();
+				client.get("key-" + i, DhtClient.RECURSIVE).get();
+				cold[i] = System.nanoTime() - start;
+			}
+			long[] warm = new long[lookups];
+			for (int i = 0; i < lookups; i++) {
+				client.get("key-" + i, DhtClient.RECURSIVE).get();
+			}
+			for (int i = 0; i < lookups; i++) {
+				long start = System.nanoTime();
+				client.get("key-" + i, DhtClient.RECURSIVE).get();
+				warm[i] = System.nanoTime() - start;
+			}
+			long[] direct = new long[lookups];
+			for (int i = 0; i < lookups; i++) {
+				long start = System.nanoTime();
+				client.get("key-" + i, DhtClient.DIRECT).get();
+				direct[i] = System.nanoTime() - start;
+			}
+
+			if (round > 0) {
+				print("cold cache get", cold);
+				print("warm cache get", warm);
+				print("direct get", direct);
+			}
+		}
+		System.out.println(lookups + " lookups per mode, " + DHTMain.ID_BITS + " bit ids, "
+				+ client.getOwnerCache().size() + " owners cached");
+
+		client.close();
+		System.exit(0);
+	}
+
+	private static void print(String name, long[] nanos) {
+		Arrays.sort(nanos);
+		System.out.println(String.format("%-32s mean %.3f ms, p50 %.3f ms, p99 %.3f ms", name,
+				Arrays.stream(nanos).average().getAsDouble() / 1e6, nanos[nanos.length / 2] / 1e6,
+				nanos[nanos.length * 99 / 100] / 1e6));
+	}
+
+}
@@ -0,0 +1,122 @@
+package com.ds.dht.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.ds.dht.DHTMain;
+import com.ds.dht.Finger;
+import com.ds.dht.MembershipGossip;
+import com.ds.dht.MembershipTable;
+
+/**
+ * Reports what one hop routing costs as the ring grows, without starting any
+ * nodes. For each ring size it builds the full membership tables of all
+ * nodes, as gossip would, and prints the heap they take per node and the
+ * length of a gossip message.
+ *
+ * Then a node joins knowing only one other node, and in every round each
+ * node swaps tables with a random node of its table, as
+ * {@link MembershipGossip} does every {@link DHTMain#GOSSIP_INTERVAL} ms. It
+ * prints the mean and largest number of rounds until every table holds the
+ * new node, and the time that takes.
+ *
+ * Usage: MembershipBenchmark [trials] [nodes...]
+ */
+public class MembershipBenchmark {
+
+	public static void main(String[] args) {
+		int trials = args.length > 0 ? Integer.valueOf(args[0]) : 5;
+		int[] sizes = { 16, 64, 128, 256, 512 };
+		if (args.length > 1) {
+			sizes = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				sizes[i - 1] = Integer.valueOf(args[i]);
+			}
+		}
+
+		System.out.println(DHTMain.ID_BITS + " bit ids, " + trials + " joins per size, gossip every "
+				+ DHTMain.GOSSIP_INTERVAL + " ms");
+		System.out.println("nodes  table bytes/node  message bytes  mean rounds  max rounds  mean delay ms");
+		for (int nodes : sizes) {
+			check(nodes, trials);
+		}
+	}
+
+	private static void check(int nodes, int trials) {
+		List<Finger> fingers = new ArrayList<>();
+		for (int i = 0; i <= nodes; i++) {
+			fingers.add(new Finger("127.0.0.1", 10000 + i));
+		}
+		// Nodes whose ids collide are kept once
+		int expected = MembershipTable.of(fingers).size();
+
+		long totalRounds = 0;
+		int maxRounds = 0;
+		int messageBytes = 0;
+		// The tables of all trials are kept until the end, so that the heap
+		// they take is large enough to measure
+		List<List<MembershipGossip>> rings = new ArrayList<>();
+		long before = usedHeap();
+		for (int trial = 0; trial < trials; trial++) {
+			// Every node but the last one knows all the others
+			List<MembershipGossip> ring = new ArrayList<>();
+			rings.add(ring);
+			StringBuilder entries = new StringBuilder();
+			for (int i = 0; i < nodes; i++) {
+				entries.append(i == 0 ? "" : "::").append(fingers.get(i).getAddress()).append(':')
+						.append(fingers.get(i).getPort());
+			}
+			for (int i = 0; i < nodes; i++) {
+				MembershipGossip member = new MembershipGossip(fingers.get(i));
+				member.merge(entries.toString());
+				ring.add(member);
+			}
+			messageBytes = ring.get(0).entries().length();
+
+			// The last node joins through the first one
+			MembershipGossip joining = new MembershipGossip(fingers.get(nodes));
+			joining.merge(ring.get(0).entries());
+			ring.add(joining);
+
+			int rounds = 0;
+			while (!complete(ring, expected)) {
+				rounds++;
+				List<MembershipGossip> order = new ArrayList<>(ring);
+				Collections.shuffle(order);
+				for (MembershipGossip member : order) {
+					Finger peer = member.pickPeer();
+					if (peer != null) {
+						member.merge(ring.get(peer.getPort() - 10000).receive(member.entries()));
+					}
+				}
+			}
+			totalRounds += rounds;
+			maxRounds = Math.max(maxRounds, rounds);
+		}
+
+		long tableBytes = (usedHeap() - before) / rings.size() / (nodes + 1);
+
+		double meanRounds = (double) totalRounds / trials;
+		System.out.println(String.format("%5d  %16d  %13d  %11.1f  %10d  %13.0f", nodes, tableBytes, messageBytes,
+				meanRounds, maxRounds, meanRounds * DHTMain.GOSSIP_INTERVAL));
+	}
+
+	private static boolean complete(List<MembershipGossip> ring, int expected) {
+		for (MembershipGossip member : ring) {
+			if (member.getTable().size() < expected) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
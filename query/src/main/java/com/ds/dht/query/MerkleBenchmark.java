@@ -0,0 +1,134 @@
+package com.ds.dht.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.ds.dht.ConcurrentKeyValueStore;
+import com.ds.dht.DHTMain;
+import com.ds.dht.MerkleStore;
+import com.ds.dht.MerkleSync;
+import com.ds.dht.MerkleTree;
+import com.ds.dht.ReplicaStream;
+import com.ds.dht.VersionedStore;
+
+/**
+ * Measures what an anti-entropy exchange costs as the data and the
+ * divergence between an owner and its replica grow, without starting any
+ * nodes. For every number of keys it fills an owner and a replica store
+ * with the same keys, then gives the replica a number of missing and
+ * changed keys and runs {@link MerkleSync} between them as a node does with
+ * its replica successors. Prints the requests, the bytes of the requests
+ * and replies as text lines and the keys repaired, next to the bytes a full
+ * push of the keys would take, and checks that both trees agree afterwards.
+ *
+ * Usage: MerkleBenchmark [keys...]
+ */
+public class MerkleBenchmark {
+
+	private final static int[] DIVERGED = { 0, 1, 10, 100, 1000 };
+
+	public static void main(String[] args) {
+		int[] keyCounts = { 1000, 10000, 100000 };
+		if (args.length > 0) {
+			keyCounts = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				keyCounts[i] = Integer.valueOf(args[i]);
+			}
+		}
+
+		System.out.println(DHTMain.ID_BITS + " bit ids, 2^" + DHTMain.MERKLE_LEAF_BITS + " buckets");
+		System.out.println("    keys  diverged  requests  bytes sent  full push  pushed  pulled  in sync");
+		for (int keyCount : keyCounts) {
+			for (int diverged : DIVERGED) {
+				if (diverged > keyCount) {
+					continue;
+				}
+				check(keyCount, diverged);
+			}
+		}
+	}
+
+	private static void check(int keyCount, int diverged) {
+		Random random = new Random(42);
+		MerkleTree ownerTree = new MerkleTree();
+		VersionedStore owner = new VersionedStore(new MerkleStore(new ConcurrentKeyValueStore(), ownerTree));
+		MerkleTree replicaTree = new MerkleTree();
+		VersionedStore replica = new VersionedStore(new MerkleStore(new ConcurrentKeyValueStore(), replicaTree));
+
+		long fullPush = 0;
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < keyCount; i++) {
+			String key = "key" + i;
+			String value = "value" + random.nextInt();
+			owner.put(key, value);
+			replica.put(key, value);
+			keys.add(key);
+			fullPush += key.length() + value.length() + 2;
+		}
+		// Half of the diverged keys are missing on the replica, the others
+		// are out of date, and the owner misses as many keys again
+		for (int i = 0; i < diverged; i++) {
+			String key = keys.get(random.nextInt(keys.size()));
+			if (i % 2 == 0) {
+				replica.remove(key);
+			} else {
+				replica.put(key, "stale" + i);
+			}
+		}
+		for (int i = 0; i < diverged / 2; i++) {
+			replica.put("missed" + i, "value" + i);
+		}
+
+		// The whole ring, as owned by the only node of a ring
+		long from = 0;
+		long[] bytes = new long[1];
+		MerkleSync sync = new MerkleSync(ownerTree.hashes(from, from, owner), owner, new MerkleSync.Peer() {
+
+			public String hashes(int level, List<Integer> indexes) {
+				bytes[0] += DHTMain.MERKLE_HASHES.length() + fieldBytes(from, from, level)
+						+ fieldBytes(indexes.toArray());
+				String reply = MerkleSync.replyHashes(replicaTree.hashes(from, from, replica), level, indexes);
+				bytes[0] += reply.length();
+				return reply;
+			}
+
+			public List<String> keys(List<Integer> pieces) throws IOException {
+				bytes[0] += DHTMain.MERKLE_KEYS.length() + fieldBytes(from, from) + fieldBytes(pieces.toArray());
+				String reply = MerkleSync.replyKeys(replicaTree.hashes(from, from, replica), replica, pieces);
+				bytes[0] += reply.length();
+				return MerkleSync.parseKeys(reply);
+			}
+
+			public boolean put(List<String> records) {
+				ReplicaStream.store(replica, records, 0);
+				bytes[0] += DHTMain.PUT_REPLICAS.length() + fieldBytes(records.toArray());
+				return true;
+			}
+
+		});
+		try {
+			sync.run();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return;
+		}
+		boolean inSync = ownerTree.hashes(from, from, owner).get(0, 0) == replicaTree.hashes(from, from, replica)
+				.get(0, 0);
+		System.out.println(String.format("%8d  %8d  %8d  %10d  %9d  %6d  %6d  %7s", keyCount, diverged,
+				sync.getRequests(), bytes[0], fullPush, sync.getPushed(), sync.getPulled(), inSync));
+	}
+
+	/**
+	 * Length of fields in a text line, each with its separator.
+	 */
+	private static long fieldBytes(Object... fields) {
+		long bytes = 0;
+		for (Object field : fields) {
+			bytes += String.valueOf(field).length() + 1;
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,137 @@
+package com.ds.dht.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.ds.dht.DHTMain;
+import com.ds.dht.Finger;
+import com.ds.dht.FingerIndex;
+import com.ds.dht.MembershipTable;
+import com.ds.dht.ProximityFingers;
+import com.ds.dht.RingMath;
+
+/**
+ * Compares lookup latency with fingers picked as exact successors and by
+ * proximity, without starting any nodes. The nodes of a simulated ring are
+ * placed at random points of a square, the round trip time between two of
+ * them is 1 ms plus 150 ms per side length of distance.
+ *
+ * For every number of candidates it builds the finger tables of all nodes
+ * with {@link ProximityFingers}, 1 candidate being the exact successor, and
+ * routes random keys from random nodes as {@link com.ds.dht.ProtocolHandler} does for
+ * FIND_NODE. A recursive lookup waits for every hop on its way back, so its
+ * latency is the sum of the round trip times of its hops. Prints the mean
+ * number of hops and the mean, median and 99th percentile latency.
+ *
+ * Usage: ProximityBenchmark [nodes] [lookups] [candidates...]
+ */
+public class ProximityBenchmark {
+
+	private final static double BASE_MILLIS = 1;
+	private final static double MILLIS_PER_SIDE = 150;
+
+	public static void main(String[] args) {
+		int nodes = args.length > 0 ? Integer.valueOf(args[0]) : 512;
+		int lookups = args.length > 1 ? Integer.valueOf(args[1]) : 10000;
+		int[] candidateCounts = { 1, 2, 4, 8 };
+		if (args.length > 2) {
+			candidateCounts = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++) {
+				candidateCounts[i - 2] = Integer.valueOf(args[i]);
+			}
+		}
+
+		Random random = new Random(42);
+		List<Finger> members = new ArrayList<>();
+		for (int i = 0; i < nodes; i++) {
+			members.add(new Finger("10.0." + (i / 250) + "." + (i % 250 + 1), 8001));
+		}
+		// Nodes whose ids collide are kept once
+		MembershipTable ring = MembershipTable.of(members);
+		Map<Long, double[]> points = new HashMap<>();
+		for (Finger node : ring.getNodes()) {
+			points.put(node.getNodeId(), new double[] { random.nextDouble(), random.nextDouble() });
+		}
+
+		long[] keys = new long[lookups];
+		Finger[] sources = new Finger[lookups];
+		for (int i = 0; i < lookups; i++) {
+			keys[i] = RingMath.wrap(random.nextLong());
+			sources[i] = ring.getNodes().get(random.nextInt(ring.size()));
+		}
+
+		System.out.println(ring.size() + " nodes, " + DHTMain.ID_BITS + " bit ids, " + lookups + " lookups");
+		System.out.println("candidates  mean hops  mean ms  p50 ms  p99 ms");
+		for (int candidateCount : candidateCounts) {
+			Map<Long, FingerIndex> fingers = new HashMap<>();
+			for (Finger node : ring.getNodes()) {
+				fingers.put(node.getNodeId(), fingerIndex(node, ring, points, candidateCount));
+			}
+
+			double[] millis = new double[lookups];
+			long hops = 0;
+			for (int i = 0; i < lookups; i++) {
+				Finger current = sources[i];
+				while (!isOwnedBy(current, keys[i], ring) && !isOwnedBy(successor(current, ring), keys[i], ring)) {
+					Finger next = fingers.get(current.getNodeId()).closestPrecedingFinger(keys[i]);
+					if (next == null || next.getNodeId() == current.getNodeId()) {
+						next = successor(current, ring);
+					}
+					millis[i] += roundTrip(current, next, points);
+					hops++;
+					current = next;
+				}
+			}
+
+			Arrays.sort(millis);
+			System.out.println(String.format("%10d  %9.2f  %7.1f  %6.1f  %6.1f", candidateCount,
+					(double) hops / lookups, Arrays.stream(millis).average().getAsDouble(), millis[lookups / 2],
+					millis[lookups * 99 / 100]));
+		}
+	}
+
+	/**
+	 * The fingers of a node, picked among the owner of each finger start and
+	 * the nodes after it as {@link com.ds.dht.Node#nearestFingers(int[], List)} does.
+	 */
+	private static FingerIndex fingerIndex(Finger node, MembershipTable ring, Map<Long, double[]> points,
+			int candidateCount) {
+		Finger[] fingerTable = new Finger[DHTMain.FINGER_TABLE_SIZE];
+		for (int i = 0; i < fingerTable.length; i++) {
+			Finger owner = ring.ownerOf(RingMath.fingerStart(node.getNodeId(), i));
+			fingerTable[i] = owner;
+			if (i == 0 || owner.getNodeId() == node.getNodeId()) {
+				continue;
+			}
+			List<Finger> known = new ArrayList<>();
+			known.add(owner);
+			known.addAll(ring.successorsOf(owner, candidateCount - 1));
+			Finger nearest = ProximityFingers.nearest(
+					ProximityFingers.candidates(node.getNodeId(), i, known, candidateCount),
+					candidate -> roundTrip(node, candidate, points));
+			if (nearest != null) {
+				fingerTable[i] = nearest;
+			}
+		}
+		return FingerIndex.of(fingerTable);
+	}
+
+	private static Finger successor(Finger node, MembershipTable ring) {
+		return ring.ownerOf(RingMath.wrap(node.getNodeId() + 1));
+	}
+
+	private static boolean isOwnedBy(Finger node, long key, MembershipTable ring) {
+		return ring.ownerOf(key).getNodeId() == node.getNodeId();
+	}
+
+	private static double roundTrip(Finger from, Finger to, Map<Long, double[]> points) {
+		double[] a = points.get(from.getNodeId());
+		double[] b = points.get(to.getNodeId());
+		return BASE_MILLIS + MILLIS_PER_SIDE * Math.hypot(a[0] - b[0], a[1] - b[1]);
+	}
+
+}
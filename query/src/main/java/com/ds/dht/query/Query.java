@@ -4,11 +4,12 @@ public class Query {
 
     public static void main(String[] args) {
         // Check arguments
-        if (args.length == 2) {
-            // Create query node with chord node address and port
-            new QueryNode(args[0], args[1]);
+        if (args.length >= 2 && args.length % 2 == 0) {
+            // Create query node with chord node addresses and ports, the
+            // extra ones are used when the first one does not answer
+            new QueryNode(DhtClient.parseEntryNodes(args, 0));
         } else {
-            System.err.println("Usage: query [nodeaddress] [nodeport]");
+            System.err.println("Usage: query [nodeaddress] [nodeport] [[nodeaddress] [nodeport]...]");
             System.exit(1);
         }
     }
@@ -3,26 +3,35 @@ package com.ds.dht.query;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
+import com.ds.dht.DHTMain;
 import com.ds.dht.SHAHelper;
 
 public class QueryNode {
 
-	private String chordNodeAddress;
-	private int chordNodePort;
+	private List<InetSocketAddress> entryNodes;
 	private SHAHelper sha1Hasher;
 
 	public QueryNode(String chordNodeAddress, String chordNodePort) {
-		this.chordNodeAddress = chordNodeAddress;
-		this.chordNodePort = Integer.valueOf(chordNodePort);
+		this(DhtClient.parseEntryNodes(new String[] { chordNodeAddress, chordNodePort }, 0));
+	}
+
+	/**
+	 * @param entryNodes
+	 *            Nodes to send the queries to, the later ones are only used
+	 *            when the earlier ones do not answer
+	 */
+	public QueryNode(List<InetSocketAddress> entryNodes) {
+		this.entryNodes = entryNodes;
+		InetSocketAddress entryNode = entryNodes.get(0);
 
 		// Hash address
-		this.sha1Hasher = new SHAHelper(this.chordNodeAddress + ":" + this.chordNodePort);
+		this.sha1Hasher = new SHAHelper(entryNode.getHostString() + ":" + entryNode.getPort());
 
-		System.out.println("Connection to node " + this.chordNodeAddress + ", port " + this.chordNodePort
+		System.out.println("Connection to node " + entryNode.getHostString() + ", port " + entryNode.getPort()
 				+ ", position " + sha1Hasher.getHex() + " (" + sha1Hasher.getLong() + "):");
 
 		// Establish connection to chord
@@ -30,13 +39,8 @@ public class QueryNode {
 	}
 
 	private void connectToChord() {
+		DhtClient client = new DhtClient(entryNodes, DhtClient.DEFAULT_MAX_IN_FLIGHT, DHTMain.REQUEST_TIMEOUT);
 		try {
-			// Open socket to chord node
-			Socket socket = new Socket(this.chordNodeAddress, this.chordNodePort);
-
-			// Open reader/writer to chord node
-			PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-			BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 			BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in));
 
 			// Prompt for entry on console
@@ -44,18 +48,16 @@ public class QueryNode {
 
 			// Read from console until quit command
 			String key = consoleReader.readLine();
-			while (!key.equals("quit")) {
-				// Send query to chord
-				socketWriter.println("FIND_VALUE:" + key);
-				//System.out.println("Sent: " + "FIND_VALUE:" + key);
-
-				// Read response from chord
-				String serverResponse = socketReader.readLine();
-				// System.out.println("Response from node " +
-				// this.chordNodeAddress + ", port " + this.chordNodePort + ",
-				// position " + sha1Hasher.getHex() + " (" +
-				// sha1Hasher.getLong() + "):");
-				System.out.println("Received: " + serverResponse);
+			while (key != null && !key.equals("quit")) {
+				// Find the node of the key, then ask it for the value
+				try {
+					Lookup owner = client.lookup(key, DhtClient.DEFAULT_ROUTING).get();
+					System.out.println("Lookup: " + owner);
+					String serverResponse = client.get(key, owner).get();
+					System.out.println("Received: " + serverResponse);
+				} catch (ExecutionException e) {
+					System.err.println("Error: no response for " + key + ": " + e.getCause().getMessage());
+				}
 
 				// Prompt for new input
 				System.out.println("Please enter your search key (or type \"quit\" to leave):");
@@ -63,14 +65,10 @@ public class QueryNode {
 			}
 
 			// We have now read quit from the console so the program should exit
-			socket.close();
+			client.close();
 			System.exit(0);
-		} catch (UnknownHostException e) {
-			System.err.println("Error: Unknown host " + this.chordNodeAddress);
-			e.printStackTrace();
-			System.exit(1);
-		} catch (IOException e) {
-			System.err.println("Error: Cannot connect to host");
+		} catch (IOException | InterruptedException e) {
+			System.err.println("Error: Cannot read from console");
 			e.printStackTrace();
 			System.exit(1);
 		}
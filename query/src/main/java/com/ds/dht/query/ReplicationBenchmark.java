@@ -0,0 +1,78 @@
+package com.ds.dht.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.ds.dht.ConnectionPool;
+import com.ds.dht.Finger;
+import com.ds.dht.ReplicaStream;
+import com.ds.dht.VersionedStore;
+import com.ds.dht.WriteVersion;
+
+/**
+ * Measures replication throughput against a running node the way a node
+ * sends replicas to its successors, with {@link ReplicaStream}. Streams
+ * generated keys and values to the node with several batch sizes and
+ * windows, one key per batch with one batch waiting being the old one
+ * PUT_REPLICA per key, and prints the MB/s of keys and values the node
+ * confirmed.
+ *
+ * The keys stay in the node's store until it finds that it does not have to
+ * keep them, so run it against a test ring.
+ *
+ * Usage: ReplicationBenchmark [nodeaddress] [nodeport] [megabytes] [valuebytes]
+ */
+public class ReplicationBenchmark {
+
+	private final static int[][] SETTINGS = { { 1, 1 }, { 4 * 1024, 1 }, { 4 * 1024, 4 }, { 64 * 1024, 1 },
+			{ 64 * 1024, 4 }, { 1024 * 1024, 4 } };
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: ReplicationBenchmark [nodeaddress] [nodeport] [megabytes] [valuebytes]");
+			System.exit(1);
+		}
+		Finger node = new Finger(args[0], Integer.valueOf(args[1]));
+		int megabytes = args.length > 2 ? Integer.valueOf(args[2]) : 16;
+		int valueBytes = args.length > 3 ? Integer.valueOf(args[3]) : 1000;
+
+		Random random = new Random(42);
+		List<String> records = new ArrayList<>();
+		long bytes = 0;
+		for (int i = 0; bytes < megabytes * 1024L * 1024L; i++) {
+			String key = "replica-bench-" + i;
+			StringBuilder value = new StringBuilder();
+			for (int j = 0; j < valueBytes; j++) {
+				value.append((char) ('a' + random.nextInt(26)));
+			}
+			ReplicaStream.add(records, key, new VersionedStore.Copy(value.toString(), new WriteVersion(1, i + 1)));
+			bytes += key.length() + value.length();
+		}
+		int fields = ReplicaStream.RECORD_FIELDS;
+		int pairs = records.size() / fields;
+
+		ConnectionPool connectionPool = new ConnectionPool();
+		// Warm up
+		ReplicaStream.send(connectionPool, node, records.subList(0, Math.min(records.size(), 1000 * fields)), 64 * 1024,
+				4);
+
+		System.out.println(pairs + " keys, " + String.format("%.1f", bytes / 1e6) + " MB of keys and values");
+		System.out.println("batch bytes  window  confirmed      MB/s     keys/s");
+		for (int[] setting : SETTINGS) {
+			// One key per batch takes long, send a tenth of the keys
+			List<String> sent = setting[0] == 1 ? records.subList(0, pairs / 10 * fields) : records;
+			long sentBytes = setting[0] == 1 ? bytes * sent.size() / records.size() : bytes;
+			long start = System.nanoTime();
+			int confirmed = ReplicaStream.send(connectionPool, node, sent, setting[0], setting[1]);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("%11d  %6d  %9s  %8.1f  %9.0f", setting[0], setting[1],
+					confirmed == sent.size() / fields ? "all" : confirmed + "/" + sent.size() / fields,
+					sentBytes / 1e6 / seconds, sent.size() / fields / seconds));
+		}
+
+		connectionPool.close();
+		System.exit(0);
+	}
+
+}
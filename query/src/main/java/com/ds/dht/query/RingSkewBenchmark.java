@@ -0,0 +1,105 @@
+package com.ds.dht.query;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.ds.dht.DHTMain;
+import com.ds.dht.RingHasher;
+
+/**
+ * Reports how evenly keys spread over the nodes of a ring for several id
+ * widths. Nodes are placed like the nodes started by DHTMain, at
+ * 127.0.0.1:[port] for consecutive ports, and every key goes to its
+ * successor node.
+ *
+ * For each width it prints the node and key ids lost to collisions, the load
+ * of the most and least loaded node relative to the mean, and the
+ * coefficient of variation of the load.
+ *
+ * Usage: RingSkewBenchmark [nodes] [keys] [hasher] [bits...]
+ */
+public class RingSkewBenchmark {
+
+	public static void main(String[] args) {
+		int nodes = args.length > 0 ? Integer.valueOf(args[0]) : 500;
+		int keys = args.length > 1 ? Integer.valueOf(args[1]) : 200000;
+		RingHasher hasher = RingHasher.forName(args.length > 2 ? args[2] : DHTMain.RING_HASHER);
+		int[] widths = { 8, 12, 16, 20, 24, 32, 48, 64 };
+		if (args.length > 3) {
+			widths = new int[args.length - 3];
+			for (int i = 3; i < args.length; i++) {
+				widths[i - 3] = Integer.valueOf(args[i]);
+			}
+		}
+
+		System.out.println(nodes + " nodes, " + keys + " keys");
+		System.out.println("bits  node collisions  key collisions  max/mean  min/mean  cv");
+		for (int bits : widths) {
+			check(hasher, bits, nodes, keys);
+		}
+	}
+
+	private static void check(RingHasher hasher, int bits, int nodes, int keys) {
+		// Sign flipped ids sort unsigned, as in FingerIndex
+		long[] nodeIds = new long[nodes];
+		for (int i = 0; i < nodes; i++) {
+			nodeIds[i] = hash(hasher, "127.0.0.1:" + (8001 + i), bits) ^ Long.MIN_VALUE;
+		}
+		Arrays.sort(nodeIds);
+		int distinctNodes = distinct(nodeIds);
+
+		long[] keyIds = new long[keys];
+		int[] load = new int[distinctNodes];
+		for (int i = 0; i < keys; i++) {
+			long keyId = hash(hasher, "key-" + i, bits) ^ Long.MIN_VALUE;
+			keyIds[i] = keyId;
+
+			// The successor is the first node id not smaller than the key,
+			// wrapping around to the first node
+			int position = Arrays.binarySearch(nodeIds, 0, distinctNodes, keyId);
+			if (position < 0) {
+				position = -position - 1;
+				if (position == distinctNodes) {
+					position = 0;
+				}
+			}
+			load[position]++;
+		}
+		Arrays.sort(keyIds);
+		int distinctKeys = distinct(keyIds);
+
+		double mean = (double) keys / distinctNodes;
+		int max = 0;
+		int min = Integer.MAX_VALUE;
+		double squares = 0;
+		for (int nodeLoad : load) {
+			max = Math.max(max, nodeLoad);
+			min = Math.min(min, nodeLoad);
+			squares += (nodeLoad - mean) * (nodeLoad - mean);
+		}
+		double cv = Math.sqrt(squares / distinctNodes) / mean;
+
+		System.out.println(String.format("%4d  %15d  %14d  %8.2f  %8.2f  %.2f", bits, nodes - distinctNodes,
+				keys - distinctKeys, max / mean, min / mean, cv));
+	}
+
+	private static long hash(RingHasher hasher, String text, int bits) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		return hasher.hash(bytes, 0, bytes.length, bits);
+	}
+
+	/**
+	 * Moves the distinct values of a sorted array to its front and returns
+	 * how many there are.
+	 */
+	private static int distinct(long[] sorted) {
+		int distinct = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (distinct == 0 || sorted[i] != sorted[distinct - 1]) {
+				sorted[distinct++] = sorted[i];
+			}
+		}
+		return distinct;
+	}
+
+}
@@ -0,0 +1,67 @@
+package com.ds.dht.query;
+
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.ds.dht.DHTMain;
+import com.ds.dht.Message;
+import com.ds.dht.Node;
+import com.ds.dht.NodeHost;
+import com.ds.dht.ProtocolHandler;
+
+/**
+ * Starts nodes like {@link DHTMain} that answer lookups and reads
+ * SLOW_DELAY ms late, with probability SLOW_RATE, so that they act like slow
+ * or overloaded nodes. For trying out hedging and replica reads, see
+ * {@link HedgeBenchmark} and {@link ZipfianBenchmark}. Override the options
+ * with -Ddht.slowDelay and -Ddht.slowRate.
+ *
+ * Usage: SlowNode [port] || SlowNode [port] [bootStrapNodeAddress]
+ * [bootStrapNodePort]
+ */
+public class SlowNode {
+
+	public final static long SLOW_DELAY = Long.getLong("dht.slowDelay", 10L);
+	public final static double SLOW_RATE = Double.parseDouble(System.getProperty("dht.slowRate", "1"));
+
+	public static void main(String[] args) {
+		NodeHost host = new NodeHost();
+		host.setHandlerFactory(SlowHandler::new);
+		DHTMain.start(host, args);
+	}
+
+	/**
+	 * Holds lookups and reads back before handling them as usual.
+	 */
+	private static class SlowHandler extends ProtocolHandler {
+
+		private SlowHandler(Node node, Socket socket) {
+			super(node, socket);
+		}
+
+		@Override
+		public String handleMessage(Message message) {
+			switch (message.getCommand()) {
+			case DHTMain.FIND_NODE:
+			case DHTMain.NEXT_HOP:
+			case DHTMain.FIND_VALUE:
+			case DHTMain.FIND_VALUE_DIRECT:
+			case DHTMain.FIND_VALUE_AT:
+			case DHTMain.FIND_VALUE_DIRECT_AT:
+			case DHTMain.READ_REPLICA:
+				if (ThreadLocalRandom.current().nextDouble() < SLOW_RATE) {
+					try {
+						Thread.sleep(SLOW_DELAY);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				break;
+			default:
+				break;
+			}
+			return super.handleMessage(message);
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+package com.ds.dht.query;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures get throughput under a skewed workload with each read mode of
+ * {@link DhtClient}. Stores a number of keys, then has several threads read
+ * them for a while, each picking keys with a Zipfian distribution so that a
+ * few hot keys, and the nodes that own them, get most of the reads. Prints
+ * the gets per second, the median and 99th percentile latency, the share of
+ * gets a replica answered and how many replica answers were too old.
+ * Writers, if any, keep putting other keys meanwhile.
+ *
+ * The hot owner only becomes the bottleneck when its node is slow, so start
+ * the ring with {@link SlowNode} and few workers, e.g. -Ddht.workers=2
+ * -Ddht.slowDelay=1.
+ *
+ * Usage: ZipfianBenchmark [nodeaddress] [nodeport] [seconds] [threads] [keys]
+ * [writers]
+ */
+public class ZipfianBenchmark {
+
+	// Skew of the key popularity, the usual YCSB value
+	private final static double SKEW = 0.99;
+
+	private final static String[] READ_MODES = { DhtClient.READ_OWNER, DhtClient.LEAST_OUTSTANDING,
+			DhtClient.LOWEST_LATENCY };
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println(
+					"Usage: ZipfianBenchmark [nodeaddress] [nodeport] [seconds] [threads] [keys] [writers]");
+			System.exit(1);
+		}
+		int seconds = args.length > 2 ? Integer.valueOf(args[2]) : 10;
+		int threads = args.length > 3 ? Integer.valueOf(args[3]) : 16;
+		int keys = args.length > 4 ? Integer.valueOf(args[4]) : 1000;
+		int writers = args.length > 5 ? Integer.valueOf(args[5]) : 0;
+
+		DhtClient client = new DhtClient(args[0], Integer.valueOf(args[1]));
+		for (int i = 0; i < keys; i++) {
+			client.put("zipf-" + i, "value-" + i, DhtClient.DIRECT, null).get();
+		}
+		// Give the nodes two stabilization rounds of 10 s to replicate the
+		// keys and tell their replicas
+		Thread.sleep(2 * 10000);
+
+		// Writers use a client of their own, so its puts do not send the
+		// readers to the owners
+		DhtClient writeClient = new DhtClient(args[0], Integer.valueOf(args[1]));
+		for (int w = 0; w < writers; w++) {
+			int writer = w;
+			Thread thread = new Thread(() -> {
+				for (long i = 0;; i++) {
+					try {
+						writeClient.put("zipf-write-" + writer + "-" + i % 1000, "value-" + i).get();
+					} catch (Exception e) {
+						System.err.println("put failed: " + e);
+					}
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		double[] cumulative = cumulative(keys);
+		System.out.println(keys + " keys, skew " + SKEW + ", " + threads + " threads, " + writers + " writers, "
+				+ seconds + " s per mode");
+		System.out.println("read mode            gets/s   p50 ms   p99 ms  replica  stale");
+		for (String readMode : READ_MODES) {
+			client.setReadMode(readMode);
+			// Warm up, which also learns the owners' versions
+			run(client, cumulative, threads, 1000);
+
+			long replicaReads = client.getReplicaReads();
+			long staleReads = client.getStaleReplicaReads();
+			long[][] latencies = run(client, cumulative, threads, seconds * 1000L);
+			long gets = 0;
+			for (long[] threadLatencies : latencies) {
+				gets += threadLatencies.length;
+			}
+			long[] all = new long[(int) gets];
+			int filled = 0;
+			for (long[] threadLatencies : latencies) {
+				System.arraycopy(threadLatencies, 0, all, filled, threadLatencies.length);
+				filled += threadLatencies.length;
+			}
+			Arrays.sort(all);
+			System.out.println(String.format("%-17s %9.0f %8.3f %8.3f  %6.1f%%  %5d", readMode,
+					(double) gets / seconds, all[all.length / 2] / 1e6, all[all.length * 99 / 100] / 1e6,
+					100.0 * (client.getReplicaReads() - replicaReads) / gets,
+					client.getStaleReplicaReads() - staleReads));
+		}
+
+		client.close();
+		writeClient.close();
+		System.exit(0);
+	}
+
+	/**
+	 * Has every thread read keys one after the other for the given time.
+	 *
+	 * @return the latency in nanoseconds of every get, by thread
+	 */
+	private static long[][] run(DhtClient client, double[] cumulative, int threads, long millis)
+			throws InterruptedException {
+		long[][] latencies = new long[threads][];
+		AtomicLong failed = new AtomicLong();
+		Thread[] workers = new Thread[threads];
+		long end = System.currentTimeMillis() + millis;
+		for (int t = 0; t < threads; t++) {
+			int thread = t;
+			workers[t] = new Thread(() -> {
+				Random random = new Random(thread);
+				long[] nanos = new long[1024];
+				int count = 0;
+				while (System.currentTimeMillis() < end) {
+					String key = "zipf-" + rank(cumulative, random.nextDouble());
+					long start = System.nanoTime();
+					try {
+						String reply = client.get(key).get();
+						if (!reply.startsWith("VALUE_FOUND")) {
+							failed.incrementAndGet();
+						}
+					} catch (Exception e) {
+						failed.incrementAndGet();
+					}
+					if (count == nanos.length) {
+						nanos = Arrays.copyOf(nanos, count * 2);
+					}
+					nanos[count++] = System.nanoTime() - start;
+				}
+				latencies[thread] = Arrays.copyOf(nanos, count);
+			});
+			workers[t].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		if (failed.get() > 0) {
+			System.err.println(failed.get() + " gets failed or did not find the key");
+		}
+		return latencies;
+	}
+
+	/**
+	 * Cumulative probabilities of the ranks 0 to keys - 1, rank r having
+	 * weight 1 / (r + 1)^SKEW.
+	 */
+	private static double[] cumulative(int keys) {
+		double[] cumulative = new double[keys];
+		double sum = 0;
+		for (int r = 0; r < keys; r++) {
+			sum += 1 / Math.pow(r + 1, SKEW);
+			cumulative[r] = sum;
+		}
+		for (int r = 0; r < keys; r++) {
+			cumulative[r] /= sum;
+		}
+		return cumulative;
+	}
+
+	private static int rank(double[] cumulative, double uniform) {
+		int position = Arrays.binarySearch(cumulative, uniform);
+		return Math.min(position >= 0 ? position : -position - 1, cumulative.length - 1);
+	}
+
+}
@@ -0,0 +1,149 @@
+package com.ds.dht.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.ds.dht.Node;
+import com.ds.dht.NodeHost;
+
+/**
+ * Requests through a client against a single node ring on a local port, and
+ * against entry nodes that are down or never answer.
+ */
+public class DhtClientTest {
+
+	private static Node node;
+	// Accepts connections, but never reads or answers
+	private static ServerSocket silent;
+	// Nothing listens on it
+	private static int down;
+
+	@BeforeClass
+	public static void start() throws IOException, InterruptedException {
+		node = new Node(new NodeHost(), "127.0.0.1", String.valueOf(freePort()));
+		for (int i = 0; i < 10; i++) {
+			node.getDataStore().put("key" + i, "value" + i);
+		}
+		silent = new ServerSocket(0);
+		down = freePort();
+		awaitListening(node.getPort());
+	}
+
+	@AfterClass
+	public static void stop() throws IOException {
+		silent.close();
+	}
+
+	@Test
+	public void requestsWithoutAReplyTimeOut() throws Exception {
+		try (DhtClient client = new DhtClient(entries(silent.getLocalPort()), 16, 300)) {
+			long start = System.currentTimeMillis();
+			Throwable error = failure(client.get("key1"));
+			assertTrue(String.valueOf(error), error instanceof TimeoutException);
+			assertTrue(System.currentTimeMillis() - start < 5000);
+		}
+	}
+
+	@Test
+	public void anEntryNodeThatIsDownIsSkipped() throws Exception {
+		try (DhtClient client = new DhtClient(entries(down, node.getPort()), 16, 5000)) {
+			assertTrue(client.get("key1").get(10, TimeUnit.SECONDS).endsWith(":value1"));
+		}
+	}
+
+	@Test
+	public void anEntryNodeThatDoesNotAnswerIsSkipped() throws Exception {
+		try (DhtClient client = new DhtClient(entries(silent.getLocalPort(), node.getPort()), 16, 300)) {
+			assertTrue(client.get("key2").get(10, TimeUnit.SECONDS).endsWith(":value2"));
+			// The entry node that answered is asked first from now on
+			long start = System.currentTimeMillis();
+			assertTrue(client.get("key3", DhtClient.RECURSIVE, null).get(10, TimeUnit.SECONDS).endsWith(":value3"));
+			assertTrue(System.currentTimeMillis() - start < 300);
+		}
+	}
+
+	@Test
+	public void requestsOverTheLimitWaitWithoutBlocking() throws Exception {
+		try (DhtClient client = new DhtClient(entries(node.getPort()), 1, 5000)) {
+			// Chained from the callback of a request that holds the only
+			// place in flight
+			CompletableFuture<String> chained = client.get("key4").thenCompose(first -> client.get("key5"));
+			assertTrue(chained.get(10, TimeUnit.SECONDS).endsWith(":value5"));
+
+			List<CompletableFuture<String>> replies = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				replies.add(client.get("key" + i));
+			}
+			for (int i = 0; i < 10; i++) {
+				assertTrue(replies.get(i).get(10, TimeUnit.SECONDS).endsWith(":value" + i));
+			}
+		}
+	}
+
+	@Test
+	public void requestsFailOnceTheClientIsClosed() throws Exception {
+		DhtClient client = new DhtClient(entries(node.getPort()), 16, 5000);
+		client.close();
+		assertTrue(failure(client.get("key6")) instanceof IOException);
+	}
+
+	private static List<InetSocketAddress> entries(Integer... ports) {
+		List<InetSocketAddress> entries = new ArrayList<>();
+		for (int port : Arrays.asList(ports)) {
+			entries.add(new InetSocketAddress("127.0.0.1", port));
+		}
+		return Collections.unmodifiableList(entries);
+	}
+
+	private static Throwable failure(CompletableFuture<String> reply) throws Exception {
+		try {
+			reply.get(10, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+		fail("the request did not fail");
+		return null;
+	}
+
+	/**
+	 * The node's server binds its port on a thread of its own.
+	 */
+	private static void awaitListening(int port) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			try (Socket socket = new Socket("127.0.0.1", port)) {
+				return;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw new AssertionError("node did not start listening on " + port);
+				}
+				Thread.sleep(20);
+			}
+		}
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+}